@@ -0,0 +1,114 @@
+package com.hotwire.sid.benchmarks;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hotwire.sid.HwIP_GeoException;
+import com.hotwire.sid.IP_AddressKey;
+import com.hotwire.sid.IP_AddressParser;
+import com.hotwire.sid.IP_GeoResponse;
+import com.hotwire.sid.QuovaIP_GeoServerAdapter;
+
+/**
+ * The whole QuovaIP_GeoServerAdapter.lookup path for the lookups it answers
+ * without a Quova round trip: parsing, the reserved range check, the caches
+ * and the metrics. The adapter points at a port nothing listens on, so any
+ * lookup that reached Quova would fail and be visible in the results.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AdapterLookupBenchmark {
+
+	private static final int ADDRESSES = 1 << 12;
+
+	private QuovaIP_GeoServerAdapter adapter;
+
+	private String[] cachedAddresses;
+
+	private String[] reservedAddresses;
+
+	@State(Scope.Thread)
+	public static class Cursor {
+
+		int next;
+
+		int next() {
+			return next++ & (ADDRESSES - 1);
+		}
+	}
+
+	@Setup
+	public void setUp() {
+		String hegq = "hotwire.eis.geo.quova.";
+		Properties properties = new Properties();
+		properties.setProperty(hegq + "geoDirectoryServerConnectionPoolSize",
+				"6");
+		properties.setProperty(hegq + "geoDirectoryServerClientTimeoutInMillis",
+				"1000");
+		properties.setProperty(hegq + "geoDirectoryServerPrimaryServerIp",
+				"127.0.0.1");
+		properties.setProperty(hegq + "geoDirectoryServerPrimaryServerPort",
+				"1");
+		properties.setProperty(hegq + "lookupCacheMaxEntries",
+				String.valueOf(ADDRESSES * 2));
+		properties.setProperty(hegq + "jmxEnabled", "false");
+		adapter = new QuovaIP_GeoServerAdapter();
+		adapter.setHwProps(properties);
+		adapter.configurationChanged();
+
+		cachedAddresses = new String[ADDRESSES];
+		reservedAddresses = new String[ADDRESSES];
+		for (int i = 0; i < ADDRESSES; i++) {
+			cachedAddresses[i] = "68.184." + (i >>> 8) + "." + (i & 0xFF);
+			reservedAddresses[i] = "10.0." + (i >>> 8) + "." + (i & 0xFF);
+			IP_AddressKey key = IP_AddressParser.parse(cachedAddresses[i]);
+			adapter.getLookupCache().put(
+					key,
+					new IP_GeoResponse.Builder(cachedAddresses[i],
+							IP_GeoResponse.GEO_INFO_SOURCE_QUOVA)
+							.setCountryCode("us").setCityName("san francisco")
+							.setStateName("california").setZipCode("94107")
+							.build());
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		adapter.shutdown();
+	}
+
+	@Benchmark
+	public IP_GeoResponse lookupCached(Cursor cursor) throws HwIP_GeoException {
+		return adapter.lookup(cachedAddresses[cursor.next()]);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public IP_GeoResponse lookupCachedContended(Cursor cursor)
+			throws HwIP_GeoException {
+		return adapter.lookup(cachedAddresses[cursor.next()]);
+	}
+
+	@Benchmark
+	public IP_GeoResponse lookupReserved(Cursor cursor)
+			throws HwIP_GeoException {
+		return adapter.lookup(reservedAddresses[cursor.next()]);
+	}
+}
@@ -0,0 +1,87 @@
+package com.hotwire.sid.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hotwire.sid.IP_AddressKey;
+import com.hotwire.sid.IP_AddressParser;
+import com.hotwire.sid.ReservedIP_Ranges;
+
+/**
+ * Parsing, canonicalization and reserved range checks of the addresses that
+ * every lookup starts with
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AddressParsingBenchmark {
+
+	private final String ipv4 = "68.184.77.220";
+
+	private final String paddedIPv4 = " 068.184.077.220 ";
+
+	private final String ipv6 = "2001:db8::8:800:200c:417a";
+
+	private final String mappedIPv4 = "::ffff:68.184.77.220";
+
+	private final IP_AddressKey ipv4Key = IP_AddressParser.parse(ipv4);
+
+	private final IP_AddressKey ipv6Key = IP_AddressParser.parse(ipv6);
+
+	@Benchmark
+	public long parseIPv4() {
+		return IP_AddressParser.parseIPv4(ipv4);
+	}
+
+	@Benchmark
+	public IP_AddressKey parseIPv4Key() {
+		return IP_AddressParser.parse(ipv4);
+	}
+
+	@Benchmark
+	public IP_AddressKey parseIPv6() {
+		return IP_AddressParser.parse(ipv6);
+	}
+
+	@Benchmark
+	public IP_AddressKey parseMappedIPv4() {
+		return IP_AddressParser.parse(mappedIPv4);
+	}
+
+	@Benchmark
+	public String canonicalizeCanonicalIPv4() {
+		return IP_AddressParser.canonicalize(ipv4, ipv4Key);
+	}
+
+	@Benchmark
+	public String canonicalizePaddedIPv4() {
+		return IP_AddressParser.canonicalize(paddedIPv4, ipv4Key);
+	}
+
+	@Benchmark
+	public String formatIPv6() {
+		return ipv6Key.toString();
+	}
+
+	@Benchmark
+	public boolean isReservedIPv4() {
+		return ReservedIP_Ranges.isReserved(ipv4Key);
+	}
+
+	@Benchmark
+	public boolean isReservedIPv6() {
+		return ReservedIP_Ranges.isReserved(ipv6Key);
+	}
+}
@@ -0,0 +1,93 @@
+package com.hotwire.sid.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hotwire.sid.IP_AddressKey;
+import com.hotwire.sid.IP_GeoResponse;
+import com.hotwire.sid.IP_GeoResponseCache;
+
+/**
+ * Throughput of IP_GeoResponseCache hits, misses and puts, single-threaded
+ * and with threads contending for the segments
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LookupCacheBenchmark {
+
+	@Param({ "LRU", "FIFO" })
+	public IP_GeoResponseCache.EvictionPolicy evictionPolicy;
+
+	/**
+	 * Number of distinct addresses looked up, half of them fit in the cache
+	 */
+	private static final int ADDRESSES = 1 << 16;
+
+	private IP_GeoResponseCache cache;
+
+	private IP_AddressKey[] keys;
+
+	@State(Scope.Thread)
+	public static class Cursor {
+
+		int next;
+
+		int next(int mask) {
+			return next++ & mask;
+		}
+	}
+
+	@Setup
+	public void setUp() {
+		cache = new IP_GeoResponseCache(ADDRESSES / 2, 0, evictionPolicy);
+		keys = new IP_AddressKey[ADDRESSES];
+		for (int i = 0; i < ADDRESSES; i++) {
+			// spread the addresses over public space
+			keys[i] = IP_AddressKey.ofIPv4(0x44000000 + i * 61);
+			if (i < ADDRESSES / 2) {
+				cache.put(keys[i], new IP_GeoResponse(keys[i].toString(),
+						IP_GeoResponse.GEO_INFO_SOURCE_QUOVA));
+			}
+		}
+	}
+
+	@Benchmark
+	public IP_GeoResponse hit(Cursor cursor) {
+		return cache.get(keys[cursor.next(ADDRESSES / 2 - 1)]);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public IP_GeoResponse hitContended(Cursor cursor) {
+		return cache.get(keys[cursor.next(ADDRESSES / 2 - 1)]);
+	}
+
+	@Benchmark
+	public IP_GeoResponse miss(Cursor cursor) {
+		return cache.get(keys[ADDRESSES / 2 + cursor.next(ADDRESSES / 2 - 1)]);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void putContended(Cursor cursor) {
+		IP_AddressKey key = keys[cursor.next(ADDRESSES - 1)];
+		cache.put(key, new IP_GeoResponse(null,
+				IP_GeoResponse.GEO_INFO_SOURCE_QUOVA));
+	}
+}
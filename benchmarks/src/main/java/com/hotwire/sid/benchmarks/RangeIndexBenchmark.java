@@ -0,0 +1,84 @@
+package com.hotwire.sid.benchmarks;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hotwire.sid.IP_AddressParser;
+import com.hotwire.sid.IP_GeoResponse;
+import com.hotwire.sid.InMemoryIP_RangeGeoIndex;
+
+/**
+ * Lookups in an in-memory range index of a million ranges, the offline
+ * alternative to a Quova round trip
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RangeIndexBenchmark {
+
+	private static final int RANGES = 1 << 20;
+
+	private static final int ADDRESSES = 1 << 12;
+
+	private InMemoryIP_RangeGeoIndex index;
+
+	private int[] addresses;
+
+	@State(Scope.Thread)
+	public static class Cursor {
+
+		int next;
+
+		int next() {
+			return next++ & (ADDRESSES - 1);
+		}
+	}
+
+	@Setup
+	public void setUp() throws IOException {
+		StringBuilder csv = new StringBuilder(RANGES * 64);
+		long width = (1L << 32) / RANGES;
+		for (int i = 0; i < RANGES; i++) {
+			long start = i * width;
+			csv.append(IP_AddressParser.toDottedQuad((int) start)).append(',')
+					.append(IP_AddressParser.toDottedQuad((int) (start + width - 1)))
+					.append(",us,california,city").append(i % 5000)
+					.append(",94107,807,-8,37.77,-122.42\n");
+		}
+		index = InMemoryIP_RangeGeoIndex.load(new StringReader(csv.toString()));
+
+		Random random = new Random(42);
+		addresses = new int[ADDRESSES];
+		for (int i = 0; i < ADDRESSES; i++) {
+			addresses[i] = random.nextInt();
+		}
+	}
+
+	@Benchmark
+	public IP_GeoResponse lookup(Cursor cursor) {
+		return index.lookup(addresses[cursor.next()], null);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public IP_GeoResponse lookupContended(Cursor cursor) {
+		return index.lookup(addresses[cursor.next()], null);
+	}
+}
@@ -0,0 +1,75 @@
+package com.hotwire.sid.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hotwire.sid.IP_GeoResponse;
+
+/**
+ * Building an IP_GeoResponse from the fields of a Quova record, the part of
+ * QuovaIP_GeoServerAdapter.getIP_GeoResponseFromIPInfoRecord that does not
+ * depend on the Quova client. The field values are fresh String instances,
+ * as the Quova client returns them, so that interning is measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResponseMappingBenchmark {
+
+	/**
+	 * Number of distinct cities the records cycle through
+	 */
+	@Param({ "1", "1000" })
+	public int cities;
+
+	private String[][] records;
+
+	private int next;
+
+	@Setup
+	public void setUp() {
+		records = new String[cities][];
+		for (int i = 0; i < cities; i++) {
+			records[i] = new String[] { "68.184.77." + (i % 256), "us",
+					"california", "city" + i, String.valueOf(94000 + i) };
+		}
+	}
+
+	private IP_GeoResponse map() {
+		String[] record = records[next];
+		next = next + 1 == records.length ? 0 : next + 1;
+		return new IP_GeoResponse.Builder(new String(record[0]),
+				IP_GeoResponse.GEO_INFO_SOURCE_QUOVA)
+				.setCountryCode(new String(record[1])).setGmtOffset(-8)
+				.setNDMA_Code(807).setZipCode(new String(record[4]))
+				.setCityName(new String(record[3]))
+				.setStateName(new String(record[2])).setLatitude(37.77f)
+				.setLongitude(-122.42f).build();
+	}
+
+	@Benchmark
+	public IP_GeoResponse mapResponse() {
+		return map();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public IP_GeoResponse mapResponseContended() {
+		return map();
+	}
+}
@@ -0,0 +1,365 @@
+package com.hotwire.sid;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits the number of calls in flight to a geo server, adapting the limit
+ * to the round trip time the server answers in, so that the calls never
+ * queue up inside its client and the limit needs no tuning per environment.
+ * <p/>
+ * The round trip times of successful calls are averaged over windows of
+ * WINDOW_SAMPLES calls. Each window is compared with a slow moving average of
+ * the previous windows: while the server answers within rttTolerance times
+ * its usual time the limit grows by a fifth of its square root per window,
+ * and as the round trip time rises above that the limit shrinks in
+ * proportion, down to half per window. The limit only grows in windows
+ * where the calls in flight came close to it, so a quiet period does not
+ * inflate it. A dropped call, one that timed out or found no free
+ * connection, cuts the limit by backoffRatio at once, at most once per
+ * round trip.
+ * <p/>
+ * Calls over the limit wait up to maxWaitInMillis for a call to end, with at
+ * most maxQueueSize of them waiting; the others are refused at once so that
+ * excess load is shed instead of stacking up on the server.
+ */
+public class AdaptiveConcurrencyLimiter {
+
+	// //////////////////////////////////////////////////////////////
+	// ATTRIBUTES
+
+	private static final Logger log = LoggerFactory
+			.getLogger(AdaptiveConcurrencyLimiter.class);
+
+	/**
+	 * Successful calls averaged into each window
+	 */
+	static final int WINDOW_SAMPLES = 20;
+
+	/**
+	 * A window with fewer samples is closed after this long
+	 */
+	private static final long MAX_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	/**
+	 * Weight of each window in the long term round trip time
+	 */
+	private static final double LONG_RTT_WEIGHT = 0.05;
+
+	/**
+	 * Fraction of the square root of the limit it grows by per window
+	 */
+	private static final double GROWTH = 0.2;
+
+	private final String name;
+
+	private volatile boolean enabled = true;
+
+	private volatile int minLimit = 1;
+
+	private volatile int maxLimit = 6;
+
+	private volatile int maxQueueSize = 6;
+
+	private volatile long maxWaitInNanos = TimeUnit.MILLISECONDS.toNanos(5);
+
+	private volatile double rttTolerance = 1.5;
+
+	private volatile double backoffRatio = 0.9;
+
+	/**
+	 * Current limit, guarded by this
+	 */
+	private double limit;
+
+	private int inFlight;
+
+	private int waiting;
+
+	/**
+	 * Current window, guarded by this
+	 */
+	private long windowStartNanos = System.nanoTime();
+
+	private int windowSamples;
+
+	private long windowRttSumNanos;
+
+	private int windowMaxInFlight;
+
+	/**
+	 * Moving average of the window round trip times, 0 until the first
+	 * window closes, guarded by this
+	 */
+	private double longRttNanos;
+
+	private long lastBackoffNanos = System.nanoTime() - MAX_WINDOW_NANOS;
+
+	private final AtomicLong rejectedCalls = new AtomicLong();
+
+	private final AtomicLong droppedCalls = new AtomicLong();
+
+	// //////////////////////////////////////////////////////////////
+	// CONSTRUCTOR
+
+	/**
+	 * @param name
+	 *            name of the guarded geo server, used in log messages
+	 * @param initialLimit
+	 */
+	public AdaptiveConcurrencyLimiter(String name, int initialLimit) {
+		this.name = name;
+		this.limit = Math.max(initialLimit, 1);
+	}
+
+	// //////////////////////////////////////////////////////////////
+	// METHODS
+
+	/**
+	 * Asks for permission to call the geo server, waiting up to
+	 * maxWaitInMillis if the limit is reached. Every call that is permitted
+	 * must be followed by onSuccess, onDropped or onIgnored.
+	 *
+	 * @return false if the call must not be made
+	 */
+	public boolean tryAcquire() {
+		synchronized (this) {
+			if (!enabled || inFlight < (int) limit) {
+				permit();
+				return true;
+			}
+			long waitNanos = maxWaitInNanos;
+			if (waitNanos <= 0 || waiting >= maxQueueSize) {
+				rejectedCalls.incrementAndGet();
+				return false;
+			}
+			long deadline = System.nanoTime() + waitNanos;
+			waiting++;
+			try {
+				while (inFlight >= (int) limit && enabled) {
+					long remainingNanos = deadline - System.nanoTime();
+					if (remainingNanos <= 0) {
+						rejectedCalls.incrementAndGet();
+						return false;
+					}
+					TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				rejectedCalls.incrementAndGet();
+				return false;
+			} finally {
+				waiting--;
+			}
+			permit();
+			return true;
+		}
+	}
+
+	private void permit() {
+		inFlight++;
+		if (inFlight > windowMaxInFlight) {
+			windowMaxInFlight = inFlight;
+		}
+	}
+
+	/**
+	 * Records a call the geo server answered
+	 *
+	 * @param rttInNanos
+	 *            time the call took
+	 */
+	public void onSuccess(long rttInNanos) {
+		onSuccess(rttInNanos, System.nanoTime());
+	}
+
+	synchronized void onSuccess(long rttInNanos, long nowNanos) {
+		release();
+		windowSamples++;
+		windowRttSumNanos += Math.max(rttInNanos, 1);
+		if (windowSamples >= WINDOW_SAMPLES
+				|| nowNanos - windowStartNanos >= MAX_WINDOW_NANOS) {
+			closeWindow(nowNanos);
+		}
+	}
+
+	/**
+	 * Records a call that timed out or was refused for want of a connection,
+	 * a sign that the geo server has more calls than it can take
+	 *
+	 * @param rttInNanos
+	 *            time the call took
+	 */
+	public void onDropped(long rttInNanos) {
+		onDropped(rttInNanos, System.nanoTime());
+	}
+
+	synchronized void onDropped(long rttInNanos, long nowNanos) {
+		release();
+		droppedCalls.incrementAndGet();
+		// the calls in flight when the limit was cut will be dropped too,
+		// back off once for all of them
+		long backoffIntervalNanos = longRttNanos > 0 ? (long) longRttNanos
+				: rttInNanos;
+		if (nowNanos - lastBackoffNanos >= backoffIntervalNanos) {
+			lastBackoffNanos = nowNanos;
+			setLimit(limit * backoffRatio);
+		}
+	}
+
+	/**
+	 * Records a call whose outcome says nothing about the load on the geo
+	 * server, such as one rejected for its input
+	 */
+	public synchronized void onIgnored() {
+		release();
+	}
+
+	private void release() {
+		inFlight--;
+		if (waiting > 0) {
+			notifyAll();
+		}
+	}
+
+	private void closeWindow(long nowNanos) {
+		double shortRttNanos = (double) windowRttSumNanos / windowSamples;
+		int maxInFlight = windowMaxInFlight;
+		windowStartNanos = nowNanos;
+		windowSamples = 0;
+		windowRttSumNanos = 0;
+		windowMaxInFlight = inFlight;
+
+		if (longRttNanos == 0) {
+			longRttNanos = shortRttNanos;
+			return;
+		}
+		longRttNanos += (shortRttNanos - longRttNanos) * LONG_RTT_WEIGHT;
+		if (longRttNanos > 2 * shortRttNanos) {
+			// the server got faster, don't let the old round trips hold the
+			// limit back for long
+			longRttNanos *= 0.95;
+		}
+		if (maxInFlight < limit / 2) {
+			// the calls were too few to tell whether the limit is right
+			return;
+		}
+		double gradient = rttTolerance * longRttNanos / shortRttNanos;
+		if (gradient >= 1) {
+			// probe for more calls the server can take without slowing down
+			setLimit(limit + GROWTH * Math.sqrt(limit));
+		} else {
+			setLimit(limit * Math.max(0.5, gradient));
+		}
+	}
+
+	private void setLimit(double newLimit) {
+		int oldLimit = (int) limit;
+		limit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+		if ((int) limit != oldLimit) {
+			if (log.isDebugEnabled()) {
+				log.debug("{} concurrency limit changed from {} to {}, round trip {} microseconds",
+						name, oldLimit, (int) limit, (long) longRttNanos / 1000);
+			}
+			if (waiting > 0) {
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * @return number of calls currently allowed in flight
+	 */
+	public synchronized int getLimit() {
+		return (int) limit;
+	}
+
+	/**
+	 * @return number of permitted calls not yet ended
+	 */
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	/**
+	 * @return the long term round trip time the limit is adapted to, 0 until
+	 *         the first window of calls has ended
+	 */
+	public synchronized long getRttInMicros() {
+		return (long) longRttNanos / 1000;
+	}
+
+	/**
+	 * @return number of calls refused because the limit was reached
+	 */
+	public long getRejectedCallCount() {
+		return rejectedCalls.get();
+	}
+
+	/**
+	 * @return number of calls reported through onDropped
+	 */
+	public long getDroppedCallCount() {
+		return droppedCalls.get();
+	}
+
+	/**
+	 * @param enabled
+	 *            if false every call is permitted, and only counted
+	 */
+	public synchronized void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+		notifyAll();
+	}
+
+	/**
+	 * @param minLimit
+	 *            smallest limit, at least 1
+	 * @param maxLimit
+	 *            largest limit, typically the size of the connection pool
+	 */
+	public synchronized void setLimitRange(int minLimit, int maxLimit) {
+		this.minLimit = Math.max(minLimit, 1);
+		this.maxLimit = Math.max(maxLimit, this.minLimit);
+		setLimit(limit);
+	}
+
+	/**
+	 * @param maxQueueSize
+	 *            calls that may wait for the limit at a time
+	 */
+	public void setMaxQueueSize(int maxQueueSize) {
+		this.maxQueueSize = Math.max(maxQueueSize, 0);
+	}
+
+	/**
+	 * @param maxWaitInMillis
+	 *            time a call waits for the limit before it is refused, 0 to
+	 *            refuse calls over the limit at once
+	 */
+	public void setMaxWaitInMillis(long maxWaitInMillis) {
+		this.maxWaitInNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(
+				maxWaitInMillis, 0));
+	}
+
+	/**
+	 * @param rttTolerance
+	 *            ratio of the usual round trip time above which the limit
+	 *            shrinks, at least 1
+	 */
+	public void setRttTolerance(double rttTolerance) {
+		this.rttTolerance = Math.max(rttTolerance, 1);
+	}
+
+	/**
+	 * @param backoffRatio
+	 *            factor the limit is multiplied by when a call is dropped,
+	 *            between 0.5 and 1
+	 */
+	public void setBackoffRatio(double backoffRatio) {
+		this.backoffRatio = Math.max(0.5, Math.min(1, backoffRatio));
+	}
+}
@@ -3,6 +3,7 @@ package com.hotwire.sid;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Properties;
 
 /**
@@ -24,18 +25,47 @@ public class AppProperties {
 	 */
 	public Properties readProperties() throws IOException {
 		properties = new Properties();
-		properties.load(this.getClass().getClassLoader()
-				.getResourceAsStream(APP_PROPERTIES_FILE_NAME));
-
-		if (properties.containsKey(EXTERNAL_APP_PROPERTIES)) {
-			String filePathStr = (String) properties
-					.get(EXTERNAL_APP_PROPERTIES);
-			File externalAppPropertiesFile = new File(filePathStr);
-			if (externalAppPropertiesFile.exists()
-					&& externalAppPropertiesFile.canRead()) {
-				properties.load(new FileInputStream(externalAppPropertiesFile));
+		try (InputStream in = this.getClass().getClassLoader()
+				.getResourceAsStream(APP_PROPERTIES_FILE_NAME)) {
+			properties.load(in);
+		}
+
+		File externalAppPropertiesFile = getExternalPropertiesFile(properties);
+		if (externalAppPropertiesFile != null
+				&& externalAppPropertiesFile.exists()
+				&& externalAppPropertiesFile.canRead()) {
+			try (InputStream in = new FileInputStream(externalAppPropertiesFile)) {
+				properties.load(in);
 			}
 		}
 		return properties;
 	}
+
+	/**
+	 * @param file
+	 * @return the properties held by file
+	 * @throws IOException
+	 *             if file cannot be read
+	 */
+	public static Properties readProperties(File file) throws IOException {
+		Properties properties = new Properties();
+		try (InputStream in = new FileInputStream(file)) {
+			properties.load(in);
+		}
+		return properties;
+	}
+
+	/**
+	 * Returns the external properties file that overrides the bundled
+	 * properties
+	 *
+	 * @param properties
+	 * @return the file named by EXTERNAL_APP_PROPERTIES, null if it is not
+	 *         set
+	 */
+	public static File getExternalPropertiesFile(Properties properties) {
+		String filePathStr = properties.getProperty(EXTERNAL_APP_PROPERTIES);
+		return filePathStr != null && !filePathStr.trim().isEmpty() ? new File(
+				filePathStr.trim()) : null;
+	}
 }
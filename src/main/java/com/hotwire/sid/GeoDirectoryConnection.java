@@ -0,0 +1,93 @@
+package com.hotwire.sid;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.quova.geodirectoryapi.GeoDirectoryAPI;
+import com.quova.util.QuovaException;
+
+/**
+ * The GeoDirectoryAPI clients of QuovaIP_GeoServerAdapter, shared by the
+ * queries in flight on them. The adapter holds one reference while the
+ * connection is published and every query holds another, the clients are
+ * closed when the last one is released.
+ */
+final class GeoDirectoryConnection {
+
+	// //////////////////////////////////////////////////////////////
+	// ATTRIBUTES
+
+	private static final Logger log = LoggerFactory
+			.getLogger(GeoDirectoryConnection.class);
+
+	/**
+	 * Client of the primary server, which also fails over to the secondary
+	 * server unless secondaryApi is set
+	 */
+	final GeoDirectoryAPI api;
+
+	/**
+	 * Client of the secondary server alone, that hedged queries are sent to,
+	 * null unless hedging is enabled
+	 */
+	final GeoDirectoryAPI secondaryApi;
+
+	private final AtomicInteger references = new AtomicInteger(1);
+
+	// //////////////////////////////////////////////////////////////
+	// CONSTRUCTOR
+
+	/**
+	 * @param api
+	 * @param secondaryApi
+	 *            may be null
+	 */
+	GeoDirectoryConnection(GeoDirectoryAPI api, GeoDirectoryAPI secondaryApi) {
+		this.api = api;
+		this.secondaryApi = secondaryApi;
+	}
+
+	// //////////////////////////////////////////////////////////////
+	// METHODS
+
+	/**
+	 * @return false if the connection has been closed
+	 */
+	boolean acquire() {
+		for (;;) {
+			int count = references.get();
+			if (count == 0) {
+				return false;
+			}
+			if (references.compareAndSet(count, count + 1)) {
+				return true;
+			}
+		}
+	}
+
+	void release() {
+		if (references.decrementAndGet() == 0) {
+			close(api);
+			if (secondaryApi != null) {
+				close(secondaryApi);
+			}
+		}
+	}
+
+	/**
+	 * @return number of references held, 0 once closed
+	 */
+	int getReferenceCount() {
+		return references.get();
+	}
+
+	private static void close(GeoDirectoryAPI api) {
+		try {
+			api.close();
+		} catch (QuovaException qe) {
+			log.error("Exception closing GeoDirectoryAPI connection", qe);
+		}
+	}
+}
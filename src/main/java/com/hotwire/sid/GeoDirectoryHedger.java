@@ -0,0 +1,392 @@
+package com.hotwire.sid;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.quova.common.QuovaReturnCode;
+import com.quova.geodirectoryapi.GeoDirectoryAPI;
+import com.quova.geodirectoryapi.QuovaResponse;
+import com.quova.util.QuovaException;
+
+/**
+ * Sends Quova queries to the primary GeoDirectoryServer and, if it has not
+ * answered within a delay derived from its recent latency percentile, hedges
+ * them by sending the same query to the secondary server; the first answer
+ * wins. The latency of each server is tracked over a rolling window, so the
+ * delay adapts as the primary slows down or recovers.
+ * <p/>
+ * The queries run on a bounded executor so that the caller can return as soon
+ * as either server answers. When the executor is saturated queries run on the
+ * caller's thread without hedging, and when the connection has no secondary
+ * client they always do.
+ * <p/>
+ * The adapter's concurrency limit and circuit breaker count logical lookups:
+ * a hedged query takes a single permit and reports a single outcome, whichever
+ * server answered. A hedge can therefore put one more query in flight than
+ * the limit, bounded overall by the size of the hedge executor.
+ */
+public final class GeoDirectoryHedger {
+
+	/**
+	 * A query to send to one server client
+	 *
+	 * @param <A>
+	 *            type of the client, GeoDirectoryAPI outside tests
+	 * @param <R>
+	 *            type of the response
+	 */
+	interface Query<A, R> {
+
+		R query(A api) throws QuovaException;
+	}
+
+	// //////////////////////////////////////////////////////////////
+	// ATTRIBUTES
+
+	private static final Logger log = LoggerFactory
+			.getLogger(GeoDirectoryHedger.class);
+
+	/**
+	 * Length of the latency windows
+	 */
+	private static final long LATENCY_WINDOW_IN_NANOS = TimeUnit.SECONDS
+			.toNanos(30);
+
+	/**
+	 * Queries the primary must have answered before its percentile is
+	 * trusted, the maximum delay is used until then
+	 */
+	private static final int MIN_LATENCY_SAMPLES = 50;
+
+	/**
+	 * Time the hedge delay is reused before it is derived again
+	 */
+	private static final long DELAY_REFRESH_IN_NANOS = TimeUnit.MILLISECONDS
+			.toNanos(100);
+
+	private final RollingLatencyHistogram primaryLatency = new RollingLatencyHistogram(
+			LATENCY_WINDOW_IN_NANOS);
+
+	private final RollingLatencyHistogram secondaryLatency = new RollingLatencyHistogram(
+			LATENCY_WINDOW_IN_NANOS);
+
+	private volatile ThreadPoolExecutor executor;
+
+	private volatile double delayPercentile = 95;
+
+	private volatile long minDelayInNanos = TimeUnit.MILLISECONDS.toNanos(5);
+
+	private volatile long maxDelayInNanos = TimeUnit.MILLISECONDS.toNanos(200);
+
+	private volatile long delayInNanos = maxDelayInNanos;
+
+	private volatile long delayComputedAtNanos = System.nanoTime()
+			- DELAY_REFRESH_IN_NANOS;
+
+	private final AtomicLong hedgedQueries = new AtomicLong();
+
+	private final AtomicLong secondaryWins = new AtomicLong();
+
+	// //////////////////////////////////////////////////////////////
+	// METHODS
+
+	/**
+	 * Sends query through connection, hedging it if connection has a
+	 * secondary client
+	 *
+	 * @param connection
+	 *            acquired by the caller
+	 * @param query
+	 * @return the first response received
+	 * @throws QuovaException
+	 *             if no server answered, the primary server's exception if
+	 *             both failed
+	 * @throws InterruptedException
+	 *             if the caller was interrupted while waiting for an answer
+	 */
+	QuovaResponse query(GeoDirectoryConnection connection,
+			Query<GeoDirectoryAPI, QuovaResponse> query) throws QuovaException,
+			InterruptedException {
+		return query(connection, connection.api, connection.secondaryApi,
+				query);
+	}
+
+	/**
+	 * Sends query to primaryApi, hedging it to secondaryApi if set
+	 *
+	 * @param connection
+	 *            acquired by the caller, held by the queries in flight
+	 * @param primaryApi
+	 * @param secondaryApi
+	 *            may be null
+	 * @param query
+	 * @return the first response received
+	 */
+	<A, R> R query(GeoDirectoryConnection connection, A primaryApi,
+			A secondaryApi, Query<A, R> query) throws QuovaException,
+			InterruptedException {
+		if (secondaryApi == null) {
+			return timedQuery(primaryApi, primaryLatency, query);
+		}
+		CompletableFuture<R> primary = submit(connection, primaryApi,
+				primaryLatency, query);
+		if (primary == null) {
+			return timedQuery(primaryApi, primaryLatency, query);
+		}
+
+		try {
+			return primary.get(getDelayInNanos(), TimeUnit.NANOSECONDS);
+		} catch (TimeoutException e) {
+			// primary is slow, hedge
+		} catch (ExecutionException e) {
+			QuovaException primaryError = toQuovaException(e);
+			if (QuovaReturnCode.INVALID_INPUT.equals(primaryError
+					.getErrorCode())) {
+				throw primaryError;
+			}
+			// primary failed before the hedge delay, fail over at once
+			try {
+				R response = timedQuery(secondaryApi, secondaryLatency, query);
+				secondaryWins.incrementAndGet();
+				return response;
+			} catch (QuovaException secondaryError) {
+				throw primaryError;
+			}
+		}
+
+		hedgedQueries.incrementAndGet();
+		CompletableFuture<R> secondary = submit(connection, secondaryApi,
+				secondaryLatency, query);
+		if (secondary == null) {
+			return get(primary);
+		}
+		return get(firstSuccess(primary, secondary));
+	}
+
+	/**
+	 * @return a future completed with the first of primary and secondary to
+	 *         succeed, or with primary's exception if both fail
+	 */
+	private <R> CompletableFuture<R> firstSuccess(
+			final CompletableFuture<R> primary,
+			final CompletableFuture<R> secondary) {
+		final CompletableFuture<R> winner = new CompletableFuture<R>();
+		final AtomicInteger failures = new AtomicInteger();
+		primary.whenComplete((response, error) -> {
+			if (error == null) {
+				winner.complete(response);
+			} else if (failures.incrementAndGet() == 2) {
+				winner.completeExceptionally(error);
+			}
+		});
+		secondary.whenComplete((response, error) -> {
+			if (error == null) {
+				if (winner.complete(response)) {
+					secondaryWins.incrementAndGet();
+				}
+			} else if (failures.incrementAndGet() == 2) {
+				// report the primary's error, as an unhedged query would
+				primary.whenComplete((primaryResponse, primaryError) -> winner
+						.completeExceptionally(primaryError));
+			}
+		});
+		return winner;
+	}
+
+	/**
+	 * Runs query on the executor, holding a reference to connection until it
+	 * completes
+	 *
+	 * @return the future result, null if the executor is saturated
+	 */
+	private <A, R> CompletableFuture<R> submit(
+			final GeoDirectoryConnection connection, final A api,
+			final RollingLatencyHistogram latency, final Query<A, R> query) {
+		ThreadPoolExecutor currentExecutor = executor;
+		if (currentExecutor == null || !connection.acquire()) {
+			return null;
+		}
+		final CompletableFuture<R> future = new CompletableFuture<R>();
+		try {
+			currentExecutor.execute(() -> {
+				try {
+					future.complete(timedQuery(api, latency, query));
+				} catch (QuovaException | RuntimeException | Error e) {
+					future.completeExceptionally(e);
+				} finally {
+					connection.release();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			connection.release();
+			log.debug("Hedge executor is saturated, querying Quova on the caller's thread");
+			return null;
+		}
+		return future;
+	}
+
+	private static <A, R> R timedQuery(A api, RollingLatencyHistogram latency,
+			Query<A, R> query) throws QuovaException {
+		long startTimeNanos = System.nanoTime();
+		try {
+			return query.query(api);
+		} finally {
+			latency.record(System.nanoTime() - startTimeNanos);
+		}
+	}
+
+	private static <R> R get(CompletableFuture<R> future)
+			throws QuovaException, InterruptedException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			throw toQuovaException(e);
+		}
+	}
+
+	/**
+	 * Rethrows the cause of e unless it is a QuovaException
+	 */
+	private static QuovaException toQuovaException(ExecutionException e) {
+		Throwable cause = e.getCause();
+		if (cause instanceof QuovaException) {
+			return (QuovaException) cause;
+		}
+		if (cause instanceof RuntimeException) {
+			throw (RuntimeException) cause;
+		}
+		if (cause instanceof Error) {
+			throw (Error) cause;
+		}
+		throw new IllegalStateException(cause);
+	}
+
+	/**
+	 * @return time to wait for the primary before hedging, its recent
+	 *         delayPercentile latency bounded by the minimum and maximum delay
+	 */
+	long getDelayInNanos() {
+		long now = System.nanoTime();
+		if (now - delayComputedAtNanos < DELAY_REFRESH_IN_NANOS) {
+			return delayInNanos;
+		}
+		long delay = maxDelayInNanos;
+		if (primaryLatency.getCount() >= MIN_LATENCY_SAMPLES) {
+			delay = Math.min(Math.max(
+					primaryLatency.getValueAtPercentile(delayPercentile),
+					minDelayInNanos), maxDelayInNanos);
+		}
+		delayInNanos = delay;
+		delayComputedAtNanos = now;
+		return delay;
+	}
+
+	/**
+	 * Sizes the executor the hedged queries run on, replacing the current one
+	 * if its size changed
+	 *
+	 * @param threadPoolSize
+	 *            0 or less to run every query on the caller's thread
+	 */
+	synchronized void setThreadPoolSize(int threadPoolSize) {
+		ThreadPoolExecutor currentExecutor = executor;
+		if (threadPoolSize <= 0) {
+			executor = null;
+		} else if (currentExecutor == null
+				|| currentExecutor.getMaximumPoolSize() != threadPoolSize) {
+			ThreadPoolExecutor newExecutor = new ThreadPoolExecutor(
+					threadPoolSize, threadPoolSize, 60L, TimeUnit.SECONDS,
+					new SynchronousQueue<Runnable>(),
+					new NamedDaemonThreadFactory("QuovaHedgedLookup"));
+			newExecutor.allowCoreThreadTimeOut(true);
+			executor = newExecutor;
+		} else {
+			return;
+		}
+		if (currentExecutor != null) {
+			// queries running on the old executor still complete
+			currentExecutor.shutdown();
+		}
+	}
+
+	/**
+	 * Stops the executor, queries in flight still complete
+	 */
+	synchronized void shutdown() {
+		setThreadPoolSize(0);
+	}
+
+	/**
+	 * @param delayPercentile
+	 *            percentile of the primary's latency to wait for before
+	 *            hedging
+	 */
+	public void setDelayPercentile(double delayPercentile) {
+		this.delayPercentile = Math.min(Math.max(delayPercentile, 0), 100);
+		this.delayComputedAtNanos = System.nanoTime() - DELAY_REFRESH_IN_NANOS;
+	}
+
+	/**
+	 * @param minDelayInMillis
+	 * @param maxDelayInMillis
+	 *            delay used until the primary's latency is known
+	 */
+	public void setDelayBoundsInMillis(long minDelayInMillis,
+			long maxDelayInMillis) {
+		long minDelay = TimeUnit.MILLISECONDS.toNanos(Math.max(
+				minDelayInMillis, 0));
+		this.minDelayInNanos = minDelay;
+		this.maxDelayInNanos = Math.max(
+				TimeUnit.MILLISECONDS.toNanos(maxDelayInMillis), minDelay);
+		this.delayComputedAtNanos = System.nanoTime() - DELAY_REFRESH_IN_NANOS;
+	}
+
+	/**
+	 * @return current hedge delay in milliseconds
+	 */
+	public long getDelayInMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(getDelayInNanos());
+	}
+
+	/**
+	 * @param percentile
+	 * @return recent latency of the primary server in milliseconds
+	 */
+	public double getPrimaryLatencyInMillis(double percentile) {
+		return primaryLatency.getValueAtPercentile(percentile) / 1000000.0;
+	}
+
+	/**
+	 * @param percentile
+	 * @return recent latency of the secondary server in milliseconds
+	 */
+	public double getSecondaryLatencyInMillis(double percentile) {
+		return secondaryLatency.getValueAtPercentile(percentile) / 1000000.0;
+	}
+
+	/**
+	 * @return number of queries sent to the secondary server because the
+	 *         primary was slow
+	 */
+	public long getHedgedQueryCount() {
+		return hedgedQueries.get();
+	}
+
+	/**
+	 * @return number of queries the secondary server answered, hedged or
+	 *         failed over
+	 */
+	public long getSecondaryWinCount() {
+		return secondaryWins.get();
+	}
+}
@@ -0,0 +1,77 @@
+package com.hotwire.sid;
+
+/**
+ * Parses the numeric fields of Quova records from their string values.
+ * IPInfo.getFloat and getInt throw a QuovaException for values that are not
+ * numbers, such as the 'multizone' TIMEZONE of addresses spanning several
+ * time zones, which is common enough that using exceptions as control flow
+ * shows up in the cost of every lookup. These methods validate the value
+ * first and never throw.
+ */
+final class GeoFieldParser {
+
+	// //////////////////////////////////////////////////////////////
+	// CONSTRUCTOR
+
+	private GeoFieldParser() {
+	}
+
+	// //////////////////////////////////////////////////////////////
+	// METHODS
+
+	/**
+	 * @param value
+	 *            decimal number with an optional sign and fraction
+	 * @return value as a float, Float.NaN if it is null, empty or not a
+	 *         number
+	 */
+	static float parseFloat(String value) {
+		if (value == null) {
+			return Float.NaN;
+		}
+		int length = value.length();
+		int i = length > 0 && (value.charAt(0) == '-' || value.charAt(0) == '+') ? 1
+				: 0;
+		int digits = 0;
+		boolean point = false;
+		for (; i < length; i++) {
+			char c = value.charAt(i);
+			if (c >= '0' && c <= '9') {
+				digits++;
+			} else if (c == '.' && !point) {
+				point = true;
+			} else {
+				return Float.NaN;
+			}
+		}
+		return digits > 0 ? Float.parseFloat(value) : Float.NaN;
+	}
+
+	/**
+	 * @param value
+	 *            decimal integer of at most nine digits with an optional sign
+	 * @param invalidValue
+	 *            returned if value is not such an integer
+	 * @return value as an int
+	 */
+	static int parseInt(String value, int invalidValue) {
+		if (value == null) {
+			return invalidValue;
+		}
+		int length = value.length();
+		int i = length > 0 && (value.charAt(0) == '-' || value.charAt(0) == '+') ? 1
+				: 0;
+		if (length == i || length - i > 9) {
+			return invalidValue;
+		}
+		int result = 0;
+		for (; i < length; i++) {
+			char c = value.charAt(i);
+			if (c < '0' || c > '9') {
+				return invalidValue;
+			}
+			result = result * 10 + (c - '0');
+		}
+		return value.charAt(0) == '-' ? -result : result;
+	}
+}
@@ -0,0 +1,441 @@
+package com.hotwire.sid;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Circuit breaker guarding the calls to a geo server.
+ * <p/>
+ * While CLOSED, the outcome and duration of every call are recorded in a
+ * rolling window of time buckets. Once the window holds at least
+ * minimumCalls calls and either the failure rate or the slow call rate
+ * reaches its threshold, the breaker opens. Callers can also trip it at once
+ * for errors that will not go away by themselves.
+ * <p/>
+ * While OPEN, tryAcquirePermission returns false after a single volatile
+ * read, so callers fail fast without touching the geo server. A background
+ * probe checks the server after openDuration, backing off exponentially while
+ * it keeps failing. Once a probe succeeds the breaker is HALF_OPEN and lets
+ * halfOpenPermittedCalls trial calls through: if all of them succeed in time
+ * the breaker closes, if any of them fails it opens again.
+ */
+public class GeoServerCircuitBreaker {
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	/**
+	 * Checks whether the geo server can be used again, typically by
+	 * reconnecting if needed and sending it a query
+	 */
+	public interface Probe {
+
+		/**
+		 * @return true if the geo server answered
+		 */
+		boolean probe();
+	}
+
+	// //////////////////////////////////////////////////////////////
+	// ATTRIBUTES
+
+	private static final Logger log = LoggerFactory
+			.getLogger(GeoServerCircuitBreaker.class);
+
+	/**
+	 * Number of buckets in the rolling window
+	 */
+	private static final int BUCKET_COUNT = 10;
+
+	/**
+	 * Probe backoff is capped at this multiple of openDuration
+	 */
+	private static final int MAX_BACKOFF_MULTIPLIER = 16;
+
+	private final String name;
+
+	private final Probe probe;
+
+	private final ScheduledThreadPoolExecutor probeScheduler;
+
+	private volatile State state = State.CLOSED;
+
+	private volatile int failureRateThreshold = 50;
+
+	private volatile int slowCallRateThreshold = 100;
+
+	private volatile long slowCallDurationInNanos = Long.MAX_VALUE;
+
+	private volatile int minimumCalls = 20;
+
+	private volatile long bucketDurationInNanos = TimeUnit.SECONDS.toNanos(1);
+
+	private volatile long openDurationInMillis = 5000;
+
+	private volatile int halfOpenPermittedCalls = 3;
+
+	/**
+	 * Rolling window, guarded by this
+	 */
+	private final long[] bucketEpochs = new long[BUCKET_COUNT];
+
+	private final LongSupplier clock;
+
+	private final int[] bucketCalls = new int[BUCKET_COUNT];
+
+	private final int[] bucketFailures = new int[BUCKET_COUNT];
+
+	private final int[] bucketSlowCalls = new int[BUCKET_COUNT];
+
+	/**
+	 * Delay before the next probe, guarded by this
+	 */
+	private long probeDelayInMillis;
+
+	private final AtomicInteger halfOpenPermitsIssued = new AtomicInteger();
+
+	private final AtomicInteger halfOpenSuccesses = new AtomicInteger();
+
+	private final AtomicLong rejectedCalls = new AtomicLong();
+
+	private final AtomicLong openCount = new AtomicLong();
+
+	// //////////////////////////////////////////////////////////////
+	// CONSTRUCTOR
+
+	/**
+	 * @param name
+	 *            name of the guarded geo server, used in log messages and the
+	 *            probe thread name
+	 * @param probe
+	 */
+	public GeoServerCircuitBreaker(String name, Probe probe) {
+		this(name, probe, System::nanoTime);
+	}
+
+	/**
+	 * @param name
+	 * @param probe
+	 * @param clock
+	 *            source of the nanoTime the calls are placed in the rolling
+	 *            window by
+	 */
+	GeoServerCircuitBreaker(String name, Probe probe, LongSupplier clock) {
+		this.name = name;
+		this.probe = probe;
+		this.clock = clock;
+		this.probeScheduler = new ScheduledThreadPoolExecutor(1,
+				new NamedDaemonThreadFactory(name + "CircuitBreakerProbe"));
+		resetWindow();
+	}
+
+	// //////////////////////////////////////////////////////////////
+	// METHODS
+
+	/**
+	 * Asks for permission to call the geo server. Every call that is
+	 * permitted must be followed by onSuccess, onFailure or onIgnored.
+	 *
+	 * @return false if the call must not be made
+	 */
+	public boolean tryAcquirePermission() {
+		State currentState = state;
+		if (currentState == State.CLOSED) {
+			return true;
+		}
+		if (currentState == State.HALF_OPEN) {
+			int issued;
+			while ((issued = halfOpenPermitsIssued.get()) < halfOpenPermittedCalls) {
+				if (halfOpenPermitsIssued.compareAndSet(issued, issued + 1)) {
+					return true;
+				}
+			}
+		}
+		rejectedCalls.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Records a call that the geo server answered
+	 *
+	 * @param durationInNanos
+	 */
+	public void onSuccess(long durationInNanos) {
+		boolean slow = durationInNanos >= slowCallDurationInNanos;
+		if (state == State.HALF_OPEN) {
+			if (slow) {
+				transitionToOpen(State.HALF_OPEN, "slow trial call");
+			} else if (halfOpenSuccesses.incrementAndGet() >= halfOpenPermittedCalls) {
+				transitionToClosed();
+			}
+			return;
+		}
+		record(false, slow);
+	}
+
+	/**
+	 * Records a call that failed because of the geo server
+	 *
+	 * @param durationInNanos
+	 */
+	public void onFailure(long durationInNanos) {
+		if (state == State.HALF_OPEN) {
+			transitionToOpen(State.HALF_OPEN, "failed trial call");
+			return;
+		}
+		record(true, durationInNanos >= slowCallDurationInNanos);
+	}
+
+	/**
+	 * Releases the permission of a call whose outcome says nothing about the
+	 * health of the geo server, such as one rejected for invalid input
+	 */
+	public void onIgnored() {
+		if (state == State.HALF_OPEN) {
+			halfOpenPermitsIssued.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Opens the breaker at once, for errors that will not go away by
+	 * themselves
+	 *
+	 * @param reason
+	 */
+	public void trip(String reason) {
+		transitionToOpen(null, reason);
+	}
+
+	private synchronized void record(boolean failure, boolean slow) {
+		if (state != State.CLOSED) {
+			return;
+		}
+		// nanoTime may be negative
+		long epoch = Math.floorDiv(clock.getAsLong(), bucketDurationInNanos);
+		int bucket = (int) Math.floorMod(epoch, (long) BUCKET_COUNT);
+		if (bucketEpochs[bucket] != epoch) {
+			bucketEpochs[bucket] = epoch;
+			bucketCalls[bucket] = 0;
+			bucketFailures[bucket] = 0;
+			bucketSlowCalls[bucket] = 0;
+		}
+		bucketCalls[bucket]++;
+		if (failure) {
+			bucketFailures[bucket]++;
+		}
+		if (slow) {
+			bucketSlowCalls[bucket]++;
+		}
+
+		int calls = 0;
+		int failures = 0;
+		int slowCalls = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			if (epoch - bucketEpochs[i] < BUCKET_COUNT) {
+				calls += bucketCalls[i];
+				failures += bucketFailures[i];
+				slowCalls += bucketSlowCalls[i];
+			}
+		}
+		if (calls < minimumCalls) {
+			return;
+		}
+		if (failures * 100L >= (long) failureRateThreshold * calls) {
+			transitionToOpen(State.CLOSED, failures + " of the last " + calls
+					+ " calls failed");
+		} else if (slowCalls * 100L >= (long) slowCallRateThreshold * calls) {
+			transitionToOpen(State.CLOSED, slowCalls + " of the last " + calls
+					+ " calls were slow");
+		}
+	}
+
+	/**
+	 * @param from
+	 *            state the transition applies to, null for any but OPEN
+	 * @param reason
+	 */
+	private synchronized void transitionToOpen(State from, String reason) {
+		State currentState = state;
+		if (currentState == State.OPEN || (from != null && currentState != from)) {
+			return;
+		}
+		long openDuration = openDurationInMillis;
+		probeDelayInMillis = currentState == State.HALF_OPEN ? Math.min(
+				probeDelayInMillis * 2, openDuration * MAX_BACKOFF_MULTIPLIER)
+				: openDuration;
+		state = State.OPEN;
+		openCount.incrementAndGet();
+		log.warn("{} circuit breaker opened ({}), next probe in {} milliseconds",
+				name, reason, probeDelayInMillis);
+		scheduleProbe();
+	}
+
+	private synchronized void transitionToHalfOpen() {
+		halfOpenPermitsIssued.set(0);
+		halfOpenSuccesses.set(0);
+		state = State.HALF_OPEN;
+		log.info("{} circuit breaker half-open, probe succeeded", name);
+	}
+
+	private synchronized void transitionToClosed() {
+		if (state != State.HALF_OPEN) {
+			return;
+		}
+		resetWindow();
+		state = State.CLOSED;
+		log.info("{} circuit breaker closed", name);
+	}
+
+	private void resetWindow() {
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			// far enough in the past to be outside any window
+			bucketEpochs[i] = Long.MIN_VALUE / 2;
+			bucketCalls[i] = 0;
+			bucketFailures[i] = 0;
+			bucketSlowCalls[i] = 0;
+		}
+	}
+
+	private void scheduleProbe() {
+		if (probeScheduler.isShutdown()) {
+			return;
+		}
+		probeScheduler.schedule(new Runnable() {
+			public void run() {
+				runProbe();
+			}
+		}, probeDelayInMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private void runProbe() {
+		boolean available;
+		try {
+			available = probe.probe();
+		} catch (RuntimeException e) {
+			log.warn("{} circuit breaker probe failed", name, e);
+			available = false;
+		}
+		synchronized (this) {
+			if (state != State.OPEN) {
+				return;
+			}
+			if (available) {
+				transitionToHalfOpen();
+			} else {
+				probeDelayInMillis = Math.min(probeDelayInMillis * 2,
+						openDurationInMillis * MAX_BACKOFF_MULTIPLIER);
+				log.debug("{} circuit breaker probe failed, next probe in {} milliseconds",
+						name, probeDelayInMillis);
+				scheduleProbe();
+			}
+		}
+	}
+
+	/**
+	 * Stops probing, the breaker stays in its current state
+	 */
+	public void shutdown() {
+		probeScheduler.shutdownNow();
+	}
+
+	/**
+	 * Waits for a probe still running after shutdown
+	 *
+	 * @param timeoutInMillis
+	 * @return false if the probe is still running
+	 * @throws InterruptedException
+	 */
+	public boolean awaitTermination(long timeoutInMillis)
+			throws InterruptedException {
+		return probeScheduler.awaitTermination(timeoutInMillis,
+				TimeUnit.MILLISECONDS);
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	/**
+	 * @return number of calls refused while the breaker was not closed
+	 */
+	public long getRejectedCallCount() {
+		return rejectedCalls.get();
+	}
+
+	/**
+	 * @return number of times the breaker has opened
+	 */
+	public long getOpenCount() {
+		return openCount.get();
+	}
+
+	/**
+	 * @param failureRateThreshold
+	 *            percentage of failed calls in the window that opens the
+	 *            breaker
+	 */
+	public void setFailureRateThreshold(int failureRateThreshold) {
+		this.failureRateThreshold = failureRateThreshold;
+	}
+
+	/**
+	 * @param slowCallRateThreshold
+	 *            percentage of slow calls in the window that opens the breaker
+	 */
+	public void setSlowCallRateThreshold(int slowCallRateThreshold) {
+		this.slowCallRateThreshold = slowCallRateThreshold;
+	}
+
+	/**
+	 * @param slowCallDurationInMillis
+	 *            calls taking at least this long are slow
+	 */
+	public void setSlowCallDurationInMillis(long slowCallDurationInMillis) {
+		this.slowCallDurationInNanos = slowCallDurationInMillis > 0 ? TimeUnit.MILLISECONDS
+				.toNanos(slowCallDurationInMillis) : Long.MAX_VALUE;
+	}
+
+	/**
+	 * @param minimumCalls
+	 *            calls the window must hold before the rates are evaluated
+	 */
+	public void setMinimumCalls(int minimumCalls) {
+		this.minimumCalls = Math.max(minimumCalls, 1);
+	}
+
+	/**
+	 * @param windowInMillis
+	 *            length of the rolling window
+	 */
+	public synchronized void setWindowInMillis(long windowInMillis) {
+		long bucketDuration = TimeUnit.MILLISECONDS.toNanos(Math.max(
+				windowInMillis, BUCKET_COUNT)) / BUCKET_COUNT;
+		if (bucketDuration != bucketDurationInNanos) {
+			bucketDurationInNanos = bucketDuration;
+			resetWindow();
+		}
+	}
+
+	/**
+	 * @param openDurationInMillis
+	 *            time the breaker stays open before the first probe
+	 */
+	public void setOpenDurationInMillis(long openDurationInMillis) {
+		this.openDurationInMillis = Math.max(openDurationInMillis, 1);
+	}
+
+	/**
+	 * @param halfOpenPermittedCalls
+	 *            trial calls that must succeed before the breaker closes
+	 */
+	public void setHalfOpenPermittedCalls(int halfOpenPermittedCalls) {
+		this.halfOpenPermittedCalls = Math.max(halfOpenPermittedCalls, 1);
+	}
+}
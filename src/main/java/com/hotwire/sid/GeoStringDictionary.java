@@ -0,0 +1,92 @@
+package com.hotwire.sid;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process-wide dictionary of the geographical strings held by IP_GeoResponse
+ * objects. Country, state and city names repeat across millions of cached
+ * responses, interning them here leaves a single instance of each.
+ * <p/>
+ * The dictionary stops growing once it holds MAX_ENTRIES strings, after which
+ * unseen values are returned as they are rather than interned.
+ */
+final class GeoStringDictionary {
+
+	// //////////////////////////////////////////////////////////////
+	// ATTRIBUTES
+
+	/**
+	 * Bound on the number of distinct strings, well above the number of
+	 * countries, states and cities a geo server reports
+	 */
+	static final int MAX_ENTRIES = 1 << 18;
+
+	private static final ConcurrentHashMap<String, String> strings = new ConcurrentHashMap<String, String>(
+			1 << 12);
+
+	/**
+	 * Upper case country codes, keyed on the code as the geo server returned
+	 * it so that toUpperCase() runs once per distinct code
+	 */
+	private static final ConcurrentHashMap<String, String> countryCodes = new ConcurrentHashMap<String, String>(
+			512);
+
+	// //////////////////////////////////////////////////////////////
+	// CONSTRUCTOR
+
+	private GeoStringDictionary() {
+	}
+
+	// //////////////////////////////////////////////////////////////
+	// METHODS
+
+	/**
+	 * Returns the shared instance of value
+	 *
+	 * @param value
+	 * @return the shared String equal to value, value itself if it is null or
+	 *         the dictionary is full
+	 */
+	static String intern(String value) {
+		if (value == null) {
+			return null;
+		}
+		String shared = strings.get(value);
+		if (shared != null) {
+			return shared;
+		}
+		if (strings.size() >= MAX_ENTRIES) {
+			return value;
+		}
+		shared = strings.putIfAbsent(value, value);
+		return shared != null ? shared : value;
+	}
+
+	/**
+	 * Returns the shared upper case instance of countryCode
+	 *
+	 * @param countryCode
+	 * @return upper case country code, null if countryCode is null
+	 */
+	static String internCountryCode(String countryCode) {
+		if (countryCode == null) {
+			return null;
+		}
+		String upperCase = countryCodes.get(countryCode);
+		if (upperCase != null) {
+			return upperCase;
+		}
+		upperCase = intern(countryCode.toUpperCase());
+		if (countryCodes.size() < MAX_ENTRIES) {
+			countryCodes.putIfAbsent(countryCode, upperCase);
+		}
+		return upperCase;
+	}
+
+	/**
+	 * @return number of strings in the dictionary
+	 */
+	static int size() {
+		return strings.size();
+	}
+}
@@ -25,5 +25,6 @@ public interface HotwireErrors {
 	int IPGEO_GEO_SERVER_INVALID_RESPONSE = 21702;
 	int IPGEO_GEO_SERVER_INVALID_ARGUMENT = 21703;
 	int IPGEO_GEO_SERVER_RUNTIME_ERROR = 21704;
+	int IPGEO_GEO_SERVER_TIMEOUT = 21705;
 
 }
@@ -24,6 +24,28 @@ package com.hotwire.sid;
 @SuppressWarnings("serial")
 public class HwIP_GeoException extends Exception{
 
+	// //////////////////////////////////////////////////////////////
+	// ATTRIBUTES
+
+	/**
+	 * Shared stackless instances of the IPGEO error codes, indexed from
+	 * IPGEO_INVALID_SERVER_ADAPTER_TYPE
+	 */
+	private static final HwIP_GeoException[] STACKLESS = new HwIP_GeoException[HotwireErrors.IPGEO_GEO_SERVER_TIMEOUT
+			- HotwireErrors.IPGEO_INVALID_SERVER_ADAPTER_TYPE + 1];
+
+	static {
+		for (int i = 0; i < STACKLESS.length; i++) {
+			STACKLESS[i] = new HwIP_GeoException(
+					HotwireErrors.IPGEO_INVALID_SERVER_ADAPTER_TYPE + i, false);
+		}
+	}
+
+	/**
+	 * One of the IPGEO error codes in HotwireErrors
+	 */
+	private final int errorCode;
+
 	// //////////////////////////////////////////////////////////////
 	// CONSTRUCTORS
 
@@ -32,10 +54,11 @@ public class HwIP_GeoException extends Exception{
 	 *
 	 * @param errorCode
 	 * @param e
+	 *            the cause
 	 */
 	public HwIP_GeoException(int errorCode, Exception e) {
-		System.out.println("Error code : "  + errorCode);
-		System.out.println(e.toString());
+		super("Error code : " + errorCode, e);
+		this.errorCode = errorCode;
 	}
 
 	/**
@@ -44,6 +67,48 @@ public class HwIP_GeoException extends Exception{
 	 * @param errorCode
 	 */
 	public HwIP_GeoException(int errorCode) {
-		System.out.println("Error code : " + errorCode);
+		super("Error code : " + errorCode);
+		this.errorCode = errorCode;
+	}
+
+	/**
+	 * Constructor to create a HwIP_GeoException without a stack trace, cause
+	 * or suppressed exceptions, which can be shared between threads
+	 *
+	 * @param errorCode
+	 * @param writableStackTrace
+	 *            always false
+	 */
+	private HwIP_GeoException(int errorCode, boolean writableStackTrace) {
+		super("Error code : " + errorCode, null, false, writableStackTrace);
+		this.errorCode = errorCode;
+	}
+
+	// //////////////////////////////////////////////////////////////
+	// METHODS
+
+	/**
+	 * Returns a preallocated HwIP_GeoException for the expected failures of a
+	 * lookup, such as an unavailable server or a malformed address, which
+	 * costs nothing to throw because it has no stack trace. The instance is
+	 * shared, it has no cause and ignores suppressed exceptions.
+	 *
+	 * @param errorCode
+	 *            one of the IPGEO error codes in HotwireErrors
+	 * @return HwIP_GeoException
+	 */
+	public static HwIP_GeoException stackless(int errorCode) {
+		int index = errorCode - HotwireErrors.IPGEO_INVALID_SERVER_ADAPTER_TYPE;
+		return index >= 0 && index < STACKLESS.length ? STACKLESS[index]
+				: new HwIP_GeoException(errorCode, false);
+	}
+
+	/**
+	 * Returns the error code this exception was created with
+	 *
+	 * @return one of the IPGEO error codes in HotwireErrors
+	 */
+	public int getErrorCode() {
+		return errorCode;
 	}
 }
@@ -0,0 +1,137 @@
+package com.hotwire.sid;
+
+import java.net.InetAddress;
+
+/**
+ * 128-bit primitive key of an IPv4 or IPv6 address. IPv4 addresses are held
+ * in their IPv4-mapped IPv6 form (::ffff:a.b.c.d), so that both families
+ * share one key space in caches and indexes; IPv4-mapped and IPv4-compatible
+ * IPv6 addresses are normalized to the key of the IPv4 address they embed.
+ */
+public final class IP_AddressKey {
+
+	// //////////////////////////////////////////////////////////////
+	// ATTRIBUTES
+
+	/**
+	 * Upper bits of the low half of an IPv4-mapped IPv6 address
+	 */
+	static final long IPV4_MAPPED_PREFIX = 0x0000FFFF00000000L;
+
+	private final long high;
+
+	private final long low;
+
+	// //////////////////////////////////////////////////////////////
+	// CONSTRUCTOR
+
+	private IP_AddressKey(long high, long low) {
+		this.high = high;
+		this.low = low;
+	}
+
+	// //////////////////////////////////////////////////////////////
+	// METHODS
+
+	/**
+	 * @param address
+	 *            IPv4 address as an int in network byte order
+	 * @return IP_AddressKey
+	 */
+	public static IP_AddressKey ofIPv4(int address) {
+		return new IP_AddressKey(0, IPV4_MAPPED_PREFIX | (address & 0xFFFFFFFFL));
+	}
+
+	/**
+	 * @param high
+	 *            upper 64 bits of the address
+	 * @param low
+	 *            lower 64 bits of the address
+	 * @return IP_AddressKey, the IPv4 key for IPv4-mapped and IPv4-compatible
+	 *         addresses
+	 */
+	public static IP_AddressKey ofIPv6(long high, long low) {
+		if (high == 0 && (low >>> 32) == 0 && low > 1) {
+			// IPv4-compatible, :: and ::1 excepted
+			low |= IPV4_MAPPED_PREFIX;
+		}
+		return new IP_AddressKey(high, low);
+	}
+
+	/**
+	 * @param address
+	 * @return IP_AddressKey
+	 */
+	public static IP_AddressKey of(InetAddress address) {
+		byte[] bytes = address.getAddress();
+		if (bytes.length == 4) {
+			return ofIPv4(toInt(bytes, 0));
+		}
+		return ofIPv6(((long) toInt(bytes, 0) << 32)
+				| (toInt(bytes, 4) & 0xFFFFFFFFL),
+				((long) toInt(bytes, 8) << 32)
+						| (toInt(bytes, 12) & 0xFFFFFFFFL));
+	}
+
+	private static int toInt(byte[] bytes, int offset) {
+		return ((bytes[offset] & 0xFF) << 24)
+				| ((bytes[offset + 1] & 0xFF) << 16)
+				| ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+	}
+
+	/**
+	 * @return true if this is the key of an IPv4 address
+	 */
+	public boolean isIPv4() {
+		return high == 0 && (low >>> 32) == (IPV4_MAPPED_PREFIX >>> 32);
+	}
+
+	/**
+	 * @return the IPv4 address as an int in network byte order, only
+	 *         meaningful if isIPv4()
+	 */
+	public int getIPv4() {
+		return (int) low;
+	}
+
+	/**
+	 * @return upper 64 bits of the IPv6 form of the address
+	 */
+	public long getHigh() {
+		return high;
+	}
+
+	/**
+	 * @return lower 64 bits of the IPv6 form of the address
+	 */
+	public long getLow() {
+		return low;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof IP_AddressKey)) {
+			return false;
+		}
+		IP_AddressKey other = (IP_AddressKey) o;
+		return high == other.high && low == other.low;
+	}
+
+	@Override
+	public int hashCode() {
+		long h = high * 31 + low;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	/**
+	 * @return canonical text of the address, a dotted quad for IPv4
+	 */
+	@Override
+	public String toString() {
+		return isIPv4() ? IP_AddressParser.toDottedQuad(getIPv4())
+				: IP_AddressParser.toIPv6String(high, low);
+	}
+}
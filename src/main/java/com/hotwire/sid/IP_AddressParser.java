@@ -0,0 +1,354 @@
+package com.hotwire.sid;
+
+/**
+ * Parses and canonicalizes textual IP addresses into primitive keys without
+ * regular expressions or intermediate substrings, so that malformed input can
+ * be rejected before it reaches a geo server and caches and indexes can share
+ * one key per address. IPv4 addresses parse into an int, IPv6 addresses into
+ * a pair of longs held by an IP_AddressKey.
+ */
+public final class IP_AddressParser {
+
+	private IP_AddressParser() {
+	}
+
+	/**
+	 * Parses a dotted-quad IPv4 address. Leading and trailing whitespace is
+	 * ignored, and octets may have leading zeros, which are read as decimal.
+	 *
+	 * @param address
+	 * @return the address as an unsigned value (network byte order in the low
+	 *         32 bits), -1 if address is not a valid dotted-quad IPv4 address
+	 */
+	public static long parseIPv4(CharSequence address) {
+		if (address == null) {
+			return -1;
+		}
+		int start = 0;
+		int end = address.length();
+		while (start < end && address.charAt(start) <= ' ') {
+			start++;
+		}
+		while (end > start && address.charAt(end - 1) <= ' ') {
+			end--;
+		}
+		return parseIPv4(address, start, end);
+	}
+
+	private static long parseIPv4(CharSequence address, int start, int end) {
+		if (end - start < 7) {
+			return -1;
+		}
+
+		long value = 0;
+		int octet = 0;
+		int digits = 0;
+		int dots = 0;
+		for (int i = start; i < end; i++) {
+			char c = address.charAt(i);
+			if (c >= '0' && c <= '9') {
+				octet = octet * 10 + (c - '0');
+				if (++digits > 3 || octet > 255) {
+					return -1;
+				}
+			} else if (c == '.' && digits > 0 && dots < 3) {
+				value = (value << 8) | octet;
+				octet = 0;
+				digits = 0;
+				dots++;
+			} else {
+				return -1;
+			}
+		}
+		if (dots != 3 || digits == 0) {
+			return -1;
+		}
+		return (value << 8) | octet;
+	}
+
+	/**
+	 * Parses an IPv4 or IPv6 address. IPv6 addresses may be compressed, end
+	 * in an embedded dotted quad, be enclosed in brackets or carry a zone id,
+	 * which is ignored. IPv4-mapped and IPv4-compatible IPv6 addresses yield
+	 * the key of the IPv4 address itself.
+	 *
+	 * @param address
+	 * @return IP_AddressKey, null if address is not a valid IP address
+	 */
+	public static IP_AddressKey parse(CharSequence address) {
+		long ipv4 = parseIPv4(address);
+		if (ipv4 >= 0) {
+			return IP_AddressKey.ofIPv4((int) ipv4);
+		}
+		return address != null ? parseIPv6(address) : null;
+	}
+
+	/**
+	 * Parses an IPv6 address into its two 64-bit halves, without collecting
+	 * the groups into an intermediate array: groups before a "::" accumulate
+	 * into one 128-bit value, groups after it into another, and the two are
+	 * combined once the number of elided groups is known.
+	 */
+	private static IP_AddressKey parseIPv6(CharSequence address) {
+		int start = 0;
+		int end = address.length();
+		while (start < end && address.charAt(start) <= ' ') {
+			start++;
+		}
+		while (end > start && address.charAt(end - 1) <= ' ') {
+			end--;
+		}
+		if (end - start >= 2 && address.charAt(start) == '['
+				&& address.charAt(end - 1) == ']') {
+			start++;
+			end--;
+		}
+		for (int i = start; i < end; i++) {
+			if (address.charAt(i) == '%') {
+				// zone id, only meaningful to the local host
+				end = i;
+				break;
+			}
+		}
+		if (end - start < 2) {
+			return null;
+		}
+
+		long headHigh = 0;
+		long headLow = 0;
+		int headGroups = 0;
+		long tailHigh = 0;
+		long tailLow = 0;
+		int tailGroups = 0;
+		boolean compressed = false;
+
+		int i = start;
+		if (address.charAt(i) == ':') {
+			if (address.charAt(i + 1) != ':') {
+				return null;
+			}
+			compressed = true;
+			i += 2;
+		}
+		while (i < end) {
+			int groupStart = i;
+			int group = 0;
+			while (i < end && i - groupStart < 5) {
+				int digit = hexDigit(address.charAt(i));
+				if (digit < 0) {
+					break;
+				}
+				group = (group << 4) | digit;
+				i++;
+			}
+			int groupLength = i - groupStart;
+			int groups;
+			if (i < end && address.charAt(i) == '.') {
+				// embedded IPv4 address, takes up the last two groups
+				long ipv4 = parseIPv4(address, groupStart, end);
+				if (ipv4 < 0) {
+					return null;
+				}
+				group = (int) ipv4;
+				groups = 2;
+				i = end;
+			} else if (groupLength == 0 || groupLength > 4) {
+				return null;
+			} else {
+				groups = 1;
+			}
+
+			int bits = 16 * groups;
+			if (compressed) {
+				tailHigh = (tailHigh << bits) | (tailLow >>> (64 - bits));
+				tailLow = (tailLow << bits) | (group & ((1L << bits) - 1));
+				tailGroups += groups;
+			} else {
+				headHigh = (headHigh << bits) | (headLow >>> (64 - bits));
+				headLow = (headLow << bits) | (group & ((1L << bits) - 1));
+				headGroups += groups;
+			}
+			if (headGroups + tailGroups > 8) {
+				return null;
+			}
+
+			if (i == end) {
+				break;
+			}
+			if (address.charAt(i) != ':' || i + 1 == end) {
+				return null;
+			}
+			i++;
+			if (address.charAt(i) == ':') {
+				if (compressed) {
+					return null;
+				}
+				compressed = true;
+				i++;
+			}
+		}
+
+		if (!compressed) {
+			return headGroups == 8 ? IP_AddressKey.ofIPv6(headHigh, headLow)
+					: null;
+		}
+		if (headGroups + tailGroups > 7) {
+			return null;
+		}
+		// shift the head past the elided groups and the tail
+		int shift = 16 * (8 - headGroups);
+		long high;
+		long low;
+		if (shift >= 128) {
+			high = 0;
+			low = 0;
+		} else if (shift >= 64) {
+			high = headLow << (shift - 64);
+			low = 0;
+		} else {
+			high = (headHigh << shift) | (headLow >>> (64 - shift));
+			low = headLow << shift;
+		}
+		return IP_AddressKey.ofIPv6(high | tailHigh, low | tailLow);
+	}
+
+	/**
+	 * Formats an IPv6 address in the canonical text form of RFC 5952:
+	 * lowercase, no leading zeros, and the longest run of two or more zero
+	 * groups compressed to "::"
+	 *
+	 * @param high
+	 *            upper 64 bits of the address
+	 * @param low
+	 *            lower 64 bits of the address
+	 * @return canonical IPv6 text
+	 */
+	public static String toIPv6String(long high, long low) {
+		int bestStart = -1;
+		int bestLength = 1;
+		int runStart = -1;
+		for (int i = 0; i < 8; i++) {
+			if (group(high, low, i) == 0) {
+				if (runStart < 0) {
+					runStart = i;
+				}
+				if (i - runStart + 1 > bestLength) {
+					bestStart = runStart;
+					bestLength = i - runStart + 1;
+				}
+			} else {
+				runStart = -1;
+			}
+		}
+
+		StringBuilder sb = new StringBuilder(39);
+		for (int i = 0; i < 8; i++) {
+			if (i == bestStart) {
+				sb.append("::");
+				i += bestLength - 1;
+				continue;
+			}
+			if (sb.length() > 0 && sb.charAt(sb.length() - 1) != ':') {
+				sb.append(':');
+			}
+			sb.append(Integer.toHexString(group(high, low, i)));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Returns the canonical text of an address that has already been parsed,
+	 * without allocating if an IPv4 address is canonical already
+	 *
+	 * @param address
+	 *            the text that parsed into key
+	 * @param key
+	 *            the result of parse(address)
+	 * @return canonical address text
+	 */
+	public static String canonicalize(String address, IP_AddressKey key) {
+		if (key.isIPv4() && !isIPv6Candidate(address)) {
+			return canonicalIPv4(address, key.getIPv4());
+		}
+		return key.toString();
+	}
+
+	private static int group(long high, long low, int index) {
+		long half = index < 4 ? high : low;
+		return (int) (half >>> (16 * (3 - (index & 3)))) & 0xFFFF;
+	}
+
+	/**
+	 * Formats an IPv4 address as a canonical dotted quad
+	 *
+	 * @param address
+	 *            IPv4 address as an int in network byte order
+	 * @return dotted-quad string
+	 */
+	public static String toDottedQuad(int address) {
+		StringBuilder sb = new StringBuilder(15);
+		sb.append((address >>> 24) & 0xFF).append('.')
+				.append((address >>> 16) & 0xFF).append('.')
+				.append((address >>> 8) & 0xFF).append('.')
+				.append(address & 0xFF);
+		return sb.toString();
+	}
+
+	/**
+	 * Returns the canonical form of an IPv4 address that has already been
+	 * parsed, without allocating if address is canonical already
+	 *
+	 * @param address
+	 *            the text that parsed into parsedAddress
+	 * @param parsedAddress
+	 *            the result of parseIPv4(address)
+	 * @return address itself if it is canonical, its canonical form otherwise
+	 */
+	public static String canonicalIPv4(String address, int parsedAddress) {
+		// parsing succeeded, so the text can only be longer than the
+		// canonical form if it has whitespace or leading zeros
+		int canonicalLength = 3 + digits((parsedAddress >>> 24) & 0xFF)
+				+ digits((parsedAddress >>> 16) & 0xFF)
+				+ digits((parsedAddress >>> 8) & 0xFF)
+				+ digits(parsedAddress & 0xFF);
+		return address.length() == canonicalLength ? address
+				: toDottedQuad(parsedAddress);
+	}
+
+	/**
+	 * Returns true if address could be an IPv6 address
+	 *
+	 * @param address
+	 * @return true if address contains a ':'
+	 */
+	public static boolean isIPv6Candidate(CharSequence address) {
+		for (int i = 0; i < address.length(); i++) {
+			if (address.charAt(i) == ':') {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the value of c as an ASCII hex digit, -1 if it is not one.
+	 *         Unlike Character.digit, other Unicode digits and fullwidth
+	 *         letters are rejected, as the IPv4 octets are.
+	 */
+	private static int hexDigit(char c) {
+		if (c >= '0' && c <= '9') {
+			return c - '0';
+		}
+		if (c >= 'a' && c <= 'f') {
+			return c - 'a' + 10;
+		}
+		if (c >= 'A' && c <= 'F') {
+			return c - 'A' + 10;
+		}
+		return -1;
+	}
+
+	private static int digits(int octet) {
+		return octet >= 100 ? 3 : octet >= 10 ? 2 : 1;
+	}
+}
@@ -0,0 +1,89 @@
+package com.hotwire.sid;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Groups of IP_GeoResponse fields a lookup can be restricted to, so that only
+ * the fields a caller uses are decoded from the Quova record. Fields outside
+ * the requested set keep the values of an empty response.
+ */
+public enum IP_GeoField {
+
+	/**
+	 * countryCode
+	 */
+	COUNTRY,
+
+	/**
+	 * gmtOffset
+	 */
+	TIMEZONE,
+
+	/**
+	 * ndmaCode
+	 */
+	DMA,
+
+	/**
+	 * zipCode, cityName and stateName, set only if the city confidence factor
+	 * reaches cityConfidenceFactorThreshold
+	 */
+	CITY,
+
+	/**
+	 * latitude and longitude
+	 */
+	COORDINATES;
+
+	// //////////////////////////////////////////////////////////////
+	// ATTRIBUTES
+
+	/**
+	 * Every field
+	 */
+	public static final Set<IP_GeoField> ALL = Collections
+			.unmodifiableSet(EnumSet.allOf(IP_GeoField.class));
+
+	/**
+	 * Bit mask of every field
+	 */
+	static final int ALL_MASK = (1 << values().length) - 1;
+
+	// //////////////////////////////////////////////////////////////
+	// METHODS
+
+	/**
+	 * @return bit of this field in a field mask
+	 */
+	int bit() {
+		return 1 << ordinal();
+	}
+
+	/**
+	 * @param fields
+	 * @return bit mask of fields
+	 */
+	static int mask(Set<IP_GeoField> fields) {
+		int mask = 0;
+		for (IP_GeoField field : fields) {
+			mask |= field.bit();
+		}
+		return mask;
+	}
+
+	/**
+	 * @param mask
+	 * @return the fields of mask
+	 */
+	static Set<IP_GeoField> fields(int mask) {
+		EnumSet<IP_GeoField> fields = EnumSet.noneOf(IP_GeoField.class);
+		for (IP_GeoField field : values()) {
+			if ((mask & field.bit()) != 0) {
+				fields.add(field);
+			}
+		}
+		return fields;
+	}
+}
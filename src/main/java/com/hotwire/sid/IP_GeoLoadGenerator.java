@@ -0,0 +1,418 @@
+package com.hotwire.sid;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Command line load generator that replays IP addresses against an
+ * IP_GeoServerAdapter, used to size geoDirectoryServerConnectionPoolSize and
+ * the timeouts of each tier. IPs are read from a file with one address per
+ * line or from an access log whose lines start with the client address, and
+ * replayed in order, wrapping around, by a number of worker threads.
+ * <p>
+ * In closed-loop mode each worker sends its next lookup once the previous
+ * one has returned, at most at the target rate if one is given. In open-loop
+ * mode lookups are sent at the target rate whether or not earlier ones have
+ * returned, and their latency is measured from the time they were due, so
+ * that a slow server shows up as latency rather than as a lower rate.
+ * <p>
+ * The adapter is created by IP_GeoServerAdapterFactory from the application
+ * properties, so the same run can be pointed at Quova, the offline index or
+ * the simulator.
+ */
+public final class IP_GeoLoadGenerator {
+
+	// //////////////////////////////////////////////////////////////
+	// ATTRIBUTES
+
+	private static final String USAGE = "Usage: java -jar ipgeo-jar-with-dependencies.jar --ips <file> [options]\n"
+			+ "  --ips <file>           IPs to replay, one per line or an access log starting with the client IP\n"
+			+ "  --threads <n>          worker threads (default 8)\n"
+			+ "  --qps <n>              target lookups per second, 0 for as fast as possible (default 0)\n"
+			+ "  --mode <closed|open>   closed: workers wait for each lookup, open: lookups are sent at --qps\n"
+			+ "                         regardless of outstanding ones (default closed)\n"
+			+ "  --duration <seconds>   how long to run (default 60)\n"
+			+ "  --requests <n>         stop after this many lookups (default unlimited)\n"
+			+ "  --properties <file>    properties overriding Quova.properties and EXTERNAL_APP_PROPERTIES\n"
+			+ "  --set <key>=<value>    property override, may be repeated,\n"
+			+ "                         e.g. --set hotwire.eis.geo.serverAdapterType=simulator";
+
+	private final IP_GeoServerAdapter adapter;
+
+	private final String[] ipAddresses;
+
+	private final int threads;
+
+	private final double targetQps;
+
+	private final boolean openLoop;
+
+	private final long durationNanos;
+
+	private final long maxRequests;
+
+	private final AtomicLong issued = new AtomicLong();
+
+	private final LatencyHistogram latency = new LatencyHistogram();
+
+	private final LongAccumulator maxLatencyNanos = new LongAccumulator(
+			Math::max, 0);
+
+	private final LongAdder found = new LongAdder();
+
+	private final LongAdder notFound = new LongAdder();
+
+	private final ConcurrentHashMap<Integer, LongAdder> errors = new ConcurrentHashMap<Integer, LongAdder>();
+
+	private long elapsedNanos;
+
+	// //////////////////////////////////////////////////////////////
+	// CONSTRUCTOR
+
+	/**
+	 * @param adapter
+	 * @param ipAddresses
+	 *            replayed in order, wrapping around
+	 * @param threads
+	 * @param targetQps
+	 *            0 for as fast as possible, which is only valid closed-loop
+	 * @param openLoop
+	 * @param durationInMillis
+	 * @param maxRequests
+	 *            0 for no limit
+	 */
+	public IP_GeoLoadGenerator(IP_GeoServerAdapter adapter,
+			List<String> ipAddresses, int threads, double targetQps,
+			boolean openLoop, long durationInMillis, long maxRequests) {
+		if (ipAddresses.isEmpty()) {
+			throw new IllegalArgumentException("No IP addresses to replay");
+		}
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads must be positive");
+		}
+		if (openLoop && targetQps <= 0) {
+			throw new IllegalArgumentException(
+					"Open-loop mode needs a target rate");
+		}
+		this.adapter = adapter;
+		this.ipAddresses = ipAddresses.toArray(new String[ipAddresses.size()]);
+		this.threads = threads;
+		this.targetQps = targetQps;
+		this.openLoop = openLoop;
+		this.durationNanos = TimeUnit.MILLISECONDS.toNanos(durationInMillis);
+		this.maxRequests = maxRequests > 0 ? maxRequests : Long.MAX_VALUE;
+	}
+
+	// //////////////////////////////////////////////////////////////
+	// METHODS
+
+	public static void main(String[] args) throws IOException {
+		String ipsFile = null;
+		int threads = 8;
+		double qps = 0;
+		boolean openLoop = false;
+		long durationInMillis = 60000;
+		long requests = 0;
+		Properties props = new AppProperties().readProperties();
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String option = args[i];
+				if (i + 1 == args.length) {
+					throw new IllegalArgumentException(option + " needs a value");
+				}
+				String value = args[++i];
+				if ("--ips".equals(option)) {
+					ipsFile = value;
+				} else if ("--threads".equals(option)) {
+					threads = Integer.parseInt(value);
+				} else if ("--qps".equals(option)) {
+					qps = Double.parseDouble(value);
+				} else if ("--mode".equals(option)) {
+					if (!"open".equals(value) && !"closed".equals(value)) {
+						throw new IllegalArgumentException("Unknown mode "
+								+ value);
+					}
+					openLoop = "open".equals(value);
+				} else if ("--duration".equals(option)) {
+					durationInMillis = (long) (Double.parseDouble(value) * 1000);
+				} else if ("--requests".equals(option)) {
+					requests = Long.parseLong(value);
+				} else if ("--properties".equals(option)) {
+					try (InputStream in = new FileInputStream(value)) {
+						props.load(in);
+					}
+				} else if ("--set".equals(option)) {
+					int separator = value.indexOf('=');
+					if (separator < 1) {
+						throw new IllegalArgumentException(
+								"--set needs key=value, got " + value);
+					}
+					props.setProperty(value.substring(0, separator),
+							value.substring(separator + 1));
+				} else {
+					throw new IllegalArgumentException("Unknown option "
+							+ option);
+				}
+			}
+			if (ipsFile == null) {
+				throw new IllegalArgumentException("--ips is required");
+			}
+		} catch (IllegalArgumentException e) {
+			// includes NumberFormatException
+			System.err.println(e.getMessage());
+			System.err.println(USAGE);
+			System.exit(2);
+			return;
+		}
+
+		List<String> ipAddresses;
+		try (Reader in = new InputStreamReader(new FileInputStream(ipsFile),
+				StandardCharsets.UTF_8)) {
+			ipAddresses = readIP_Addresses(in);
+		}
+		IP_GeoServerAdapter adapter;
+		try {
+			adapter = IP_GeoServerAdapterFactory.create(props);
+		} catch (HwIP_GeoException e) {
+			System.err.println("Could not create the adapter: "
+					+ QuovaIP_GeoMetrics.errorName(e.getErrorCode()));
+			System.exit(1);
+			return;
+		}
+		try {
+			IP_GeoLoadGenerator generator = new IP_GeoLoadGenerator(adapter,
+					ipAddresses, threads, qps, openLoop, durationInMillis,
+					requests);
+			System.out.println("Replaying " + ipAddresses.size()
+					+ " IPs from " + ipsFile + " with " + threads
+					+ " threads, " + (openLoop ? "open" : "closed")
+					+ " loop, target "
+					+ (qps > 0 ? qps + " lookups/s" : "unthrottled"));
+			generator.run();
+			generator.printReport(System.out);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println(USAGE);
+			System.exit(2);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			adapter.shutdown();
+		}
+	}
+
+	/**
+	 * Reads the IP addresses to replay, taking the first field of every line
+	 * so that both plain lists and access logs in the common or combined log
+	 * format can be used. Lines whose first field is not an IP address, such
+	 * as comments and headers, are skipped.
+	 *
+	 * @param in
+	 * @return the IP addresses in the order they were read
+	 * @throws IOException
+	 */
+	public static List<String> readIP_Addresses(Reader in) throws IOException {
+		List<String> ipAddresses = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(in);
+		String line;
+		while ((line = reader.readLine()) != null) {
+			line = line.trim();
+			int end = 0;
+			while (end < line.length() && !Character.isWhitespace(line.charAt(end))
+					&& line.charAt(end) != ',') {
+				end++;
+			}
+			String ipAddress = line.substring(0, end);
+			if (IP_AddressParser.parse(ipAddress) != null) {
+				ipAddresses.add(ipAddress);
+			}
+		}
+		return ipAddresses;
+	}
+
+	/**
+	 * Runs the load until the duration has passed or the requested number of
+	 * lookups has been sent, then waits for the outstanding lookups
+	 *
+	 * @throws InterruptedException
+	 */
+	public void run() throws InterruptedException {
+		final long startNanos = System.nanoTime();
+		final long deadlineNanos = startNanos + durationNanos;
+		ExecutorService workers = Executors.newFixedThreadPool(threads);
+		try {
+			if (openLoop) {
+				dispatch(workers, startNanos, deadlineNanos);
+			} else {
+				for (int i = 0; i < threads; i++) {
+					workers.execute(() -> work(startNanos, deadlineNanos));
+				}
+			}
+		} finally {
+			workers.shutdown();
+			while (!workers.awaitTermination(1, TimeUnit.SECONDS)) {
+				// outstanding open-loop lookups
+			}
+			elapsedNanos = System.nanoTime() - startNanos;
+		}
+	}
+
+	/**
+	 * Sends lookups to the workers at the target rate, open-loop
+	 */
+	private void dispatch(ExecutorService workers, long startNanos,
+			long deadlineNanos) {
+		for (;;) {
+			long n = issued.getAndIncrement();
+			long dueNanos = dueNanos(startNanos, n);
+			if (n >= maxRequests || dueNanos - deadlineNanos >= 0) {
+				return;
+			}
+			waitUntil(dueNanos);
+			String ipAddress = ipAddress(n);
+			workers.execute(() -> lookup(ipAddress, dueNanos));
+		}
+	}
+
+	/**
+	 * Sends lookups one after the other, closed-loop
+	 */
+	private void work(long startNanos, long deadlineNanos) {
+		for (;;) {
+			long n = issued.getAndIncrement();
+			if (n >= maxRequests) {
+				return;
+			}
+			if (targetQps > 0) {
+				waitUntil(dueNanos(startNanos, n));
+			}
+			long sendNanos = System.nanoTime();
+			if (sendNanos - deadlineNanos >= 0) {
+				return;
+			}
+			lookup(ipAddress(n), sendNanos);
+		}
+	}
+
+	private long dueNanos(long startNanos, long n) {
+		return startNanos + (long) (n * 1e9 / targetQps);
+	}
+
+	private String ipAddress(long n) {
+		return ipAddresses[(int) (n % ipAddresses.length)];
+	}
+
+	private static void waitUntil(long nanos) {
+		long remaining;
+		while ((remaining = nanos - System.nanoTime()) > 0) {
+			LockSupport.parkNanos(remaining);
+		}
+	}
+
+	private void lookup(String ipAddress, long startNanos) {
+		IP_GeoLookupResult result = adapter.lookupResult(ipAddress);
+		if (result.getStatus() == IP_GeoLookupResult.Status.FOUND) {
+			found.increment();
+		} else if (result.getStatus() == IP_GeoLookupResult.Status.NOT_FOUND) {
+			notFound.increment();
+		} else {
+			errors.computeIfAbsent(result.getErrorCode(), k -> new LongAdder())
+					.increment();
+		}
+		long latencyNanos = System.nanoTime() - startNanos;
+		latency.record(latencyNanos);
+		maxLatencyNanos.accumulate(latencyNanos);
+	}
+
+	/**
+	 * @return number of lookups that returned geo information
+	 */
+	public long getFoundCount() {
+		return found.sum();
+	}
+
+	/**
+	 * @return number of lookups that returned no geo information
+	 */
+	public long getNotFoundCount() {
+		return notFound.sum();
+	}
+
+	/**
+	 * @return number of failed lookups per HotwireErrors code
+	 */
+	public Map<Integer, Long> getErrorCounts() {
+		Map<Integer, Long> counts = new TreeMap<Integer, Long>();
+		for (Map.Entry<Integer, LongAdder> entry : errors.entrySet()) {
+			counts.put(entry.getKey(), entry.getValue().sum());
+		}
+		return counts;
+	}
+
+	/**
+	 * @return latency of all lookups, failed or not
+	 */
+	public LatencyHistogram getLatency() {
+		return latency;
+	}
+
+	/**
+	 * Prints the throughput, latency percentiles and error breakdown of the
+	 * last run
+	 *
+	 * @param out
+	 */
+	public void printReport(PrintStream out) {
+		long total = latency.getCount();
+		double seconds = elapsedNanos / 1e9;
+		out.printf("Lookups: %d in %.1f s, %.1f lookups/s%s%n", total,
+				seconds, seconds > 0 ? total / seconds : 0,
+				targetQps > 0 ? String.format(" (target %.1f)", targetQps)
+						: "");
+		out.printf("Found: %d, not found: %d, failed: %d%n", getFoundCount(),
+				getNotFoundCount(), total - getFoundCount()
+						- getNotFoundCount());
+		out.printf(
+				"Latency ms: p50 %.2f, p90 %.2f, p99 %.2f, p99.9 %.2f, max %.2f%n",
+				percentileMillis(50), percentileMillis(90),
+				percentileMillis(99), percentileMillis(99.9),
+				millis(maxLatencyNanos.get()));
+		for (Map.Entry<Integer, Long> entry : getErrorCounts().entrySet()) {
+			out.printf("  %s (%d): %d%n",
+					QuovaIP_GeoMetrics.errorName(entry.getKey()),
+					entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * @return percentile of the latency, which the histogram rounds up to its
+	 *         bucket bound, capped at the largest latency seen
+	 */
+	private double percentileMillis(double percentile) {
+		return millis(Math.min(latency.getValueAtPercentile(percentile),
+				maxLatencyNanos.get()));
+	}
+
+	private static double millis(long nanos) {
+		return nanos / 1000000.0;
+	}
+}
@@ -0,0 +1,664 @@
+package com.hotwire.sid;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Command line tool that adds the geographical information of the client IP
+ * to every line of a log file, read from a file or stdin and written as CSV
+ * or JSON lines to a file or stdout.
+ * <p>
+ * Lines are read into batches. The distinct IPs of a batch that were not
+ * seen within the last --window distinct IPs, or whose last lookup failed,
+ * are resolved with one lookupAll call, at most --parallelism batches at a
+ * time, while the batches already
+ * resolved are written in input order. The reader stops once a bounded
+ * number of batches is waiting to be written, so memory stays constant
+ * whatever the size of the input and a slow geo server or output slows the
+ * reading down rather than filling the heap.
+ * <p>
+ * The adapter is created by IP_GeoServerAdapterFactory from the application
+ * properties, so logs can be enriched from Quova, the offline index or the
+ * simulator.
+ */
+public final class IP_GeoLogEnricher {
+
+	/**
+	 * Output format
+	 */
+	public enum Format {
+		/**
+		 * A header, then one row per line: ip, the IP_GeoResponse fields,
+		 * the lookup status and the line itself
+		 */
+		CSV,
+		/**
+		 * One JSON object per line with the same fields
+		 */
+		JSON
+	}
+
+	// //////////////////////////////////////////////////////////////
+	// ATTRIBUTES
+
+	private static final String USAGE = "Usage: java -cp ipgeo-jar-with-dependencies.jar com.hotwire.sid.IP_GeoLogEnricher [options]\n"
+			+ "  --input <file>         log to enrich, - for stdin (default -)\n"
+			+ "  --output <file>        enriched output, - for stdout (default -)\n"
+			+ "  --format <csv|json>    CSV rows or JSON lines (default csv)\n"
+			+ "  --ip-field <n>         field of each line holding the client IP, from 1 (default 1)\n"
+			+ "  --delimiter <c>        field delimiter, e.g. , or \\t (default whitespace)\n"
+			+ "  --batch-size <n>       lines per lookupAll batch (default 500)\n"
+			+ "  --parallelism <n>      batches resolved at a time (default 4)\n"
+			+ "  --window <n>           recent distinct IPs resolved only once (default 100000)\n"
+			+ "  --properties <file>    properties overriding Quova.properties and EXTERNAL_APP_PROPERTIES\n"
+			+ "  --set <key>=<value>    property override, may be repeated,\n"
+			+ "                         e.g. --set hotwire.eis.geo.serverAdapterType=offline";
+
+	private static final String[] COLUMNS = { "ip", "countryCode",
+			"stateName", "cityName", "zipCode", "dma", "gmtOffset", "latitude",
+			"longitude", "status", "line" };
+
+	/**
+	 * Batch marking the end of the input
+	 */
+	private static final Batch END = new Batch(0);
+
+	private final IP_GeoServerAdapter adapter;
+
+	private final Format format;
+
+	private final int ipField;
+
+	/**
+	 * Field delimiter, 0 for runs of whitespace
+	 */
+	private final char delimiter;
+
+	private final int batchSize;
+
+	private final int parallelism;
+
+	/**
+	 * Results of the recent distinct IPs, in access order, including those
+	 * still being resolved. Only used by the reading thread.
+	 */
+	private final LinkedHashMap<String, CompletableFuture<IP_GeoLookupResult>> window;
+
+	private long lineCount;
+
+	private long lookupCount;
+
+	private long windowHitCount;
+
+	private long failureCount;
+
+	// //////////////////////////////////////////////////////////////
+	// CONSTRUCTOR
+
+	/**
+	 * @param adapter
+	 * @param format
+	 * @param ipField
+	 *            field of each line holding the client IP, from 1
+	 * @param delimiter
+	 *            field delimiter, 0 for runs of whitespace
+	 * @param batchSize
+	 *            lines per lookupAll batch
+	 * @param parallelism
+	 *            batches resolved at a time
+	 * @param windowSize
+	 *            number of recent distinct IPs whose results are reused
+	 */
+	public IP_GeoLogEnricher(IP_GeoServerAdapter adapter, Format format,
+			int ipField, char delimiter, int batchSize, int parallelism,
+			final int windowSize) {
+		if (ipField < 1 || batchSize < 1 || parallelism < 1 || windowSize < 0) {
+			throw new IllegalArgumentException(
+					"ipField, batchSize and parallelism must be positive");
+		}
+		this.adapter = adapter;
+		this.format = format;
+		this.ipField = ipField;
+		this.delimiter = delimiter;
+		this.batchSize = batchSize;
+		this.parallelism = parallelism;
+		this.window = new LinkedHashMap<String, CompletableFuture<IP_GeoLookupResult>>(
+				16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(
+					Map.Entry<String, CompletableFuture<IP_GeoLookupResult>> eldest) {
+				return size() > windowSize;
+			}
+		};
+	}
+
+	// //////////////////////////////////////////////////////////////
+	// METHODS
+
+	public static void main(String[] args) throws IOException {
+		String input = "-";
+		String output = "-";
+		Format format = Format.CSV;
+		int ipField = 1;
+		char delimiter = 0;
+		int batchSize = 500;
+		int parallelism = 4;
+		int windowSize = 100000;
+		Properties props = new AppProperties().readProperties();
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String option = args[i];
+				if (i + 1 == args.length) {
+					throw new IllegalArgumentException(option + " needs a value");
+				}
+				String value = args[++i];
+				if ("--input".equals(option)) {
+					input = value;
+				} else if ("--output".equals(option)) {
+					output = value;
+				} else if ("--format".equals(option)) {
+					format = Format.valueOf(value.toUpperCase());
+				} else if ("--ip-field".equals(option)) {
+					ipField = Integer.parseInt(value);
+				} else if ("--delimiter".equals(option)) {
+					String separator = "\\t".equals(value) ? "\t" : value;
+					if (separator.length() != 1) {
+						throw new IllegalArgumentException(
+								"--delimiter needs a single character, got "
+										+ value);
+					}
+					delimiter = separator.charAt(0);
+				} else if ("--batch-size".equals(option)) {
+					batchSize = Integer.parseInt(value);
+				} else if ("--parallelism".equals(option)) {
+					parallelism = Integer.parseInt(value);
+				} else if ("--window".equals(option)) {
+					windowSize = Integer.parseInt(value);
+				} else if ("--properties".equals(option)) {
+					try (InputStream in = new FileInputStream(value)) {
+						props.load(in);
+					}
+				} else if ("--set".equals(option)) {
+					int separator = value.indexOf('=');
+					if (separator < 1) {
+						throw new IllegalArgumentException(
+								"--set needs key=value, got " + value);
+					}
+					props.setProperty(value.substring(0, separator),
+							value.substring(separator + 1));
+				} else {
+					throw new IllegalArgumentException("Unknown option "
+							+ option);
+				}
+			}
+		} catch (IllegalArgumentException e) {
+			// includes NumberFormatException and unknown formats
+			System.err.println(e.getMessage());
+			System.err.println(USAGE);
+			System.exit(2);
+			return;
+		}
+
+		IP_GeoServerAdapter adapter;
+		try {
+			adapter = IP_GeoServerAdapterFactory.create(props);
+		} catch (HwIP_GeoException e) {
+			System.err.println("Could not create the adapter: "
+					+ QuovaIP_GeoMetrics.errorName(e.getErrorCode()));
+			System.exit(1);
+			return;
+		}
+		long startTimeMillis = System.currentTimeMillis();
+		try (Reader in = new InputStreamReader("-".equals(input) ? System.in
+				: new FileInputStream(input), StandardCharsets.UTF_8);
+				OutputStream out = "-".equals(output) ? System.out
+						: new FileOutputStream(output)) {
+			IP_GeoLogEnricher enricher = new IP_GeoLogEnricher(adapter,
+					format, ipField, delimiter, batchSize, parallelism,
+					windowSize);
+			enricher.enrich(in, new OutputStreamWriter(out,
+					StandardCharsets.UTF_8));
+			System.err.println("Enriched " + enricher.getLineCount()
+					+ " lines with " + enricher.getLookupCount() + " lookups ("
+					+ enricher.getWindowHitCount() + " reused, "
+					+ enricher.getFailureCount() + " failed) in "
+					+ (System.currentTimeMillis() - startTimeMillis)
+					+ " milliseconds");
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println(USAGE);
+			System.exit(2);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			adapter.shutdown();
+		}
+	}
+
+	/**
+	 * Enriches every line of in and writes the result to out, which is
+	 * flushed but not closed
+	 *
+	 * @param in
+	 * @param out
+	 * @throws IOException
+	 *             if in cannot be read or out written
+	 * @throws InterruptedException
+	 */
+	public void enrich(Reader in, Writer out) throws IOException,
+			InterruptedException {
+		final BufferedWriter writer = new BufferedWriter(out, 1 << 16);
+		// batches read but not yet written, the reader waits for a permit so
+		// that the memory held stays bounded
+		final Semaphore permits = new Semaphore(parallelism * 2);
+		final BlockingQueue<Batch> written = new LinkedBlockingQueue<Batch>();
+		final AtomicReference<IOException> writeError = new AtomicReference<IOException>();
+		ExecutorService executor = new ThreadPoolExecutor(parallelism,
+				parallelism, 0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(),
+				new NamedDaemonThreadFactory("IP_GeoLogEnricher"));
+
+		Thread writerThread = new Thread("IP_GeoLogEnricherWriter") {
+			public void run() {
+				try {
+					if (format == Format.CSV) {
+						writeHeader(writer);
+					}
+					for (Batch batch; (batch = written.take()) != END;) {
+						try {
+							if (writeError.get() == null) {
+								writeBatch(writer, batch);
+							}
+						} catch (IOException e) {
+							// keep taking batches so that the reader is not
+							// left waiting for a permit
+							writeError.set(e);
+						} finally {
+							permits.release();
+						}
+					}
+					writer.flush();
+				} catch (IOException e) {
+					writeError.compareAndSet(null, e);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		writerThread.start();
+
+		try {
+			BufferedReader reader = new BufferedReader(in, 1 << 16);
+			Batch batch = new Batch(batchSize);
+			String line;
+			while ((line = reader.readLine()) != null
+					&& writeError.get() == null) {
+				String ipAddress = extractIP_Address(line, ipField, delimiter);
+				batch.add(line, ipAddress, resultFor(ipAddress, batch));
+				if (batch.size == batchSize) {
+					permits.acquire();
+					submit(executor, batch);
+					written.put(batch);
+					batch = new Batch(batchSize);
+				}
+			}
+			if (batch.size > 0) {
+				permits.acquire();
+				submit(executor, batch);
+				written.put(batch);
+			}
+		} finally {
+			written.put(END);
+			writerThread.join();
+			executor.shutdown();
+		}
+		if (writeError.get() != null) {
+			throw writeError.get();
+		}
+	}
+
+	/**
+	 * Reuses the result of ipAddress from the window while it is being
+	 * resolved or if it was found or not found. A failed lookup is dropped
+	 * from the window and looked up again, so that a short outage does not
+	 * fail every later line with the same IP.
+	 *
+	 * @return the result of ipAddress from the window, or a new one to be
+	 *         resolved with batch, null if the line has no IP
+	 */
+	private CompletableFuture<IP_GeoLookupResult> resultFor(String ipAddress,
+			Batch batch) {
+		if (ipAddress == null) {
+			return null;
+		}
+		CompletableFuture<IP_GeoLookupResult> result = window.get(ipAddress);
+		if (result != null && !isFailure(result)) {
+			windowHitCount++;
+			return result;
+		}
+		result = new CompletableFuture<IP_GeoLookupResult>();
+		window.put(ipAddress, result);
+		batch.toResolve.add(ipAddress);
+		batch.pending.add(result);
+		lookupCount++;
+		return result;
+	}
+
+	private static boolean isFailure(CompletableFuture<IP_GeoLookupResult> result) {
+		return result.isDone()
+				&& (result.isCompletedExceptionally() || !result.join()
+						.isSuccess());
+	}
+
+	private void submit(ExecutorService executor, final Batch batch) {
+		if (batch.toResolve.isEmpty()) {
+			return;
+		}
+		executor.execute(new Runnable() {
+			public void run() {
+				resolve(batch);
+			}
+		});
+	}
+
+	private void resolve(Batch batch) {
+		try {
+			Map<String, IP_GeoLookupResult> results = adapter
+					.lookupAll(batch.toResolve);
+			for (int i = 0; i < batch.toResolve.size(); i++) {
+				String ipAddress = batch.toResolve.get(i);
+				IP_GeoLookupResult result = results.get(ipAddress);
+				batch.pending.get(i).complete(
+						result != null ? result : IP_GeoLookupResult.failure(
+								ipAddress,
+								IP_GeoLookupResult.Status.ERROR,
+								HotwireErrors.IPGEO_GEO_SERVER_RUNTIME_ERROR));
+			}
+		} catch (RuntimeException e) {
+			for (CompletableFuture<IP_GeoLookupResult> result : batch.pending) {
+				result.completeExceptionally(e);
+			}
+		} finally {
+			// even an Error must not leave the writer waiting for a result
+			for (int i = 0; i < batch.pending.size(); i++) {
+				batch.pending.get(i).complete(
+						IP_GeoLookupResult.failure(batch.toResolve.get(i),
+								IP_GeoLookupResult.Status.ERROR,
+								HotwireErrors.IPGEO_GEO_SERVER_RUNTIME_ERROR));
+			}
+		}
+	}
+
+	private void writeHeader(Writer writer) throws IOException {
+		for (int i = 0; i < COLUMNS.length; i++) {
+			if (i > 0) {
+				writer.write(',');
+			}
+			writer.write(COLUMNS[i]);
+		}
+		writer.write('\n');
+	}
+
+	private void writeBatch(Writer writer, Batch batch) throws IOException {
+		for (int i = 0; i < batch.size; i++) {
+			IP_GeoLookupResult result = null;
+			if (batch.results[i] != null) {
+				try {
+					result = batch.results[i].join();
+				} catch (CompletionException e) {
+					result = IP_GeoLookupResult.failure(batch.ipAddresses[i],
+							IP_GeoLookupResult.Status.ERROR,
+							HotwireErrors.IPGEO_GEO_SERVER_RUNTIME_ERROR);
+				}
+				if (!result.isSuccess()) {
+					failureCount++;
+				}
+			}
+			lineCount++;
+			String[] values = values(batch.lines[i], batch.ipAddresses[i],
+					result);
+			if (format == Format.CSV) {
+				writeCsv(writer, values);
+			} else {
+				writeJson(writer, values);
+			}
+			// let the next batches release the lines of this one
+			batch.lines[i] = null;
+			batch.results[i] = null;
+		}
+	}
+
+	/**
+	 * @return the values of COLUMNS for line, null for the empty ones
+	 */
+	static String[] values(String line, String ipAddress,
+			IP_GeoLookupResult result) {
+		String[] values = new String[COLUMNS.length];
+		values[0] = ipAddress;
+		values[COLUMNS.length - 1] = line;
+		if (result == null) {
+			values[COLUMNS.length - 2] = "NO_IP";
+			return values;
+		}
+		values[COLUMNS.length - 2] = result.isSuccess() ? result.getStatus()
+				.name() : QuovaIP_GeoMetrics.errorName(result.getErrorCode());
+		IP_GeoResponse response = result.getResponse();
+		if (response != null) {
+			values[1] = response.getCountryCode();
+			values[2] = response.getStateName();
+			values[3] = response.getCityName();
+			values[4] = response.getZipCode();
+			values[5] = response.getNDMA_Code() != 0 ? String.valueOf(response
+					.getNDMA_Code()) : null;
+			values[6] = number(response.getGmtOffset());
+			values[7] = number(response.getLatitude());
+			values[8] = number(response.getLongitude());
+		}
+		return values;
+	}
+
+	private static String number(float value) {
+		return value != Float.MAX_VALUE && !Float.isNaN(value) ? String
+				.valueOf(value) : null;
+	}
+
+	static void writeCsv(Writer writer, String[] values) throws IOException {
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0) {
+				writer.write(',');
+			}
+			String value = values[i];
+			if (value == null) {
+				continue;
+			}
+			if (value.indexOf(',') < 0 && value.indexOf('"') < 0
+					&& value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+				writer.write(value);
+			} else {
+				writer.write('"');
+				writer.write(value.replace("\"", "\"\""));
+				writer.write('"');
+			}
+		}
+		writer.write('\n');
+	}
+
+	static void writeJson(Writer writer, String[] values) throws IOException {
+		writer.write('{');
+		boolean first = true;
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] == null) {
+				continue;
+			}
+			if (!first) {
+				writer.write(',');
+			}
+			first = false;
+			writer.write('"');
+			writer.write(COLUMNS[i]);
+			writer.write("\":");
+			// the numeric columns, dma to longitude, are written as numbers
+			if (i >= 5 && i <= 8) {
+				writer.write(values[i]);
+			} else {
+				writeJsonString(writer, values[i]);
+			}
+		}
+		writer.write("}\n");
+	}
+
+	private static void writeJsonString(Writer writer, String value)
+			throws IOException {
+		writer.write('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				writer.write('\\');
+				writer.write(c);
+			} else if (c < 0x20) {
+				writer.write(String.format("\\u%04x", (int) c));
+			} else {
+				writer.write(c);
+			}
+		}
+		writer.write('"');
+	}
+
+	/**
+	 * Returns field ipField of line, without surrounding quotes or brackets
+	 *
+	 * @param line
+	 * @param ipField
+	 *            from 1
+	 * @param delimiter
+	 *            field delimiter, 0 for runs of whitespace
+	 * @return the field if it is an IP address, null otherwise
+	 */
+	static String extractIP_Address(String line, int ipField, char delimiter) {
+		int start = 0;
+		int end = -1;
+		int length = line.length();
+		for (int field = 1; field <= ipField; field++) {
+			start = end + 1;
+			if (delimiter == 0) {
+				while (start < length
+						&& Character.isWhitespace(line.charAt(start))) {
+					start++;
+				}
+			}
+			if (start > length) {
+				return null;
+			}
+			end = start;
+			while (end < length
+					&& (delimiter == 0 ? !Character.isWhitespace(line
+							.charAt(end)) : line.charAt(end) != delimiter)) {
+				end++;
+			}
+		}
+		while (start < end && isQuote(line.charAt(start))) {
+			start++;
+		}
+		while (end > start && isQuote(line.charAt(end - 1))) {
+			end--;
+		}
+		if (start == end) {
+			return null;
+		}
+		String ipAddress = line.substring(start, end).trim();
+		return IP_AddressParser.parse(ipAddress) != null ? ipAddress : null;
+	}
+
+	private static boolean isQuote(char c) {
+		return c == '"' || c == '\'' || c == '[' || c == ']';
+	}
+
+	/**
+	 * @return number of lines written
+	 */
+	public long getLineCount() {
+		return lineCount;
+	}
+
+	/**
+	 * @return number of IPs looked up, each distinct IP of the window once
+	 */
+	public long getLookupCount() {
+		return lookupCount;
+	}
+
+	/**
+	 * @return number of lines whose IP was resolved for an earlier line
+	 */
+	public long getWindowHitCount() {
+		return windowHitCount;
+	}
+
+	/**
+	 * @return number of lines whose lookup failed
+	 */
+	public long getFailureCount() {
+		return failureCount;
+	}
+
+	/**
+	 * Lines read together and the distinct IPs they send to lookupAll
+	 */
+	private static final class Batch {
+
+		final String[] lines;
+
+		final String[] ipAddresses;
+
+		/**
+		 * Result of each line, null for the lines without an IP
+		 */
+		final CompletableFuture<IP_GeoLookupResult>[] results;
+
+		final List<String> toResolve = new ArrayList<String>();
+
+		final List<CompletableFuture<IP_GeoLookupResult>> pending = new ArrayList<CompletableFuture<IP_GeoLookupResult>>();
+
+		int size;
+
+		@SuppressWarnings("unchecked")
+		Batch(int capacity) {
+			lines = new String[capacity];
+			ipAddresses = new String[capacity];
+			results = (CompletableFuture<IP_GeoLookupResult>[]) new CompletableFuture<?>[capacity];
+		}
+
+		void add(String line, String ipAddress,
+				CompletableFuture<IP_GeoLookupResult> result) {
+			lines[size] = line;
+			ipAddresses[size] = ipAddress;
+			results[size] = result;
+			size++;
+		}
+	}
+}
@@ -0,0 +1,273 @@
+package com.hotwire.sid;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Merges single lookups submitted concurrently by many threads into
+ * lookupAll calls on one adapter. A dispatcher thread takes the waiting
+ * lookups, at most maxBatchSize at a time, and hands them to one of
+ * parallelism lookup threads. While every lookup thread is busy the lookups
+ * keep queueing, so the batches grow with the load; when idle, a lookup waits
+ * at most maxBatchDelayMicros for others to join its batch. Lookups of the
+ * same IP in a batch are resolved once.
+ * <p>
+ * When maxQueuedLookups are already waiting, further lookups are refused at
+ * once instead of queueing without bound.
+ */
+final class IP_GeoLookupBatcher {
+
+	/**
+	 * A submitted lookup waiting for its batch
+	 */
+	private static final class Pending {
+
+		final String ipAddress;
+
+		final CompletableFuture<IP_GeoLookupResult> future = new CompletableFuture<IP_GeoLookupResult>();
+
+		Pending(String ipAddress) {
+			this.ipAddress = ipAddress;
+		}
+	}
+
+	// //////////////////////////////////////////////////////////////
+	// ATTRIBUTES
+
+	private static final Logger log = LoggerFactory
+			.getLogger(IP_GeoLookupBatcher.class);
+
+	private final IP_GeoServerAdapter adapter;
+
+	private final int maxBatchSize;
+
+	private final long maxBatchDelayNanos;
+
+	private final BlockingQueue<Pending> queue;
+
+	/**
+	 * One permit per idle lookup thread
+	 */
+	private final Semaphore idleLookupThreads;
+
+	private final ExecutorService lookupExecutor;
+
+	private final Thread dispatcher;
+
+	private volatile boolean running = true;
+
+	private final LongAdder lookups = new LongAdder();
+
+	private final LongAdder batches = new LongAdder();
+
+	private final LongAdder rejectedLookups = new LongAdder();
+
+	// //////////////////////////////////////////////////////////////
+	// CONSTRUCTOR
+
+	/**
+	 * Creates the batcher and starts its threads
+	 *
+	 * @param adapter
+	 * @param maxBatchSize
+	 *            maximum number of lookups per lookupAll call
+	 * @param maxBatchDelayMicros
+	 *            maximum time an idle batcher waits for a batch to fill
+	 * @param parallelism
+	 *            number of lookupAll calls made at a time
+	 * @param maxQueuedLookups
+	 *            number of lookups that may wait for a batch
+	 */
+	IP_GeoLookupBatcher(IP_GeoServerAdapter adapter, int maxBatchSize,
+			long maxBatchDelayMicros, int parallelism, int maxQueuedLookups) {
+		if (maxBatchSize < 1 || maxBatchDelayMicros < 0 || parallelism < 1
+				|| maxQueuedLookups < 1) {
+			throw new IllegalArgumentException(
+					"maxBatchSize, parallelism and maxQueuedLookups must be positive");
+		}
+		this.adapter = adapter;
+		this.maxBatchSize = maxBatchSize;
+		this.maxBatchDelayNanos = TimeUnit.MICROSECONDS
+				.toNanos(maxBatchDelayMicros);
+		this.queue = new ArrayBlockingQueue<Pending>(maxQueuedLookups);
+		this.idleLookupThreads = new Semaphore(parallelism);
+		this.lookupExecutor = new ThreadPoolExecutor(parallelism, parallelism,
+				0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+				new NamedDaemonThreadFactory("IP_GeoLookupBatcher"));
+		this.dispatcher = new Thread("IP_GeoLookupBatcherDispatcher") {
+			public void run() {
+				dispatch();
+			}
+		};
+		dispatcher.setDaemon(true);
+		dispatcher.start();
+	}
+
+	// //////////////////////////////////////////////////////////////
+	// METHODS
+
+	/**
+	 * Queues the lookup of ipAddress for the next batch
+	 *
+	 * @param ipAddress
+	 * @return future completed with the result of the lookup, never
+	 *         exceptionally, null if maxQueuedLookups are already waiting or
+	 *         the batcher is stopped
+	 */
+	CompletableFuture<IP_GeoLookupResult> submit(String ipAddress) {
+		Pending pending = new Pending(ipAddress);
+		lookups.increment();
+		if (!running || !queue.offer(pending)) {
+			rejectedLookups.increment();
+			return null;
+		}
+		return pending.future;
+	}
+
+	private void dispatch() {
+		// lookups taken from the queue but not yet handed to a lookup thread
+		List<Pending> batch = new ArrayList<Pending>();
+		try {
+			while (running) {
+				Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+				batch = new ArrayList<Pending>(Math.min(maxBatchSize,
+						queue.size() + 1));
+				batch.add(first);
+				// lookups keep queueing while every lookup thread is busy
+				idleLookupThreads.acquire();
+				queue.drainTo(batch, maxBatchSize - 1);
+				long deadline = System.nanoTime() + maxBatchDelayNanos;
+				while (batch.size() < maxBatchSize) {
+					long remainingNanos = deadline - System.nanoTime();
+					Pending next = remainingNanos > 0 ? queue.poll(
+							remainingNanos, TimeUnit.NANOSECONDS) : null;
+					if (next == null) {
+						break;
+					}
+					batch.add(next);
+					queue.drainTo(batch, maxBatchSize - batch.size());
+				}
+				batches.increment();
+				final List<Pending> dispatched = batch;
+				batch = new ArrayList<Pending>();
+				lookupExecutor.execute(new Runnable() {
+					public void run() {
+						try {
+							resolve(dispatched);
+						} finally {
+							idleLookupThreads.release();
+						}
+					}
+				});
+			}
+		} catch (InterruptedException e) {
+			// shutdown
+		}
+		List<Pending> abandoned = new ArrayList<Pending>(batch);
+		queue.drainTo(abandoned);
+		fail(abandoned, IP_GeoLookupResult.Status.UNAVAILABLE,
+				HotwireErrors.IPGEO_GEO_SERVER_NOT_AVAILABLE);
+	}
+
+	private void resolve(List<Pending> batch) {
+		Set<String> ipAddresses = new LinkedHashSet<String>();
+		for (Pending pending : batch) {
+			ipAddresses.add(pending.ipAddress);
+		}
+		Map<String, IP_GeoLookupResult> results;
+		try {
+			results = adapter.lookupAll(ipAddresses);
+		} catch (Throwable t) {
+			// even an Error completes the lookups, or their requests would
+			// never be answered
+			log.error("Could not look up a batch of {} IPs", ipAddresses.size(),
+					t);
+			fail(batch, IP_GeoLookupResult.Status.ERROR,
+					HotwireErrors.IPGEO_GEO_SERVER_RUNTIME_ERROR);
+			return;
+		}
+		for (Pending pending : batch) {
+			IP_GeoLookupResult result = results.get(pending.ipAddress);
+			pending.future.complete(result != null ? result
+					: IP_GeoLookupResult.failure(pending.ipAddress,
+							IP_GeoLookupResult.Status.ERROR,
+							HotwireErrors.IPGEO_GEO_SERVER_INVALID_RESPONSE));
+		}
+	}
+
+	private static void fail(List<Pending> pendings,
+			IP_GeoLookupResult.Status status, int errorCode) {
+		for (Pending pending : pendings) {
+			pending.future.complete(IP_GeoLookupResult.failure(
+					pending.ipAddress, status, errorCode));
+		}
+	}
+
+	/**
+	 * Stops the threads of the batcher. Lookups still waiting for a batch are
+	 * failed with IPGEO_GEO_SERVER_NOT_AVAILABLE, batches being resolved are
+	 * completed.
+	 */
+	void shutdown() {
+		running = false;
+		dispatcher.interrupt();
+		try {
+			dispatcher.join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		lookupExecutor.shutdown();
+		// a lookup submitted while the dispatcher was stopping
+		List<Pending> abandoned = new ArrayList<Pending>();
+		queue.drainTo(abandoned);
+		fail(abandoned, IP_GeoLookupResult.Status.UNAVAILABLE,
+				HotwireErrors.IPGEO_GEO_SERVER_NOT_AVAILABLE);
+	}
+
+	/**
+	 * @return number of lookups submitted
+	 */
+	long getLookupCount() {
+		return lookups.sum();
+	}
+
+	/**
+	 * @return number of lookupAll calls made
+	 */
+	long getBatchCount() {
+		return batches.sum();
+	}
+
+	/**
+	 * @return number of lookups failed because the queue was full or the
+	 *         batcher stopped
+	 */
+	long getRejectedLookupCount() {
+		return rejectedLookups.sum();
+	}
+
+	/**
+	 * @return lookups waiting for a batch
+	 */
+	int getQueuedLookupCount() {
+		return queue.size();
+	}
+}
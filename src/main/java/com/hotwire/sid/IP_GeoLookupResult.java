@@ -0,0 +1,179 @@
+package com.hotwire.sid;
+
+/**
+ * Outcome of looking up a single ipAddress, alone or as part of a batch.
+ * Unlike IP_GeoServerAdapter.lookup, a failed lookup is reported through the
+ * status and error code instead of an exception, so one bad address does not
+ * fail the whole batch and callers can handle failures without a try/catch.
+ */
+public class IP_GeoLookupResult {
+
+	/**
+	 * Outcome of a lookup
+	 */
+	public enum Status {
+		/**
+		 * Quova returned geo information for the address
+		 */
+		FOUND,
+		/**
+		 * Quova does not know the address, the response is empty
+		 */
+		NOT_FOUND,
+		/**
+		 * The address was empty or rejected as malformed
+		 */
+		INVALID,
+		/**
+		 * The geo server could not be queried
+		 */
+		UNAVAILABLE,
+		/**
+		 * The geo server did not answer in time
+		 */
+		TIMEOUT,
+		/**
+		 * The geo server returned an unexpected response or a runtime error
+		 * occurred
+		 */
+		ERROR
+	}
+
+	// //////////////////////////////////////////////////////////////
+	// ATTRIBUTES
+
+	/**
+	 * The ipAddress that was looked up
+	 */
+	private final String ipAddress;
+
+	private final Status status;
+
+	/**
+	 * The geo information, null unless status is FOUND or NOT_FOUND
+	 */
+	private final IP_GeoResponse response;
+
+	/**
+	 * One of the IPGEO error codes in HotwireErrors, 0 if the lookup
+	 * succeeded
+	 */
+	private final int errorCode;
+
+	// //////////////////////////////////////////////////////////////
+	// CONSTRUCTOR
+
+	private IP_GeoLookupResult(String ipAddress, Status status,
+			IP_GeoResponse response, int errorCode) {
+		this.ipAddress = ipAddress;
+		this.status = status;
+		this.response = response;
+		this.errorCode = errorCode;
+	}
+
+	/**
+	 * Create the result of a lookup that Quova answered
+	 *
+	 * @param ipAddress
+	 * @param response
+	 * @param found
+	 *            false if Quova returned NOT_FOUND for the address
+	 * @return IP_GeoLookupResult
+	 */
+	public static IP_GeoLookupResult success(String ipAddress,
+			IP_GeoResponse response, boolean found) {
+		return new IP_GeoLookupResult(ipAddress, found ? Status.FOUND
+				: Status.NOT_FOUND, response, 0);
+	}
+
+	/**
+	 * Create the result of a failed lookup
+	 *
+	 * @param ipAddress
+	 * @param status
+	 * @param errorCode
+	 *            one of the IPGEO error codes in HotwireErrors
+	 * @return IP_GeoLookupResult
+	 */
+	public static IP_GeoLookupResult failure(String ipAddress, Status status,
+			int errorCode) {
+		return new IP_GeoLookupResult(ipAddress, status, null, errorCode);
+	}
+
+	/**
+	 * Create the result of a failed lookup from the exception it raised
+	 *
+	 * @param ipAddress
+	 * @param e
+	 * @return IP_GeoLookupResult
+	 */
+	public static IP_GeoLookupResult failure(String ipAddress,
+			HwIP_GeoException e) {
+		return failure(ipAddress, statusOf(e.getErrorCode()),
+				e.getErrorCode());
+	}
+
+	/**
+	 * Maps an IPGEO error code to the matching status
+	 *
+	 * @param errorCode
+	 * @return Status
+	 */
+	static Status statusOf(int errorCode) {
+		switch (errorCode) {
+		case HotwireErrors.IPGEO_GEO_SERVER_INVALID_ARGUMENT:
+			return Status.INVALID;
+		case HotwireErrors.IPGEO_GEO_SERVER_NOT_AVAILABLE:
+			return Status.UNAVAILABLE;
+		case HotwireErrors.IPGEO_GEO_SERVER_TIMEOUT:
+			return Status.TIMEOUT;
+		default:
+			return Status.ERROR;
+		}
+	}
+
+	// //////////////////////////////////////////////////////////////
+	// METHODS
+
+	public String getIP_Address() {
+		return ipAddress;
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	/**
+	 * Returns true if Quova answered the lookup, whether or not it knew the
+	 * address
+	 *
+	 * @return true if status is FOUND or NOT_FOUND
+	 */
+	public boolean isSuccess() {
+		return status == Status.FOUND || status == Status.NOT_FOUND;
+	}
+
+	/**
+	 * Returns the geo information
+	 *
+	 * @return IP_GeoResponse, null if the lookup failed
+	 */
+	public IP_GeoResponse getResponse() {
+		return response;
+	}
+
+	/**
+	 * Returns the error code of a failed lookup
+	 *
+	 * @return one of the IPGEO error codes in HotwireErrors, 0 if the lookup
+	 *         succeeded
+	 */
+	public int getErrorCode() {
+		return errorCode;
+	}
+
+	public String toString() {
+		return ipAddress + " " + status
+				+ (errorCode != 0 ? " (" + errorCode + ")" : "");
+	}
+}
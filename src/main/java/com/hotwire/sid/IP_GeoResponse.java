@@ -1,85 +1,274 @@
 package com.hotwire.sid;
 
-public class IP_GeoResponse {
+import java.util.Set;
+
+/**
+ * Immutable geographical information of an IP. Responses are shared freely
+ * between caches and callers, so country, state and city names are held as
+ * shared instances from GeoStringDictionary and the numeric fields as
+ * primitives. Responses with geo information are created through a Builder.
+ */
+public final class IP_GeoResponse {
 
 	// //////////////////////////////////////////////////////////////
 	// ATTRIBUTES
 
+	/**
+	 * geoInfoSource of responses returned by the Quova GeoDirectoryServer
+	 */
+	public static final char GEO_INFO_SOURCE_QUOVA = 'Q';
+
+	/**
+	 * geoInfoSource of responses returned by a simulated geo server
+	 */
+	public static final char GEO_INFO_SOURCE_SIMULATOR = 'S';
+
+	/**
+	 * geoInfoSource of responses resolved from a local IP range index
+	 */
+	public static final char GEO_INFO_SOURCE_RANGE_INDEX = 'I';
+
 	/**
 	 * The ipAddress that was used to create this IP_GeoResponse
 	 */
-	private String ipAddress;
+	private final String ipAddress;
 
 	/**
 	 * The source of this IP_GeoResponse (i.e. Quova - 'Q', Simulator - 'S',
 	 * etc.)
 	 */
-	private char geoInfoSource = 'Q';
+	private final char geoInfoSource;
 
 	/**
 	 * Country code of the user
 	 */
-	private String countryCode;
+	private final String countryCode;
 
 	/**
 	 * GMT offset of the user
 	 */
-	private float gmtOffset = Float.MAX_VALUE;
+	private final float gmtOffset;
 
 	/**
 	 * ndma of the user
 	 */
-	private int ndmaCode;// = NDMA_JDO.INVALID_NDMA_CODE;
+	private final int ndmaCode;// = NDMA_JDO.INVALID_NDMA_CODE;
 
 	/**
 	 * ZIP code of the user
 	 */
-	private String zipCode;
+	private final String zipCode;
 
 	/**
 	 * City name
 	 */
-	private String cityName;
+	private final String cityName;
 
 	/**
 	 * State name
 	 */
-	private String stateName;
+	private final String stateName;
 
 	/**
 	 * Latitude of the user
 	 */
-	private float latitude = Float.MAX_VALUE;
+	private final float latitude;
 
 	/**
 	 * Longitude of the user
 	 */
-	private float longitude = Float.MAX_VALUE;
+	private final float longitude;
+
+	/**
+	 * Bit mask of the IP_GeoFields that were decoded into this response
+	 */
+	private final int fields;
+
+	/**
+	 * True if the geo server knows the IP, whether or not any field was
+	 * decoded
+	 */
+	private final boolean found;
 
 	// //////////////////////////////////////////////////////////////
 	// CONSTRUCTOR
 
 	/**
-	 * Create an instance of IP_GeoResponse
+	 * Create an IP_GeoResponse without geo information, for an IP the geo
+	 * server does not know
 	 */
 	public IP_GeoResponse(String ipAddress, char geoInfoSource) {
-		this.ipAddress = ipAddress;
-		this.geoInfoSource = geoInfoSource;
+		this(ipAddress, geoInfoSource, null, Float.MAX_VALUE, 0, null, null,
+				null, Float.MAX_VALUE, Float.MAX_VALUE, IP_GeoField.ALL_MASK,
+				false);
 	}
 
 	/**
-	 * Copy constructor
+	 * Copy constructor, kept for callers written before responses were
+	 * immutable and can be shared instead
 	 *
 	 * @param ipGeoResponse
 	 */
 	public IP_GeoResponse(IP_GeoResponse ipGeoResponse) {
-		this(ipGeoResponse.getIP_Address(), ipGeoResponse.getGeoInfoSource());
-		this.countryCode = ipGeoResponse.getCountryCode();
-		this.gmtOffset = ipGeoResponse.getGmtOffset();
-		this.ndmaCode = ipGeoResponse.getNDMA_Code();
-		this.zipCode = ipGeoResponse.getZipCode();
-		this.cityName = ipGeoResponse.getCityName();
-		this.stateName = ipGeoResponse.getStateName();
+		this(ipGeoResponse.ipAddress, ipGeoResponse.geoInfoSource,
+				ipGeoResponse.countryCode, ipGeoResponse.gmtOffset,
+				ipGeoResponse.ndmaCode, ipGeoResponse.zipCode,
+				ipGeoResponse.cityName, ipGeoResponse.stateName,
+				ipGeoResponse.latitude, ipGeoResponse.longitude,
+				ipGeoResponse.fields, ipGeoResponse.found);
+	}
+
+	/**
+	 * Create an IP_GeoResponse from values that are already upper case and
+	 * shared where needed, such as those held by an IP range index
+	 */
+	IP_GeoResponse(String ipAddress, char geoInfoSource, String countryCode,
+			float gmtOffset, int ndmaCode, String zipCode, String cityName,
+			String stateName, float latitude, float longitude) {
+		this(ipAddress, geoInfoSource, countryCode, gmtOffset, ndmaCode,
+				zipCode, cityName, stateName, latitude, longitude,
+				IP_GeoField.ALL_MASK, true);
+	}
+
+	/**
+	 * Create an IP_GeoResponse holding only the IP_GeoFields of the fields
+	 * mask
+	 */
+	IP_GeoResponse(String ipAddress, char geoInfoSource, String countryCode,
+			float gmtOffset, int ndmaCode, String zipCode, String cityName,
+			String stateName, float latitude, float longitude, int fields,
+			boolean found) {
+		this.fields = fields;
+		this.found = found;
+		this.ipAddress = ipAddress;
+		this.geoInfoSource = geoInfoSource;
+		this.countryCode = countryCode;
+		this.gmtOffset = gmtOffset;
+		this.ndmaCode = ndmaCode;
+		this.zipCode = zipCode;
+		this.cityName = cityName;
+		this.stateName = stateName;
+		this.latitude = latitude;
+		this.longitude = longitude;
+	}
+
+	/**
+	 * Builds IP_GeoResponse objects, interning their strings through
+	 * GeoStringDictionary
+	 */
+	public static final class Builder {
+
+		private final String ipAddress;
+
+		private final char geoInfoSource;
+
+		private String countryCode;
+
+		private float gmtOffset = Float.MAX_VALUE;
+
+		private int ndmaCode;
+
+		private String zipCode;
+
+		private String cityName;
+
+		private String stateName;
+
+		private float latitude = Float.MAX_VALUE;
+
+		private float longitude = Float.MAX_VALUE;
+
+		private int fields = IP_GeoField.ALL_MASK;
+
+		private boolean found = true;
+
+		public Builder(String ipAddress, char geoInfoSource) {
+			this.ipAddress = ipAddress;
+			this.geoInfoSource = geoInfoSource;
+		}
+
+		/**
+		 * Sets the countryCode of the user, which is stored in upper case
+		 *
+		 * @param countryCode
+		 * @return this Builder
+		 */
+		public Builder setCountryCode(String countryCode) {
+			this.countryCode = GeoStringDictionary
+					.internCountryCode(countryCode);
+			return this;
+		}
+
+		public Builder setGmtOffset(float gmtOffset) {
+			this.gmtOffset = gmtOffset;
+			return this;
+		}
+
+		public Builder setNDMA_Code(int ndmaCode) {
+			this.ndmaCode = ndmaCode;
+			return this;
+		}
+
+		public Builder setZipCode(String zipCode) {
+			this.zipCode = zipCode;
+			return this;
+		}
+
+		public Builder setCityName(String cityName) {
+			this.cityName = GeoStringDictionary.intern(cityName);
+			return this;
+		}
+
+		public Builder setStateName(String stateName) {
+			this.stateName = GeoStringDictionary.intern(stateName);
+			return this;
+		}
+
+		public Builder setLatitude(float latitude) {
+			this.latitude = latitude;
+			return this;
+		}
+
+		public Builder setLongitude(float longitude) {
+			this.longitude = longitude;
+			return this;
+		}
+
+		/**
+		 * Records that only fields were decoded into the response
+		 *
+		 * @param fields
+		 *            bit mask of IP_GeoFields
+		 * @return this Builder
+		 */
+		Builder setFields(int fields) {
+			this.fields = fields;
+			return this;
+		}
+
+		/**
+		 * Records whether the geo server knows the IP, true unless set
+		 *
+		 * @param found
+		 * @return this Builder
+		 */
+		public Builder setFound(boolean found) {
+			this.found = found;
+			return this;
+		}
+
+		/**
+		 * @return the ipAddress the response is built for
+		 */
+		public String getIP_Address() {
+			return ipAddress;
+		}
+
+		public IP_GeoResponse build() {
+			return new IP_GeoResponse(ipAddress, geoInfoSource, countryCode,
+					gmtOffset, ndmaCode, zipCode, cityName, stateName,
+					latitude, longitude, fields, found);
+		}
 	}
 
 	// //////////////////////////////////////////////////////////////
@@ -112,20 +301,6 @@ public class IP_GeoResponse {
 		return countryCode;
 	}
 
-	/**
-	 * Sets the countryCode of the user
-	 *
-	 * @param countryCode
-	 */
-	public void setCountryCode(String countryCode) {
-		this.countryCode = countryCode;
-		if (countryCode != null) {
-			// if we are setting the country code to a non-null string, make
-			// sure it is upper case
-			this.countryCode = countryCode.toUpperCase();
-		}
-	}
-
 	/**
 	 * Return the gmtOffset of the user
 	 *
@@ -135,15 +310,6 @@ public class IP_GeoResponse {
 		return gmtOffset;
 	}
 
-	/**
-	 * Sets the gmtOffset of the user
-	 *
-	 * @param gmtOffset
-	 */
-	public void setGmtOffset(float gmtOffset) {
-		this.gmtOffset = gmtOffset;
-	}
-
 	/**
 	 * Return the ndmaCode of the user
 	 *
@@ -153,15 +319,6 @@ public class IP_GeoResponse {
 		return ndmaCode;
 	}
 
-	/**
-	 * Sets the ndmaCode of the user
-	 *
-	 * @param ndmaCode
-	 */
-	public void setNDMA_Code(int ndmaCode) {
-		this.ndmaCode = ndmaCode;
-	}
-
 	/**
 	 * Return the zipCode of the user
 	 *
@@ -171,15 +328,6 @@ public class IP_GeoResponse {
 		return zipCode;
 	}
 
-	/**
-	 * Sets the zipCode of the user
-	 *
-	 * @param zipCode
-	 */
-	public void setZipCode(String zipCode) {
-		this.zipCode = zipCode;
-	}
-
 	/**
 	 * Return the cityName of the user
 	 *
@@ -189,15 +337,6 @@ public class IP_GeoResponse {
 		return cityName;
 	}
 
-	/**
-	 * Sets the cityName of the user
-	 *
-	 * @param cityName
-	 */
-	public void setCityName(String cityName) {
-		this.cityName = cityName;
-	}
-
 	/**
 	 * Return the stateName of the user
 	 *
@@ -207,15 +346,6 @@ public class IP_GeoResponse {
 		return stateName;
 	}
 
-	/**
-	 * Sets the stateName of the user
-	 *
-	 * @param stateName
-	 */
-	public void setStateName(String stateName) {
-		this.stateName = stateName;
-	}
-
 	/**
 	 * Return the latitude of the user
 	 *
@@ -226,30 +356,50 @@ public class IP_GeoResponse {
 	}
 
 	/**
-	 * Sets the latitude of the user
+	 * Return the longitude of the user
 	 *
-	 * @param latitude
+	 * @return longitude
 	 */
-	public void setLatitude(float latitude) {
-		this.latitude = latitude;
+	public float getLongitude() {
+		return longitude;
 	}
 
 	/**
-	 * Return the longitude of the user
+	 * Returns whether the geo server knows the IP. A found response may still
+	 * lack a country, because the geo server has none or because it was
+	 * looked up without IP_GeoField.COUNTRY.
 	 *
-	 * @return longitude
+	 * @return true if the geo server knows the IP
 	 */
-	public float getLongitude() {
-		return longitude;
+	public boolean isFound() {
+		return found;
 	}
 
 	/**
-	 * Sets the longitude of the user
+	 * Returns the fields that were decoded into this response, the others
+	 * hold the values of an empty response whatever the geo server knows
 	 *
-	 * @param longitude
+	 * @return the IP_GeoFields of this response, all of them unless it was
+	 *         looked up with a field set
 	 */
-	public void setLongitude(float longitude) {
-		this.longitude = longitude;
+	public Set<IP_GeoField> getFields() {
+		return IP_GeoField.fields(fields);
+	}
+
+	/**
+	 * @param fieldMask
+	 *            bit mask of IP_GeoFields
+	 * @return true if every field of fieldMask was decoded into this response
+	 */
+	boolean hasFields(int fieldMask) {
+		return (fields & fieldMask) == fieldMask;
+	}
+
+	/**
+	 * @return bit mask of the IP_GeoFields decoded into this response
+	 */
+	int getFieldMask() {
+		return fields;
 	}
 
 	public String to_String() {
@@ -0,0 +1,644 @@
+package com.hotwire.sid;
+
+import java.util.Arrays;
+
+/**
+ * Size-bounded, TTL-expiring cache of IP_GeoResponse objects keyed on the
+ * primitive 128-bit address, IPv4 addresses being keyed on their IPv4-mapped
+ * IPv6 form as in IP_AddressKey.
+ * <p/>
+ * The cache is split into segments, each guarded by its own lock. A segment
+ * is an open-addressing hash table of long-pair keys (linear probing with
+ * backward-shift deletion) whose entries are threaded onto an index-based
+ * linked list that drives eviction, so neither lookups nor inserts allocate
+ * per key.
+ */
+public class IP_GeoResponseCache {
+
+	/**
+	 * Order in which entries are evicted once a segment is full
+	 */
+	public enum EvictionPolicy {
+		/**
+		 * Evict the entry that was read or written least recently
+		 */
+		LRU,
+		/**
+		 * Evict the entry that was inserted first, reads do not reorder
+		 */
+		FIFO
+	}
+
+	/**
+	 * Receives the entries of the cache, see forEachEntry
+	 */
+	interface EntryVisitor {
+
+		/**
+		 * @param high
+		 * @param low
+		 * @param response
+		 * @param expiresAtNanos
+		 *            System.nanoTime() the entry expires at, Long.MAX_VALUE if
+		 *            it never does
+		 */
+		void visit(long high, long low, IP_GeoResponse response,
+				long expiresAtNanos);
+	}
+
+	// //////////////////////////////////////////////////////////////
+	// ATTRIBUTES
+
+	/**
+	 * Upper bound on the number of segments, and so on lock striping
+	 */
+	private static final int MAX_SEGMENTS = 16;
+
+	/**
+	 * Minimum number of entries a segment should hold before the cache is
+	 * split any further
+	 */
+	private static final int MIN_SEGMENT_CAPACITY = 64;
+
+	private final Segment[] segments;
+
+	private final int segmentShift;
+
+	private final long ttlInNanos;
+
+	private final int maxEntries;
+
+	private final EvictionPolicy evictionPolicy;
+
+	// //////////////////////////////////////////////////////////////
+	// CONSTRUCTOR
+
+	/**
+	 * Create a cache holding at most maxEntries responses
+	 *
+	 * @param maxEntries
+	 *            maximum number of cached responses, must be positive
+	 * @param ttlInMillis
+	 *            time after which a cached response expires, entries never
+	 *            expire if this is not positive
+	 * @param evictionPolicy
+	 */
+	public IP_GeoResponseCache(int maxEntries, long ttlInMillis,
+			EvictionPolicy evictionPolicy) {
+		if (maxEntries <= 0) {
+			throw new IllegalArgumentException("maxEntries must be positive: "
+					+ maxEntries);
+		}
+		this.maxEntries = maxEntries;
+		this.ttlInNanos = ttlInMillis > 0 ? ttlInMillis * 1000000L
+				: Long.MAX_VALUE;
+		this.evictionPolicy = evictionPolicy;
+
+		int segmentCount = 1;
+		while (segmentCount < MAX_SEGMENTS
+				&& maxEntries / (segmentCount * 2) >= MIN_SEGMENT_CAPACITY) {
+			segmentCount <<= 1;
+		}
+		this.segmentShift = 32 - Integer.numberOfTrailingZeros(segmentCount);
+		this.segments = new Segment[segmentCount];
+		int segmentCapacity = (maxEntries + segmentCount - 1) / segmentCount;
+		for (int i = 0; i < segmentCount; i++) {
+			segments[i] = new Segment(segmentCapacity,
+					evictionPolicy == EvictionPolicy.LRU);
+		}
+	}
+
+	// //////////////////////////////////////////////////////////////
+	// METHODS
+
+	/**
+	 * Returns the cached response for ipAddress, null if there is none or it
+	 * has expired
+	 *
+	 * @param ipAddress
+	 *            IPv4 address as an int in network byte order
+	 * @return cached IP_GeoResponse or null
+	 */
+	public IP_GeoResponse get(int ipAddress) {
+		return get(0, ipv4Low(ipAddress), System.nanoTime());
+	}
+
+	/**
+	 * Returns the cached response for ipAddress, null if there is none or it
+	 * has expired
+	 *
+	 * @param ipAddress
+	 * @return cached IP_GeoResponse or null
+	 */
+	public IP_GeoResponse get(IP_AddressKey ipAddress) {
+		return get(ipAddress.getHigh(), ipAddress.getLow(), System.nanoTime());
+	}
+
+	IP_GeoResponse get(int ipAddress, long nowNanos) {
+		return get(0, ipv4Low(ipAddress), nowNanos);
+	}
+
+	IP_GeoResponse get(long high, long low, long nowNanos) {
+		int hash = hash(high, low);
+		return segmentFor(hash).get(high, low, hash, nowNanos);
+	}
+
+	/**
+	 * Caches response for ipAddress, evicting an entry if the cache is full
+	 *
+	 * @param ipAddress
+	 *            IPv4 address as an int in network byte order
+	 * @param response
+	 */
+	public void put(int ipAddress, IP_GeoResponse response) {
+		put(0, ipv4Low(ipAddress), response, System.nanoTime());
+	}
+
+	/**
+	 * Caches response for ipAddress, evicting an entry if the cache is full
+	 *
+	 * @param ipAddress
+	 * @param response
+	 */
+	public void put(IP_AddressKey ipAddress, IP_GeoResponse response) {
+		put(ipAddress.getHigh(), ipAddress.getLow(), response,
+				System.nanoTime());
+	}
+
+	void put(int ipAddress, IP_GeoResponse response, long nowNanos) {
+		put(0, ipv4Low(ipAddress), response, nowNanos);
+	}
+
+	void put(long high, long low, IP_GeoResponse response, long nowNanos) {
+		if (response == null) {
+			throw new IllegalArgumentException("response must not be null");
+		}
+		int hash = hash(high, low);
+		long expiresAt = ttlInNanos == Long.MAX_VALUE ? Long.MAX_VALUE
+				: nowNanos + ttlInNanos;
+		segmentFor(hash).put(high, low, hash, response, expiresAt);
+	}
+
+	/**
+	 * Caches response for the address high:low until expiresAtNanos unless
+	 * the address is already cached, as when restoring a snapshot while
+	 * lookups fill the cache with fresher responses. The expiry is capped to
+	 * the TTL of this cache.
+	 *
+	 * @param high
+	 * @param low
+	 * @param response
+	 * @param expiresAtNanos
+	 *            System.nanoTime() the response expires at, Long.MAX_VALUE if
+	 *            it never does
+	 * @param nowNanos
+	 * @return true if response was cached
+	 */
+	boolean restore(long high, long low, IP_GeoResponse response,
+			long expiresAtNanos, long nowNanos) {
+		if (isExpired(expiresAtNanos, nowNanos)) {
+			return false;
+		}
+		long expiry = ttlInNanos == Long.MAX_VALUE
+				|| expiresAtNanos != Long.MAX_VALUE
+				&& expiresAtNanos - (nowNanos + ttlInNanos) < 0 ? expiresAtNanos
+				: nowNanos + ttlInNanos;
+		int hash = hash(high, low);
+		return segmentFor(hash).putIfAbsent(high, low, hash, response, expiry);
+	}
+
+	/**
+	 * Passes the entries that have not expired to visitor, segment by
+	 * segment and from the next entry to evict to the most recently used
+	 * one, so that restoring them in that order rebuilds the eviction order.
+	 * Each segment is copied under its lock and visited outside it.
+	 *
+	 * @param visitor
+	 * @param nowNanos
+	 */
+	void forEachEntry(EntryVisitor visitor, long nowNanos) {
+		for (Segment segment : segments) {
+			segment.forEachEntry(visitor, nowNanos);
+		}
+	}
+
+	/**
+	 * Removes the cached response for ipAddress, if any
+	 *
+	 * @param ipAddress
+	 */
+	public void invalidate(int ipAddress) {
+		invalidate(0, ipv4Low(ipAddress));
+	}
+
+	/**
+	 * Removes the cached response for ipAddress, if any
+	 *
+	 * @param ipAddress
+	 */
+	public void invalidate(IP_AddressKey ipAddress) {
+		invalidate(ipAddress.getHigh(), ipAddress.getLow());
+	}
+
+	private void invalidate(long high, long low) {
+		int hash = hash(high, low);
+		segmentFor(hash).remove(high, low, hash);
+	}
+
+	/**
+	 * Removes all cached responses, statistics are kept
+	 */
+	public void clear() {
+		for (Segment segment : segments) {
+			segment.clear();
+		}
+	}
+
+	/**
+	 * Returns the number of cached responses, including any that have expired
+	 * but not yet been purged
+	 *
+	 * @return size
+	 */
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			size += segment.size();
+		}
+		return size;
+	}
+
+	/**
+	 * @return number of lookups answered from the cache
+	 */
+	public long getHitCount() {
+		long count = 0;
+		for (Segment segment : segments) {
+			count += segment.hitCount();
+		}
+		return count;
+	}
+
+	/**
+	 * @return number of lookups not answered from the cache, including those
+	 *         that found an expired entry
+	 */
+	public long getMissCount() {
+		long count = 0;
+		for (Segment segment : segments) {
+			count += segment.missCount();
+		}
+		return count;
+	}
+
+	/**
+	 * @return number of entries removed to make room for new ones
+	 */
+	public long getEvictionCount() {
+		long count = 0;
+		for (Segment segment : segments) {
+			count += segment.evictionCount();
+		}
+		return count;
+	}
+
+	/**
+	 * @return number of entries removed because their TTL had passed
+	 */
+	public long getExpirationCount() {
+		long count = 0;
+		for (Segment segment : segments) {
+			count += segment.expirationCount();
+		}
+		return count;
+	}
+
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	public long getTtlInMillis() {
+		return ttlInNanos == Long.MAX_VALUE ? 0 : ttlInNanos / 1000000L;
+	}
+
+	public EvictionPolicy getEvictionPolicy() {
+		return evictionPolicy;
+	}
+
+	private Segment segmentFor(int hash) {
+		return segments.length == 1 ? segments[0]
+				: segments[hash >>> segmentShift];
+	}
+
+	private static long ipv4Low(int ipAddress) {
+		return IP_AddressKey.IPV4_MAPPED_PREFIX | (ipAddress & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Compares nanoTimes by their difference, which System.nanoTime() allows
+	 * to be negative, except for Long.MAX_VALUE, which never expires and
+	 * would overflow the difference
+	 *
+	 * @param expiresAtNanos
+	 * @param nowNanos
+	 * @return true if expiresAtNanos has been reached
+	 */
+	static boolean isExpired(long expiresAtNanos, long nowNanos) {
+		return expiresAtNanos != Long.MAX_VALUE
+				&& expiresAtNanos - nowNanos <= 0;
+	}
+
+	/**
+	 * Folds the key to 32 bits and applies the finalization mix from
+	 * MurmurHash3, which spreads sequential addresses across both the
+	 * segments (high bits) and the slots (low bits)
+	 */
+	static int hash(long high, long low) {
+		long folded = high * 0x9E3779B97F4A7C15L + low;
+		int h = (int) (folded ^ (folded >>> 32));
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	/**
+	 * One lock-striped partition of the cache
+	 */
+	private static final class Segment {
+
+		/**
+		 * Hash table of entry index + 1, 0 marks an empty slot
+		 */
+		private final int[] table;
+
+		private final int mask;
+
+		private final int capacity;
+
+		private final boolean accessOrder;
+
+		private final long[] highKeys;
+
+		private final long[] lowKeys;
+
+		private final IP_GeoResponse[] values;
+
+		private final long[] expiresAt;
+
+		/**
+		 * Eviction order, head is the most recently inserted (or accessed,
+		 * for LRU) entry and tail the next one to evict
+		 */
+		private final int[] prev;
+
+		private final int[] next;
+
+		private int head = -1;
+
+		private int tail = -1;
+
+		/**
+		 * Free entries are chained through next[]
+		 */
+		private int freeHead = -1;
+
+		private int allocated;
+
+		private int size;
+
+		private long hits;
+
+		private long misses;
+
+		private long evictions;
+
+		private long expirations;
+
+		Segment(int capacity, boolean accessOrder) {
+			this.capacity = capacity;
+			this.accessOrder = accessOrder;
+			// keep the load factor at or below 0.5 so probe sequences stay
+			// short
+			int tableSize = Integer.highestOneBit(Math.max(capacity, 1)) << 2;
+			this.table = new int[tableSize];
+			this.mask = tableSize - 1;
+			this.highKeys = new long[capacity];
+			this.lowKeys = new long[capacity];
+			this.values = new IP_GeoResponse[capacity];
+			this.expiresAt = new long[capacity];
+			this.prev = new int[capacity];
+			this.next = new int[capacity];
+		}
+
+		synchronized IP_GeoResponse get(long high, long low, int hash,
+				long nowNanos) {
+			int slot = find(high, low, hash);
+			if (slot < 0) {
+				misses++;
+				return null;
+			}
+			int entry = table[slot] - 1;
+			if (isExpired(expiresAt[entry], nowNanos)) {
+				removeSlot(slot, entry);
+				expirations++;
+				misses++;
+				return null;
+			}
+			if (accessOrder) {
+				moveToHead(entry);
+			}
+			hits++;
+			return values[entry];
+		}
+
+		synchronized void put(long high, long low, int hash,
+				IP_GeoResponse value, long expiry) {
+			int slot = find(high, low, hash);
+			if (slot >= 0) {
+				int entry = table[slot] - 1;
+				values[entry] = value;
+				expiresAt[entry] = expiry;
+				moveToHead(entry);
+				return;
+			}
+
+			if (size == capacity) {
+				int victim = tail;
+				removeSlot(
+						find(highKeys[victim], lowKeys[victim],
+								hash(highKeys[victim], lowKeys[victim])),
+						victim);
+				evictions++;
+			}
+
+			int entry;
+			if (freeHead >= 0) {
+				entry = freeHead;
+				freeHead = next[entry];
+			} else {
+				entry = allocated++;
+			}
+			highKeys[entry] = high;
+			lowKeys[entry] = low;
+			values[entry] = value;
+			expiresAt[entry] = expiry;
+			linkAtHead(entry);
+			size++;
+
+			int i = hash & mask;
+			while (table[i] != 0) {
+				i = (i + 1) & mask;
+			}
+			table[i] = entry + 1;
+		}
+
+		synchronized boolean putIfAbsent(long high, long low, int hash,
+				IP_GeoResponse value, long expiry) {
+			if (find(high, low, hash) >= 0) {
+				return false;
+			}
+			put(high, low, hash, value, expiry);
+			return true;
+		}
+
+		void forEachEntry(EntryVisitor visitor, long nowNanos) {
+			long[] entryHighs;
+			long[] entryLows;
+			IP_GeoResponse[] entryValues;
+			long[] entryExpiries;
+			int count = 0;
+			synchronized (this) {
+				entryHighs = new long[size];
+				entryLows = new long[size];
+				entryValues = new IP_GeoResponse[size];
+				entryExpiries = new long[size];
+				for (int entry = tail; entry >= 0; entry = prev[entry]) {
+					if (!isExpired(expiresAt[entry], nowNanos)) {
+						entryHighs[count] = highKeys[entry];
+						entryLows[count] = lowKeys[entry];
+						entryValues[count] = values[entry];
+						entryExpiries[count] = expiresAt[entry];
+						count++;
+					}
+				}
+			}
+			for (int i = 0; i < count; i++) {
+				visitor.visit(entryHighs[i], entryLows[i], entryValues[i],
+						entryExpiries[i]);
+			}
+		}
+
+		synchronized void remove(long high, long low, int hash) {
+			int slot = find(high, low, hash);
+			if (slot >= 0) {
+				removeSlot(slot, table[slot] - 1);
+			}
+		}
+
+		synchronized void clear() {
+			Arrays.fill(table, 0);
+			Arrays.fill(values, null);
+			head = -1;
+			tail = -1;
+			freeHead = -1;
+			allocated = 0;
+			size = 0;
+		}
+
+		synchronized int size() {
+			return size;
+		}
+
+		synchronized long hitCount() {
+			return hits;
+		}
+
+		synchronized long missCount() {
+			return misses;
+		}
+
+		synchronized long evictionCount() {
+			return evictions;
+		}
+
+		synchronized long expirationCount() {
+			return expirations;
+		}
+
+		private int find(long high, long low, int hash) {
+			for (int i = hash & mask;; i = (i + 1) & mask) {
+				int t = table[i];
+				if (t == 0) {
+					return -1;
+				}
+				if (lowKeys[t - 1] == low && highKeys[t - 1] == high) {
+					return i;
+				}
+			}
+		}
+
+		private void removeSlot(int slot, int entry) {
+			unlink(entry);
+			values[entry] = null;
+			next[entry] = freeHead;
+			freeHead = entry;
+			size--;
+
+			// backward-shift deletion: pull later members of the probe
+			// sequence into the hole so lookups never need tombstones
+			int hole = slot;
+			table[hole] = 0;
+			for (int i = (hole + 1) & mask;; i = (i + 1) & mask) {
+				int t = table[i];
+				if (t == 0) {
+					return;
+				}
+				int home = hash(highKeys[t - 1], lowKeys[t - 1]) & mask;
+				boolean reachable = hole <= i ? (home > hole && home <= i)
+						: (home > hole || home <= i);
+				if (!reachable) {
+					table[hole] = t;
+					table[i] = 0;
+					hole = i;
+				}
+			}
+		}
+
+		private void linkAtHead(int entry) {
+			prev[entry] = -1;
+			next[entry] = head;
+			if (head >= 0) {
+				prev[head] = entry;
+			}
+			head = entry;
+			if (tail < 0) {
+				tail = entry;
+			}
+		}
+
+		private void unlink(int entry) {
+			int p = prev[entry];
+			int n = next[entry];
+			if (p >= 0) {
+				next[p] = n;
+			} else {
+				head = n;
+			}
+			if (n >= 0) {
+				prev[n] = p;
+			} else {
+				tail = p;
+			}
+		}
+
+		private void moveToHead(int entry) {
+			if (head != entry) {
+				unlink(entry);
+				linkAtHead(entry);
+			}
+		}
+	}
+}
@@ -0,0 +1,284 @@
+package com.hotwire.sid;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the entries of IP_GeoResponseCaches to a local file and restores
+ * them, so that a restarted JVM starts with the lookups the previous one had
+ * cached instead of sending all of them to the geo server at once. Expiry
+ * times are stored as wall clock times, so a restored entry expires when it
+ * would have in the JVM that wrote it. Strings are written once per file and
+ * referenced by id afterwards.
+ * <p/>
+ * Layout: magic, version, time written, number of caches, then for each
+ * cache the number of entries followed by the entries, least recently used
+ * first.
+ */
+public class IP_GeoResponseCacheSnapshot {
+
+	// //////////////////////////////////////////////////////////////
+	// ATTRIBUTES
+
+	static final int MAGIC = 0x51474353;
+
+	/**
+	 * 2 since responses hold whether the geo server found the IP, version 1
+	 * snapshots are still read
+	 */
+	static final int VERSION = 2;
+
+	/**
+	 * String id of null
+	 */
+	private static final int NULL_STRING = -1;
+
+	// //////////////////////////////////////////////////////////////
+	// CONSTRUCTOR
+
+	private IP_GeoResponseCacheSnapshot() {
+	}
+
+	// //////////////////////////////////////////////////////////////
+	// METHODS
+
+	/**
+	 * Writes the entries of caches that have not expired to file, replacing
+	 * it once they are all written
+	 *
+	 * @param file
+	 * @param caches
+	 *            caches to write, a null cache is written without entries
+	 * @return number of entries written
+	 * @throws IOException
+	 */
+	public static int write(File file, IP_GeoResponseCache... caches)
+			throws IOException {
+		long nowMillis = System.currentTimeMillis();
+		long nowNanos = System.nanoTime();
+		// write to a temporary file first so that a crash while writing
+		// leaves the previous snapshot in place
+		File tempFile = new File(file.getPath() + ".tmp");
+		int written = 0;
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(tempFile),
+						1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(nowMillis);
+			out.writeInt(caches.length);
+			StringWriter strings = new StringWriter(out);
+			for (IP_GeoResponseCache cache : caches) {
+				written += writeCache(out, strings, cache, nowMillis, nowNanos);
+			}
+		} catch (IOException e) {
+			tempFile.delete();
+			throw e;
+		}
+		if (!tempFile.renameTo(file)) {
+			file.delete();
+			if (!tempFile.renameTo(file)) {
+				throw new IOException("Could not rename " + tempFile + " to "
+						+ file);
+			}
+		}
+		return written;
+	}
+
+	private static int writeCache(final DataOutputStream out,
+			final StringWriter strings, IP_GeoResponseCache cache,
+			final long nowMillis, long nowNanos) throws IOException {
+		if (cache == null) {
+			out.writeInt(0);
+			return 0;
+		}
+		// the cache is only locked while a segment is copied, so collect the
+		// entries first to know how many there are
+		final List<Entry> entries = new ArrayList<Entry>(cache.size());
+		cache.forEachEntry(new IP_GeoResponseCache.EntryVisitor() {
+			public void visit(long high, long low, IP_GeoResponse response,
+					long expiresAtNanos) {
+				entries.add(new Entry(high, low, response, expiresAtNanos));
+			}
+		}, nowNanos);
+
+		out.writeInt(entries.size());
+		for (Entry entry : entries) {
+			out.writeLong(entry.high);
+			out.writeLong(entry.low);
+			out.writeLong(entry.expiresAtNanos == Long.MAX_VALUE ? 0
+					: nowMillis + (entry.expiresAtNanos - nowNanos) / 1000000L);
+			writeResponse(out, strings, entry.response);
+		}
+		return entries.size();
+	}
+
+	private static void writeResponse(DataOutputStream out,
+			StringWriter strings, IP_GeoResponse response) throws IOException {
+		out.writeUTF(response.getIP_Address());
+		out.writeChar(response.getGeoInfoSource());
+		out.writeInt(response.getFieldMask());
+		out.writeBoolean(response.isFound());
+		strings.write(response.getCountryCode());
+		out.writeFloat(response.getGmtOffset());
+		out.writeInt(response.getNDMA_Code());
+		strings.write(response.getZipCode());
+		strings.write(response.getCityName());
+		strings.write(response.getStateName());
+		out.writeFloat(response.getLatitude());
+		out.writeFloat(response.getLongitude());
+	}
+
+	/**
+	 * Restores the entries of file into caches, skipping those that have
+	 * expired since it was written and those the caches already hold
+	 *
+	 * @param file
+	 * @param caches
+	 *            caches to restore, in the order they were written, the
+	 *            entries of a null or missing cache are skipped
+	 * @return number of entries restored
+	 * @throws IOException
+	 *             if file cannot be read or is not a snapshot
+	 */
+	public static int load(File file, IP_GeoResponseCache... caches)
+			throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file), 1 << 16))) {
+			if (in.readInt() != MAGIC) {
+				throw new IOException(file + " is not a lookup cache snapshot");
+			}
+			int version = in.readInt();
+			if (version != VERSION && version != 1) {
+				throw new IOException("Unsupported lookup cache snapshot version "
+						+ version + " in " + file);
+			}
+			in.readLong();
+			int cacheCount = in.readInt();
+
+			long nowMillis = System.currentTimeMillis();
+			long nowNanos = System.nanoTime();
+			List<String> strings = new ArrayList<String>();
+			int restored = 0;
+			for (int c = 0; c < cacheCount; c++) {
+				IP_GeoResponseCache cache = c < caches.length ? caches[c]
+						: null;
+				int entryCount = in.readInt();
+				for (int i = 0; i < entryCount; i++) {
+					long high = in.readLong();
+					long low = in.readLong();
+					long expiresAtMillis = in.readLong();
+					IP_GeoResponse response = readResponse(in, strings,
+							version);
+					long expiresAtNanos = expiresAtMillis == 0 ? Long.MAX_VALUE
+							: nowNanos + (expiresAtMillis - nowMillis)
+									* 1000000L;
+					if (cache != null
+							&& cache.restore(high, low, response,
+									expiresAtNanos, nowNanos)) {
+						restored++;
+					}
+				}
+			}
+			return restored;
+		}
+	}
+
+	private static IP_GeoResponse readResponse(DataInputStream in,
+			List<String> strings, int version) throws IOException {
+		IP_GeoResponse.Builder builder = new IP_GeoResponse.Builder(
+				in.readUTF(), in.readChar());
+		builder.setFields(in.readInt());
+		boolean found = version == 1 || in.readBoolean();
+		String countryCode = readString(in, strings);
+		// version 1 only cached found responses with every field, so a
+		// country tells them from the not found ones
+		builder.setFound(version == 1 ? countryCode != null : found);
+		builder.setCountryCode(countryCode);
+		builder.setGmtOffset(in.readFloat());
+		builder.setNDMA_Code(in.readInt());
+		builder.setZipCode(readString(in, strings));
+		builder.setCityName(readString(in, strings));
+		builder.setStateName(readString(in, strings));
+		builder.setLatitude(in.readFloat());
+		builder.setLongitude(in.readFloat());
+		return builder.build();
+	}
+
+	private static String readString(DataInputStream in, List<String> strings)
+			throws IOException {
+		int id = in.readInt();
+		if (id == NULL_STRING) {
+			return null;
+		}
+		if (id == strings.size()) {
+			// first occurrence, the string follows its id
+			strings.add(in.readUTF());
+		} else if (id < 0 || id > strings.size()) {
+			throw new IOException("Invalid string id " + id
+					+ " in lookup cache snapshot");
+		}
+		return strings.get(id);
+	}
+
+	/**
+	 * Cache entry copied for writing
+	 */
+	private static final class Entry {
+
+		final long high;
+
+		final long low;
+
+		final IP_GeoResponse response;
+
+		final long expiresAtNanos;
+
+		Entry(long high, long low, IP_GeoResponse response, long expiresAtNanos) {
+			this.high = high;
+			this.low = low;
+			this.response = response;
+			this.expiresAtNanos = expiresAtNanos;
+		}
+	}
+
+	/**
+	 * Writes each distinct string once, later occurrences only by id
+	 */
+	private static final class StringWriter {
+
+		private final DataOutputStream out;
+
+		private final Map<String, Integer> ids = new HashMap<String, Integer>();
+
+		StringWriter(DataOutputStream out) {
+			this.out = out;
+		}
+
+		void write(String value) throws IOException {
+			if (value == null) {
+				out.writeInt(NULL_STRING);
+				return;
+			}
+			Integer id = ids.get(value);
+			if (id != null) {
+				out.writeInt(id);
+				return;
+			}
+			id = ids.size();
+			ids.put(value, id);
+			out.writeInt(id);
+			out.writeUTF(value);
+		}
+	}
+}
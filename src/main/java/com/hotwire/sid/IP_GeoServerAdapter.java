@@ -0,0 +1,115 @@
+package com.hotwire.sid;
+
+import java.net.InetAddress;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Resolves IP addresses to geographical information. Implementations are
+ * configured from the application properties and created by
+ * IP_GeoServerAdapterFactory according to
+ * hotwire.eis.geo.serverAdapterType.
+ */
+public interface IP_GeoServerAdapter {
+
+	/**
+	 * Retrieves the geographical information of ipAddress
+	 *
+	 * @param ipAddress
+	 * @return an IP_GeoResponse object
+	 * @throws HwIP_GeoException
+	 */
+	IP_GeoResponse lookup(String ipAddress) throws HwIP_GeoException;
+
+	/**
+	 * @param ipAddress
+	 * @return an IP_GeoResponse object
+	 * @throws HwIP_GeoException
+	 * @see #lookup(String)
+	 */
+	IP_GeoResponse lookup(IP_AddressKey ipAddress) throws HwIP_GeoException;
+
+	/**
+	 * @param ipAddress
+	 * @return an IP_GeoResponse object
+	 * @throws HwIP_GeoException
+	 * @see #lookup(String)
+	 */
+	IP_GeoResponse lookup(InetAddress ipAddress) throws HwIP_GeoException;
+
+	/**
+	 * Retrieves only fields of the geographical information of ipAddress.
+	 * Adapters that do not decode fields separately return every field.
+	 *
+	 * @param ipAddress
+	 * @param fields
+	 * @return an IP_GeoResponse object holding at least fields
+	 * @throws HwIP_GeoException
+	 */
+	default IP_GeoResponse lookup(String ipAddress, Set<IP_GeoField> fields)
+			throws HwIP_GeoException {
+		return lookup(ipAddress);
+	}
+
+	/**
+	 * Retrieves the geographical information of ipAddress without throwing,
+	 * for callers that treat failed lookups as a normal outcome
+	 *
+	 * @param ipAddress
+	 * @return IP_GeoLookupResult holding the response, or the status and
+	 *         error code of the failure
+	 */
+	default IP_GeoLookupResult lookupResult(String ipAddress) {
+		try {
+			IP_GeoResponse ipGeoResponse = lookup(ipAddress);
+			return IP_GeoLookupResult.success(ipAddress, ipGeoResponse,
+					ipGeoResponse.isFound());
+		} catch (HwIP_GeoException e) {
+			return IP_GeoLookupResult.failure(ipAddress, e);
+		} catch (RuntimeException e) {
+			return IP_GeoLookupResult.failure(ipAddress,
+					IP_GeoLookupResult.Status.ERROR,
+					HotwireErrors.IPGEO_GEO_SERVER_RUNTIME_ERROR);
+		}
+	}
+
+	/**
+	 * Retrieves only fields of the geographical information of ipAddress
+	 * without throwing
+	 *
+	 * @param ipAddress
+	 * @param fields
+	 * @return IP_GeoLookupResult holding the response, or the status and
+	 *         error code of the failure
+	 * @see #lookup(String, Set)
+	 */
+	default IP_GeoLookupResult lookupResult(String ipAddress,
+			Set<IP_GeoField> fields) {
+		return lookupResult(ipAddress);
+	}
+
+	/**
+	 * Looks up many ipAddresses, reporting each failure in its own
+	 * IP_GeoLookupResult
+	 *
+	 * @param ipAddresses
+	 * @return map from each distinct ipAddress, in iteration order, to the
+	 *         result of its lookup
+	 */
+	Map<String, IP_GeoLookupResult> lookupAll(Collection<String> ipAddresses);
+
+	void setHwProps(Properties hwProps);
+
+	/**
+	 * Called to (re)configure the adapter from the properties set with
+	 * setHwProps
+	 */
+	void configurationChanged();
+
+	/**
+	 * Releases the resources of the adapter
+	 */
+	void shutdown();
+}
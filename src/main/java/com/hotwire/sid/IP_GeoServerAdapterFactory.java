@@ -0,0 +1,72 @@
+package com.hotwire.sid;
+
+import java.util.Properties;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates the IP_GeoServerAdapter named by hotwire.eis.geo.serverAdapterType:
+ * quova (the default), offline, simulator or sidecar.
+ */
+public final class IP_GeoServerAdapterFactory {
+
+	// //////////////////////////////////////////////////////////////
+	// ATTRIBUTES
+
+	private static final Logger log = LoggerFactory
+			.getLogger(IP_GeoServerAdapterFactory.class);
+
+	public static final String SERVER_ADAPTER_TYPE_PROPERTY = "hotwire.eis.geo.serverAdapterType";
+
+	public static final String QUOVA = "quova";
+
+	public static final String OFFLINE = "offline";
+
+	public static final String SIMULATOR = "simulator";
+
+	public static final String SIDECAR = "sidecar";
+
+	// //////////////////////////////////////////////////////////////
+	// CONSTRUCTOR
+
+	private IP_GeoServerAdapterFactory() {
+	}
+
+	// //////////////////////////////////////////////////////////////
+	// METHODS
+
+	/**
+	 * Creates and configures the adapter named by
+	 * hotwire.eis.geo.serverAdapterType in hwProps
+	 *
+	 * @param hwProps
+	 * @return the configured adapter
+	 * @throws HwIP_GeoException
+	 *             IPGEO_INVALID_SERVER_ADAPTER_TYPE if the type is unknown
+	 */
+	public static IP_GeoServerAdapter create(Properties hwProps)
+			throws HwIP_GeoException {
+		String type = StringUtils.trimToEmpty(
+				hwProps.getProperty(SERVER_ADAPTER_TYPE_PROPERTY, QUOVA))
+				.toLowerCase();
+		IP_GeoServerAdapter adapter;
+		if (QUOVA.equals(type)) {
+			adapter = new QuovaIP_GeoServerAdapter();
+		} else if (OFFLINE.equals(type)) {
+			adapter = new OfflineIP_GeoServerAdapter();
+		} else if (SIMULATOR.equals(type)) {
+			adapter = new SimulatedIP_GeoServerAdapter();
+		} else if (SIDECAR.equals(type)) {
+			adapter = new SidecarIP_GeoServerAdapter();
+		} else {
+			log.error("Unknown {}: {}", SERVER_ADAPTER_TYPE_PROPERTY, type);
+			throw new HwIP_GeoException(
+					HotwireErrors.IPGEO_INVALID_SERVER_ADAPTER_TYPE);
+		}
+		adapter.setHwProps(hwProps);
+		adapter.configurationChanged();
+		return adapter;
+	}
+}
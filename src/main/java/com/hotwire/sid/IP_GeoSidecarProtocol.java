@@ -0,0 +1,115 @@
+package com.hotwire.sid;
+
+/**
+ * Text format of the lookup results exchanged by IP_GeoSidecarServer and
+ * SidecarIP_GeoServerAdapter: one line per result, with tab separated
+ * fields.
+ * <p>
+ * A successful lookup is written as ip, status, 0, geoInfoSource, field
+ * mask, countryCode, stateName, cityName, zipCode, ndmaCode, gmtOffset,
+ * latitude and longitude, with null strings left empty and the unset float
+ * fields kept as Float.MAX_VALUE. A failed lookup is written as ip, status
+ * and error code only.
+ */
+final class IP_GeoSidecarProtocol {
+
+	// //////////////////////////////////////////////////////////////
+	// ATTRIBUTES
+
+	static final String CONTENT_TYPE = "text/tab-separated-values; charset=UTF-8";
+
+	private static final int SUCCESS_FIELDS = 13;
+
+	// //////////////////////////////////////////////////////////////
+	// CONSTRUCTOR
+
+	private IP_GeoSidecarProtocol() {
+	}
+
+	// //////////////////////////////////////////////////////////////
+	// METHODS
+
+	/**
+	 * Appends the line of result, with its trailing newline, to out
+	 *
+	 * @param out
+	 * @param result
+	 */
+	static void encode(StringBuilder out, IP_GeoLookupResult result) {
+		appendString(out, result.getIP_Address());
+		out.append('\t').append(result.getStatus().name()).append('\t')
+				.append(result.getErrorCode());
+		IP_GeoResponse response = result.getResponse();
+		if (result.isSuccess() && response != null) {
+			out.append('\t').append(response.getGeoInfoSource()).append('\t')
+					.append(response.getFieldMask()).append('\t');
+			appendString(out, response.getCountryCode());
+			out.append('\t');
+			appendString(out, response.getStateName());
+			out.append('\t');
+			appendString(out, response.getCityName());
+			out.append('\t');
+			appendString(out, response.getZipCode());
+			out.append('\t').append(response.getNDMA_Code()).append('\t')
+					.append(response.getGmtOffset()).append('\t')
+					.append(response.getLatitude()).append('\t')
+					.append(response.getLongitude());
+		}
+		out.append('\n');
+	}
+
+	private static void appendString(StringBuilder out, String value) {
+		if (value == null) {
+			return;
+		}
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			// the separators cannot be escaped, Quova never returns them
+			out.append(c == '\t' || c == '\n' || c == '\r' ? ' ' : c);
+		}
+	}
+
+	/**
+	 * Parses a line written by encode
+	 *
+	 * @param line
+	 *            without its trailing newline
+	 * @return IP_GeoLookupResult
+	 * @throws IllegalArgumentException
+	 *             if line is not a valid result
+	 */
+	static IP_GeoLookupResult decode(String line) {
+		String[] fields = line.split("\t", -1);
+		if (fields.length < 3 || fields[0].isEmpty()) {
+			throw new IllegalArgumentException("Invalid result: " + line);
+		}
+		String ipAddress = fields[0];
+		IP_GeoLookupResult.Status status = IP_GeoLookupResult.Status
+				.valueOf(fields[1]);
+		if (status != IP_GeoLookupResult.Status.FOUND
+				&& status != IP_GeoLookupResult.Status.NOT_FOUND) {
+			return IP_GeoLookupResult.failure(ipAddress, status,
+					Integer.parseInt(fields[2]));
+		}
+		if (fields.length != SUCCESS_FIELDS || fields[3].length() != 1) {
+			throw new IllegalArgumentException("Invalid result: " + line);
+		}
+		IP_GeoResponse response = new IP_GeoResponse.Builder(ipAddress,
+				fields[3].charAt(0)).setFields(Integer.parseInt(fields[4]))
+				.setCountryCode(emptyToNull(fields[5]))
+				.setStateName(emptyToNull(fields[6]))
+				.setCityName(emptyToNull(fields[7]))
+				.setZipCode(emptyToNull(fields[8]))
+				.setNDMA_Code(Integer.parseInt(fields[9]))
+				.setGmtOffset(Float.parseFloat(fields[10]))
+				.setLatitude(Float.parseFloat(fields[11]))
+				.setLongitude(Float.parseFloat(fields[12]))
+				.setFound(status == IP_GeoLookupResult.Status.FOUND).build();
+		return IP_GeoLookupResult.success(ipAddress, response,
+				status == IP_GeoLookupResult.Status.FOUND);
+	}
+
+	private static String emptyToNull(String value) {
+		return value.isEmpty() ? null : value;
+	}
+}
@@ -0,0 +1,413 @@
+package com.hotwire.sid;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Long-running local lookup service, so that the application JVMs of a host
+ * share one adapter, with its connection pool and caches, instead of each
+ * opening geoDirectoryServerConnectionPoolSize connections to Quova.
+ * Applications reach it through SidecarIP_GeoServerAdapter.
+ * <p>
+ * The service answers over HTTP on the JDK's selector based HttpServer:
+ * <ul>
+ * <li>GET /lookup?ip=&lt;address&gt; looks up one address. Concurrent
+ * requests are merged by IP_GeoLookupBatcher into lookupAll calls, and the
+ * response is written once the batch is resolved, without holding a request
+ * thread in the meantime.</li>
+ * <li>POST /lookup with one address per line looks up all of them with one
+ * lookupAll call, on a pool of its own so that large batches never hold up
+ * the answers to single lookups.</li>
+ * <li>GET /health answers OK with the batcher counters.</li>
+ * </ul>
+ * Results are written one per line in the IP_GeoSidecarProtocol format. A
+ * lookup the service has no room for is answered with 503 Service
+ * Unavailable.
+ */
+public final class IP_GeoSidecarServer {
+
+	// //////////////////////////////////////////////////////////////
+	// ATTRIBUTES
+
+	private static final Logger log = LoggerFactory
+			.getLogger(IP_GeoSidecarServer.class);
+
+	public static final int DEFAULT_PORT = 8380;
+
+	/**
+	 * Largest number of addresses accepted in one POST /lookup
+	 */
+	static final int MAX_ADDRESSES_PER_REQUEST = 10000;
+
+	private static final String USAGE = "Usage: java -cp ipgeo-jar-with-dependencies.jar com.hotwire.sid.IP_GeoSidecarServer [options]\n"
+			+ "  --bind <address>          address to listen on (default 127.0.0.1)\n"
+			+ "  --port <n>                port to listen on (default "
+			+ DEFAULT_PORT
+			+ ")\n"
+			+ "  --batch-size <n>          most single lookups merged into one lookupAll (default 64)\n"
+			+ "  --batch-delay-micros <n>  longest an idle batch waits to fill (default 200)\n"
+			+ "  --parallelism <n>         lookupAll calls made at a time (default 8)\n"
+			+ "  --max-queued <n>          single lookups waiting before new ones are refused (default 10000)\n"
+			+ "  --properties <file>       properties overriding Quova.properties and EXTERNAL_APP_PROPERTIES\n"
+			+ "  --set <key>=<value>       property override, may be repeated";
+
+	private final IP_GeoServerAdapter adapter;
+
+	private final IP_GeoLookupBatcher batcher;
+
+	private final HttpServer server;
+
+	/**
+	 * Runs the handlers and writes the responses of batched lookups
+	 */
+	private final ExecutorService requestExecutor;
+
+	/**
+	 * Runs the lookupAll calls of POST /lookup, with a bounded queue
+	 */
+	private final ExecutorService postExecutor;
+
+	// //////////////////////////////////////////////////////////////
+	// CONSTRUCTOR
+
+	/**
+	 * Binds the service to address, start must be called to serve requests
+	 *
+	 * @param adapter
+	 *            the adapter that answers the lookups, not shut down by stop
+	 * @param address
+	 *            port 0 picks a free port
+	 * @param maxBatchSize
+	 * @param maxBatchDelayMicros
+	 * @param parallelism
+	 * @param maxQueuedLookups
+	 * @throws IOException
+	 *             if address cannot be bound
+	 * @see IP_GeoLookupBatcher
+	 */
+	public IP_GeoSidecarServer(IP_GeoServerAdapter adapter,
+			InetSocketAddress address, int maxBatchSize,
+			long maxBatchDelayMicros, int parallelism, int maxQueuedLookups)
+			throws IOException {
+		this.adapter = adapter;
+		this.server = HttpServer.create(address, 0);
+		this.batcher = new IP_GeoLookupBatcher(adapter, maxBatchSize,
+				maxBatchDelayMicros, parallelism, maxQueuedLookups);
+		int threads = Math.max(Runtime.getRuntime().availableProcessors(), 2);
+		this.requestExecutor = new ThreadPoolExecutor(threads, threads, 0L,
+				TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+				new NamedDaemonThreadFactory("IP_GeoSidecarServer"));
+		server.setExecutor(requestExecutor);
+		this.postExecutor = new ThreadPoolExecutor(parallelism, parallelism,
+				0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+						parallelism * 4), new NamedDaemonThreadFactory(
+						"IP_GeoSidecarServerPost"));
+		server.createContext("/lookup", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				handleLookup(exchange);
+			}
+		});
+		server.createContext("/health", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				respond(exchange, 200, "text/plain; charset=UTF-8", "OK lookups="
+						+ batcher.getLookupCount() + " batches="
+						+ batcher.getBatchCount() + " rejected="
+						+ batcher.getRejectedLookupCount() + " queued="
+						+ batcher.getQueuedLookupCount() + "\n");
+			}
+		});
+	}
+
+	// //////////////////////////////////////////////////////////////
+	// METHODS
+
+	public static void main(String[] args) throws IOException {
+		String bind = "127.0.0.1";
+		int port = DEFAULT_PORT;
+		int batchSize = 64;
+		long batchDelayMicros = 200;
+		int parallelism = 8;
+		int maxQueued = 10000;
+		Properties props = new AppProperties().readProperties();
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String option = args[i];
+				if (i + 1 == args.length) {
+					throw new IllegalArgumentException(option + " needs a value");
+				}
+				String value = args[++i];
+				if ("--bind".equals(option)) {
+					bind = value;
+				} else if ("--port".equals(option)) {
+					port = Integer.parseInt(value);
+				} else if ("--batch-size".equals(option)) {
+					batchSize = Integer.parseInt(value);
+				} else if ("--batch-delay-micros".equals(option)) {
+					batchDelayMicros = Long.parseLong(value);
+				} else if ("--parallelism".equals(option)) {
+					parallelism = Integer.parseInt(value);
+				} else if ("--max-queued".equals(option)) {
+					maxQueued = Integer.parseInt(value);
+				} else if ("--properties".equals(option)) {
+					try (InputStream in = new FileInputStream(value)) {
+						props.load(in);
+					}
+				} else if ("--set".equals(option)) {
+					int separator = value.indexOf('=');
+					if (separator < 1) {
+						throw new IllegalArgumentException(
+								"--set needs key=value, got " + value);
+					}
+					props.setProperty(value.substring(0, separator),
+							value.substring(separator + 1));
+				} else {
+					throw new IllegalArgumentException("Unknown option "
+							+ option);
+				}
+			}
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println(USAGE);
+			System.exit(2);
+			return;
+		}
+
+		final IP_GeoServerAdapter adapter;
+		try {
+			adapter = IP_GeoServerAdapterFactory.create(props);
+		} catch (HwIP_GeoException e) {
+			System.err.println("Could not create the adapter: "
+					+ QuovaIP_GeoMetrics.errorName(e.getErrorCode()));
+			System.exit(1);
+			return;
+		}
+		final IP_GeoSidecarServer sidecar;
+		try {
+			sidecar = new IP_GeoSidecarServer(adapter, new InetSocketAddress(
+					bind, port), batchSize, batchDelayMicros, parallelism,
+					maxQueued);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println(USAGE);
+			adapter.shutdown();
+			System.exit(2);
+			return;
+		}
+		Runtime.getRuntime().addShutdownHook(
+				new Thread("IP_GeoSidecarServerShutdown") {
+					public void run() {
+						sidecar.stop(1);
+						adapter.shutdown();
+					}
+				});
+		sidecar.start();
+	}
+
+	/**
+	 * Starts serving requests
+	 */
+	public void start() {
+		server.start();
+		log.info("Serving IP geo lookups on {}", server.getAddress());
+	}
+
+	/**
+	 * Stops serving requests
+	 *
+	 * @param delayInSeconds
+	 *            longest time to wait for the requests being answered
+	 */
+	public void stop(int delayInSeconds) {
+		server.stop(delayInSeconds);
+		batcher.shutdown();
+		postExecutor.shutdown();
+		requestExecutor.shutdown();
+		log.info("Stopped serving IP geo lookups, {} lookups in {} batches",
+				batcher.getLookupCount(), batcher.getBatchCount());
+	}
+
+	/**
+	 * @return the address the service is bound to, with the port picked if
+	 *         it was created with port 0
+	 */
+	public InetSocketAddress getAddress() {
+		return server.getAddress();
+	}
+
+	IP_GeoLookupBatcher getBatcher() {
+		return batcher;
+	}
+
+	private void handleLookup(final HttpExchange exchange) throws IOException {
+		String method = exchange.getRequestMethod();
+		if ("GET".equals(method)) {
+			String ipAddress;
+			try {
+				ipAddress = queryParameter(exchange, "ip");
+			} catch (IllegalArgumentException e) {
+				respond(exchange, 400, "text/plain; charset=UTF-8",
+						"ip parameter is not validly encoded\n");
+				return;
+			}
+			if (ipAddress == null) {
+				respond(exchange, 400, "text/plain; charset=UTF-8",
+						"ip parameter is missing\n");
+				return;
+			}
+			CompletableFuture<IP_GeoLookupResult> result = batcher
+					.submit(ipAddress);
+			if (result == null) {
+				respondUnavailable(exchange);
+				return;
+			}
+			// answered from a request thread once the batch is resolved, so
+			// that slow clients never hold up a lookup thread
+			result.whenCompleteAsync((lookupResult, error) -> {
+				if (error == null) {
+					respond(exchange, lookupResult);
+				} else {
+					respondError(exchange, error);
+				}
+			}, requestExecutor);
+		} else if ("POST".equals(method)) {
+			List<String> ipAddresses = new ArrayList<String>();
+			try (BufferedReader reader = new BufferedReader(
+					new InputStreamReader(exchange.getRequestBody(),
+							StandardCharsets.UTF_8))) {
+				for (String line; (line = reader.readLine()) != null;) {
+					line = line.trim();
+					if (line.isEmpty()) {
+						continue;
+					}
+					if (ipAddresses.size() == MAX_ADDRESSES_PER_REQUEST) {
+						respond(exchange, 413, "text/plain; charset=UTF-8",
+								"at most " + MAX_ADDRESSES_PER_REQUEST
+										+ " addresses per request\n");
+						return;
+					}
+					ipAddresses.add(line);
+				}
+			}
+			try {
+				postExecutor.execute(() -> lookupAll(exchange, ipAddresses));
+			} catch (RejectedExecutionException e) {
+				respondUnavailable(exchange);
+			}
+		} else {
+			exchange.getResponseHeaders().set("Allow", "GET, POST");
+			respond(exchange, 405, "text/plain; charset=UTF-8",
+					"GET or POST only\n");
+		}
+	}
+
+	private void lookupAll(HttpExchange exchange, List<String> ipAddresses) {
+		Map<String, IP_GeoLookupResult> results;
+		try {
+			results = adapter.lookupAll(ipAddresses);
+		} catch (Throwable t) {
+			respondError(exchange, t);
+			return;
+		}
+		StringBuilder body = new StringBuilder(results.size() * 80);
+		for (IP_GeoLookupResult result : results.values()) {
+			IP_GeoSidecarProtocol.encode(body, result);
+		}
+		try {
+			respond(exchange, 200, IP_GeoSidecarProtocol.CONTENT_TYPE,
+					body.toString());
+		} catch (IOException e) {
+			// the client went away
+			log.debug("Could not answer {}", exchange.getRemoteAddress(), e);
+		}
+	}
+
+	private static void respondUnavailable(HttpExchange exchange)
+			throws IOException {
+		exchange.getResponseHeaders().set("Retry-After", "1");
+		respond(exchange, 503, "text/plain; charset=UTF-8",
+				"too many lookups waiting\n");
+	}
+
+	/**
+	 * Answers 500 to a request whose lookup failed unexpectedly
+	 */
+	private static void respondError(HttpExchange exchange, Throwable error) {
+		log.error("Could not look up the IPs of {}",
+				exchange.getRemoteAddress(), error);
+		try {
+			respond(exchange, 500, "text/plain; charset=UTF-8",
+					"lookup failed\n");
+		} catch (IOException e) {
+			// the client went away
+			log.debug("Could not answer {}", exchange.getRemoteAddress(), e);
+		}
+	}
+
+	/**
+	 * @return the decoded value of the name parameter, null if there is none
+	 * @throws IllegalArgumentException
+	 *             if the value has a malformed escape
+	 */
+	private static String queryParameter(HttpExchange exchange, String name) {
+		String query = exchange.getRequestURI().getRawQuery();
+		if (query == null) {
+			return null;
+		}
+		for (String parameter : query.split("&")) {
+			int separator = parameter.indexOf('=');
+			if (separator > 0 && name.equals(parameter.substring(0, separator))) {
+				return URLDecoder.decode(parameter.substring(separator + 1),
+						StandardCharsets.UTF_8);
+			}
+		}
+		return null;
+	}
+
+	private static void respond(HttpExchange exchange,
+			IP_GeoLookupResult result) {
+		StringBuilder body = new StringBuilder(80);
+		IP_GeoSidecarProtocol.encode(body, result);
+		try {
+			respond(exchange, 200, IP_GeoSidecarProtocol.CONTENT_TYPE,
+					body.toString());
+		} catch (IOException e) {
+			// the client went away
+			log.debug("Could not answer {}", exchange.getRemoteAddress(), e);
+		}
+	}
+
+	private static void respond(HttpExchange exchange, int status,
+			String contentType, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+}
@@ -0,0 +1,249 @@
+package com.hotwire.sid;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles a range CSV export into the binary database read by
+ * MappedIP_RangeGeoIndex. Identical locations are stored once and strings
+ * are dictionary encoded, so an IPv4 range costs 8 bytes on disk and an IPv6
+ * range 20.
+ * <p/>
+ * Usage:
+ *
+ * <pre>
+ * java -cp ipgeo.jar com.hotwire.sid.IP_RangeGeoDatabaseBuilder ranges.csv ranges.qgeo
+ * </pre>
+ */
+public class IP_RangeGeoDatabaseBuilder {
+
+	/**
+	 * Range starts and their locations, sized for a gap after every source
+	 * range
+	 */
+	private final int[] rangeStarts;
+
+	private final int[] locationIds;
+
+	private int rangeCount;
+
+	private final long[] ipv6StartHighs;
+
+	private final long[] ipv6StartLows;
+
+	private final int[] ipv6LocationIds;
+
+	private int ipv6RangeCount;
+
+	private final Map<List<Object>, Integer> locationIdsByKey = new HashMap<List<Object>, Integer>();
+
+	private final List<int[]> locations = new ArrayList<int[]>();
+
+	private final Map<String, Integer> stringIds = new HashMap<String, Integer>();
+
+	private final ByteArrayOutputStream stringBytes = new ByteArrayOutputStream();
+
+	private final List<Integer> stringOffsets = new ArrayList<Integer>();
+
+	private IP_RangeGeoDatabaseBuilder(int ipv4RangeCount, int ipv6RangeCount) {
+		rangeStarts = new int[2 * ipv4RangeCount + 1];
+		locationIds = new int[2 * ipv4RangeCount + 1];
+		ipv6StartHighs = new long[2 * ipv6RangeCount + 1];
+		ipv6StartLows = new long[2 * ipv6RangeCount + 1];
+		ipv6LocationIds = new int[2 * ipv6RangeCount + 1];
+	}
+
+	/**
+	 * Compiles csvFile into databaseFile
+	 *
+	 * @param csvFile
+	 * @param databaseFile
+	 * @throws IOException
+	 */
+	public static void build(File csvFile, File databaseFile)
+			throws IOException {
+		write(InMemoryIP_RangeGeoIndex.load(csvFile), databaseFile);
+	}
+
+	/**
+	 * Writes index to databaseFile
+	 *
+	 * @param index
+	 * @param databaseFile
+	 * @throws IOException
+	 */
+	public static void write(InMemoryIP_RangeGeoIndex index, File databaseFile)
+			throws IOException {
+		IP_RangeGeoDatabaseBuilder builder = new IP_RangeGeoDatabaseBuilder(
+				index.getIPv4RangeCount(), index.getIPv6RangeCount());
+		builder.addRanges(index);
+		builder.addIPv6Ranges(index);
+		// write to a temporary file first so that readers mapping the old
+		// database never see a partial file
+		File tempFile = new File(databaseFile.getPath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(tempFile),
+						1 << 16))) {
+			builder.writeTo(out);
+		}
+		if (!tempFile.renameTo(databaseFile)) {
+			databaseFile.delete();
+			if (!tempFile.renameTo(databaseFile)) {
+				throw new IOException("Could not rename " + tempFile + " to "
+						+ databaseFile);
+			}
+		}
+	}
+
+	private void addRanges(InMemoryIP_RangeGeoIndex index) {
+		stringOffsets.add(0);
+		long nextStart = 0;
+		for (int row = 0; row < index.getIPv4RangeCount(); row++) {
+			long start = index.getRangeStart(row) & 0xFFFFFFFFL;
+			long end = index.getRangeEnd(row) & 0xFFFFFFFFL;
+			if (start > nextStart && row > 0) {
+				// gap between this range and the previous one
+				addRange(nextStart, -1);
+			}
+			addRange(start, locationId(index, row));
+			nextStart = end + 1;
+		}
+		if (rangeCount > 0 && nextStart <= 0xFFFFFFFFL) {
+			addRange(nextStart, -1);
+		}
+	}
+
+	private void addIPv6Ranges(InMemoryIP_RangeGeoIndex index) {
+		int firstRow = index.getIPv4RangeCount();
+		long nextHigh = 0;
+		long nextLow = 0;
+		boolean wrapped = false;
+		for (int i = 0; i < index.getIPv6RangeCount(); i++) {
+			long startHigh = index.getIPv6RangeStartHigh(i);
+			long startLow = index.getIPv6RangeStartLow(i);
+			if (i > 0 && (startHigh != nextHigh || startLow != nextLow)) {
+				addIPv6Range(nextHigh, nextLow, -1);
+			}
+			addIPv6Range(startHigh, startLow, locationId(index, firstRow + i));
+			// 128-bit increment of the range end
+			nextHigh = index.getIPv6RangeEndHigh(i);
+			nextLow = index.getIPv6RangeEndLow(i) + 1;
+			if (nextLow == 0) {
+				nextHigh++;
+				wrapped = nextHigh == 0;
+			}
+		}
+		if (ipv6RangeCount > 0 && !wrapped) {
+			addIPv6Range(nextHigh, nextLow, -1);
+		}
+	}
+
+	private void addIPv6Range(long startHigh, long startLow, int locationId) {
+		ipv6StartHighs[ipv6RangeCount] = startHigh ^ Long.MIN_VALUE;
+		ipv6StartLows[ipv6RangeCount] = startLow ^ Long.MIN_VALUE;
+		ipv6LocationIds[ipv6RangeCount] = locationId;
+		ipv6RangeCount++;
+	}
+
+	private void addRange(long start, int locationId) {
+		rangeStarts[rangeCount] = (int) start ^ Integer.MIN_VALUE;
+		locationIds[rangeCount] = locationId;
+		rangeCount++;
+	}
+
+	private int locationId(InMemoryIP_RangeGeoIndex index, int row) {
+		int[] location = new int[] { stringId(index.getCountryCode(row)),
+				stringId(index.getStateName(row)),
+				stringId(index.getCityName(row)),
+				stringId(index.getZipCode(row)), index.getNDMA_Code(row),
+				Float.floatToIntBits(index.getGmtOffset(row)),
+				Float.floatToIntBits(index.getLatitude(row)),
+				Float.floatToIntBits(index.getLongitude(row)) };
+		List<Object> key = Arrays.<Object> asList(location[0], location[1],
+				location[2], location[3], location[4], location[5],
+				location[6], location[7]);
+		Integer id = locationIdsByKey.get(key);
+		if (id == null) {
+			id = locations.size();
+			locations.add(location);
+			locationIdsByKey.put(key, id);
+		}
+		return id;
+	}
+
+	private int stringId(String value) {
+		if (value == null) {
+			return -1;
+		}
+		Integer id = stringIds.get(value);
+		if (id == null) {
+			id = stringIds.size();
+			stringIds.put(value, id);
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			stringBytes.write(bytes, 0, bytes.length);
+			stringOffsets.add(stringBytes.size());
+		}
+		return id;
+	}
+
+	private void writeTo(DataOutputStream out) throws IOException {
+		out.writeInt(MappedIP_RangeGeoIndex.MAGIC);
+		out.writeInt(MappedIP_RangeGeoIndex.VERSION);
+		out.writeInt(rangeCount);
+		out.writeInt(locations.size());
+		out.writeInt(stringIds.size());
+		out.writeInt(ipv6RangeCount);
+
+		for (int i = 0; i < rangeCount; i++) {
+			out.writeInt(rangeStarts[i]);
+		}
+		for (int i = 0; i < rangeCount; i++) {
+			out.writeInt(locationIds[i]);
+		}
+		for (int i = 0; i < ipv6RangeCount; i++) {
+			out.writeLong(ipv6StartHighs[i]);
+		}
+		for (int i = 0; i < ipv6RangeCount; i++) {
+			out.writeLong(ipv6StartLows[i]);
+		}
+		for (int i = 0; i < ipv6RangeCount; i++) {
+			out.writeInt(ipv6LocationIds[i]);
+		}
+		for (int column = 0; column < MappedIP_RangeGeoIndex.LOCATION_COLUMNS; column++) {
+			for (int[] location : locations) {
+				out.writeInt(location[column]);
+			}
+		}
+		for (int offset : stringOffsets) {
+			out.writeInt(offset);
+		}
+		stringBytes.writeTo(out);
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("Usage: IP_RangeGeoDatabaseBuilder <ranges.csv> <output database>");
+			System.exit(1);
+		}
+		long startTimeMillis = System.currentTimeMillis();
+		File databaseFile = new File(args[1]);
+		build(new File(args[0]), databaseFile);
+		MappedIP_RangeGeoIndex index = MappedIP_RangeGeoIndex
+				.open(databaseFile);
+		System.out.println("Wrote " + index.size() + " ranges and "
+				+ index.getLocationCount() + " locations to " + databaseFile
+				+ " (" + databaseFile.length() + " bytes) in "
+				+ (System.currentTimeMillis() - startTimeMillis)
+				+ " milliseconds");
+	}
+}
@@ -0,0 +1,42 @@
+package com.hotwire.sid;
+
+/**
+ * A local table of non-overlapping IP ranges and the geographical
+ * information of each range, used to resolve IPs without querying a geo
+ * server
+ */
+public interface IP_RangeGeoIndex {
+
+	/**
+	 * Finds the range containing ipAddress and builds an IP_GeoResponse from
+	 * it, populated the same way QuovaIP_GeoServerAdapter populates a
+	 * response from a Quova record
+	 *
+	 * @param ipAddress
+	 *            IPv4 address as an int in network byte order
+	 * @param ipAddressString
+	 *            the address as passed by the caller, used as the
+	 *            IP_GeoResponse ipAddress
+	 * @return IP_GeoResponse, null if no range contains ipAddress
+	 */
+	IP_GeoResponse lookup(int ipAddress, String ipAddressString);
+
+	/**
+	 * Finds the IPv6 range containing the address high:low
+	 *
+	 * @param high
+	 *            upper 64 bits of the address
+	 * @param low
+	 *            lower 64 bits of the address
+	 * @param ipAddressString
+	 *            the address as passed by the caller, used as the
+	 *            IP_GeoResponse ipAddress
+	 * @return IP_GeoResponse, null if no range contains the address
+	 */
+	IP_GeoResponse lookupIPv6(long high, long low, String ipAddressString);
+
+	/**
+	 * @return number of IPv4 and IPv6 ranges in the index
+	 */
+	int size();
+}
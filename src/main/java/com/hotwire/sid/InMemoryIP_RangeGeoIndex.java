@@ -0,0 +1,470 @@
+package com.hotwire.sid;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * IP_RangeGeoIndex held entirely on the heap. Ranges are stored as sorted
+ * primitive arrays, int for IPv4 and long pairs for IPv6, and answered with a
+ * binary search, the geographical information is stored column by column.
+ * <p/>
+ * The index is loaded from a CSV file with the columns
+ *
+ * <pre>
+ * startIp,endIp,country,state,city,zip,dma,gmtOffset,lat,long
+ * </pre>
+ *
+ * where startIp and endIp are inclusive and either IPv4 or IPv6 addresses or
+ * unsigned 32-bit integers. Ranges of IPv4-mapped IPv6 addresses are stored
+ * as IPv4 ranges. Empty values are allowed for every column but the range
+ * bounds, a header line and lines starting with '#' are skipped.
+ */
+public class InMemoryIP_RangeGeoIndex implements IP_RangeGeoIndex {
+
+	// //////////////////////////////////////////////////////////////
+	// ATTRIBUTES
+
+	private static final int COLUMN_COUNT = 10;
+
+	/**
+	 * Range bounds with the sign bit flipped, so that signed int comparisons
+	 * order them as unsigned addresses
+	 */
+	private final int[] rangeStarts;
+
+	private final int[] rangeEnds;
+
+	/**
+	 * IPv6 range bounds as high and low halves, again with the sign bits
+	 * flipped. IPv6 ranges occupy the rows following the IPv4 ranges in the
+	 * columns below.
+	 */
+	private final long[] ipv6StartHighs;
+
+	private final long[] ipv6StartLows;
+
+	private final long[] ipv6EndHighs;
+
+	private final long[] ipv6EndLows;
+
+	/**
+	 * String columns, equal values share a single String instance. Country,
+	 * state and city names are shared through GeoStringDictionary.
+	 */
+	private final String[] countryCodes;
+
+	private final String[] stateNames;
+
+	private final String[] cityNames;
+
+	private final String[] zipCodes;
+
+	private final int[] ndmaCodes;
+
+	private final float[] gmtOffsets;
+
+	private final float[] latitudes;
+
+	private final float[] longitudes;
+
+	// //////////////////////////////////////////////////////////////
+	// CONSTRUCTOR
+
+	private InMemoryIP_RangeGeoIndex(int ipv4Size, int ipv6Size) {
+		rangeStarts = new int[ipv4Size];
+		rangeEnds = new int[ipv4Size];
+		ipv6StartHighs = new long[ipv6Size];
+		ipv6StartLows = new long[ipv6Size];
+		ipv6EndHighs = new long[ipv6Size];
+		ipv6EndLows = new long[ipv6Size];
+		int size = ipv4Size + ipv6Size;
+		countryCodes = new String[size];
+		stateNames = new String[size];
+		cityNames = new String[size];
+		zipCodes = new String[size];
+		ndmaCodes = new int[size];
+		gmtOffsets = new float[size];
+		latitudes = new float[size];
+		longitudes = new float[size];
+	}
+
+	// //////////////////////////////////////////////////////////////
+	// METHODS
+
+	/**
+	 * Loads an index from a CSV file
+	 *
+	 * @param csvFile
+	 * @return InMemoryIP_RangeGeoIndex
+	 * @throws IOException
+	 *             if the file cannot be read, a line is malformed or two
+	 *             ranges overlap
+	 */
+	public static InMemoryIP_RangeGeoIndex load(File csvFile)
+			throws IOException {
+		try (Reader reader = new InputStreamReader(
+				new FileInputStream(csvFile), StandardCharsets.UTF_8)) {
+			return load(reader);
+		}
+	}
+
+	/**
+	 * Loads an index from CSV text
+	 *
+	 * @param csv
+	 * @return InMemoryIP_RangeGeoIndex
+	 * @throws IOException
+	 *             if csv cannot be read, a line is malformed or two ranges
+	 *             overlap
+	 */
+	public static InMemoryIP_RangeGeoIndex load(Reader csv) throws IOException {
+		BufferedReader reader = csv instanceof BufferedReader ? (BufferedReader) csv
+				: new BufferedReader(csv);
+		Map<String, String> dictionary = new HashMap<String, String>();
+		List<String[]> ipv4Rows = new ArrayList<String[]>();
+		List<String[]> ipv6Rows = new ArrayList<String[]>();
+		List<IP_AddressKey[]> ipv6Bounds = new ArrayList<IP_AddressKey[]>();
+		String[] fields = new String[COLUMN_COUNT];
+		int lineNumber = 0;
+		String line;
+		while ((line = reader.readLine()) != null) {
+			lineNumber++;
+			if (line.isEmpty() || line.charAt(0) == '#') {
+				continue;
+			}
+			if (splitCsvLine(line, fields) != COLUMN_COUNT) {
+				throw new IOException("Expected " + COLUMN_COUNT
+						+ " columns on line " + lineNumber + ": " + line);
+			}
+			IP_AddressKey start = parseAddress(fields[0]);
+			if (ipv4Rows.isEmpty() && ipv6Rows.isEmpty() && start == null) {
+				// header line
+				continue;
+			}
+			IP_AddressKey end = parseAddress(fields[1]);
+			if (start == null || end == null
+					|| start.isIPv4() != end.isIPv4()
+					|| compare(start, end) > 0) {
+				throw new IOException("Invalid range on line " + lineNumber
+						+ ": " + line);
+			}
+			String[] row = new String[COLUMN_COUNT];
+			for (int i = 0; i < COLUMN_COUNT; i++) {
+				row[i] = intern(dictionary, fields[i]);
+			}
+			if (start.isIPv4()) {
+				ipv4Rows.add(row);
+			} else {
+				ipv6Rows.add(row);
+				ipv6Bounds.add(new IP_AddressKey[] { start, end });
+			}
+		}
+
+		// sort the IPv4 rows by range start, packing the flipped start above
+		// the row number so a primitive sort suffices
+		long[] order = new long[ipv4Rows.size()];
+		for (int i = 0; i < order.length; i++) {
+			int start = parseAddress(ipv4Rows.get(i)[0]).getIPv4()
+					^ Integer.MIN_VALUE;
+			order[i] = ((long) start << 32) | i;
+		}
+		Arrays.sort(order);
+		// there are few IPv6 rows next to IPv4 ones, a boxed sort will do
+		Integer[] ipv6Order = new Integer[ipv6Rows.size()];
+		for (int i = 0; i < ipv6Order.length; i++) {
+			ipv6Order[i] = i;
+		}
+		Arrays.sort(ipv6Order, (a, b) -> compare(ipv6Bounds.get(a)[0],
+				ipv6Bounds.get(b)[0]));
+
+		InMemoryIP_RangeGeoIndex index = new InMemoryIP_RangeGeoIndex(
+				order.length, ipv6Order.length);
+		for (int i = 0; i < order.length; i++) {
+			String[] row = ipv4Rows.get((int) order[i]);
+			index.rangeStarts[i] = parseAddress(row[0]).getIPv4()
+					^ Integer.MIN_VALUE;
+			index.rangeEnds[i] = parseAddress(row[1]).getIPv4()
+					^ Integer.MIN_VALUE;
+			index.setColumns(i, row, dictionary);
+			if (i > 0 && index.rangeStarts[i] <= index.rangeEnds[i - 1]) {
+				throw new IOException("Range " + row[0] + "-" + row[1]
+						+ " overlaps the preceding range");
+			}
+		}
+		for (int i = 0; i < ipv6Order.length; i++) {
+			String[] row = ipv6Rows.get(ipv6Order[i]);
+			IP_AddressKey[] bounds = ipv6Bounds.get(ipv6Order[i]);
+			index.ipv6StartHighs[i] = bounds[0].getHigh() ^ Long.MIN_VALUE;
+			index.ipv6StartLows[i] = bounds[0].getLow() ^ Long.MIN_VALUE;
+			index.ipv6EndHighs[i] = bounds[1].getHigh() ^ Long.MIN_VALUE;
+			index.ipv6EndLows[i] = bounds[1].getLow() ^ Long.MIN_VALUE;
+			index.setColumns(order.length + i, row, dictionary);
+			if (i > 0
+					&& compare(ipv6Bounds.get(ipv6Order[i - 1])[1], bounds[0]) >= 0) {
+				throw new IOException("Range " + row[0] + "-" + row[1]
+						+ " overlaps the preceding range");
+			}
+		}
+		return index;
+	}
+
+	private void setColumns(int i, String[] row, Map<String, String> dictionary)
+			throws IOException {
+		try {
+			countryCodes[i] = GeoStringDictionary.internCountryCode(row[2]);
+			stateNames[i] = GeoStringDictionary.intern(row[3]);
+			cityNames[i] = GeoStringDictionary.intern(row[4]);
+			zipCodes[i] = row[5];
+			ndmaCodes[i] = row[6] != null ? Integer.parseInt(row[6]) : 0;
+			gmtOffsets[i] = parseFloat(row[7]);
+			latitudes[i] = parseFloat(row[8]);
+			longitudes[i] = parseFloat(row[9]);
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid numeric column in range " + row[0]
+					+ "-" + row[1] + ": " + e.getMessage(), e);
+		}
+	}
+
+	public IP_GeoResponse lookup(int ipAddress, String ipAddressString) {
+		int row = findRow(ipAddress);
+		return row < 0 ? null : toResponse(row, ipAddressString);
+	}
+
+	public IP_GeoResponse lookupIPv6(long high, long low,
+			String ipAddressString) {
+		int row = findIPv6Row(high, low);
+		return row < 0 ? null : toResponse(rangeStarts.length + row,
+				ipAddressString);
+	}
+
+	public int size() {
+		return rangeStarts.length + ipv6StartHighs.length;
+	}
+
+	/**
+	 * Binary search for the range containing ipAddress
+	 *
+	 * @param ipAddress
+	 * @return row number, -1 if no range contains ipAddress
+	 */
+	int findRow(int ipAddress) {
+		int key = ipAddress ^ Integer.MIN_VALUE;
+		int low = 0;
+		int high = rangeStarts.length - 1;
+		// find the last range starting at or below the key
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (rangeStarts[mid] <= key) {
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return high >= 0 && key <= rangeEnds[high] ? high : -1;
+	}
+
+	/**
+	 * Binary search for the IPv6 range containing high:low
+	 *
+	 * @param high
+	 * @param low
+	 * @return IPv6 range number, -1 if no range contains the address
+	 */
+	int findIPv6Row(long high, long low) {
+		long keyHigh = high ^ Long.MIN_VALUE;
+		long keyLow = low ^ Long.MIN_VALUE;
+		int lo = 0;
+		int hi = ipv6StartHighs.length - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (ipv6StartHighs[mid] < keyHigh
+					|| (ipv6StartHighs[mid] == keyHigh && ipv6StartLows[mid] <= keyLow)) {
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return hi >= 0
+				&& (keyHigh < ipv6EndHighs[hi] || (keyHigh == ipv6EndHighs[hi] && keyLow <= ipv6EndLows[hi])) ? hi
+				: -1;
+	}
+
+	private IP_GeoResponse toResponse(int row, String ipAddressString) {
+		// the columns are upper case and shared already
+		return new IP_GeoResponse(ipAddressString,
+				IP_GeoResponse.GEO_INFO_SOURCE_RANGE_INDEX, countryCodes[row],
+				gmtOffsets[row], ndmaCodes[row], zipCodes[row],
+				cityNames[row], stateNames[row], latitudes[row],
+				longitudes[row]);
+	}
+
+	// accessors used to serialize the index. IPv4 ranges are rows 0 to
+	// getIPv4RangeCount() - 1, IPv6 range i is row getIPv4RangeCount() + i
+
+	int getIPv4RangeCount() {
+		return rangeStarts.length;
+	}
+
+	int getIPv6RangeCount() {
+		return ipv6StartHighs.length;
+	}
+
+	long getIPv6RangeStartHigh(int i) {
+		return ipv6StartHighs[i] ^ Long.MIN_VALUE;
+	}
+
+	long getIPv6RangeStartLow(int i) {
+		return ipv6StartLows[i] ^ Long.MIN_VALUE;
+	}
+
+	long getIPv6RangeEndHigh(int i) {
+		return ipv6EndHighs[i] ^ Long.MIN_VALUE;
+	}
+
+	long getIPv6RangeEndLow(int i) {
+		return ipv6EndLows[i] ^ Long.MIN_VALUE;
+	}
+
+	int getRangeStart(int row) {
+		return rangeStarts[row] ^ Integer.MIN_VALUE;
+	}
+
+	int getRangeEnd(int row) {
+		return rangeEnds[row] ^ Integer.MIN_VALUE;
+	}
+
+	String getCountryCode(int row) {
+		return countryCodes[row];
+	}
+
+	String getStateName(int row) {
+		return stateNames[row];
+	}
+
+	String getCityName(int row) {
+		return cityNames[row];
+	}
+
+	String getZipCode(int row) {
+		return zipCodes[row];
+	}
+
+	int getNDMA_Code(int row) {
+		return ndmaCodes[row];
+	}
+
+	float getGmtOffset(int row) {
+		return gmtOffsets[row];
+	}
+
+	float getLatitude(int row) {
+		return latitudes[row];
+	}
+
+	float getLongitude(int row) {
+		return longitudes[row];
+	}
+
+	/**
+	 * Parses a range bound, either an IP address or an unsigned 32-bit
+	 * integer
+	 *
+	 * @param value
+	 * @return IP_AddressKey, null if value is not an address
+	 */
+	private static IP_AddressKey parseAddress(String value) {
+		if (value == null) {
+			return null;
+		}
+		if (value.indexOf('.') >= 0 || value.indexOf(':') >= 0) {
+			return IP_AddressParser.parse(value);
+		}
+		try {
+			long address = Long.parseLong(value);
+			return address >= 0 && address <= 0xFFFFFFFFL ? IP_AddressKey
+					.ofIPv4((int) address) : null;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private static int compare(IP_AddressKey a, IP_AddressKey b) {
+		int c = Long.compareUnsigned(a.getHigh(), b.getHigh());
+		return c != 0 ? c : Long.compareUnsigned(a.getLow(), b.getLow());
+	}
+
+	/**
+	 * Parses a float column, empty values map to Float.MAX_VALUE which
+	 * IP_GeoResponse uses for "not set"
+	 */
+	private static float parseFloat(String value) {
+		return value != null ? Float.parseFloat(value) : Float.MAX_VALUE;
+	}
+
+	private static String intern(Map<String, String> dictionary, String value) {
+		if (value == null) {
+			return null;
+		}
+		String shared = dictionary.get(value);
+		if (shared == null) {
+			dictionary.put(value, value);
+			shared = value;
+		}
+		return shared;
+	}
+
+	/**
+	 * Splits a CSV line into fields, honouring double-quoted fields. Empty
+	 * fields are returned as null.
+	 *
+	 * @param line
+	 * @param fields
+	 *            receives the fields, extra fields are counted but dropped
+	 * @return number of fields on the line
+	 */
+	static int splitCsvLine(String line, String[] fields) {
+		int count = 0;
+		StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i <= line.length(); i++) {
+			char c = i < line.length() ? line.charAt(i) : ',';
+			if (quoted) {
+				if (c == '"' && i + 1 < line.length()
+						&& line.charAt(i + 1) == '"') {
+					field.append('"');
+					i++;
+				} else if (c == '"') {
+					quoted = false;
+				} else if (i == line.length()) {
+					// unterminated quote, treat the end of line as its end
+					quoted = false;
+					i--;
+				} else {
+					field.append(c);
+				}
+			} else if (c == '"') {
+				quoted = true;
+			} else if (c == ',') {
+				if (count < fields.length) {
+					String value = field.toString().trim();
+					fields[count] = value.isEmpty() ? null : value;
+				}
+				count++;
+				field.setLength(0);
+			} else {
+				field.append(c);
+			}
+		}
+		return count;
+	}
+}
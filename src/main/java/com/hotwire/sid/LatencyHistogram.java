@@ -0,0 +1,141 @@
+package com.hotwire.sid;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of call durations. Durations are recorded in
+ * microseconds into log-linear buckets, eight per power of two, so that any
+ * percentile read back is within 12.5% of the exact value while recording
+ * costs a single atomic increment and the histogram a fixed 2.5KB.
+ */
+public final class LatencyHistogram {
+
+	// //////////////////////////////////////////////////////////////
+	// ATTRIBUTES
+
+	/**
+	 * Durations below this many microseconds get a bucket each
+	 */
+	private static final int LINEAR_BUCKETS = 16;
+
+	private static final int SUB_BUCKET_BITS = 3;
+
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/**
+	 * Exponent of the largest buckets, which end at 2^38 microseconds (about
+	 * 76 hours)
+	 */
+	private static final int MAX_EXPONENT = 37;
+
+	private static final int BUCKET_COUNT = LINEAR_BUCKETS
+			+ (MAX_EXPONENT - 3) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+	// //////////////////////////////////////////////////////////////
+	// METHODS
+
+	/**
+	 * @param durationInNanos
+	 */
+	public void record(long durationInNanos) {
+		counts.incrementAndGet(bucket(Math.max(durationInNanos, 0) / 1000L));
+	}
+
+	private static int bucket(long micros) {
+		if (micros < LINEAR_BUCKETS) {
+			return (int) micros;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		if (exponent > MAX_EXPONENT) {
+			return BUCKET_COUNT - 1;
+		}
+		int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS))
+				& (SUB_BUCKETS - 1);
+		return LINEAR_BUCKETS + (exponent - 4) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * @return the largest duration in microseconds that falls into bucket
+	 */
+	private static long bucketUpperBound(int bucket) {
+		if (bucket < LINEAR_BUCKETS) {
+			return bucket;
+		}
+		int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 4;
+		int subBucket = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+		long width = 1L << (exponent - SUB_BUCKET_BITS);
+		return (SUB_BUCKETS + subBucket) * width + width - 1;
+	}
+
+	/**
+	 * @return number of durations recorded
+	 */
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			count += counts.get(i);
+		}
+		return count;
+	}
+
+	/**
+	 * @param percentile
+	 *            between 0 and 100
+	 * @return the duration in nanoseconds that percentile percent of the
+	 *         recorded durations do not exceed, 0 if nothing was recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		return getValueAtPercentile(percentile, this);
+	}
+
+	/**
+	 * Reads a percentile of several histograms taken together, such as the
+	 * current and previous windows of a rolling measurement
+	 *
+	 * @param percentile
+	 *            between 0 and 100
+	 * @param histograms
+	 * @return the duration in nanoseconds that percentile percent of the
+	 *         durations recorded by histograms do not exceed, 0 if nothing was
+	 *         recorded
+	 */
+	public static long getValueAtPercentile(double percentile,
+			LatencyHistogram... histograms) {
+		long[] merged = new long[BUCKET_COUNT];
+		long total = 0;
+		for (LatencyHistogram histogram : histograms) {
+			for (int i = 0; i < BUCKET_COUNT; i++) {
+				long count = histogram.counts.get(i);
+				merged[i] += count;
+				total += count;
+			}
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(
+				(long) Math.ceil(total * Math.min(Math.max(percentile, 0), 100)
+						/ 100.0), 1);
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += merged[i];
+			if (seen >= rank) {
+				return TimeUnit.MICROSECONDS.toNanos(bucketUpperBound(i));
+			}
+		}
+		return TimeUnit.MICROSECONDS.toNanos(bucketUpperBound(BUCKET_COUNT - 1));
+	}
+
+	/**
+	 * Clears the histogram. Durations recorded while it is being cleared may
+	 * or may not be kept.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			counts.set(i, 0);
+		}
+	}
+}
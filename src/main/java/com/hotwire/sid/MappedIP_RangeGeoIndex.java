@@ -0,0 +1,264 @@
+package com.hotwire.sid;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * IP_RangeGeoIndex read straight from a memory-mapped binary database built
+ * by IP_RangeGeoDatabaseBuilder. Nothing is copied onto the heap at open
+ * time: the ranges and locations are read in place from the mapping, so JVMs
+ * on the same host share the file through the OS page cache and open it
+ * almost instantly. Only the strings a lookup touches are decoded, once each,
+ * and then shared by every response.
+ * <p/>
+ * File layout, all values big-endian:
+ *
+ * <pre>
+ * header       int magic, version, rangeCount, locationCount, stringCount,
+ *              ipv6RangeCount (version 2 only)
+ * ranges       int[rangeCount] range starts, sign bit flipped, sorted
+ *              int[rangeCount] location of each range, -1 for a gap
+ * ipv6 ranges  long[ipv6RangeCount] high and long[ipv6RangeCount] low
+ *              halves of the range starts, sign bits flipped, sorted
+ *              int[ipv6RangeCount] location of each range, -1 for a gap
+ * locations    int[locationCount] country, state, city and zip string ids
+ *              (-1 for none), int[locationCount] dma,
+ *              float[locationCount] gmtOffset, latitude and longitude
+ * strings      int[stringCount + 1] offsets into the string bytes
+ *              byte[] UTF-8 string bytes
+ * </pre>
+ *
+ * A range ends where the next one starts, gaps between source ranges are
+ * stored as ranges without a location. Version 1 files, which predate IPv6
+ * ranges, are still read.
+ */
+public class MappedIP_RangeGeoIndex implements IP_RangeGeoIndex {
+
+	// //////////////////////////////////////////////////////////////
+	// ATTRIBUTES
+
+	/**
+	 * "QGEO"
+	 */
+	static final int MAGIC = 0x5147454F;
+
+	static final int VERSION = 2;
+
+	static final int HEADER_SIZE = 6 * 4;
+
+	private static final int VERSION_1_HEADER_SIZE = 5 * 4;
+
+	/**
+	 * Number of int or float columns in the location table
+	 */
+	static final int LOCATION_COLUMNS = 8;
+
+	private final ByteBuffer buffer;
+
+	private final int rangeCount;
+
+	private final int ipv6RangeCount;
+
+	private final int rangeStartsOffset;
+
+	private final int ipv6StartHighsOffset;
+
+	private final int ipv6StartLowsOffset;
+
+	private final int ipv6LocationIdsOffset;
+
+	private final int locationCount;
+
+	private final int locationIdsOffset;
+
+	private final int locationsOffset;
+
+	private final int stringOffsetsOffset;
+
+	private final int stringBytesOffset;
+
+	/**
+	 * Strings decoded so far, shared through GeoStringDictionary. Races only
+	 * decode a string twice, Strings are safe to publish without
+	 * synchronization.
+	 */
+	private final String[] decodedStrings;
+
+	// //////////////////////////////////////////////////////////////
+	// CONSTRUCTOR
+
+	private MappedIP_RangeGeoIndex(ByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+		if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+			throw new IOException("Not an IP range geo database");
+		}
+		int version = buffer.getInt(4);
+		if (version != VERSION && version != 1) {
+			throw new IOException("Unsupported IP range geo database version "
+					+ version);
+		}
+		int headerSize = version == 1 ? VERSION_1_HEADER_SIZE : HEADER_SIZE;
+		if (buffer.capacity() < headerSize) {
+			throw new IOException("Truncated IP range geo database");
+		}
+		rangeCount = buffer.getInt(8);
+		locationCount = buffer.getInt(12);
+		int stringCount = buffer.getInt(16);
+		ipv6RangeCount = version == 1 ? 0 : buffer.getInt(20);
+
+		long startsOffset = headerSize;
+		long idsOffset = startsOffset + 4L * rangeCount;
+		long ipv6HighsOffset = idsOffset + 4L * rangeCount;
+		long ipv6LowsOffset = ipv6HighsOffset + 8L * ipv6RangeCount;
+		long ipv6IdsOffset = ipv6LowsOffset + 8L * ipv6RangeCount;
+		long locationTableOffset = ipv6IdsOffset + 4L * ipv6RangeCount;
+		long offsetsOffset = locationTableOffset + 4L * LOCATION_COLUMNS
+				* locationCount;
+		long bytesOffset = offsetsOffset + 4L * (stringCount + 1);
+		if (rangeCount < 0 || ipv6RangeCount < 0 || locationCount < 0
+				|| stringCount < 0 || bytesOffset > buffer.capacity()
+				|| bytesOffset + buffer.getInt((int) bytesOffset - 4) > buffer
+						.capacity()) {
+			throw new IOException("Truncated IP range geo database");
+		}
+		rangeStartsOffset = (int) startsOffset;
+		locationIdsOffset = (int) idsOffset;
+		ipv6StartHighsOffset = (int) ipv6HighsOffset;
+		ipv6StartLowsOffset = (int) ipv6LowsOffset;
+		ipv6LocationIdsOffset = (int) ipv6IdsOffset;
+		locationsOffset = (int) locationTableOffset;
+		stringOffsetsOffset = (int) offsetsOffset;
+		stringBytesOffset = (int) bytesOffset;
+		decodedStrings = new String[stringCount];
+	}
+
+	// //////////////////////////////////////////////////////////////
+	// METHODS
+
+	/**
+	 * Maps a database file read-only
+	 *
+	 * @param databaseFile
+	 * @return MappedIP_RangeGeoIndex
+	 * @throws IOException
+	 *             if the file cannot be mapped or is not a valid database
+	 */
+	public static MappedIP_RangeGeoIndex open(File databaseFile)
+			throws IOException {
+		try (RandomAccessFile file = new RandomAccessFile(databaseFile, "r");
+				FileChannel channel = file.getChannel()) {
+			// the mapping stays valid after the channel is closed
+			MappedByteBuffer buffer = channel.map(
+					FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return new MappedIP_RangeGeoIndex(buffer);
+		}
+	}
+
+	/**
+	 * Returns true if file starts with the database magic number
+	 *
+	 * @param file
+	 * @return true if file looks like a database rather than a CSV
+	 * @throws IOException
+	 */
+	public static boolean isDatabaseFile(File file) throws IOException {
+		try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+			return in.length() >= 4 && in.readInt() == MAGIC;
+		}
+	}
+
+	public IP_GeoResponse lookup(int ipAddress, String ipAddressString) {
+		int key = ipAddress ^ Integer.MIN_VALUE;
+		int low = 0;
+		int high = rangeCount - 1;
+		// find the last range starting at or below the key
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (buffer.getInt(rangeStartsOffset + (mid << 2)) <= key) {
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		if (high < 0) {
+			return null;
+		}
+		int location = buffer.getInt(locationIdsOffset + (high << 2));
+		return location < 0 ? null : toResponse(location, ipAddressString);
+	}
+
+	public IP_GeoResponse lookupIPv6(long high, long low,
+			String ipAddressString) {
+		long keyHigh = high ^ Long.MIN_VALUE;
+		long keyLow = low ^ Long.MIN_VALUE;
+		int lo = 0;
+		int hi = ipv6RangeCount - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			long startHigh = buffer.getLong(ipv6StartHighsOffset + (mid << 3));
+			if (startHigh < keyHigh
+					|| (startHigh == keyHigh && buffer
+							.getLong(ipv6StartLowsOffset + (mid << 3)) <= keyLow)) {
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		if (hi < 0) {
+			return null;
+		}
+		int location = buffer.getInt(ipv6LocationIdsOffset + (hi << 2));
+		return location < 0 ? null : toResponse(location, ipAddressString);
+	}
+
+	public int size() {
+		return rangeCount + ipv6RangeCount;
+	}
+
+	/**
+	 * @return number of distinct locations in the database
+	 */
+	public int getLocationCount() {
+		return locationCount;
+	}
+
+	private IP_GeoResponse toResponse(int location, String ipAddressString) {
+		// country codes were stored in upper case by the builder
+		return new IP_GeoResponse(ipAddressString,
+				IP_GeoResponse.GEO_INFO_SOURCE_RANGE_INDEX, string(column(0,
+						location)), Float.intBitsToFloat(column(5, location)),
+				column(4, location), string(column(3, location)),
+				string(column(2, location)), string(column(1, location)),
+				Float.intBitsToFloat(column(6, location)),
+				Float.intBitsToFloat(column(7, location)));
+	}
+
+	private int column(int column, int location) {
+		return buffer.getInt(locationsOffset
+				+ ((column * locationCount + location) << 2));
+	}
+
+	private String string(int id) {
+		if (id < 0) {
+			return null;
+		}
+		String value = decodedStrings[id];
+		if (value == null) {
+			int start = buffer.getInt(stringOffsetsOffset + (id << 2));
+			int end = buffer.getInt(stringOffsetsOffset + ((id + 1) << 2));
+			byte[] bytes = new byte[end - start];
+			for (int i = 0; i < bytes.length; i++) {
+				bytes[i] = buffer.get(stringBytesOffset + start + i);
+			}
+			value = GeoStringDictionary.intern(new String(bytes,
+					StandardCharsets.UTF_8));
+			decodedStrings[id] = value;
+		}
+		return value;
+	}
+}
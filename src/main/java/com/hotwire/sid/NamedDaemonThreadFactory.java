@@ -0,0 +1,26 @@
+package com.hotwire.sid;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates numbered daemon threads for the adapter's background executors, so
+ * they never keep the JVM alive and are easy to spot in thread dumps
+ */
+class NamedDaemonThreadFactory implements ThreadFactory {
+
+	private final String namePrefix;
+
+	private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+	NamedDaemonThreadFactory(String namePrefix) {
+		this.namePrefix = namePrefix;
+	}
+
+	public Thread newThread(Runnable r) {
+		Thread thread = new Thread(r, namePrefix + "-"
+				+ threadNumber.getAndIncrement());
+		thread.setDaemon(true);
+		return thread;
+	}
+}
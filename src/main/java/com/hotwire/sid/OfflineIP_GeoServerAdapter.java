@@ -0,0 +1,183 @@
+package com.hotwire.sid;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adapter that resolves IPs from a local IP range index instead of a geo
+ * server, so lookups never leave the JVM. Responses have the same shape as
+ * those of QuovaIP_GeoServerAdapter, tagged with
+ * IP_GeoResponse.GEO_INFO_SOURCE_RANGE_INDEX.
+ */
+public class OfflineIP_GeoServerAdapter implements IP_GeoServerAdapter {
+
+	// ///////////////// ATTRIBUTES /////////////////////////
+
+	/**
+	 * Logger
+	 */
+	private static final Logger log = LoggerFactory
+			.getLogger(OfflineIP_GeoServerAdapter.class);
+
+	/**
+	 * Logs lookups skipped for want of an index at most once every 10 seconds
+	 */
+	private final RateLimitedLogger lookupLog = new RateLimitedLogger(log,
+			10000, 1);
+
+	/**
+	 * Holds the loaded range index, null until configurationChanged succeeds
+	 */
+	private volatile IP_RangeGeoIndex rangeIndex;
+
+	protected transient Properties hwProps;
+
+	// //////////////////////////////////////////////////////////////
+	// METHODS
+
+	/**
+	 * Method takes an ipAddress as input and retrieves its geographical
+	 * information from the range index
+	 *
+	 * @param ipAddress
+	 * @return an IP_GeoResponse object, with no geo information if no range
+	 *         contains ipAddress
+	 * @throws HwIP_GeoException
+	 *             if ipAddress is not an IP address or no index is loaded
+	 */
+	public IP_GeoResponse lookup(String ipAddress) throws HwIP_GeoException {
+		IP_AddressKey address = IP_AddressParser.parse(ipAddress);
+		if (address == null) {
+			throw HwIP_GeoException
+					.stackless(HotwireErrors.IPGEO_GEO_SERVER_INVALID_ARGUMENT);
+		}
+		return lookup(address, ipAddress);
+	}
+
+	/**
+	 * @param ipAddress
+	 * @return an IP_GeoResponse object
+	 * @throws HwIP_GeoException
+	 *             if no index is loaded
+	 * @see #lookup(String)
+	 */
+	public IP_GeoResponse lookup(IP_AddressKey ipAddress)
+			throws HwIP_GeoException {
+		return lookup(ipAddress, ipAddress.toString());
+	}
+
+	/**
+	 * @param ipAddress
+	 * @return an IP_GeoResponse object
+	 * @throws HwIP_GeoException
+	 *             if no index is loaded
+	 * @see #lookup(String)
+	 */
+	public IP_GeoResponse lookup(InetAddress ipAddress)
+			throws HwIP_GeoException {
+		return lookup(IP_AddressKey.of(ipAddress));
+	}
+
+	private IP_GeoResponse lookup(IP_AddressKey address, String ipAddress)
+			throws HwIP_GeoException {
+		IP_RangeGeoIndex index = rangeIndex;
+		if (index == null) {
+			lookupLog.warn("NOT_LOADED",
+					"IP range index is not loaded, lookup will be skipped");
+			throw HwIP_GeoException
+					.stackless(HotwireErrors.IPGEO_GEO_SERVER_NOT_AVAILABLE);
+		}
+		IP_GeoResponse ipGeoResponse = address.isIPv4() ? index.lookup(
+				address.getIPv4(), ipAddress) : index.lookupIPv6(
+				address.getHigh(), address.getLow(), ipAddress);
+		return ipGeoResponse != null ? ipGeoResponse : new IP_GeoResponse(
+				ipAddress, IP_GeoResponse.GEO_INFO_SOURCE_RANGE_INDEX);
+	}
+
+	/**
+	 * Looks up geographical information for many ipAddresses, reporting each
+	 * failure in its own IP_GeoLookupResult
+	 *
+	 * @param ipAddresses
+	 * @return map from each distinct ipAddress, in iteration order, to the
+	 *         result of its lookup
+	 */
+	public Map<String, IP_GeoLookupResult> lookupAll(
+			Collection<String> ipAddresses) {
+		Map<String, IP_GeoLookupResult> results = new LinkedHashMap<String, IP_GeoLookupResult>();
+		for (String ipAddress : ipAddresses) {
+			if (results.containsKey(ipAddress)) {
+				continue;
+			}
+			try {
+				IP_GeoResponse ipGeoResponse = lookup(ipAddress);
+				results.put(ipAddress, IP_GeoLookupResult.success(ipAddress,
+						ipGeoResponse, ipGeoResponse.isFound()));
+			} catch (HwIP_GeoException e) {
+				results.put(ipAddress, IP_GeoLookupResult.failure(ipAddress, e));
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Called to (re)load the range index named by
+	 * hotwire.eis.geo.offline.rangeFile. A database built by
+	 * IP_RangeGeoDatabaseBuilder is memory-mapped, anything else is loaded as
+	 * CSV onto the heap. The current index keeps serving lookups until the new
+	 * one is loaded, and is kept if loading fails.
+	 */
+	public void configurationChanged() {
+		String rangeFile = hwProps != null ? hwProps
+				.getProperty("hotwire.eis.geo.offline.rangeFile") : null;
+		if (StringUtils.isEmpty(rangeFile)) {
+			log.error("hotwire.eis.geo.offline.rangeFile is not set, IP range index will not be loaded");
+			return;
+		}
+
+		long startTimeMillis = System.currentTimeMillis();
+		try {
+			File file = new File(rangeFile);
+			IP_RangeGeoIndex index = MappedIP_RangeGeoIndex
+					.isDatabaseFile(file) ? MappedIP_RangeGeoIndex.open(file)
+					: InMemoryIP_RangeGeoIndex.load(file);
+			rangeIndex = index;
+			log.info("Loaded {} IP ranges from {} in {} milliseconds",
+					index.size(), rangeFile, System.currentTimeMillis()
+							- startTimeMillis);
+		} catch (IOException e) {
+			log.error("Could not load IP range index from {}", rangeFile, e);
+		}
+	}
+
+	/**
+	 * Returns the loaded range index
+	 *
+	 * @return IP_RangeGeoIndex, null if none is loaded
+	 */
+	public IP_RangeGeoIndex getRangeIndex() {
+		return rangeIndex;
+	}
+
+	public void setHwProps(Properties hwProps) {
+		this.hwProps = hwProps;
+	}
+
+	/**
+	 * Drops the range index, a memory-mapped index is unmapped once it is
+	 * garbage collected
+	 */
+	public void shutdown() {
+		rangeIndex = null;
+		lookupLog.flush();
+	}
+}
@@ -0,0 +1,126 @@
+package com.hotwire.sid;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches a properties file and runs a callback on a daemon thread whenever
+ * the file is created or modified. Changes are debounced, so that a file
+ * written in several steps triggers the callback once.
+ */
+public class PropertiesFileWatcher implements Closeable {
+
+	// //////////////////////////////////////////////////////////////
+	// ATTRIBUTES
+
+	private static final Logger log = LoggerFactory
+			.getLogger(PropertiesFileWatcher.class);
+
+	private final File file;
+
+	private final long debounceInMillis;
+
+	private final Runnable onChange;
+
+	private final WatchService watchService;
+
+	private volatile boolean closed;
+
+	// //////////////////////////////////////////////////////////////
+	// CONSTRUCTOR
+
+	/**
+	 * Starts watching file
+	 *
+	 * @param file
+	 * @param debounceInMillis
+	 *            time to wait for further changes before running onChange
+	 * @param onChange
+	 * @throws IOException
+	 *             if the directory of file cannot be watched
+	 */
+	public PropertiesFileWatcher(File file, long debounceInMillis,
+			Runnable onChange) throws IOException {
+		this.file = file.getAbsoluteFile();
+		this.debounceInMillis = debounceInMillis;
+		this.onChange = onChange;
+		Path directory = this.file.getParentFile().toPath();
+		this.watchService = directory.getFileSystem().newWatchService();
+		directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY);
+		new NamedDaemonThreadFactory("PropertiesFileWatcher").newThread(
+				new Runnable() {
+					public void run() {
+						watch();
+					}
+				}).start();
+	}
+
+	// //////////////////////////////////////////////////////////////
+	// METHODS
+
+	private void watch() {
+		String fileName = file.getName();
+		try {
+			while (!closed) {
+				WatchKey key = watchService.take();
+				boolean changed = false;
+				for (WatchEvent<?> event : key.pollEvents()) {
+					// an overflow may have hidden a change to the file
+					changed |= event.kind() == StandardWatchEventKinds.OVERFLOW
+							|| fileName.equals(String.valueOf(event.context()));
+				}
+				key.reset();
+				if (!changed) {
+					continue;
+				}
+
+				Thread.sleep(debounceInMillis);
+				while ((key = watchService.poll()) != null) {
+					key.pollEvents();
+					key.reset();
+				}
+				if (closed) {
+					return;
+				}
+				log.info("{} changed, reloading configuration", file);
+				try {
+					onChange.run();
+				} catch (RuntimeException e) {
+					log.error("Reloading configuration after a change to {} failed",
+							file, e);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ClosedWatchServiceException e) {
+			// closed
+		}
+	}
+
+	/**
+	 * @return the watched file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Stops watching, onChange is not run after this returns unless it is
+	 * already running
+	 */
+	public void close() throws IOException {
+		closed = true;
+		watchService.close();
+	}
+}
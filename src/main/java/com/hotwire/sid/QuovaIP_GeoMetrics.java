@@ -0,0 +1,398 @@
+package com.hotwire.sid;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records the latency and outcome of the lookups of a
+ * QuovaIP_GeoServerAdapter without locking: latencies go to
+ * RollingLatencyHistograms split into the whole lookup, the Quova call and
+ * the mapping of the Quova record to an IP_GeoResponse, so that the
+ * percentiles cover the last one to two LATENCY_WINDOW_IN_NANOS, and
+ * outcomes to counters per QuovaReturnCode and per HotwireErrors code. The
+ * metrics, together with the adapter's pool, circuit breaker, coalescing and
+ * hedging state, are published as a platform MBean.
+ */
+public class QuovaIP_GeoMetrics implements QuovaIP_GeoMetricsMXBean {
+
+	// //////////////////////////////////////////////////////////////
+	// ATTRIBUTES
+
+	private static final Logger log = LoggerFactory
+			.getLogger(QuovaIP_GeoMetrics.class);
+
+	/**
+	 * Length of the latency windows
+	 */
+	static final long LATENCY_WINDOW_IN_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+	/**
+	 * Smallest IPGEO error code, the counters are indexed from it
+	 */
+	private static final int FIRST_ERROR_CODE = HotwireErrors.IPGEO_INVALID_SERVER_ADAPTER_TYPE;
+
+	/**
+	 * Names of the HotwireErrors codes, indexed from FIRST_ERROR_CODE
+	 */
+	private static final String[] ERROR_NAMES = errorNames();
+
+	private static final AtomicInteger instances = new AtomicInteger();
+
+	private final QuovaIP_GeoServerAdapter adapter;
+
+	private final RollingLatencyHistogram lookupLatency = new RollingLatencyHistogram(
+			LATENCY_WINDOW_IN_NANOS);
+
+	private final RollingLatencyHistogram quovaCallLatency = new RollingLatencyHistogram(
+			LATENCY_WINDOW_IN_NANOS);
+
+	private final RollingLatencyHistogram mappingLatency = new RollingLatencyHistogram(
+			LATENCY_WINDOW_IN_NANOS);
+
+	private final LongAdder lookups = new LongAdder();
+
+	private final LongAdder quovaCalls = new LongAdder();
+
+	private final LongAdder localLookups = new LongAdder();
+
+	private final ConcurrentHashMap<String, LongAdder> returnCodeCounts = new ConcurrentHashMap<String, LongAdder>();
+
+	/**
+	 * Failed lookups per error code, the last slot counts codes outside
+	 * ERROR_NAMES
+	 */
+	private final AtomicLongArray errorCounts = new AtomicLongArray(
+			ERROR_NAMES.length + 1);
+
+	private final AtomicInteger activeQuovaCalls = new AtomicInteger();
+
+	private final AtomicInteger peakActiveQuovaCalls = new AtomicInteger();
+
+	private volatile int connectionPoolSize;
+
+	private ObjectName objectName;
+
+	// //////////////////////////////////////////////////////////////
+	// CONSTRUCTOR
+
+	/**
+	 * @param adapter
+	 *            adapter whose circuit breaker, coalescing and hedging state
+	 *            is published alongside the metrics
+	 */
+	QuovaIP_GeoMetrics(QuovaIP_GeoServerAdapter adapter) {
+		this.adapter = adapter;
+	}
+
+	// //////////////////////////////////////////////////////////////
+	// METHODS
+
+	private static String[] errorNames() {
+		String[] names = new String[HotwireErrors.IPGEO_GEO_SERVER_TIMEOUT
+				- FIRST_ERROR_CODE + 1];
+		for (Field field : HotwireErrors.class.getFields()) {
+			try {
+				int index = field.getInt(null) - FIRST_ERROR_CODE;
+				if (index >= 0 && index < names.length) {
+					names[index] = field.getName();
+				}
+			} catch (IllegalAccessException e) {
+				// public interface constants are always accessible
+			}
+		}
+		for (int i = 0; i < names.length; i++) {
+			if (names[i] == null) {
+				names[i] = String.valueOf(FIRST_ERROR_CODE + i);
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * @param errorCode
+	 * @return name of the HotwireErrors constant errorCode is the value of, or
+	 *         errorCode itself if there is none
+	 */
+	static String errorName(int errorCode) {
+		int index = errorCode - FIRST_ERROR_CODE;
+		return index >= 0 && index < ERROR_NAMES.length ? ERROR_NAMES[index]
+				: String.valueOf(errorCode);
+	}
+
+	/**
+	 * Registers the metrics with the platform MBean server under
+	 * com.hotwire.sid:type=QuovaIP_GeoServerAdapter,name=name, or name-N if
+	 * another adapter already uses name
+	 *
+	 * @param name
+	 */
+	synchronized void register(String name) {
+		if (objectName != null) {
+			return;
+		}
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			ObjectName candidate = objectName(name);
+			try {
+				server.registerMBean(this, candidate);
+			} catch (InstanceAlreadyExistsException e) {
+				candidate = objectName(name + "-" + instances.incrementAndGet());
+				server.registerMBean(this, candidate);
+			}
+			objectName = candidate;
+			log.info("Registered lookup metrics as {}", candidate);
+		} catch (JMException e) {
+			log.warn("Could not register lookup metrics {}", name, e);
+		}
+	}
+
+	private static ObjectName objectName(String name) throws JMException {
+		return new ObjectName("com.hotwire.sid:type=QuovaIP_GeoServerAdapter,name="
+				+ ObjectName.quote(name));
+	}
+
+	/**
+	 * Unregisters the metrics from the platform MBean server
+	 */
+	synchronized void unregister() {
+		if (objectName == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+					objectName);
+		} catch (JMException e) {
+			log.warn("Could not unregister lookup metrics {}", objectName, e);
+		}
+		objectName = null;
+	}
+
+	/**
+	 * Records a lookup
+	 *
+	 * @param startTimeNanos
+	 *            System.nanoTime() the lookup started at
+	 * @param local
+	 *            true if the lookup was answered without querying Quova
+	 */
+	void recordLookup(long startTimeNanos, boolean local) {
+		lookupLatency.record(System.nanoTime() - startTimeNanos);
+		lookups.increment();
+		if (local) {
+			localLookups.increment();
+		}
+	}
+
+	/**
+	 * Records a lookup that failed
+	 *
+	 * @param errorCode
+	 *            HotwireErrors code the lookup failed with
+	 */
+	void recordError(int errorCode) {
+		int index = errorCode - FIRST_ERROR_CODE;
+		errorCounts.incrementAndGet(index >= 0 && index < ERROR_NAMES.length ? index
+				: ERROR_NAMES.length);
+	}
+
+	/**
+	 * @return System.nanoTime() the Quova call started at, to pass to
+	 *         quovaCallEnded
+	 */
+	long quovaCallStarted() {
+		int active = activeQuovaCalls.incrementAndGet();
+		int peak;
+		while (active > (peak = peakActiveQuovaCalls.get())
+				&& !peakActiveQuovaCalls.compareAndSet(peak, active)) {
+			// retry
+		}
+		return System.nanoTime();
+	}
+
+	/**
+	 * @param startTimeNanos
+	 *            returned by quovaCallStarted
+	 */
+	void quovaCallEnded(long startTimeNanos) {
+		quovaCallLatency.record(System.nanoTime() - startTimeNanos);
+		quovaCalls.increment();
+		activeQuovaCalls.decrementAndGet();
+	}
+
+	/**
+	 * @param returnCode
+	 *            QuovaReturnCode of a Quova record or exception
+	 */
+	void recordReturnCode(Object returnCode) {
+		String key = String.valueOf(returnCode);
+		LongAdder count = returnCodeCounts.get(key);
+		if (count == null) {
+			count = returnCodeCounts.computeIfAbsent(key, k -> new LongAdder());
+		}
+		count.increment();
+	}
+
+	/**
+	 * @param startTimeNanos
+	 *            System.nanoTime() the mapping started at
+	 */
+	void recordMapping(long startTimeNanos) {
+		mappingLatency.record(System.nanoTime() - startTimeNanos);
+	}
+
+	void setConnectionPoolSize(int connectionPoolSize) {
+		this.connectionPoolSize = connectionPoolSize;
+	}
+
+	private static double millis(long nanos) {
+		return nanos / 1000000.0;
+	}
+
+	public long getLookupCount() {
+		return lookups.sum();
+	}
+
+	public long getLocalLookupCount() {
+		return localLookups.sum();
+	}
+
+	public long getQuovaCallCount() {
+		return quovaCalls.sum();
+	}
+
+	public double getLookupLatencyP50Millis() {
+		return millis(lookupLatency.getValueAtPercentile(50));
+	}
+
+	public double getLookupLatencyP95Millis() {
+		return millis(lookupLatency.getValueAtPercentile(95));
+	}
+
+	public double getLookupLatencyP99Millis() {
+		return millis(lookupLatency.getValueAtPercentile(99));
+	}
+
+	public double getQuovaCallLatencyP50Millis() {
+		return millis(quovaCallLatency.getValueAtPercentile(50));
+	}
+
+	public double getQuovaCallLatencyP95Millis() {
+		return millis(quovaCallLatency.getValueAtPercentile(95));
+	}
+
+	public double getQuovaCallLatencyP99Millis() {
+		return millis(quovaCallLatency.getValueAtPercentile(99));
+	}
+
+	public double getMappingLatencyP50Millis() {
+		return millis(mappingLatency.getValueAtPercentile(50));
+	}
+
+	public double getMappingLatencyP95Millis() {
+		return millis(mappingLatency.getValueAtPercentile(95));
+	}
+
+	public double getMappingLatencyP99Millis() {
+		return millis(mappingLatency.getValueAtPercentile(99));
+	}
+
+	public Map<String, Long> getReturnCodeCounts() {
+		Map<String, Long> counts = new LinkedHashMap<String, Long>();
+		for (Map.Entry<String, LongAdder> entry : returnCodeCounts.entrySet()) {
+			counts.put(entry.getKey(), entry.getValue().sum());
+		}
+		return counts;
+	}
+
+	public Map<String, Long> getErrorCounts() {
+		Map<String, Long> counts = new LinkedHashMap<String, Long>();
+		for (int i = 0; i < ERROR_NAMES.length; i++) {
+			counts.put(ERROR_NAMES[i], errorCounts.get(i));
+		}
+		counts.put("OTHER", errorCounts.get(ERROR_NAMES.length));
+		return counts;
+	}
+
+	public int getActiveQuovaCalls() {
+		return activeQuovaCalls.get();
+	}
+
+	public int getPeakActiveQuovaCalls() {
+		return peakActiveQuovaCalls.get();
+	}
+
+	public int getConnectionPoolSize() {
+		return connectionPoolSize;
+	}
+
+	public long getPoolFailureCount() {
+		LongAdder count = returnCodeCounts.get("POOL_FAILURE");
+		return count != null ? count.sum() : 0;
+	}
+
+	public String getCircuitBreakerState() {
+		GeoServerCircuitBreaker breaker = adapter.getCircuitBreaker();
+		return breaker != null ? breaker.getState().name() : "NONE";
+	}
+
+	public long getCircuitBreakerOpenCount() {
+		GeoServerCircuitBreaker breaker = adapter.getCircuitBreaker();
+		return breaker != null ? breaker.getOpenCount() : 0;
+	}
+
+	public long getCircuitBreakerRejectedCallCount() {
+		GeoServerCircuitBreaker breaker = adapter.getCircuitBreaker();
+		return breaker != null ? breaker.getRejectedCallCount() : 0;
+	}
+
+	public int getConcurrencyLimit() {
+		return adapter.getConcurrencyLimiter().getLimit();
+	}
+
+	public long getConcurrencyLimitRejectedCallCount() {
+		return adapter.getConcurrencyLimiter().getRejectedCallCount();
+	}
+
+	public long getCoalescedLookupCount() {
+		return adapter.getInFlightLookups().getCoalescedCallCount();
+	}
+
+	public long getHedgedQueryCount() {
+		return adapter.getHedger().getHedgedQueryCount();
+	}
+
+	public long getSecondaryWinCount() {
+		return adapter.getHedger().getSecondaryWinCount();
+	}
+
+	public void reset() {
+		lookupLatency.reset();
+		quovaCallLatency.reset();
+		mappingLatency.reset();
+		lookups.reset();
+		quovaCalls.reset();
+		localLookups.reset();
+		for (LongAdder count : returnCodeCounts.values()) {
+			count.reset();
+		}
+		for (int i = 0; i < errorCounts.length(); i++) {
+			errorCounts.set(i, 0);
+		}
+		peakActiveQuovaCalls.set(activeQuovaCalls.get());
+	}
+}
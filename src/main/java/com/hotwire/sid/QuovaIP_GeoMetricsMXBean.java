@@ -0,0 +1,103 @@
+package com.hotwire.sid;
+
+import java.util.Map;
+
+/**
+ * Lookup metrics of a QuovaIP_GeoServerAdapter, published as a platform
+ * MBean. Latencies are in milliseconds and cover the last one to two
+ * minutes, counts cover the lookups since the adapter was created or the
+ * metrics were last reset.
+ */
+public interface QuovaIP_GeoMetricsMXBean {
+
+	long getLookupCount();
+
+	/**
+	 * @return lookups answered from the caches or the reserved ranges
+	 */
+	long getLocalLookupCount();
+
+	long getQuovaCallCount();
+
+	double getLookupLatencyP50Millis();
+
+	double getLookupLatencyP95Millis();
+
+	double getLookupLatencyP99Millis();
+
+	double getQuovaCallLatencyP50Millis();
+
+	double getQuovaCallLatencyP95Millis();
+
+	double getQuovaCallLatencyP99Millis();
+
+	double getMappingLatencyP50Millis();
+
+	double getMappingLatencyP95Millis();
+
+	double getMappingLatencyP99Millis();
+
+	/**
+	 * @return number of Quova records and exceptions per QuovaReturnCode
+	 */
+	Map<String, Long> getReturnCodeCounts();
+
+	/**
+	 * @return number of failed lookups per HotwireErrors code name
+	 */
+	Map<String, Long> getErrorCounts();
+
+	/**
+	 * @return Quova calls in flight
+	 */
+	int getActiveQuovaCalls();
+
+	/**
+	 * @return most Quova calls in flight at once
+	 */
+	int getPeakActiveQuovaCalls();
+
+	/**
+	 * @return geoDirectoryServerConnectionPoolSize
+	 */
+	int getConnectionPoolSize();
+
+	/**
+	 * @return number of Quova calls that failed with POOL_FAILURE
+	 */
+	long getPoolFailureCount();
+
+	/**
+	 * @return CLOSED, OPEN or HALF_OPEN, NONE if the adapter is not
+	 *         configured
+	 */
+	String getCircuitBreakerState();
+
+	long getCircuitBreakerOpenCount();
+
+	long getCircuitBreakerRejectedCallCount();
+
+	/**
+	 * @return number of Quova calls currently allowed in flight
+	 */
+	int getConcurrencyLimit();
+
+	/**
+	 * @return number of lookups shed because the concurrency limit was
+	 *         reached
+	 */
+	long getConcurrencyLimitRejectedCallCount();
+
+	long getCoalescedLookupCount();
+
+	long getHedgedQueryCount();
+
+	long getSecondaryWinCount();
+
+	/**
+	 * Clears the latency histograms, the lookup, return code and error counts
+	 * and the peak of active calls. The circuit breaker, coalescing and
+	 * hedging counts are kept.
+	 */
+	void reset();
+}
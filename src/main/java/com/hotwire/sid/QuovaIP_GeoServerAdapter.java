@@ -1,14 +1,32 @@
 package com.hotwire.sid;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-//import org.slf4j.*;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.quova.common.IPInfoField;
 import com.quova.common.QuovaReturnCode;
@@ -23,21 +41,76 @@ import com.quova.util.QuovaException;
  * @author Mike McClay <mmcclay@hotwire.com />
  * @since 9.04
  */
-public class QuovaIP_GeoServerAdapter{
+public class QuovaIP_GeoServerAdapter implements IP_GeoServerAdapter {
 
 	// ///////////////// ATTRIBUTES /////////////////////////
 
 	/**
 	 * Logger
 	 */
-	private static final Logger log = Logger
-			.getLogger(QuovaIP_GeoServerAdapter.class.getName());
+	private static final Logger log = LoggerFactory
+			.getLogger(QuovaIP_GeoServerAdapter.class);
+
+	/**
+	 * Interval used if hotwire.eis.geo.quova.errorLogIntervalInMillis is not
+	 * set
+	 */
+	private static final long DEFAULT_ERROR_LOG_INTERVAL_IN_MILLIS = 10000L;
+
+	/**
+	 * Sample rate used if hotwire.eis.geo.quova.debugLogSampleRate is not set
+	 */
+	private static final int DEFAULT_DEBUG_LOG_SAMPLE_RATE = 100;
+
+	/**
+	 * Logs the failures of lookups at most once per error per
+	 * hotwire.eis.geo.quova.errorLogIntervalInMillis, and samples the debug
+	 * timing of successful ones
+	 */
+	private final RateLimitedLogger lookupLog = new RateLimitedLogger(log,
+			DEFAULT_ERROR_LOG_INTERVAL_IN_MILLIS, DEFAULT_DEBUG_LOG_SAMPLE_RATE);
+
+	/**
+	 * Number of entries used if hotwire.eis.geo.quova.sharedCacheMaxEntries
+	 * is not set
+	 */
+	private static final int DEFAULT_SHARED_CACHE_MAX_ENTRIES = 262144;
+
+	/**
+	 * Interval used if hotwire.eis.geo.quova.cacheSnapshotIntervalInMillis is
+	 * not set
+	 */
+	private static final long DEFAULT_CACHE_SNAPSHOT_INTERVAL_IN_MILLIS = 300000L;
+
+	/**
+	 * Batch size used by lookupAll if hotwire.eis.geo.quova.batchLookupSize is
+	 * not set
+	 */
+	private static final int DEFAULT_BATCH_LOOKUP_SIZE = 50;
+
+	/**
+	 * Number of lookups that may wait for an async lookup thread if
+	 * hotwire.eis.geo.quova.asyncLookupQueueSize is not set
+	 */
+	private static final int DEFAULT_ASYNC_LOOKUP_QUEUE_SIZE = 100;
+
+	/**
+	 * Initial concurrency limit, until configurationChanged bounds it by the
+	 * connection pool size
+	 */
+	private static final int DEFAULT_CONNECTION_POOL_SIZE = 6;
+
+	/**
+	 * Time a call to Quova waits for a pooled connection if
+	 * hotwire.eis.geo.quova.maxWaitBlockingInMillis is not set
+	 */
+	private static final String DEFAULT_MAX_WAIT_BLOCKING_IN_MILLIS = "1";
 
 	/**
 	 * Holds the value of the confidence factor threshold that must be exceeded
 	 * to trust Quova IP Geo data.
 	 */
-	private int cityConfidenceFactorThreshold = 0;
+	private volatile int cityConfidenceFactorThreshold = 0;
 
 	/**
 	 * IPAddress to use when querying Quova, if it is specified in the property
@@ -48,15 +121,199 @@ public class QuovaIP_GeoServerAdapter{
 	 * THIS IS FOR NON-PROD ENVIRONMENTS ONLY - IT SHOULD NOT BE USED IN
 	 * PRODUCTION
 	 */
-	private String ipAddressOverride;
+	private volatile String ipAddressOverride;
+
+	/**
+	 * Address queried by the circuit breaker probe when
+	 * hotwire.eis.geo.quova.circuitBreakerProbeIp is not set
+	 */
+	private static final String DEFAULT_PROBE_IP_ADDRESS = "127.0.0.1";
+
+	/**
+	 * Time shutdown waits for a circuit breaker probe in flight
+	 */
+	private static final long PROBE_SHUTDOWN_TIMEOUT_IN_MILLIS = 10000;
+
+	/**
+	 * Time to wait for further changes to the external properties file
+	 * before reloading the configuration
+	 */
+	private static final long CONFIGURATION_WATCH_DEBOUNCE_IN_MILLIS = 500;
+
+	/**
+	 * Holds the connection to a Quova GeoServer. Replacing it retires the old
+	 * connection, which closes once the queries in flight on it are done.
+	 */
+	private final AtomicReference<GeoDirectoryConnection> geoDirectoryConnection = new AtomicReference<GeoDirectoryConnection>();
+
+	/**
+	 * Properties the connection was created with, kept so that the circuit
+	 * breaker probe can reconnect, null once the adapter is shut down
+	 */
+	private volatile Properties geoDirectoryServerProperties;
+
+	/**
+	 * Set when the connection hit an unrecoverable error and must be
+	 * recreated before it is used again
+	 */
+	private volatile boolean reconnectRequired;
+
+	/**
+	 * Keep a client per server and hedge slow queries to the primary server
+	 * with the secondary, instead of letting the Quova client fail over
+	 */
+	private volatile boolean hedgedLookups;
+
+	/**
+	 * Sends the queries to Quova, hedging them if hedgedLookups is set
+	 */
+	private final GeoDirectoryHedger hedger = new GeoDirectoryHedger();
+
+	/**
+	 * Latency and outcome of the lookups, published over JMX
+	 */
+	private final QuovaIP_GeoMetrics metrics = new QuovaIP_GeoMetrics(this);
+
+	/**
+	 * Guards the calls to Quova, null until configurationChanged succeeds
+	 */
+	private volatile GeoServerCircuitBreaker circuitBreaker;
+
+	/**
+	 * Limits the calls in flight to Quova to what it answers without slowing
+	 * down, sheds the lookups over the limit
+	 */
+	private final AdaptiveConcurrencyLimiter concurrencyLimiter = new AdaptiveConcurrencyLimiter(
+			"Quova", DEFAULT_CONNECTION_POOL_SIZE);
+
+	/**
+	 * Address the circuit breaker probe queries Quova with
+	 */
+	private volatile String probeIpAddress = DEFAULT_PROBE_IP_ADDRESS;
+
+	/**
+	 * Holds the cache of recent lookup results, null if caching is disabled
+	 */
+	private volatile IP_GeoResponseCache lookupCache;
+
+	/**
+	 * Holds the cache of recent NOT_FOUND lookup results, which expire sooner
+	 * than found ones, null if negative caching is disabled
+	 */
+	private volatile IP_GeoResponseCache notFoundCache;
+
+	/**
+	 * Holds the lookups shared with the other JVMs of the host through a
+	 * memory-mapped file, null if sharing is disabled
+	 */
+	private volatile SharedIP_GeoResponseCache sharedCache;
+
+	/**
+	 * Time a response stays in the shared cache
+	 */
+	private volatile long sharedCacheTtlInMillis;
+
+	/**
+	 * File the lookup caches are written to periodically and on shutdown,
+	 * null if cache snapshots are disabled
+	 */
+	private volatile File cacheSnapshotFile;
+
+	/**
+	 * Loads and writes the cache snapshots, null until they are enabled
+	 */
+	private ScheduledThreadPoolExecutor cacheSnapshotScheduler;
+
+	private ScheduledFuture<?> cacheSnapshotTask;
+
+	private long cacheSnapshotIntervalInMillis;
+
+	/**
+	 * Serializes the periodic snapshot with the one written on shutdown
+	 */
+	private final Object cacheSnapshotLock = new Object();
+
+	/**
+	 * False until the snapshot written by the previous JVM is restored, so
+	 * that a snapshot of the still filling caches does not replace it
+	 */
+	private volatile boolean cacheSnapshotLoaded;
+
+	/**
+	 * Answer lookups for private and reserved addresses with an empty
+	 * response instead of querying Quova
+	 */
+	private volatile boolean answerReservedAddressesLocally = true;
+
+	/**
+	 * Maximum number of ipAddresses sent to Quova in one batch query
+	 */
+	private volatile int batchLookupSize = DEFAULT_BATCH_LOOKUP_SIZE;
+
+	/**
+	 * Runs the batches of lookupAll in parallel, sized to the connection pool
+	 */
+	private volatile ThreadPoolExecutor batchExecutor;
+
+	/**
+	 * Runs lookupAsync lookups, bounded in both threads and queued lookups
+	 */
+	private volatile ThreadPoolExecutor asyncExecutor;
+
+	/**
+	 * Default timeout of lookupAsync
+	 */
+	private volatile long asyncLookupTimeoutInMillis;
+
+	/**
+	 * Completes lookupAsync futures that run past their timeout
+	 */
+	private final ScheduledThreadPoolExecutor asyncTimeoutScheduler = createTimeoutScheduler();
+
+	/**
+	 * Outcome of a Quova query shared by the lookups coalesced on it
+	 */
+	private static final class QuovaLookup {
+
+		/**
+		 * The record Quova returned, null if the response came from the
+		 * cache
+		 */
+		final IPInfo ipInfoRecord;
+
+		/**
+		 * The response decoded for the lookup that sent the query
+		 */
+		final IP_GeoResponse response;
+
+		QuovaLookup(IPInfo ipInfoRecord, IP_GeoResponse response) {
+			this.ipInfoRecord = ipInfoRecord;
+			this.response = response;
+		}
+	}
+
+	/**
+	 * Quova queries in flight, keyed on the address queried
+	 */
+	private final SingleFlight<IP_AddressKey, QuovaLookup> inFlightLookups = new SingleFlight<IP_AddressKey, QuovaLookup>();
+
+	/**
+	 * Reloads the configuration when the external properties file changes,
+	 * null unless hotwire.eis.geo.quova.watchConfiguration is set. Guarded by
+	 * this.
+	 */
+	private PropertiesFileWatcher configurationWatcher;
 
 	/**
-	 * Holds the connection to a Quova GeoServer
+	 * The external properties file as last read, so that a reload applies
+	 * only the settings that changed in it. Guarded by this.
 	 */
-	private GeoDirectoryAPI geoDirectoryConnection;
+	private Properties externalProperties;
+
+	private File externalPropertiesFile;
 
 	// protected transient HwProperties hwProps;
-	protected transient Properties hwProps;
+	protected transient volatile Properties hwProps;
 
 	// //////////////////////////////////////////////////////////////
 	// METHODS
@@ -71,369 +328,2195 @@ public class QuovaIP_GeoServerAdapter{
 	 * @throws HwIP_GeoException 
 	 */
 	public IP_GeoResponse lookup(String ipAddress) throws HwIP_GeoException{
-		IPInfo ipInfoRecord = getIP_InfoRecord(ipAddress);
-		return getIP_GeoResponseFromIPInfoRecord(ipInfoRecord);
+		return lookup(ipAddress, IP_GeoField.ALL_MASK);
 	}
 
 	/**
-	 * Queries Quova with ipAddress and returns the IPInfo record that Quova
-	 * returns, null if the call raises an exception
+	 * Looks up ipAddress decoding only fields from the Quova record, which
+	 * saves the work of decoding the fields callers such as those wanting
+	 * only the country code do not use
 	 *
 	 * @param ipAddress
-	 * @return IPInfo record returned by Quova, null if the IP was not found or
-	 *         an exception was thrown
+	 * @param fields
+	 * @return an IP_GeoResponse object holding at least fields
+	 * @throws HwIP_GeoException
+	 * @see #lookup(String)
 	 */
-	private IPInfo getIP_InfoRecord(String ipAddress) throws HwIP_GeoException {
-		IPInfo ipInfoRecord = null;
+	public IP_GeoResponse lookup(String ipAddress, Set<IP_GeoField> fields)
+			throws HwIP_GeoException {
+		return lookup(ipAddress, IP_GeoField.mask(fields));
+	}
 
-		// if the ipAddressOverride property is not null, then use it to query
-		// for geo information
-		if (!StringUtils.isEmpty(ipAddressOverride)) {
-			ipAddress = ipAddressOverride;
+	private IP_GeoResponse lookup(String ipAddress, int fieldMask)
+			throws HwIP_GeoException {
+		String queryAddress = getQueryAddress(ipAddress);
+		IP_AddressKey key;
+		try {
+			key = parseQueryAddress(queryAddress);
+		} catch (HwIP_GeoException e) {
+			metrics.recordError(e.getErrorCode());
+			throw e;
 		}
+		return lookup(key, queryAddress, fieldMask);
+	}
 
-		// throw exception if ipAddress is empty (Quova throws does not allow an
-		// empty IP as an arg)
-		if (StringUtils.isEmpty(ipAddress)) {
-			log.warning("IP Address passed to Quova GeoServer was empty");
-			throw new HwIP_GeoException(
-					HotwireErrors.IPGEO_GEO_SERVER_INVALID_ARGUMENT);
-		}
+	/**
+	 * Looks up an address that has already been parsed, so that callers
+	 * holding addresses in binary form need not format them as strings
+	 *
+	 * @param ipAddress
+	 * @return an IP_GeoResponse object
+	 * @throws HwIP_GeoException
+	 * @see #lookup(String)
+	 */
+	public IP_GeoResponse lookup(IP_AddressKey ipAddress)
+			throws HwIP_GeoException {
+		return lookup(ipAddress, IP_GeoField.ALL);
+	}
 
-		if (geoDirectoryConnection != null) {
-			QuovaResponse quovaResponse = null;
-			long startTimeMillis = System.currentTimeMillis();
-			try {
-				// Query Quova adapter for geo information
-				quovaResponse = geoDirectoryConnection.getIPInfo(ipAddress);
-
-				// log elapsed query time
-				if (log.isLoggable(Level.FINE)) {
-					log.fine("Successful Quova query for ip " + ipAddress
-							+ " took "
-							+ (System.currentTimeMillis() - startTimeMillis)
-							+ " milliseconds");
-				}
-			} catch (QuovaException qe) {
-				long errorQueryTime = System.currentTimeMillis()
-						- startTimeMillis;
-				boolean isRecoverableError = false;
-				QuovaReturnCode quovaExceptionReturnCode = qe.getErrorCode();
-				if (QuovaReturnCode.INVALID_INPUT
-						.equals(quovaExceptionReturnCode)
-						|| QuovaReturnCode.TIMEOUT
-								.equals(quovaExceptionReturnCode)) {
-					// recoverable, log but don't null connection
-					isRecoverableError = true;
-				} else {
-					if (QuovaReturnCode.POOL_FAILURE
-							.equals(quovaExceptionReturnCode)) {
-						// recoverable, but pool tuning is needed to handle
-						// load, syslog but don't null connection
-						// if this happens it should be only for a short time,
-						// so it won't spam syslogs
-						isRecoverableError = true;
-					} else {
-						// unrecoverable error such as invalid license, server
-						// down etc
-						// null the connection so that the app does not keep
-						// querying the broken geo server
-						// syslog so that the server can be brought back up
-						geoDirectoryConnection = null;
-					}
-					// HwLogger.syslog(SyslogFunctionalAreas.AREA_QUOVA,
-					// "Exception querying Quova - exception code: " +
-					// quovaExceptionReturnCode);
-				}
-				String errorTypeMessage = isRecoverableError ? "Recoverable error"
-						: "Unrecoverable error";
-				log.log(Level.SEVERE, errorTypeMessage
-						+ " encountered querying Quova - exception code: "
-						+ quovaExceptionReturnCode + ". Query took "
-						+ errorQueryTime + " milliseconds.", qe);
-				throw new HwIP_GeoException(
-						HotwireErrors.IPGEO_GEO_SERVER_NOT_AVAILABLE, qe);
-			} catch (Throwable t) {
-				// THIS SHOULD NEVER HAPPEN, however we catch it here so it does
-				// not crash the server
-				// null the connection so that the app does not query the broken
-				// geo server
-				geoDirectoryConnection = null;
-				// HwLogger.syslog(SyslogFunctionalAreas.AREA_QUOVA,
-				// "Runtime error encountered querying Geo Server");
-				log.severe("Runtime error encountered querying Geo Server: "
-						+ t);
-				throw new HwIP_GeoException(
-						HotwireErrors.IPGEO_GEO_SERVER_RUNTIME_ERROR,
-						new Exception(t));
-			}
-
-			// Quova supports batch ipLookups, since we only sent 1 ipAddress,
-			// we want the record at index 0
-			ipInfoRecord = quovaResponse.getIPInfo(0);
-
-			// sanity check the return code
-			if (!ipInfoRecord.getRetCode().equals(QuovaReturnCode.NOT_FOUND)
-					&& !ipInfoRecord.getRetCode().equals(
-							QuovaReturnCode.SUCCESS)) {
-				// we received an info record with an invalid return code, log
-				// it
-				log.severe("Quova returned a response with an error return code: "
-						+ ipInfoRecord.getRetCode());
-				throw new HwIP_GeoException(
-						HotwireErrors.IPGEO_GEO_SERVER_INVALID_RESPONSE);
-			}
-		} else {
-			log.warning("Quova Geo Server connection is null, geo server query will be skipped");
-			throw new HwIP_GeoException(
-					HotwireErrors.IPGEO_GEO_SERVER_NOT_AVAILABLE);
+	/**
+	 * @param ipAddress
+	 * @param fields
+	 * @return an IP_GeoResponse object holding at least fields
+	 * @throws HwIP_GeoException
+	 * @see #lookup(String, Set)
+	 */
+	public IP_GeoResponse lookup(IP_AddressKey ipAddress,
+			Set<IP_GeoField> fields) throws HwIP_GeoException {
+		int fieldMask = IP_GeoField.mask(fields);
+		if (!StringUtils.isEmpty(ipAddressOverride)) {
+			return lookup(ipAddressOverride, fieldMask);
 		}
+		return lookup(ipAddress, null, fieldMask);
+	}
 
-		return ipInfoRecord;
+	/**
+	 * @param ipAddress
+	 * @return an IP_GeoResponse object
+	 * @throws HwIP_GeoException
+	 * @see #lookup(String)
+	 */
+	public IP_GeoResponse lookup(InetAddress ipAddress)
+			throws HwIP_GeoException {
+		return lookup(IP_AddressKey.of(ipAddress));
 	}
 
 	/**
-	 * Helper method that takes an ipInfoRecord as input and populates an
-	 * IP_GeoResponse with the record It currently sets the countryCode,
-	 * gmtOffset, ndmaCode and zipCode if cityConfidenceFactor is >=
-	 * cityConfidenceFactorThreshold
+	 * Retrieves the geographical information of ipAddress without throwing.
+	 * Malformed addresses are rejected without raising an exception at all,
+	 * the other failures are raised internally as stackless
+	 * HwIP_GeoExceptions.
 	 *
-	 * @param ipInfoRecord
-	 * @return IP_GeoResponse
+	 * @param ipAddress
+	 * @return IP_GeoLookupResult holding the response, or the status and
+	 *         error code of the failure
 	 */
-	private IP_GeoResponse getIP_GeoResponseFromIPInfoRecord(IPInfo ipInfoRecord) {
-		IP_GeoResponse ipGeoResponse = new IP_GeoResponse(
-				ipInfoRecord.getString(IPInfoField.IP_ADDRESS),
-				'Q');
-		// set country code
-		ipGeoResponse.setCountryCode(ipInfoRecord
-				.getString(IPInfoField.COUNTRY));
+	public IP_GeoLookupResult lookupResult(String ipAddress) {
+		return lookupResult(ipAddress, IP_GeoField.ALL);
+	}
 
-		// parse GMT
-		try {
-			Float gmtOffset = ipInfoRecord.getFloat(IPInfoField.TIMEZONE);
-			if (gmtOffset != null) {
-				ipGeoResponse.setGmtOffset(gmtOffset.floatValue());
-			}
-		} catch (QuovaException qe) {
-			// this is expected since gmtOffset sometimes comes back as
-			// 'multizone' so ignore this
-			if (log.isLoggable(Level.FINE)) {
-				log.fine("Could not parse IPInfoField.TIMEZONE for ip: "
-						+ ipGeoResponse.getIP_Address() + ". "
-						+ "String value of field is: "
-						+ ipInfoRecord.getString(IPInfoField.TIMEZONE));
-			}
+	/**
+	 * Retrieves fields of the geographical information of ipAddress without
+	 * throwing
+	 *
+	 * @param ipAddress
+	 * @param fields
+	 * @return IP_GeoLookupResult holding the response, or the status and
+	 *         error code of the failure
+	 * @see #lookup(String, Set)
+	 */
+	public IP_GeoLookupResult lookupResult(String ipAddress,
+			Set<IP_GeoField> fields) {
+		String queryAddress = getQueryAddress(ipAddress);
+		IP_AddressKey key = StringUtils.isEmpty(queryAddress) ? null
+				: IP_AddressParser.parse(queryAddress);
+		if (key == null) {
+			metrics.recordError(HotwireErrors.IPGEO_GEO_SERVER_INVALID_ARGUMENT);
+			return IP_GeoLookupResult.failure(ipAddress,
+					IP_GeoLookupResult.Status.INVALID,
+					HotwireErrors.IPGEO_GEO_SERVER_INVALID_ARGUMENT);
 		}
-
-		// parse NDMA code
 		try {
-			Integer ndmaCode = ipInfoRecord.getInt(IPInfoField.DMA);
-			if (ndmaCode != null) {
-				ipGeoResponse.setNDMA_Code(ndmaCode.intValue());
-			}
-		} catch (QuovaException qe) {
-			log.log(Level.SEVERE,
-					"Could not parse IPInfoField.DMA for ip: "
-							+ ipGeoResponse.getIP_Address() + ". "
-							+ "String value of field is: "
-							+ ipInfoRecord.getString(IPInfoField.DMA), qe);
+			IP_GeoResponse ipGeoResponse = lookup(key, queryAddress,
+					IP_GeoField.mask(fields));
+			return IP_GeoLookupResult.success(ipAddress, ipGeoResponse,
+					ipGeoResponse.isFound());
+		} catch (HwIP_GeoException e) {
+			return IP_GeoLookupResult.failure(ipAddress, e);
+		} catch (RuntimeException e) {
+			return IP_GeoLookupResult.failure(ipAddress,
+					IP_GeoLookupResult.Status.ERROR,
+					HotwireErrors.IPGEO_GEO_SERVER_RUNTIME_ERROR);
 		}
+	}
 
-		// evaluate the city confidence factor and if it is >=
-		// cityConfidenceFactorThreshold, set the zip code
-		Integer cityConfidenceFactor = ipInfoRecord.getCF(IPInfoField.CITY);
-		if (cityConfidenceFactor != null
-				&& cityConfidenceFactor.intValue() >= cityConfidenceFactorThreshold) {
-			ipGeoResponse.setZipCode(ipInfoRecord.getString(IPInfoField.ZIP));
-			ipGeoResponse.setCityName(ipInfoRecord.getString(IPInfoField.CITY));
-			ipGeoResponse.setStateName(ipInfoRecord
-					.getString(IPInfoField.STATE));
+	/**
+	 * @param key
+	 * @param queryAddress
+	 *            the text that parsed into key, null to format key
+	 * @param fieldMask
+	 *            bit mask of the IP_GeoFields to decode
+	 */
+	private IP_GeoResponse lookup(final IP_AddressKey key,
+			final String queryAddress, final int fieldMask)
+			throws HwIP_GeoException {
+		long startTimeNanos = System.nanoTime();
+		IP_GeoResponse localResponse = getLocalResponse(key, queryAddress,
+				fieldMask);
+		if (localResponse != null) {
+			metrics.recordLookup(startTimeNanos, true);
+			return localResponse;
 		}
 
-		// parse other numeric fields
 		try {
-			Float longitude = ipInfoRecord.getFloat(IPInfoField.LONGITUDE);
-			if (longitude != null) {
-				ipGeoResponse.setLongitude(longitude.floatValue());
+			// concurrent lookups for the same address share one Quova query,
+			// so that a burst of requests from one address takes one pooled
+			// connection instead of all of them
+			QuovaLookup quovaLookup = inFlightLookups.execute(key,
+					() -> queryAndCache(key, queryAddress, fieldMask));
+			if (quovaLookup.response.hasFields(fieldMask)) {
+				return quovaLookup.response;
 			}
-
-			Float latitude = ipInfoRecord.getFloat(IPInfoField.LATITUDE);
-			if (latitude != null) {
-				ipGeoResponse.setLatitude(latitude.floatValue());
+			// the lookup we shared wanted fewer fields
+			if (quovaLookup.ipInfoRecord != null) {
+				return getIP_GeoResponseFromIPInfoRecord(
+						quovaLookup.ipInfoRecord, fieldMask);
 			}
-		} catch (QuovaException qe) {
-			log.log(Level.SEVERE,
-					"Could not parse latitude / longitude for ip: "
-							+ ipGeoResponse.getIP_Address() + ". "
-							+ "String value of latitude is: "
-							+ ipInfoRecord.getString(IPInfoField.LATITUDE)
-							+ ". " + "String value of longitude is: "
-							+ ipInfoRecord.getString(IPInfoField.LONGITUDE)
-							+ ".", qe);
+			return queryAndCache(key, queryAddress, fieldMask).response;
+		} catch (HwIP_GeoException e) {
+			metrics.recordError(e.getErrorCode());
+			throw e;
+		} finally {
+			metrics.recordLookup(startTimeNanos, false);
 		}
-		return ipGeoResponse;
 	}
 
 	/**
-	 * Called to refresh properties and Geo Directory Server connection
+	 * Queries Quova for key and caches the response
+	 *
+	 * @param key
+	 * @param queryAddress
+	 *            the text that parsed into key, null to format key
+	 * @param fieldMask
+	 *            bit mask of the IP_GeoFields to decode
 	 */
-	public void configurationChanged() {
-		if (log.isLoggable(Level.FINE)) {
-			log.fine("Initializing QuovaIP_GeoServerAdapter");
+	private QuovaLookup queryAndCache(IP_AddressKey key, String queryAddress,
+			int fieldMask) throws HwIP_GeoException {
+		// the previous query for key may have completed since our cache miss
+		IP_GeoResponse cachedResponse = getCachedResponse(key, 0);
+		if (cachedResponse != null && cachedResponse.hasFields(fieldMask)) {
+			return new QuovaLookup(null, cachedResponse);
 		}
 
-		String geoDirectoryServerConnectionPoolSize = null;
-		String geoDirectoryServerClientTimeout = null;
-		String geoDirectoryServerPrimaryServerIp = null;
-		String geoDirectoryServerPrimaryServerPort = null;
-		String geoDirectoryServerSecondaryServerIp = null;
-		String geoDirectoryServerSecondaryServerPort = null;
+		String canonicalAddress = queryAddress != null ? IP_AddressParser
+				.canonicalize(queryAddress, key) : key.toString();
+		IPInfo ipInfoRecord = getIP_InfoRecord(canonicalAddress);
+		// keep the fields already cached for key, so that lookups for
+		// different fields do not keep replacing each other's response
+		IP_GeoResponse ipGeoResponse = getIP_GeoResponseFromIPInfoRecord(
+				ipInfoRecord, cachedResponse != null ? fieldMask
+						| cachedResponse.getFieldMask() : fieldMask);
+		// cache before the query leaves inFlightLookups, so that a lookup
+		// arriving in between finds it
+		cacheResponse(key, ipInfoRecord, ipGeoResponse);
+		return new QuovaLookup(ipInfoRecord, ipGeoResponse);
+	}
 
-		try {
-			String hegq = "hotwire.eis.geo.quova.";
+	/**
+	 * Returns the response for key that can be given without querying Quova
+	 *
+	 * @param key
+	 * @param queryAddress
+	 *            the text that parsed into key, null to format key
+	 * @param fieldMask
+	 *            bit mask of the IP_GeoFields the response must hold
+	 * @return an empty response if key is a reserved address, the cached
+	 *         response otherwise, null if there is none
+	 */
+	private IP_GeoResponse getLocalResponse(IP_AddressKey key,
+			String queryAddress, int fieldMask) {
+		if (answerReservedAddressesLocally && ReservedIP_Ranges.isReserved(key)) {
+			// the response Quova gives for these, without the round trip
+			return new IP_GeoResponse(queryAddress != null ? IP_AddressParser
+					.canonicalize(queryAddress, key) : key.toString(),
+					IP_GeoResponse.GEO_INFO_SOURCE_QUOVA);
+		}
+		return getCachedResponse(key, fieldMask);
+	}
 
-			// read attribute properties
+	/**
+	 * @param key
+	 * @param fieldMask
+	 *            bit mask of the IP_GeoFields the response must hold
+	 * @return the cached response for key, null if there is none or it lacks
+	 *         some of the fields
+	 */
+	private IP_GeoResponse getCachedResponse(IP_AddressKey key, int fieldMask) {
+		IP_GeoResponseCache cache = lookupCache;
+		if (cache != null) {
+			IP_GeoResponse cachedResponse = cache.get(key);
+			if (cachedResponse != null) {
+				return cachedResponse.hasFields(fieldMask) ? cachedResponse
+						: null;
+			}
+		}
+		// not found responses hold every field
+		IP_GeoResponseCache negativeCache = notFoundCache;
+		if (negativeCache != null) {
+			IP_GeoResponse cachedResponse = negativeCache.get(key);
+			if (cachedResponse != null) {
+				return cachedResponse;
+			}
+		}
+		// responses another JVM of the host got from Quova, left off the
+		// heap rather than copied into the local caches
+		SharedIP_GeoResponseCache shared = sharedCache;
+		if (shared != null) {
+			IP_GeoResponse sharedResponse = shared.get(key);
+			if (sharedResponse != null && sharedResponse.hasFields(fieldMask)) {
+				return sharedResponse;
+			}
+		}
+		return null;
+	}
 
-			// read general Quova settings
-			geoDirectoryServerConnectionPoolSize = hwProps.getProperty(hegq
-					+ "geoDirectoryServerConnectionPoolSize");
-			geoDirectoryServerClientTimeout = hwProps.getProperty(hegq
-					+ "geoDirectoryServerClientTimeoutInMillis");
+	/**
+	 * Caches the response Quova gave for key, in notFoundCache if Quova did
+	 * not find key
+	 *
+	 * @param key
+	 * @param ipInfoRecord
+	 * @param ipGeoResponse
+	 *            the response made from ipInfoRecord
+	 */
+	private void cacheResponse(IP_AddressKey key, IPInfo ipInfoRecord,
+			IP_GeoResponse ipGeoResponse) {
+		boolean notFound = QuovaReturnCode.NOT_FOUND.equals(ipInfoRecord
+				.getRetCode());
+		IP_GeoResponseCache cache = notFound ? notFoundCache : lookupCache;
+		if (cache != null) {
+			cache.put(key, ipGeoResponse);
+		}
 
-			// read primary Quova server settings
-			geoDirectoryServerPrimaryServerIp = hwProps.getProperty(hegq
-					+ "geoDirectoryServerPrimaryServerIp");
-			geoDirectoryServerPrimaryServerPort = hwProps.getProperty(hegq
-					+ "geoDirectoryServerPrimaryServerPort");
+		SharedIP_GeoResponseCache shared = sharedCache;
+		if (shared != null && (!notFound || cache != null)) {
+			long ttlInMillis = sharedCacheTtlInMillis;
+			if (notFound
+					&& cache.getTtlInMillis() > 0
+					&& (ttlInMillis <= 0 || cache.getTtlInMillis() < ttlInMillis)) {
+				// not found responses expire as soon as they do locally
+				ttlInMillis = cache.getTtlInMillis();
+			}
+			shared.put(key, ipGeoResponse, ttlInMillis);
+		}
+	}
 
-			// read secondary Quova server settings, if any
-			geoDirectoryServerSecondaryServerIp = hwProps.getProperty(hegq
-					+ "geoDirectoryServerSecondaryServerIp");
-			geoDirectoryServerSecondaryServerPort = hwProps.getProperty(hegq
-					+ "geoDirectoryServerSecondaryServerPort");
+	/**
+	 * Returns the address that is sent to Quova for ipAddress
+	 *
+	 * @param ipAddress
+	 * @return ipAddressOverride if it is set, ipAddress otherwise
+	 */
+	private String getQueryAddress(String ipAddress) {
+		// if the ipAddressOverride property is not null, then use it to query
+		// for geo information
+		return StringUtils.isEmpty(ipAddressOverride) ? ipAddress
+				: ipAddressOverride;
+	}
 
-		} catch (Exception e) {
-			String errorMessage = "Encountered runtime exception reading properties: "
-					+ e;
-			// HwLogger.syslog(SyslogFunctionalAreas.AREA_QUOVA, errorMessage);
-			log.log(Level.SEVERE, errorMessage, e);
-			return;
+	/**
+	 * Validates the address that is sent to Quova, so that malformed
+	 * addresses are rejected without a round trip to the server
+	 *
+	 * @param queryAddress
+	 * @return IP_AddressKey of queryAddress
+	 * @throws HwIP_GeoException
+	 *             if queryAddress is empty or malformed
+	 */
+	private IP_AddressKey parseQueryAddress(String queryAddress)
+			throws HwIP_GeoException {
+		// throw exception if ipAddress is empty (Quova throws does not allow an
+		// empty IP as an arg)
+		if (StringUtils.isEmpty(queryAddress)) {
+			lookupLog.warn("EMPTY_IP",
+					"IP Address passed to Quova GeoServer was empty");
+			throw HwIP_GeoException
+					.stackless(HotwireErrors.IPGEO_GEO_SERVER_INVALID_ARGUMENT);
 		}
+		IP_AddressKey address = IP_AddressParser.parse(queryAddress);
+		if (address == null) {
+			log.debug("Malformed IP Address {} rejected without querying Quova",
+					queryAddress);
+			throw HwIP_GeoException
+					.stackless(HotwireErrors.IPGEO_GEO_SERVER_INVALID_ARGUMENT);
+		}
+		return address;
+	}
+
+	/**
+	 * Returns the response for ipAddress that can be given without querying
+	 * Quova
+	 *
+	 * @param ipAddress
+	 * @return IP_GeoResponse, null if ipAddress is malformed, or neither
+	 *         reserved nor cached
+	 */
+	private IP_GeoResponse getLocalResponse(String ipAddress) {
+		String queryAddress = getQueryAddress(ipAddress);
+		IP_AddressKey address = IP_AddressParser.parse(queryAddress);
+		return address != null ? getLocalResponse(address, queryAddress,
+				IP_GeoField.ALL_MASK) : null;
+	}
+
+	/**
+	 * Looks up ipAddress without blocking the caller, using the default
+	 * timeout hotwire.eis.geo.quova.asyncLookupTimeoutInMillis
+	 *
+	 * @param ipAddress
+	 * @return future completed with the IP_GeoResponse, or exceptionally with
+	 *         the HwIP_GeoException that lookup would have thrown
+	 * @see #lookupAsync(String, long, TimeUnit)
+	 */
+	public CompletableFuture<IP_GeoResponse> lookupAsync(String ipAddress) {
+		return lookupAsync(ipAddress, asyncLookupTimeoutInMillis,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Looks up ipAddress on the adapter's bounded async executor so that the
+	 * caller's thread is never blocked on Quova. Cache hits complete
+	 * immediately on the calling thread.
+	 * <p/>
+	 * The future completes exceptionally with a HwIP_GeoException if the
+	 * lookup fails, with IPGEO_GEO_SERVER_TIMEOUT if it has not completed
+	 * within timeout, and with IPGEO_GEO_SERVER_NOT_AVAILABLE if the executor's
+	 * queue is full.
+	 * <p/>
+	 * A lookup that times out while queued is taken off the queue. One that is
+	 * already running is not interrupted, since other lookups of the same
+	 * address may be waiting on its query: it runs to the end and its
+	 * response is cached for the next lookup.
+	 *
+	 * @param ipAddress
+	 * @param timeout
+	 *            time allowed for the lookup, no timeout if this is not
+	 *            positive
+	 * @param unit
+	 * @return future completed with the IP_GeoResponse
+	 */
+	public CompletableFuture<IP_GeoResponse> lookupAsync(
+			final String ipAddress, long timeout, TimeUnit unit) {
+		IP_GeoResponse cachedResponse = getLocalResponse(ipAddress);
+		if (cachedResponse != null) {
+			return CompletableFuture.completedFuture(cachedResponse);
+		}
+
+		final CompletableFuture<IP_GeoResponse> future = new CompletableFuture<>();
+		ThreadPoolExecutor executor = asyncExecutor;
+		if (executor == null) {
+			lookupLog.warn("ASYNC_NOT_CONFIGURED",
+					"Async lookup executor is not configured, lookup for ip {} skipped",
+					ipAddress);
+			future.completeExceptionally(HwIP_GeoException
+					.stackless(HotwireErrors.IPGEO_GEO_SERVER_NOT_AVAILABLE));
+			return future;
+		}
+
+		final Runnable task = () -> {
+			// the lookup may have timed out while it was queued
+			if (future.isDone()) {
+				return;
+			}
+			try {
+				future.complete(lookup(ipAddress));
+			} catch (HwIP_GeoException | RuntimeException e) {
+				future.completeExceptionally(e);
+			}
+		};
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			lookupLog.warn("ASYNC_QUEUE_FULL",
+					"Async lookup queue is full, lookup for ip {} rejected",
+					ipAddress);
+			future.completeExceptionally(HwIP_GeoException
+					.stackless(HotwireErrors.IPGEO_GEO_SERVER_NOT_AVAILABLE));
+			return future;
+		}
+
+		if (timeout > 0) {
+			final ScheduledFuture<?> timer = asyncTimeoutScheduler.schedule(
+					() -> {
+						if (!future.isDone()) {
+							// free its place in the queue, a no-op if it runs
+							executor.remove(task);
+							future.completeExceptionally(HwIP_GeoException
+									.stackless(HotwireErrors.IPGEO_GEO_SERVER_TIMEOUT));
+						}
+					}, timeout, unit);
+			future.whenComplete((response, error) -> timer.cancel(false));
+		}
+		return future;
+	}
+
+	/**
+	 * Looks up ipAddress without blocking the caller, and falls back to
+	 * fallbackResponse if the lookup fails or times out. Callers such as page
+	 * rendering can use this to carry on without geo data instead of
+	 * stalling.
+	 *
+	 * @param ipAddress
+	 * @param timeout
+	 *            time allowed for the lookup, no timeout if this is not
+	 *            positive
+	 * @param unit
+	 * @param fallbackResponse
+	 *            response to complete with if the lookup does not succeed, may
+	 *            be null
+	 * @return future that always completes normally
+	 */
+	public CompletableFuture<IP_GeoResponse> lookupAsync(
+			final String ipAddress, long timeout, TimeUnit unit,
+			final IP_GeoResponse fallbackResponse) {
+		return lookupAsync(ipAddress, timeout, unit).exceptionally(error -> {
+			log.debug("Async lookup for ip {} failed, using fallback response: {}",
+					ipAddress, error);
+			return fallbackResponse;
+		});
+	}
+
+	/**
+	 * Queries Quova with ipAddress and returns the IPInfo record that Quova
+	 * returns, null if the call raises an exception
+	 *
+	 * @param ipAddress
+	 *            address to send to Quova, already validated by
+	 *            parseQueryAddress
+	 * @return IPInfo record returned by Quova, null if the IP was not found or
+	 *         an exception was thrown
+	 */
+	private IPInfo getIP_InfoRecord(final String ipAddress)
+			throws HwIP_GeoException {
+		GeoDirectoryConnection connection = acquireConnection();
+		QuovaResponse quovaResponse = null;
+		long startTimeNanos = metrics.quovaCallStarted();
+		try {
+			// Query Quova adapter for geo information
+			quovaResponse = hedger.query(connection, api -> api
+					.getIPInfo(ipAddress));
+		} catch (QuovaException qe) {
+			throw handleQuovaException(qe, startTimeNanos);
+		} catch (InterruptedException e) {
+			throw handleInterrupt();
+		} catch (Throwable t) {
+			throw handleRuntimeError(t, startTimeNanos);
+		} finally {
+			connection.release();
+			metrics.quovaCallEnded(startTimeNanos);
+		}
+		onQuerySuccess(startTimeNanos);
+
+		// log elapsed query time
+		if (lookupLog.isDebugSampled()) {
+			log.debug("Successful Quova query for ip {} took {} milliseconds",
+					ipAddress, (System.nanoTime() - startTimeNanos) / 1000000L);
+		}
+
+		// Quova supports batch ipLookups, since we only sent 1 ipAddress,
+		// we want the record at index 0
+		IPInfo ipInfoRecord = quovaResponse.getIPInfo(0);
+		metrics.recordReturnCode(ipInfoRecord.getRetCode());
+
+		// sanity check the return code
+		if (!isValidReturnCode(ipInfoRecord)) {
+			throw HwIP_GeoException
+					.stackless(HotwireErrors.IPGEO_GEO_SERVER_INVALID_RESPONSE);
+		}
+		return ipInfoRecord;
+	}
+
+	/**
+	 * Acquires the connection to query Quova with, if the circuit breaker and
+	 * the concurrency limit permit the call. The connection must be released
+	 * after the query, and the outcome reported through onQuerySuccess,
+	 * handleQuovaException, handleRuntimeError or handleInterrupt.
+	 *
+	 * @return GeoDirectoryConnection
+	 * @throws HwIP_GeoException
+	 *             IPGEO_GEO_SERVER_NOT_AVAILABLE if there is no connection,
+	 *             the circuit breaker is open or the concurrency limit is
+	 *             still reached after a short wait
+	 */
+	private GeoDirectoryConnection acquireConnection() throws HwIP_GeoException {
+		GeoServerCircuitBreaker breaker = circuitBreaker;
+		GeoDirectoryConnection connection = breaker != null ? acquireGeoDirectoryConnection()
+				: null;
+		if (connection == null) {
+			lookupLog.warn("NO_CONNECTION",
+					"Quova Geo Server connection is null, geo server query will be skipped");
+			throw HwIP_GeoException
+					.stackless(HotwireErrors.IPGEO_GEO_SERVER_NOT_AVAILABLE);
+		}
+		if (!breaker.tryAcquirePermission()) {
+			connection.release();
+			// the breaker logs its transitions, don't log every call it
+			// refuses
+			throw HwIP_GeoException
+					.stackless(HotwireErrors.IPGEO_GEO_SERVER_NOT_AVAILABLE);
+		}
+		if (!concurrencyLimiter.tryAcquire()) {
+			connection.release();
+			breaker.onIgnored();
+			lookupLog.warn("CONCURRENCY_LIMIT",
+					"Quova concurrency limit of {} reached, lookup shed",
+					concurrencyLimiter.getLimit());
+			throw HwIP_GeoException
+					.stackless(HotwireErrors.IPGEO_GEO_SERVER_NOT_AVAILABLE);
+		}
+		return connection;
+	}
+
+	/**
+	 * @return the published connection, acquired, null if there is none
+	 */
+	private GeoDirectoryConnection acquireGeoDirectoryConnection() {
+		for (;;) {
+			GeoDirectoryConnection connection = geoDirectoryConnection.get();
+			if (connection == null || connection.acquire()) {
+				return connection;
+			}
+			// retired while we were reading it, its replacement is already
+			// published
+		}
+	}
+
+	/**
+	 * Atomically replaces the published connection. The old connection is
+	 * closed once the queries in flight on it have released it.
+	 *
+	 * @param connection
+	 *            the new connection, null to unpublish the current one
+	 */
+	private void publishConnection(GeoDirectoryConnection connection) {
+		GeoDirectoryConnection oldConnection = geoDirectoryConnection
+				.getAndSet(connection);
+		if (oldConnection != null) {
+			oldConnection.release();
+		}
+	}
+
+	/**
+	 * Creates the clients for serverProperties: one client failing over from
+	 * the primary to the secondary server, or a client per server if
+	 * hedgedLookups is set and a secondary server is configured
+	 *
+	 * @param serverProperties
+	 * @return GeoDirectoryConnection
+	 * @throws QuovaException
+	 */
+	private GeoDirectoryConnection createConnection(Properties serverProperties)
+			throws QuovaException {
+		String secondaryServerIp = serverProperties.getProperty("SEC_SERVER_IP");
+		if (!hedgedLookups || secondaryServerIp == null) {
+			return new GeoDirectoryConnection(new GeoDirectoryAPI(
+					serverProperties), null);
+		}
+
+		Properties primaryProperties = (Properties) serverProperties.clone();
+		primaryProperties.remove("SEC_SERVER_IP");
+		primaryProperties.remove("SEC_SERVER_PORT");
+		Properties secondaryProperties = (Properties) primaryProperties.clone();
+		secondaryProperties.setProperty("PRIMARY_SERVER_IP", secondaryServerIp);
+		secondaryProperties.setProperty("PRIMARY_SERVER_PORT",
+				serverProperties.getProperty("SEC_SERVER_PORT"));
+
+		GeoDirectoryAPI primaryApi = new GeoDirectoryAPI(primaryProperties);
+		try {
+			return new GeoDirectoryConnection(primaryApi, new GeoDirectoryAPI(
+					secondaryProperties));
+		} catch (QuovaException qe) {
+			try {
+				primaryApi.close();
+			} catch (QuovaException closeException) {
+				log.warn("Exception closing primary GeoDirectoryAPI connection",
+						closeException);
+			}
+			throw qe;
+		}
+	}
+
+	private void onQuerySuccess(long startTimeNanos) {
+		long queryTimeNanos = System.nanoTime() - startTimeNanos;
+		concurrencyLimiter.onSuccess(queryTimeNanos);
+		GeoServerCircuitBreaker breaker = circuitBreaker;
+		if (breaker != null) {
+			breaker.onSuccess(queryTimeNanos);
+		}
+	}
+
+	/**
+	 * Logs a QuovaException raised by a query, reports it to the circuit
+	 * breaker and the concurrency limiter and returns the exception to throw
+	 * to the caller
+	 *
+	 * @param qe
+	 * @param startTimeNanos
+	 *            System.nanoTime() the failed query was started at
+	 * @return HwIP_GeoException to throw
+	 */
+	private HwIP_GeoException handleQuovaException(QuovaException qe,
+			long startTimeNanos) {
+		long errorQueryTimeNanos = System.nanoTime() - startTimeNanos;
+		long errorQueryTime = errorQueryTimeNanos / 1000000L;
+		boolean isRecoverableError = false;
+		GeoServerCircuitBreaker breaker = circuitBreaker;
+		QuovaReturnCode quovaExceptionReturnCode = qe.getErrorCode();
+		metrics.recordReturnCode(quovaExceptionReturnCode);
+		if (QuovaReturnCode.INVALID_INPUT.equals(quovaExceptionReturnCode)) {
+			// recoverable, and says nothing about the health of the server
+			isRecoverableError = true;
+			concurrencyLimiter.onIgnored();
+			if (breaker != null) {
+				breaker.onIgnored();
+			}
+		} else if (QuovaReturnCode.TIMEOUT.equals(quovaExceptionReturnCode)) {
+			// recoverable, counts towards the breaker's failure rate, and
+			// the server has more calls than it can answer in time
+			isRecoverableError = true;
+			concurrencyLimiter.onDropped(errorQueryTimeNanos);
+			if (breaker != null) {
+				breaker.onFailure(errorQueryTimeNanos);
+			}
+		} else {
+			if (QuovaReturnCode.POOL_FAILURE.equals(quovaExceptionReturnCode)) {
+				// recoverable, but pool tuning is needed to handle
+				// load, syslog but don't trip the breaker
+				// if this happens it should be only for a short time,
+				// so it won't spam syslogs
+				// the concurrency limit backs off below the pool size
+				isRecoverableError = true;
+				concurrencyLimiter.onDropped(errorQueryTimeNanos);
+				if (breaker != null) {
+					breaker.onIgnored();
+				}
+			} else {
+				// unrecoverable error such as invalid license, server
+				// down etc
+				// open the breaker so that the app does not keep
+				// querying the broken geo server, its probe reconnects
+				// once the server is back up
+				reconnectRequired = true;
+				concurrencyLimiter.onIgnored();
+				if (breaker != null) {
+					breaker.trip("Quova error " + quovaExceptionReturnCode);
+				}
+			}
+			// HwLogger.syslog(SyslogFunctionalAreas.AREA_QUOVA,
+			// "Exception querying Quova - exception code: " +
+			// quovaExceptionReturnCode);
+		}
+		// tell the caller when the input itself was rejected, so that a batch
+		// can isolate the offending address, or the server timed out
+		int errorCode = QuovaReturnCode.INVALID_INPUT
+				.equals(quovaExceptionReturnCode) ? HotwireErrors.IPGEO_GEO_SERVER_INVALID_ARGUMENT
+				: QuovaReturnCode.TIMEOUT.equals(quovaExceptionReturnCode) ? HotwireErrors.IPGEO_GEO_SERVER_TIMEOUT
+						: HotwireErrors.IPGEO_GEO_SERVER_NOT_AVAILABLE;
+		if (isRecoverableError) {
+			// expected under load or from bad input, and raised by every
+			// query while it lasts, so no stack trace to build or log
+			lookupLog.warn(String.valueOf(quovaExceptionReturnCode),
+					"Recoverable error encountered querying Quova - exception code: {}. Query took {} milliseconds.",
+					quovaExceptionReturnCode, errorQueryTime);
+			return HwIP_GeoException.stackless(errorCode);
+		}
+		lookupLog.error(String.valueOf(quovaExceptionReturnCode),
+				"Unrecoverable error encountered querying Quova - exception code: {}. Query took {} milliseconds.",
+				quovaExceptionReturnCode, errorQueryTime, qe);
+		return new HwIP_GeoException(errorCode, qe);
+	}
+
+	/**
+	 * Logs an unexpected error raised by a query, opens the circuit breaker
+	 * and returns the exception to throw to the caller
+	 *
+	 * @param t
+	 * @param startTimeNanos
+	 *            System.nanoTime() the failed query was started at
+	 * @return HwIP_GeoException to throw
+	 */
+	private HwIP_GeoException handleRuntimeError(Throwable t,
+			long startTimeNanos) {
+		// THIS SHOULD NEVER HAPPEN, however we catch it here so it does
+		// not crash the server
+		// open the breaker so that the app does not query the broken
+		// geo server until the probe has reconnected
+		reconnectRequired = true;
+		concurrencyLimiter.onIgnored();
+		GeoServerCircuitBreaker breaker = circuitBreaker;
+		if (breaker != null) {
+			breaker.trip("runtime error " + t);
+		}
+		// HwLogger.syslog(SyslogFunctionalAreas.AREA_QUOVA,
+		// "Runtime error encountered querying Geo Server");
+		lookupLog.error("RUNTIME_ERROR",
+				"Runtime error encountered querying Geo Server", t);
+		return new HwIP_GeoException(
+				HotwireErrors.IPGEO_GEO_SERVER_RUNTIME_ERROR, new Exception(t));
+	}
+
+	/**
+	 * Releases the circuit breaker permission and the concurrency limit of a
+	 * query the caller stopped waiting for
+	 *
+	 * @return HwIP_GeoException to throw, without a stack trace as an
+	 *         interrupt is not an error of the geo server
+	 */
+	private HwIP_GeoException handleInterrupt() {
+		Thread.currentThread().interrupt();
+		concurrencyLimiter.onIgnored();
+		GeoServerCircuitBreaker breaker = circuitBreaker;
+		if (breaker != null) {
+			breaker.onIgnored();
+		}
+		return HwIP_GeoException
+				.stackless(HotwireErrors.IPGEO_GEO_SERVER_NOT_AVAILABLE);
+	}
+
+	/**
+	 * Sanity checks the return code of an info record, logging it if it is
+	 * neither SUCCESS nor NOT_FOUND
+	 *
+	 * @param ipInfoRecord
+	 * @return true if the record can be turned into an IP_GeoResponse
+	 */
+	private boolean isValidReturnCode(IPInfo ipInfoRecord) {
+		if (!ipInfoRecord.getRetCode().equals(QuovaReturnCode.NOT_FOUND)
+				&& !ipInfoRecord.getRetCode().equals(QuovaReturnCode.SUCCESS)) {
+			// we received an info record with an invalid return code, log
+			// it
+			lookupLog.error("INVALID_RESPONSE",
+					"Quova returned a response with an error return code: {}",
+					ipInfoRecord.getRetCode());
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Looks up geographical information for many ipAddresses at once. The
+	 * addresses that are not cached are sent to Quova in batches of
+	 * batchLookupSize, and the batches are queried in parallel across the
+	 * connection pool.
+	 * <p/>
+	 * A failed lookup does not fail the other lookups, each ipAddress gets its
+	 * own IP_GeoLookupResult instead.
+	 *
+	 * @param ipAddresses
+	 * @return map from each distinct ipAddress, in iteration order, to the
+	 *         result of its lookup
+	 */
+	public Map<String, IP_GeoLookupResult> lookupAll(
+			Collection<String> ipAddresses) {
+		Map<String, IP_GeoLookupResult> results = new LinkedHashMap<String, IP_GeoLookupResult>();
+		List<String> pendingIPs = new ArrayList<String>();
+		List<IP_AddressKey> pendingKeys = new ArrayList<IP_AddressKey>();
+		for (String ipAddress : ipAddresses) {
+			if (results.containsKey(ipAddress)) {
+				continue;
+			}
+			String queryAddress = getQueryAddress(ipAddress);
+			IP_AddressKey key;
+			try {
+				key = parseQueryAddress(queryAddress);
+			} catch (HwIP_GeoException e) {
+				metrics.recordError(e.getErrorCode());
+				results.put(ipAddress, IP_GeoLookupResult.failure(ipAddress, e));
+				continue;
+			}
+			IP_GeoResponse cachedResponse = getLocalResponse(key,
+					queryAddress, IP_GeoField.ALL_MASK);
+			if (cachedResponse != null) {
+				results.put(ipAddress, IP_GeoLookupResult.success(ipAddress,
+						cachedResponse, cachedResponse.isFound()));
+				continue;
+			}
+			// reserve the position so that results keep the input order
+			results.put(ipAddress, null);
+			pendingIPs.add(ipAddress);
+			pendingKeys.add(key);
+		}
+
+		if (pendingIPs.isEmpty()) {
+			return results;
+		}
+
+		int batchSize = batchLookupSize;
+		int batchCount = (pendingIPs.size() + batchSize - 1) / batchSize;
+		ExecutorService executor = batchExecutor;
+		if (batchCount == 1 || executor == null) {
+			for (int i = 0; i < pendingIPs.size(); i += batchSize) {
+				int end = Math.min(i + batchSize, pendingIPs.size());
+				for (IP_GeoLookupResult result : lookupBatch(
+						pendingIPs.subList(i, end), pendingKeys.subList(i, end))) {
+					results.put(result.getIP_Address(), result);
+				}
+			}
+			return results;
+		}
+
+		List<Callable<IP_GeoLookupResult[]>> tasks = new ArrayList<Callable<IP_GeoLookupResult[]>>(
+				batchCount);
+		for (int i = 0; i < pendingIPs.size(); i += batchSize) {
+			int end = Math.min(i + batchSize, pendingIPs.size());
+			final List<String> batch = pendingIPs.subList(i, end);
+			final List<IP_AddressKey> batchKeys = pendingKeys.subList(i, end);
+			tasks.add(new Callable<IP_GeoLookupResult[]>() {
+				public IP_GeoLookupResult[] call() {
+					return lookupBatch(batch, batchKeys);
+				}
+			});
+		}
+		try {
+			for (Future<IP_GeoLookupResult[]> future : executor
+					.invokeAll(tasks)) {
+				for (IP_GeoLookupResult result : future.get()) {
+					results.put(result.getIP_Address(), result);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			// lookupBatch does not throw, so this should never happen
+			log.error("Batch lookup task failed", e);
+		} catch (RejectedExecutionException e) {
+			log.error(
+					"Batch lookup executor rejected the lookup, it is shutting down",
+					e);
+		}
+
+		// anything still unresolved was interrupted or rejected
+		for (Map.Entry<String, IP_GeoLookupResult> entry : results.entrySet()) {
+			if (entry.getValue() == null) {
+				metrics.recordError(HotwireErrors.IPGEO_GEO_SERVER_NOT_AVAILABLE);
+				entry.setValue(IP_GeoLookupResult.failure(entry.getKey(),
+						IP_GeoLookupResult.Status.UNAVAILABLE,
+						HotwireErrors.IPGEO_GEO_SERVER_NOT_AVAILABLE));
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Sends one batch of ipAddresses to Quova in a single query
+	 *
+	 * @param ipAddresses
+	 * @param keys
+	 *            the IP_AddressKey each query address parsed into, as
+	 *            validated by lookupAll
+	 * @return the result of each lookup, in the order of ipAddresses
+	 */
+	private IP_GeoLookupResult[] lookupBatch(List<String> ipAddresses,
+			List<IP_AddressKey> keys) {
+		// send the canonical form of the addresses
+		String[] queryAddresses = new String[ipAddresses.size()];
+		for (int i = 0; i < queryAddresses.length; i++) {
+			queryAddresses[i] = IP_AddressParser.canonicalize(
+					getQueryAddress(ipAddresses.get(i)), keys.get(i));
+		}
+
+		try {
+			return queryBatch(ipAddresses, keys, queryAddresses);
+		} catch (HwIP_GeoException e) {
+			IP_GeoLookupResult[] results = new IP_GeoLookupResult[ipAddresses
+					.size()];
+			if (e.getErrorCode() == HotwireErrors.IPGEO_GEO_SERVER_INVALID_ARGUMENT
+					&& ipAddresses.size() > 1) {
+				// Quova rejected the batch because of a malformed address,
+				// query the addresses one by one to single it out
+				for (int i = 0; i < results.length; i++) {
+					results[i] = lookupBatch(ipAddresses.subList(i, i + 1),
+							keys.subList(i, i + 1))[0];
+				}
+				return results;
+			}
+			for (int i = 0; i < results.length; i++) {
+				metrics.recordError(e.getErrorCode());
+				results[i] = IP_GeoLookupResult.failure(ipAddresses.get(i), e);
+			}
+			return results;
+		}
+	}
+
+	/**
+	 * Queries Quova with one batch and makes the result of each lookup from
+	 * its IPInfo record. Package-private so that tests can answer the
+	 * batches without a Quova server.
+	 *
+	 * @param ipAddresses
+	 * @param keys
+	 *            IP_AddressKey of each query address
+	 * @param queryAddresses
+	 *            the addresses sent to Quova
+	 * @return the result of each lookup, in the order of ipAddresses
+	 * @throws HwIP_GeoException
+	 *             if the query failed as a whole
+	 */
+	IP_GeoLookupResult[] queryBatch(List<String> ipAddresses,
+			List<IP_AddressKey> keys, String[] queryAddresses)
+			throws HwIP_GeoException {
+		QuovaResponse quovaResponse = queryQuova(queryAddresses);
+		IP_GeoLookupResult[] results = new IP_GeoLookupResult[ipAddresses
+				.size()];
+		for (int i = 0; i < results.length; i++) {
+			String ipAddress = ipAddresses.get(i);
+			IPInfo ipInfoRecord = quovaResponse.getIPInfo(i);
+			metrics.recordReturnCode(ipInfoRecord.getRetCode());
+			if (QuovaReturnCode.INVALID_INPUT.equals(ipInfoRecord.getRetCode())) {
+				metrics.recordError(HotwireErrors.IPGEO_GEO_SERVER_INVALID_ARGUMENT);
+				results[i] = IP_GeoLookupResult.failure(ipAddress,
+						IP_GeoLookupResult.Status.INVALID,
+						HotwireErrors.IPGEO_GEO_SERVER_INVALID_ARGUMENT);
+			} else if (!isValidReturnCode(ipInfoRecord)) {
+				metrics.recordError(HotwireErrors.IPGEO_GEO_SERVER_INVALID_RESPONSE);
+				results[i] = IP_GeoLookupResult.failure(ipAddress,
+						IP_GeoLookupResult.Status.ERROR,
+						HotwireErrors.IPGEO_GEO_SERVER_INVALID_RESPONSE);
+			} else {
+				IP_GeoResponse ipGeoResponse = getIP_GeoResponseFromIPInfoRecord(
+						ipInfoRecord, IP_GeoField.ALL_MASK);
+				results[i] = IP_GeoLookupResult.success(ipAddress,
+						ipGeoResponse,
+						QuovaReturnCode.SUCCESS.equals(ipInfoRecord
+								.getRetCode()));
+				cacheResponse(keys.get(i), ipInfoRecord, ipGeoResponse);
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Queries Quova with a batch of ipAddresses
+	 *
+	 * @param ipAddresses
+	 * @return QuovaResponse holding one IPInfo record per ipAddress, in the
+	 *         same order
+	 * @throws HwIP_GeoException
+	 *             if there is no connection or the query failed
+	 */
+	private QuovaResponse queryQuova(final String[] ipAddresses)
+			throws HwIP_GeoException {
+		GeoDirectoryConnection connection = acquireConnection();
+		long startTimeNanos = metrics.quovaCallStarted();
+		QuovaResponse quovaResponse;
+		try {
+			quovaResponse = hedger.query(connection, api -> api
+					.getIPInfo(ipAddresses));
+		} catch (QuovaException qe) {
+			throw handleQuovaException(qe, startTimeNanos);
+		} catch (InterruptedException e) {
+			throw handleInterrupt();
+		} catch (Throwable t) {
+			throw handleRuntimeError(t, startTimeNanos);
+		} finally {
+			connection.release();
+			metrics.quovaCallEnded(startTimeNanos);
+		}
+		onQuerySuccess(startTimeNanos);
+		if (lookupLog.isDebugSampled()) {
+			log.debug("Successful Quova batch query for {} ips took {} milliseconds",
+					ipAddresses.length,
+					(System.nanoTime() - startTimeNanos) / 1000000L);
+		}
+		return quovaResponse;
+	}
+
+	/**
+	 * Helper method that takes an ipInfoRecord as input and populates an
+	 * IP_GeoResponse with the fields of fieldMask: the countryCode, gmtOffset,
+	 * ndmaCode, coordinates, and zipCode, city and state if
+	 * cityConfidenceFactor is >= cityConfidenceFactorThreshold. Numeric fields
+	 * are parsed from their string values, so that values which are not
+	 * numbers are skipped without a QuovaException.
+	 *
+	 * @param ipInfoRecord
+	 * @param fieldMask
+	 *            bit mask of the IP_GeoFields to decode
+	 * @return IP_GeoResponse
+	 */
+	private IP_GeoResponse getIP_GeoResponseFromIPInfoRecord(
+			IPInfo ipInfoRecord, int fieldMask) {
+		long startTimeNanos = System.nanoTime();
+		IP_GeoResponse.Builder ipGeoResponse = new IP_GeoResponse.Builder(
+				ipInfoRecord.getString(IPInfoField.IP_ADDRESS),
+				IP_GeoResponse.GEO_INFO_SOURCE_QUOVA);
+		if (QuovaReturnCode.NOT_FOUND.equals(ipInfoRecord.getRetCode())) {
+			// nothing to decode, the response is empty whatever the fields
+			IP_GeoResponse response = ipGeoResponse.setFound(false).build();
+			metrics.recordMapping(startTimeNanos);
+			return response;
+		}
+		ipGeoResponse.setFields(fieldMask);
+
+		// set country code
+		if ((fieldMask & IP_GeoField.COUNTRY.bit()) != 0) {
+			ipGeoResponse.setCountryCode(ipInfoRecord
+					.getString(IPInfoField.COUNTRY));
+		}
+
+		// parse GMT
+		if ((fieldMask & IP_GeoField.TIMEZONE.bit()) != 0) {
+			String timezone = ipInfoRecord.getString(IPInfoField.TIMEZONE);
+			float gmtOffset = GeoFieldParser.parseFloat(timezone);
+			if (!Float.isNaN(gmtOffset)) {
+				ipGeoResponse.setGmtOffset(gmtOffset);
+			} else if (timezone != null) {
+				// this is expected since gmtOffset sometimes comes back as
+				// 'multizone' so ignore this
+				log.debug("Could not parse IPInfoField.TIMEZONE for ip: {}. String value of field is: {}",
+						ipGeoResponse.getIP_Address(), timezone);
+			}
+		}
+
+		// parse NDMA code
+		if ((fieldMask & IP_GeoField.DMA.bit()) != 0) {
+			String dma = ipInfoRecord.getString(IPInfoField.DMA);
+			int ndmaCode = GeoFieldParser.parseInt(dma, Integer.MIN_VALUE);
+			if (ndmaCode != Integer.MIN_VALUE) {
+				ipGeoResponse.setNDMA_Code(ndmaCode);
+			} else if (!StringUtils.isEmpty(dma)) {
+				lookupLog.error("INVALID_DMA",
+						"Could not parse IPInfoField.DMA for ip: {}. String value of field is: {}",
+						ipGeoResponse.getIP_Address(), dma);
+			}
+		}
+
+		// evaluate the city confidence factor and if it is >=
+		// cityConfidenceFactorThreshold, set the zip code
+		if ((fieldMask & IP_GeoField.CITY.bit()) != 0) {
+			Integer cityConfidenceFactor = ipInfoRecord
+					.getCF(IPInfoField.CITY);
+			if (cityConfidenceFactor != null
+					&& cityConfidenceFactor.intValue() >= cityConfidenceFactorThreshold) {
+				ipGeoResponse.setZipCode(ipInfoRecord
+						.getString(IPInfoField.ZIP));
+				ipGeoResponse.setCityName(ipInfoRecord
+						.getString(IPInfoField.CITY));
+				ipGeoResponse.setStateName(ipInfoRecord
+						.getString(IPInfoField.STATE));
+			}
+		}
+
+		// parse other numeric fields
+		if ((fieldMask & IP_GeoField.COORDINATES.bit()) != 0) {
+			String latitudeValue = ipInfoRecord
+					.getString(IPInfoField.LATITUDE);
+			String longitudeValue = ipInfoRecord
+					.getString(IPInfoField.LONGITUDE);
+			float latitude = GeoFieldParser.parseFloat(latitudeValue);
+			float longitude = GeoFieldParser.parseFloat(longitudeValue);
+			if (!Float.isNaN(longitude)) {
+				ipGeoResponse.setLongitude(longitude);
+			}
+			if (!Float.isNaN(latitude)) {
+				ipGeoResponse.setLatitude(latitude);
+			}
+			if ((Float.isNaN(latitude) && !StringUtils.isEmpty(latitudeValue))
+					|| (Float.isNaN(longitude) && !StringUtils
+							.isEmpty(longitudeValue))) {
+				lookupLog.error("INVALID_COORDINATES",
+						"Could not parse latitude / longitude for ip: {}. String value of latitude is: {}. String value of longitude is: {}.",
+						ipGeoResponse.getIP_Address(), latitudeValue,
+						longitudeValue);
+			}
+		}
+		IP_GeoResponse response = ipGeoResponse.build();
+		metrics.recordMapping(startTimeNanos);
+		return response;
+	}
+
+	/**
+	 * Called to refresh properties and Geo Directory Server connection
+	 */
+	public synchronized void configurationChanged() {
+		log.debug("Initializing QuovaIP_GeoServerAdapter");
+
+		String geoDirectoryServerConnectionPoolSize = null;
+		String geoDirectoryServerClientTimeout = null;
+		String geoDirectoryServerPrimaryServerIp = null;
+		String geoDirectoryServerPrimaryServerPort = null;
+		String geoDirectoryServerSecondaryServerIp = null;
+		String geoDirectoryServerSecondaryServerPort = null;
+		String lookupCacheMaxEntries = null;
+		String lookupCacheTtl = null;
+		String lookupCacheEvictionPolicy = null;
+		String notFoundCacheMaxEntries = null;
+		String notFoundCacheTtl = null;
+		String answerReservedAddressesLocallyProperty = null;
+		String batchLookupSizeProperty = null;
+		String asyncLookupThreadPoolSize = null;
+		String asyncLookupQueueSize = null;
+		String asyncLookupTimeout = null;
+		String hedgedLookupsProperty = null;
+		String hedgeDelayPercentile = null;
+		String hedgeMinDelay = null;
+		String hedgeMaxDelay = null;
+		String hedgeThreadPoolSize = null;
+		String jmxEnabled = null;
+		String jmxName = null;
+		String errorLogInterval = null;
+		String debugLogSampleRate = null;
+		String cacheSnapshotFileProperty = null;
+		String cacheSnapshotInterval = null;
+		String sharedCacheFile = null;
+		String sharedCacheMaxEntries = null;
+		String sharedCacheTtl = null;
+
+		try {
+			String hegq = "hotwire.eis.geo.quova.";
+
+			// read attribute properties
+
+			// read general Quova settings
+			geoDirectoryServerConnectionPoolSize = hwProps.getProperty(hegq
+					+ "geoDirectoryServerConnectionPoolSize");
+			geoDirectoryServerClientTimeout = hwProps.getProperty(hegq
+					+ "geoDirectoryServerClientTimeoutInMillis");
+
+			// read primary Quova server settings
+			geoDirectoryServerPrimaryServerIp = hwProps.getProperty(hegq
+					+ "geoDirectoryServerPrimaryServerIp");
+			geoDirectoryServerPrimaryServerPort = hwProps.getProperty(hegq
+					+ "geoDirectoryServerPrimaryServerPort");
+
+			// read secondary Quova server settings, if any
+			geoDirectoryServerSecondaryServerIp = hwProps.getProperty(hegq
+					+ "geoDirectoryServerSecondaryServerIp");
+			geoDirectoryServerSecondaryServerPort = hwProps.getProperty(hegq
+					+ "geoDirectoryServerSecondaryServerPort");
+
+			// read lookup cache settings, if any
+			lookupCacheMaxEntries = hwProps.getProperty(hegq
+					+ "lookupCacheMaxEntries");
+			lookupCacheTtl = hwProps.getProperty(hegq
+					+ "lookupCacheTtlInMillis");
+			lookupCacheEvictionPolicy = hwProps.getProperty(hegq
+					+ "lookupCacheEvictionPolicy");
+			notFoundCacheMaxEntries = hwProps.getProperty(hegq
+					+ "notFoundCacheMaxEntries");
+			notFoundCacheTtl = hwProps.getProperty(hegq
+					+ "notFoundCacheTtlInMillis");
+			answerReservedAddressesLocallyProperty = hwProps.getProperty(hegq
+					+ "answerReservedAddressesLocally");
+			sharedCacheFile = hwProps.getProperty(hegq + "sharedCacheFile");
+			sharedCacheMaxEntries = hwProps.getProperty(hegq
+					+ "sharedCacheMaxEntries");
+			sharedCacheTtl = hwProps.getProperty(hegq
+					+ "sharedCacheTtlInMillis");
+			cacheSnapshotFileProperty = hwProps.getProperty(hegq
+					+ "cacheSnapshotFile");
+			cacheSnapshotInterval = hwProps.getProperty(hegq
+					+ "cacheSnapshotIntervalInMillis");
+
+			// read batch lookup settings, if any
+			batchLookupSizeProperty = hwProps.getProperty(hegq
+					+ "batchLookupSize");
+
+			// read async lookup settings, if any
+			asyncLookupThreadPoolSize = hwProps.getProperty(hegq
+					+ "asyncLookupThreadPoolSize");
+			asyncLookupQueueSize = hwProps.getProperty(hegq
+					+ "asyncLookupQueueSize");
+			asyncLookupTimeout = hwProps.getProperty(hegq
+					+ "asyncLookupTimeoutInMillis");
+
+			// read hedged lookup settings, if any
+			hedgedLookupsProperty = hwProps.getProperty(hegq + "hedgedLookups");
+			hedgeDelayPercentile = hwProps.getProperty(hegq
+					+ "hedgeDelayPercentile");
+			hedgeMinDelay = hwProps.getProperty(hegq + "hedgeMinDelayInMillis");
+			hedgeMaxDelay = hwProps.getProperty(hegq + "hedgeMaxDelayInMillis");
+			hedgeThreadPoolSize = hwProps.getProperty(hegq
+					+ "hedgeThreadPoolSize");
+
+			// read metrics settings, if any
+			jmxEnabled = hwProps.getProperty(hegq + "jmxEnabled");
+			jmxName = hwProps.getProperty(hegq + "jmxName");
+
+			// read lookup logging settings, if any
+			errorLogInterval = hwProps.getProperty(hegq
+					+ "errorLogIntervalInMillis");
+			debugLogSampleRate = hwProps.getProperty(hegq
+					+ "debugLogSampleRate");
+
+		} catch (Exception e) {
+			String errorMessage = "Encountered runtime exception reading properties: "
+					+ e;
+			// HwLogger.syslog(SyslogFunctionalAreas.AREA_QUOVA, errorMessage);
+			log.error(errorMessage, e);
+			return;
+		}
+
+		// check that we have all of the required Quova settings
+		if (StringUtils.isEmpty(geoDirectoryServerConnectionPoolSize)
+				|| StringUtils.isEmpty(geoDirectoryServerClientTimeout)
+				|| StringUtils.isEmpty(geoDirectoryServerPrimaryServerIp)
+				|| StringUtils.isEmpty(geoDirectoryServerPrimaryServerPort)) {
+
+			// we dont have all the settings and therefore can't create the
+			// Quova client, log this
+			String errorMessage = "One or more Quova settings are not available, connection will not be made:"
+					+ "\ngeoDirectoryServerConnectionPoolSize: "
+					+ geoDirectoryServerConnectionPoolSize
+					+ "\ngeoDirectoryServerClientTimeoutInMillis: "
+					+ geoDirectoryServerClientTimeout
+					+ "\ngeoDirectoryServerPrimaryServerIp: "
+					+ geoDirectoryServerPrimaryServerIp
+					+ "\ngeoDirectoryServerPrimaryServerPort: "
+					+ geoDirectoryServerPrimaryServerPort;
+
+			// Logger.log(Level.SEVERE,errorMessage);
+			log.error(errorMessage);
+			return;
+		}
+
+		lookupCache = configureLookupCache(lookupCache, lookupCacheMaxEntries,
+				lookupCacheTtl, lookupCacheEvictionPolicy);
+		notFoundCache = configureLookupCache(notFoundCache,
+				notFoundCacheMaxEntries, notFoundCacheTtl,
+				lookupCacheEvictionPolicy);
+		answerReservedAddressesLocally = StringUtils
+				.isEmpty(answerReservedAddressesLocallyProperty)
+				|| Boolean.parseBoolean(answerReservedAddressesLocallyProperty
+						.trim());
+		configureSharedCache(sharedCacheFile, sharedCacheMaxEntries,
+				sharedCacheTtl, lookupCacheTtl);
+		configureCacheSnapshot(cacheSnapshotFileProperty, cacheSnapshotInterval);
+		configureLookupLogging(errorLogInterval, debugLogSampleRate);
+		configureBatchLookup(batchLookupSizeProperty,
+				geoDirectoryServerConnectionPoolSize);
+		configureAsyncLookup(
+				StringUtils.isEmpty(asyncLookupThreadPoolSize) ? geoDirectoryServerConnectionPoolSize
+						: asyncLookupThreadPoolSize,
+				asyncLookupQueueSize,
+				StringUtils.isEmpty(asyncLookupTimeout) ? geoDirectoryServerClientTimeout
+						: asyncLookupTimeout);
+
+		// create the geoDirectoryServerProperties object with the read
+		// properties
+		Properties geoDirectoryServerProperties = new Properties();
+		geoDirectoryServerProperties.setProperty("CONNECTION_POOL_SIZE",
+				geoDirectoryServerConnectionPoolSize);
+		geoDirectoryServerProperties.setProperty("USER_TIMEOUT",
+				geoDirectoryServerClientTimeout);
+		geoDirectoryServerProperties.setProperty("PRIMARY_SERVER_IP",
+				geoDirectoryServerPrimaryServerIp);
+		geoDirectoryServerProperties.setProperty("PRIMARY_SERVER_PORT",
+				geoDirectoryServerPrimaryServerPort);
+
+		// configure a secondary server if both the secondary server ip and port
+		// have been specified in the props
+		if (!StringUtils.isEmpty(geoDirectoryServerSecondaryServerIp)
+				&& !StringUtils.isEmpty(geoDirectoryServerSecondaryServerPort)) {
+			geoDirectoryServerProperties.setProperty("SEC_SERVER_IP",
+					geoDirectoryServerSecondaryServerIp);
+			geoDirectoryServerProperties.put("SEC_SERVER_PORT",
+					geoDirectoryServerSecondaryServerPort);
+		}
+
+		// configure the hard-coded properties
+		geoDirectoryServerProperties.setProperty("NETWORK_PROTOCOL", "TCP");
+
+		// MAX_RETRY - how many times the quova client retries querying a
+		// server, before it considers it unavailable
+		geoDirectoryServerProperties.setProperty("MAX_RETRY", "1");
+
+		// MAX_WAIT_BLOCKING - time in millis that a request will block while
+		// waiting for a connection to the server, the concurrency limit keeps
+		// the calls within the pool so they rarely have to
+		geoDirectoryServerProperties.setProperty("MAX_WAIT_BLOCKING",
+				StringUtils.defaultIfEmpty(StringUtils.trimToEmpty(hwProps
+						.getProperty("hotwire.eis.geo.quova.maxWaitBlockingInMillis")),
+						DEFAULT_MAX_WAIT_BLOCKING_IN_MILLIS));
+
+		configureCircuitBreaker(geoDirectoryServerClientTimeout);
+		configureConcurrencyLimit(geoDirectoryServerConnectionPoolSize);
+		configureMetrics(jmxEnabled, jmxName,
+				geoDirectoryServerConnectionPoolSize);
+		configureHedging(hedgedLookupsProperty, hedgeDelayPercentile,
+				hedgeMinDelay, hedgeMaxDelay, hedgeThreadPoolSize,
+				geoDirectoryServerConnectionPoolSize,
+				geoDirectoryServerClientTimeout);
+		this.geoDirectoryServerProperties = geoDirectoryServerProperties;
+
+		try {
+			// get a new connection to the GeoDirectoryAPI before touching the
+			// current one, lookups keep using the current connection until
+			// the new one is published
+			publishConnection(createConnection(geoDirectoryServerProperties));
+			reconnectRequired = false;
+		} catch (QuovaException qe) {
+			// log the error, the current connection (if any) stays in use
+			String errorMessage = "GeoDirectoryAPI creation failed, unable to get new connection"
+					+ qe;
+			// HwLogger.syslog(SyslogFunctionalAreas.AREA_QUOVA, errorMessage);
+			log.error(errorMessage, qe);
+		}
+
+		configureConfigurationWatch(
+				hwProps.getProperty("hotwire.eis.geo.quova.watchConfiguration"),
+				AppProperties.getExternalPropertiesFile(hwProps));
+	}
+
+	/**
+	 * Reads the EXTERNAL_APP_PROPERTIES file again and reconfigures the
+	 * adapter with the settings that changed in it since it was last read,
+	 * applied over the current properties. Settings made on top of the file,
+	 * such as command line overrides, survive unless the file changes them
+	 * too, and a setting removed from the file keeps its value. Lookups carry
+	 * on during the reload, on the old connection until the new one is
+	 * published.
+	 */
+	public void reloadConfiguration() {
+		File file;
+		synchronized (this) {
+			file = AppProperties.getExternalPropertiesFile(hwProps);
+		}
+		if (file == null) {
+			log.warn("{} is not set, there is no configuration to reload",
+					AppProperties.EXTERNAL_APP_PROPERTIES);
+			return;
+		}
+		Properties fileProperties;
+		try {
+			fileProperties = AppProperties.readProperties(file);
+		} catch (IOException e) {
+			log.error("Could not read {}, configuration is not reloaded", file,
+					e);
+			return;
+		}
+		synchronized (this) {
+			hwProps = mergeChanges(hwProps, externalProperties, fileProperties);
+			externalProperties = fileProperties;
+			configurationChanged();
+		}
+	}
+
+	/**
+	 * @param properties
+	 * @param oldFileProperties
+	 *            the file as previously read, null if it was not
+	 * @param newFileProperties
+	 *            the file as read now
+	 * @return a copy of properties with the settings whose value differs
+	 *         between oldFileProperties and newFileProperties set to their new
+	 *         value
+	 */
+	static Properties mergeChanges(Properties properties,
+			Properties oldFileProperties, Properties newFileProperties) {
+		Properties merged = new Properties();
+		for (String key : properties.stringPropertyNames()) {
+			merged.setProperty(key, properties.getProperty(key));
+		}
+		for (String key : newFileProperties.stringPropertyNames()) {
+			String value = newFileProperties.getProperty(key);
+			if (oldFileProperties == null
+					|| !value.equals(oldFileProperties.getProperty(key))) {
+				merged.setProperty(key, value);
+			}
+		}
+		return merged;
+	}
+
+	/**
+	 * Starts or stops watching the external properties file, and keeps its
+	 * settings to compare the next reload with
+	 *
+	 * @param watchConfiguration
+	 *            "true" to reload the configuration whenever propertiesFile
+	 *            changes
+	 * @param propertiesFile
+	 *            the EXTERNAL_APP_PROPERTIES file, may be null
+	 */
+	private synchronized void configureConfigurationWatch(
+			String watchConfiguration, File propertiesFile) {
+		if (propertiesFile != null
+				&& !propertiesFile.equals(externalPropertiesFile)) {
+			// the settings of the file as it is now are already applied
+			externalPropertiesFile = propertiesFile;
+			try {
+				externalProperties = propertiesFile.exists() ? AppProperties
+						.readProperties(propertiesFile) : new Properties();
+			} catch (IOException e) {
+				log.warn("Could not read {}, its next reload applies all of its settings",
+						propertiesFile, e);
+				externalProperties = null;
+			}
+		}
+		boolean watch = Boolean.parseBoolean(StringUtils
+				.trimToEmpty(watchConfiguration)) && propertiesFile != null;
+		PropertiesFileWatcher currentWatcher = configurationWatcher;
+		if (currentWatcher != null && watch
+				&& currentWatcher.getFile().equals(
+						propertiesFile.getAbsoluteFile())) {
+			return;
+		}
+		stopConfigurationWatch();
+		if (!watch) {
+			return;
+		}
+		try {
+			configurationWatcher = new PropertiesFileWatcher(propertiesFile,
+					CONFIGURATION_WATCH_DEBOUNCE_IN_MILLIS, new Runnable() {
+						public void run() {
+							reloadConfiguration();
+						}
+					});
+			log.info("Watching {} for configuration changes", propertiesFile);
+		} catch (IOException e) {
+			log.error("Could not watch {} for configuration changes",
+					propertiesFile, e);
+		}
+	}
 
-		// check that we have all of the required Quova settings
-		if (StringUtils.isEmpty(geoDirectoryServerConnectionPoolSize)
-				|| StringUtils.isEmpty(geoDirectoryServerClientTimeout)
-				|| StringUtils.isEmpty(geoDirectoryServerPrimaryServerIp)
-				|| StringUtils.isEmpty(geoDirectoryServerPrimaryServerPort)) {
+	private synchronized void stopConfigurationWatch() {
+		if (configurationWatcher != null) {
+			try {
+				configurationWatcher.close();
+			} catch (IOException e) {
+				log.warn("Exception closing configuration watcher", e);
+			}
+			configurationWatcher = null;
+		}
+	}
 
-			// we dont have all the settings and therefore can't create the
-			// Quova client, log this
-			String errorMessage = "One or more Quova settings are not available, connection will not be made:"
-					+ "\ngeoDirectoryServerConnectionPoolSize: "
-					+ geoDirectoryServerConnectionPoolSize
-					+ "\ngeoDirectoryServerClientTimeoutInMillis: "
-					+ geoDirectoryServerClientTimeout
-					+ "\ngeoDirectoryServerPrimaryServerIp: "
-					+ geoDirectoryServerPrimaryServerIp
-					+ "\ngeoDirectoryServerPrimaryServerPort: "
-					+ geoDirectoryServerPrimaryServerPort;
+	/**
+	 * Creates, replaces or removes a lookup cache according to the cache
+	 * settings. An existing cache is kept, along with its contents, if the
+	 * settings have not changed.
+	 *
+	 * @param currentCache
+	 *            the cache configured so far, may be null
+	 * @param maxEntries
+	 *            maximum number of cached lookups, caching is disabled if this
+	 *            is empty or not positive
+	 * @param ttlInMillis
+	 *            time a lookup stays cached, defaults to never expiring
+	 * @param evictionPolicy
+	 *            LRU or FIFO, defaults to LRU
+	 * @return the cache to use, null if caching is disabled
+	 */
+	private IP_GeoResponseCache configureLookupCache(
+			IP_GeoResponseCache currentCache, String maxEntries,
+			String ttlInMillis, String evictionPolicy) {
+		int cacheMaxEntries = 0;
+		long cacheTtlInMillis = 0;
+		IP_GeoResponseCache.EvictionPolicy cacheEvictionPolicy = IP_GeoResponseCache.EvictionPolicy.LRU;
+		try {
+			if (!StringUtils.isEmpty(maxEntries)) {
+				cacheMaxEntries = Integer.parseInt(maxEntries.trim());
+			}
+			if (!StringUtils.isEmpty(ttlInMillis)) {
+				cacheTtlInMillis = Long.parseLong(ttlInMillis.trim());
+			}
+			if (!StringUtils.isEmpty(evictionPolicy)) {
+				cacheEvictionPolicy = IP_GeoResponseCache.EvictionPolicy
+						.valueOf(evictionPolicy.trim().toUpperCase());
+			}
+		} catch (IllegalArgumentException e) {
+			log.error(
+					"Invalid lookup cache settings, lookup cache is disabled: maxEntries="
+							+ maxEntries + ", ttlInMillis=" + ttlInMillis
+							+ ", evictionPolicy=" + evictionPolicy, e);
+			return null;
+		}
 
-			// Logger.log(Level.SEVERE,errorMessage);
-			log.severe(errorMessage);
+		if (cacheMaxEntries <= 0) {
+			return null;
+		}
+
+		if (currentCache != null
+				&& currentCache.getMaxEntries() == cacheMaxEntries
+				&& currentCache.getTtlInMillis() == Math.max(cacheTtlInMillis, 0)
+				&& currentCache.getEvictionPolicy() == cacheEvictionPolicy) {
+			return currentCache;
+		}
+		return new IP_GeoResponseCache(cacheMaxEntries, cacheTtlInMillis,
+				cacheEvictionPolicy);
+	}
+
+	/**
+	 * Maps the cache shared with the other JVMs of the host named by
+	 * hotwire.eis.geo.quova.sharedCacheFile. The first JVM to map the file
+	 * sizes it, the others use it as it is.
+	 *
+	 * @param file
+	 *            shared cache file, sharing is disabled if this is empty
+	 * @param maxEntries
+	 *            defaults to DEFAULT_SHARED_CACHE_MAX_ENTRIES
+	 * @param ttlInMillis
+	 *            time a response stays shared, defaults to
+	 *            lookupCacheTtlInMillis
+	 * @param lookupCacheTtlInMillis
+	 */
+	private void configureSharedCache(String file, String maxEntries,
+			String ttlInMillis, String lookupCacheTtlInMillis) {
+		if (StringUtils.isEmpty(file)) {
+			sharedCache = null;
+			return;
+		}
+		int cacheMaxEntries = DEFAULT_SHARED_CACHE_MAX_ENTRIES;
+		long cacheTtlInMillis = 0;
+		try {
+			if (!StringUtils.isEmpty(maxEntries)) {
+				cacheMaxEntries = Integer.parseInt(maxEntries.trim());
+			}
+			String ttl = StringUtils.isEmpty(ttlInMillis) ? lookupCacheTtlInMillis
+					: ttlInMillis;
+			if (!StringUtils.isEmpty(ttl)) {
+				cacheTtlInMillis = Long.parseLong(ttl.trim());
+			}
+		} catch (NumberFormatException e) {
+			log.error("Invalid shared cache settings, shared cache is disabled: sharedCacheMaxEntries={}, sharedCacheTtlInMillis={}",
+					maxEntries, ttlInMillis, e);
+			sharedCache = null;
 			return;
 		}
+		sharedCacheTtlInMillis = cacheTtlInMillis;
 
-		// create the geoDirectoryServerProperties object with the read
-		// properties
-		Properties geoDirectoryServerProperties = new Properties();
-		geoDirectoryServerProperties.setProperty("CONNECTION_POOL_SIZE",
-				geoDirectoryServerConnectionPoolSize);
-		geoDirectoryServerProperties.setProperty("USER_TIMEOUT",
-				geoDirectoryServerClientTimeout);
-		geoDirectoryServerProperties.setProperty("PRIMARY_SERVER_IP",
-				geoDirectoryServerPrimaryServerIp);
-		geoDirectoryServerProperties.setProperty("PRIMARY_SERVER_PORT",
-				geoDirectoryServerPrimaryServerPort);
+		File cacheFile = new File(file.trim());
+		SharedIP_GeoResponseCache currentCache = sharedCache;
+		if (currentCache != null && currentCache.getFile().equals(cacheFile)) {
+			return;
+		}
+		try {
+			SharedIP_GeoResponseCache cache = SharedIP_GeoResponseCache.open(
+					cacheFile, Math.max(cacheMaxEntries, 1));
+			sharedCache = cache;
+			log.info("Sharing lookups through {} ({} entries)", cacheFile,
+					cache.getCapacity());
+		} catch (IOException e) {
+			log.error("Could not map shared cache {}, lookups are not shared",
+					cacheFile, e);
+			sharedCache = null;
+		}
+	}
 
-		// configure a secondary server if both the secondary server ip and port
-		// have been specified in the props
-		if (!StringUtils.isEmpty(geoDirectoryServerSecondaryServerIp)
-				&& !StringUtils.isEmpty(geoDirectoryServerSecondaryServerPort)) {
-			geoDirectoryServerProperties.setProperty("SEC_SERVER_IP",
-					geoDirectoryServerSecondaryServerIp);
-			geoDirectoryServerProperties.put("SEC_SERVER_PORT",
-					geoDirectoryServerSecondaryServerPort);
+	/**
+	 * Applies the hotwire.eis.geo.quova.cacheSnapshot* settings. When
+	 * snapshots are first enabled the snapshot of the previous JVM, if any,
+	 * is restored in the background, keeping the original expiry times of its
+	 * entries, then the caches are written every interval and on shutdown.
+	 * When the file changes at runtime the new file is restored the same way
+	 * before it is first written.
+	 *
+	 * @param file
+	 *            snapshot file, snapshots are disabled if this is empty
+	 * @param intervalInMillis
+	 *            defaults to DEFAULT_CACHE_SNAPSHOT_INTERVAL_IN_MILLIS, only
+	 *            written on shutdown if this is not positive
+	 */
+	private void configureCacheSnapshot(String file, String intervalInMillis) {
+		long interval = DEFAULT_CACHE_SNAPSHOT_INTERVAL_IN_MILLIS;
+		try {
+			if (!StringUtils.isEmpty(intervalInMillis)) {
+				interval = Long.parseLong(intervalInMillis.trim());
+			}
+		} catch (NumberFormatException e) {
+			log.error("Invalid cache snapshot settings, using the default interval: cacheSnapshotIntervalInMillis={}",
+					intervalInMillis, e);
 		}
 
-		// configure the hard-coded properties
-		geoDirectoryServerProperties.setProperty("NETWORK_PROTOCOL", "TCP");
+		final File snapshotFile = StringUtils.isEmpty(file) ? null : new File(
+				file.trim());
+		if (snapshotFile == null) {
+			cacheSnapshotFile = null;
+			stopCacheSnapshots();
+			return;
+		}
+		if (snapshotFile.equals(cacheSnapshotFile)
+				&& interval == cacheSnapshotIntervalInMillis
+				&& cacheSnapshotScheduler != null) {
+			return;
+		}
 
-		// MAX_RETRY - how many times the quova client retries querying a
-		// server, before it considers it unavailable
-		geoDirectoryServerProperties.setProperty("MAX_RETRY", "1");
+		boolean fileChanged = !snapshotFile.equals(cacheSnapshotFile)
+				|| cacheSnapshotScheduler == null;
+		if (cacheSnapshotScheduler == null) {
+			cacheSnapshotScheduler = new ScheduledThreadPoolExecutor(1,
+					new NamedDaemonThreadFactory("QuovaCacheSnapshot"));
+		}
+		if (cacheSnapshotTask != null) {
+			cacheSnapshotTask.cancel(false);
+			cacheSnapshotTask = null;
+		}
+		if (fileChanged) {
+			// not written, even on shutdown, until it has been restored
+			cacheSnapshotLoaded = false;
+			cacheSnapshotFile = snapshotFile;
+			// runs before the next write on the single snapshot thread
+			cacheSnapshotScheduler.execute(new Runnable() {
+				public void run() {
+					loadCacheSnapshot(snapshotFile);
+				}
+			});
+		}
+		cacheSnapshotIntervalInMillis = interval;
+		if (interval > 0) {
+			cacheSnapshotTask = cacheSnapshotScheduler.scheduleWithFixedDelay(
+					new Runnable() {
+						public void run() {
+							writeCacheSnapshot();
+						}
+					}, interval, interval, TimeUnit.MILLISECONDS);
+		}
+	}
 
-		// MAX_WAIT_BLOCKING - time in millis that a request will block while
-		// waiting for a connection to the server
-		geoDirectoryServerProperties.setProperty("MAX_WAIT_BLOCKING", "1");
+	private synchronized void stopCacheSnapshots() {
+		if (cacheSnapshotTask != null) {
+			cacheSnapshotTask.cancel(false);
+			cacheSnapshotTask = null;
+		}
+		if (cacheSnapshotScheduler != null) {
+			cacheSnapshotScheduler.shutdown();
+			cacheSnapshotScheduler = null;
+		}
+		cacheSnapshotIntervalInMillis = 0;
+	}
 
-		GeoDirectoryAPI oldGeoDirectoryConnection = null;
+	/**
+	 * Restores the lookup caches from file, logging rather than throwing any
+	 * failure since the caches fill up from Quova anyway
+	 *
+	 * @param file
+	 */
+	private void loadCacheSnapshot(File file) {
 		try {
-			// get a reference to the existing connection (if any)
-			// so that we can close the old connection when we create the new
-			// one
-			oldGeoDirectoryConnection = geoDirectoryConnection;
-
-			// get a new connection to the GeoDirectoryAPI
-			geoDirectoryConnection = new GeoDirectoryAPI(
-					geoDirectoryServerProperties);
-		} catch (QuovaException qe) {
-			// log the error
-			String errorMessage = "GeoDirectoryAPI creation failed, unable to get new connection"
-					+ qe;
-			// HwLogger.syslog(SyslogFunctionalAreas.AREA_QUOVA, errorMessage);
-			log.log(Level.SEVERE, errorMessage, qe);
+			if (!file.exists()) {
+				log.info("No cache snapshot {} to restore", file);
+				return;
+			}
+			long startTimeMillis = System.currentTimeMillis();
+			int restored = IP_GeoResponseCacheSnapshot.load(file, lookupCache,
+					notFoundCache);
+			log.info("Restored {} cached lookups from {} in {} milliseconds",
+					restored, file, System.currentTimeMillis() - startTimeMillis);
+		} catch (IOException e) {
+			log.error("Could not restore cached lookups from {}", file, e);
 		} finally {
-			// close the old connection if there was one
-			if (oldGeoDirectoryConnection != null) {
-				try {
-					oldGeoDirectoryConnection.close();
-				} catch (QuovaException qe) {
-					log.log(Level.SEVERE,
-							"Exception closing old GeoDirectoryAPI connection after refresh "
-									+ qe, qe);
+			// a load of a file replaced in the meantime does not count
+			cacheSnapshotLoaded = file.equals(cacheSnapshotFile);
+		}
+	}
+
+	/**
+	 * Writes the lookup caches to the snapshot file, if snapshots are enabled
+	 * and the previous snapshot has been restored
+	 */
+	private void writeCacheSnapshot() {
+		File file = cacheSnapshotFile;
+		if (file == null || !cacheSnapshotLoaded) {
+			return;
+		}
+		synchronized (cacheSnapshotLock) {
+			try {
+				long startTimeMillis = System.currentTimeMillis();
+				int written = IP_GeoResponseCacheSnapshot.write(file,
+						lookupCache, notFoundCache);
+				log.debug("Wrote {} cached lookups to {} in {} milliseconds",
+						written, file, System.currentTimeMillis()
+								- startTimeMillis);
+			} catch (IOException e) {
+				log.error("Could not write cached lookups to {}", file, e);
+			}
+		}
+	}
+
+	/**
+	 * Sets the batch size used by lookupAll and sizes the batch executor to
+	 * the connection pool, so that every connection can serve one batch
+	 *
+	 * @param batchSize
+	 *            defaults to DEFAULT_BATCH_LOOKUP_SIZE
+	 * @param connectionPoolSize
+	 */
+	private void configureBatchLookup(String batchSize,
+			String connectionPoolSize) {
+		int lookupSize = DEFAULT_BATCH_LOOKUP_SIZE;
+		int poolSize;
+		try {
+			if (!StringUtils.isEmpty(batchSize)) {
+				lookupSize = Integer.parseInt(batchSize.trim());
+			}
+			poolSize = Integer.parseInt(connectionPoolSize.trim());
+		} catch (NumberFormatException e) {
+			log.error("Invalid batch lookup settings: batchLookupSize="
+					+ batchSize + ", geoDirectoryServerConnectionPoolSize="
+					+ connectionPoolSize, e);
+			return;
+		}
+		batchLookupSize = Math.max(lookupSize, 1);
+
+		ThreadPoolExecutor currentExecutor = batchExecutor;
+		poolSize = Math.max(poolSize, 1);
+		if (currentExecutor != null
+				&& currentExecutor.getMaximumPoolSize() == poolSize) {
+			return;
+		}
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(poolSize,
+				poolSize, 60L, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(),
+				new NamedDaemonThreadFactory("QuovaBatchLookup"));
+		executor.allowCoreThreadTimeOut(true);
+		batchExecutor = executor;
+		if (currentExecutor != null) {
+			// batches already queued on the old executor still run
+			currentExecutor.shutdown();
+		}
+	}
+
+	/**
+	 * Sizes the async lookup executor and sets the default lookupAsync
+	 * timeout
+	 *
+	 * @param threadPoolSize
+	 *            defaults to the connection pool size
+	 * @param queueSize
+	 *            defaults to DEFAULT_ASYNC_LOOKUP_QUEUE_SIZE
+	 * @param timeoutInMillis
+	 *            defaults to the Quova client timeout
+	 */
+	private void configureAsyncLookup(String threadPoolSize, String queueSize,
+			String timeoutInMillis) {
+		int poolSize;
+		int lookupQueueSize = DEFAULT_ASYNC_LOOKUP_QUEUE_SIZE;
+		long lookupTimeout;
+		try {
+			poolSize = Math.max(Integer.parseInt(threadPoolSize.trim()), 1);
+			if (!StringUtils.isEmpty(queueSize)) {
+				lookupQueueSize = Math.max(Integer.parseInt(queueSize.trim()), 1);
+			}
+			lookupTimeout = Long.parseLong(timeoutInMillis.trim());
+		} catch (NumberFormatException e) {
+			log.error("Invalid async lookup settings: asyncLookupThreadPoolSize="
+					+ threadPoolSize + ", asyncLookupQueueSize=" + queueSize
+					+ ", asyncLookupTimeoutInMillis=" + timeoutInMillis, e);
+			return;
+		}
+		asyncLookupTimeoutInMillis = lookupTimeout;
+
+		ThreadPoolExecutor currentExecutor = asyncExecutor;
+		if (currentExecutor != null
+				&& currentExecutor.getMaximumPoolSize() == poolSize
+				&& currentExecutor.getQueue().remainingCapacity()
+						+ currentExecutor.getQueue().size() == lookupQueueSize) {
+			return;
+		}
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(poolSize,
+				poolSize, 60L, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(lookupQueueSize),
+				new NamedDaemonThreadFactory("QuovaAsyncLookup"));
+		executor.allowCoreThreadTimeOut(true);
+		asyncExecutor = executor;
+		if (currentExecutor != null) {
+			// lookups already queued on the old executor still run
+			currentExecutor.shutdown();
+		}
+	}
+
+	/**
+	 * Applies the hotwire.eis.geo.quova.errorLogIntervalInMillis and
+	 * debugLogSampleRate settings to the lookup log
+	 *
+	 * @param intervalInMillis
+	 *            defaults to DEFAULT_ERROR_LOG_INTERVAL_IN_MILLIS
+	 * @param sampleRate
+	 *            defaults to DEFAULT_DEBUG_LOG_SAMPLE_RATE
+	 */
+	private void configureLookupLogging(String intervalInMillis,
+			String sampleRate) {
+		long interval = DEFAULT_ERROR_LOG_INTERVAL_IN_MILLIS;
+		int rate = DEFAULT_DEBUG_LOG_SAMPLE_RATE;
+		try {
+			if (!StringUtils.isEmpty(intervalInMillis)) {
+				interval = Long.parseLong(intervalInMillis.trim());
+			}
+			if (!StringUtils.isEmpty(sampleRate)) {
+				rate = Integer.parseInt(sampleRate.trim());
+			}
+		} catch (NumberFormatException e) {
+			log.error("Invalid lookup logging settings: errorLogIntervalInMillis={}, debugLogSampleRate={}",
+					intervalInMillis, sampleRate, e);
+			return;
+		}
+		lookupLog.setIntervalInMillis(interval);
+		lookupLog.setDebugSampleRate(rate);
+	}
+
+	/**
+	 * Creates the circuit breaker on first use and applies the
+	 * hotwire.eis.geo.quova.circuitBreaker* settings to it
+	 *
+	 * @param clientTimeoutInMillis
+	 *            default slow call duration
+	 */
+	private void configureCircuitBreaker(String clientTimeoutInMillis) {
+		String hegq = "hotwire.eis.geo.quova.circuitBreaker";
+		GeoServerCircuitBreaker breaker = circuitBreaker;
+		if (breaker == null) {
+			breaker = new GeoServerCircuitBreaker("Quova",
+					new GeoServerCircuitBreaker.Probe() {
+						public boolean probe() {
+							return probeGeoDirectoryServer();
+						}
+					});
+		}
+		try {
+			breaker.setFailureRateThreshold(Integer.parseInt(hwProps
+					.getProperty(hegq + "FailureRateThreshold", "50").trim()));
+			breaker.setSlowCallRateThreshold(Integer.parseInt(hwProps
+					.getProperty(hegq + "SlowCallRateThreshold", "100").trim()));
+			breaker.setSlowCallDurationInMillis(Long.parseLong(hwProps
+					.getProperty(hegq + "SlowCallDurationInMillis",
+							clientTimeoutInMillis).trim()));
+			breaker.setMinimumCalls(Integer.parseInt(hwProps.getProperty(
+					hegq + "MinimumCalls", "20").trim()));
+			breaker.setWindowInMillis(Long.parseLong(hwProps.getProperty(
+					hegq + "WindowInMillis", "10000").trim()));
+			breaker.setOpenDurationInMillis(Long.parseLong(hwProps
+					.getProperty(hegq + "OpenDurationInMillis", "5000").trim()));
+			breaker.setHalfOpenPermittedCalls(Integer.parseInt(hwProps
+					.getProperty(hegq + "HalfOpenPermittedCalls", "3").trim()));
+		} catch (NumberFormatException e) {
+			log.error("Invalid circuit breaker settings, keeping the previous ones",
+					e);
+		}
+		probeIpAddress = hwProps.getProperty(hegq + "ProbeIp",
+				DEFAULT_PROBE_IP_ADDRESS).trim();
+		circuitBreaker = breaker;
+	}
+
+	/**
+	 * Applies the hotwire.eis.geo.quova.concurrencyLimit* settings to the
+	 * concurrency limiter
+	 *
+	 * @param connectionPoolSize
+	 *            default largest limit, Quova refuses calls beyond it with
+	 *            POOL_FAILURE
+	 */
+	private void configureConcurrencyLimit(String connectionPoolSize) {
+		String hegq = "hotwire.eis.geo.quova.concurrencyLimit";
+		try {
+			int poolSize = Integer.parseInt(connectionPoolSize.trim());
+			int maxLimit = Integer.parseInt(hwProps.getProperty(hegq + "Max",
+					String.valueOf(poolSize)).trim());
+			concurrencyLimiter.setLimitRange(Integer.parseInt(hwProps
+					.getProperty(hegq + "Min", "1").trim()), maxLimit);
+			concurrencyLimiter.setMaxQueueSize(Integer.parseInt(hwProps
+					.getProperty(hegq + "QueueSize", String.valueOf(maxLimit))
+					.trim()));
+			concurrencyLimiter.setMaxWaitInMillis(Long.parseLong(hwProps
+					.getProperty(hegq + "MaxWaitInMillis", "5").trim()));
+			concurrencyLimiter.setRttTolerance(Double.parseDouble(hwProps
+					.getProperty(hegq + "RttTolerance", "1.5").trim()));
+			concurrencyLimiter.setBackoffRatio(Double.parseDouble(hwProps
+					.getProperty(hegq + "BackoffRatio", "0.9").trim()));
+		} catch (NumberFormatException e) {
+			log.error("Invalid concurrency limit settings, keeping the previous ones",
+					e);
+		}
+		concurrencyLimiter.setEnabled(!"false".equalsIgnoreCase(StringUtils
+				.trimToEmpty(hwProps.getProperty(hegq + "Enabled"))));
+	}
+
+	/**
+	 * Publishes the metrics over JMX unless jmxEnabled is "false"
+	 *
+	 * @param jmxEnabled
+	 * @param jmxName
+	 *            name of the MBean, defaults to quova
+	 * @param connectionPoolSize
+	 */
+	private void configureMetrics(String jmxEnabled, String jmxName,
+			String connectionPoolSize) {
+		try {
+			metrics.setConnectionPoolSize(Integer.parseInt(connectionPoolSize
+					.trim()));
+		} catch (NumberFormatException e) {
+			// already logged by configureBatchLookup
+		}
+		if (StringUtils.isEmpty(jmxEnabled)
+				|| Boolean.parseBoolean(jmxEnabled.trim())) {
+			metrics.register(StringUtils.isEmpty(jmxName) ? "quova" : jmxName
+					.trim());
+		} else {
+			metrics.unregister();
+		}
+	}
+
+	/**
+	 * Configures hedged lookups, which take effect with the next connection
+	 *
+	 * @param hedgedLookupsProperty
+	 *            "true" to hedge slow queries to the primary server
+	 * @param delayPercentile
+	 *            percentile of the primary's latency to wait for before
+	 *            hedging, defaults to 95
+	 * @param minDelayInMillis
+	 *            defaults to 5
+	 * @param maxDelayInMillis
+	 *            delay until the primary's latency is known, defaults to half
+	 *            the client timeout
+	 * @param threadPoolSize
+	 *            threads the hedged queries run on, defaults to twice the
+	 *            connection pool size
+	 * @param connectionPoolSize
+	 * @param clientTimeoutInMillis
+	 */
+	private void configureHedging(String hedgedLookupsProperty,
+			String delayPercentile, String minDelayInMillis,
+			String maxDelayInMillis, String threadPoolSize,
+			String connectionPoolSize, String clientTimeoutInMillis) {
+		boolean hedged = Boolean.parseBoolean(StringUtils
+				.trimToEmpty(hedgedLookupsProperty));
+		double percentile = 95;
+		long minDelay = 5;
+		long maxDelay;
+		int threads;
+		try {
+			maxDelay = Long.parseLong(clientTimeoutInMillis.trim()) / 2;
+			threads = 2 * Integer.parseInt(connectionPoolSize.trim());
+			if (!StringUtils.isEmpty(delayPercentile)) {
+				percentile = Double.parseDouble(delayPercentile.trim());
+			}
+			if (!StringUtils.isEmpty(minDelayInMillis)) {
+				minDelay = Long.parseLong(minDelayInMillis.trim());
+			}
+			if (!StringUtils.isEmpty(maxDelayInMillis)) {
+				maxDelay = Long.parseLong(maxDelayInMillis.trim());
+			}
+			if (!StringUtils.isEmpty(threadPoolSize)) {
+				threads = Integer.parseInt(threadPoolSize.trim());
+			}
+		} catch (NumberFormatException e) {
+			log.error(
+					"Invalid hedged lookup settings, hedging is disabled: hedgeDelayPercentile="
+							+ delayPercentile + ", hedgeMinDelayInMillis="
+							+ minDelayInMillis + ", hedgeMaxDelayInMillis="
+							+ maxDelayInMillis + ", hedgeThreadPoolSize="
+							+ threadPoolSize, e);
+			hedged = false;
+			threads = 0;
+			maxDelay = 0;
+		}
+
+		hedgedLookups = hedged;
+		if (!hedged) {
+			hedger.setThreadPoolSize(0);
+			return;
+		}
+		hedger.setDelayPercentile(percentile);
+		hedger.setDelayBoundsInMillis(minDelay, maxDelay);
+		hedger.setThreadPoolSize(threads);
+	}
+
+	/**
+	 * Run by the circuit breaker while it is open: recreates the connection
+	 * if it hit an unrecoverable error, then queries Quova with
+	 * probeIpAddress
+	 *
+	 * @return true if Quova answered the query
+	 */
+	private boolean probeGeoDirectoryServer() {
+		if (geoDirectoryConnection.get() == null || reconnectRequired) {
+			// under the lock of configurationChanged and shutdown, so that the
+			// probe neither replaces the connection to servers configured
+			// since it started nor reconnects after shutdown
+			synchronized (this) {
+				Properties serverProperties = geoDirectoryServerProperties;
+				if (serverProperties == null) {
+					return false;
 				}
+				if (geoDirectoryConnection.get() == null || reconnectRequired) {
+					try {
+						publishConnection(createConnection(serverProperties));
+					} catch (QuovaException qe) {
+						log.debug("Circuit breaker probe could not reconnect to Quova: {}",
+								qe);
+						return false;
+					}
+					reconnectRequired = false;
+					log.info("Circuit breaker probe reconnected to Quova");
+				}
+			}
+		}
+
+		GeoDirectoryConnection connection = acquireGeoDirectoryConnection();
+		if (connection == null) {
+			return false;
+		}
+		try {
+			connection.api.getIPInfo(probeIpAddress);
+			return true;
+		} catch (QuovaException qe) {
+			QuovaReturnCode returnCode = qe.getErrorCode();
+			if (QuovaReturnCode.INVALID_INPUT.equals(returnCode)) {
+				// the server answered, if only to reject the probe address
+				return true;
 			}
+			if (!QuovaReturnCode.TIMEOUT.equals(returnCode)
+					&& !QuovaReturnCode.POOL_FAILURE.equals(returnCode)) {
+				reconnectRequired = true;
+			}
+			log.debug("Circuit breaker probe query failed: {}", returnCode);
+			return false;
+		} catch (RuntimeException e) {
+			reconnectRequired = true;
+			log.warn("Circuit breaker probe query failed", e);
+			return false;
+		} finally {
+			connection.release();
 		}
 	}
 
-	public void setHwProps(Properties hwProps) {
-		this.hwProps = hwProps;
+	private static ScheduledThreadPoolExecutor createTimeoutScheduler() {
+		ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(
+				1, new NamedDaemonThreadFactory("QuovaAsyncLookupTimeout"));
+		// most lookups finish well within their timeout, don't keep the
+		// cancelled timers around until they would have fired
+		scheduler.setRemoveOnCancelPolicy(true);
+		return scheduler;
 	}
 
-	public static void main(String[] args) throws HwIP_GeoException,
-			IOException {
-		AppProperties app = new AppProperties();
-		Properties prop = app.readProperties();
+	/**
+	 * Stops the batch and async executors and closes the Geo Directory Server
+	 * connection once the lookups in flight are done, and stops the circuit
+	 * breaker probe and the configuration watch. The adapter can be
+	 * restarted with configurationChanged.
+	 */
+	public void shutdown() {
+		synchronized (this) {
+			// the probe no longer reconnects
+			geoDirectoryServerProperties = null;
+		}
+		GeoServerCircuitBreaker breaker = circuitBreaker;
+		circuitBreaker = null;
+		if (breaker != null) {
+			breaker.shutdown();
+			try {
+				if (!breaker.awaitTermination(PROBE_SHUTDOWN_TIMEOUT_IN_MILLIS)) {
+					log.warn("Circuit breaker probe still running after shutdown");
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
 
-		QuovaIP_GeoServerAdapter q = new QuovaIP_GeoServerAdapter();
-		q.setHwProps(prop);
-		q.configurationChanged();
-		IP_GeoResponse s = q.lookup("68.184.77.220");
-		System.out.println(s.to_String());
-		q.printDetails(s);
-		
-		List<String> ips = new ArrayList<>();
-		ips.add("172.17.29.112");
-		ips.add("192.172.150.56");
-		for(String ip : ips) {
-			IP_GeoResponse r = q.lookup(ip);
-			System.out.println("---------------------------------------------------");
-			System.out.println(ip);
-			q.printDetails(r);
+		ExecutorService executor = batchExecutor;
+		batchExecutor = null;
+		if (executor != null) {
+			executor.shutdown();
 		}
+		executor = asyncExecutor;
+		asyncExecutor = null;
+		if (executor != null) {
+			executor.shutdown();
+		}
+
+		hedger.shutdown();
+		metrics.unregister();
+
+		stopConfigurationWatch();
+		stopCacheSnapshots();
+		writeCacheSnapshot();
+		// the mapping is released once the last lookup using it is done
+		sharedCache = null;
+		lookupLog.flush();
+		// lookups in flight finish before the connection closes
+		publishConnection(null);
+	}
+
+	/**
+	 * Returns the circuit breaker so its state can be read at runtime
+	 *
+	 * @return the circuit breaker, null until the adapter is configured
+	 */
+	public GeoServerCircuitBreaker getCircuitBreaker() {
+		return circuitBreaker;
+	}
+
+	/**
+	 * Returns the concurrency limiter so its limit and the calls it shed can
+	 * be read at runtime
+	 *
+	 * @return the concurrency limiter
+	 */
+	public AdaptiveConcurrencyLimiter getConcurrencyLimiter() {
+		return concurrencyLimiter;
+	}
+
+	/**
+	 * Returns the hedger so the latency of each server and the hedge counts
+	 * can be read at runtime
+	 *
+	 * @return the hedger
+	 */
+	public GeoDirectoryHedger getHedger() {
+		return hedger;
+	}
+
+	/**
+	 * @return the lookup metrics, also published as a platform MBean
+	 */
+	public QuovaIP_GeoMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return the lookups in flight, and how many lookups shared another's
+	 *         query
+	 */
+	public SingleFlight<IP_AddressKey, ?> getInFlightLookups() {
+		return inFlightLookups;
+	}
+
+	/**
+	 * Returns the lookup cache so its hit, miss and eviction counts can be
+	 * read at runtime
+	 *
+	 * @return the lookup cache, null if caching is disabled
+	 */
+	public IP_GeoResponseCache getLookupCache() {
+		return lookupCache;
+	}
+
+	/**
+	 * @return the cache shared with the other JVMs of the host, null if
+	 *         sharing is disabled
+	 */
+	public SharedIP_GeoResponseCache getSharedCache() {
+		return sharedCache;
+	}
+
+	/**
+	 * @return the cache of NOT_FOUND lookups, null if negative caching is
+	 *         disabled
+	 */
+	public IP_GeoResponseCache getNotFoundCache() {
+		return notFoundCache;
+	}
+
+	/**
+	 * @return the executor lookupAll queries its batches on, null until the
+	 *         adapter is configured
+	 */
+	ExecutorService getBatchExecutor() {
+		return batchExecutor;
+	}
+
+	public void setHwProps(Properties hwProps) {
+		this.hwProps = hwProps;
 	}
-	
+
 	public void printDetails(IP_GeoResponse response) {
 		System.out.println("City : " + response.getCityName());
 		System.out.println("State : " + response.getStateName());
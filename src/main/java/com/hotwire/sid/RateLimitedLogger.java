@@ -0,0 +1,200 @@
+package com.hotwire.sid;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+
+/**
+ * Wraps an slf4j Logger so that a failure repeated by every lookup, such as a
+ * Quova outage, is logged once per interval instead of once per request. Each
+ * message is logged under a key, typically its error code: the first message
+ * of a key in an interval is logged, the others of that interval are only
+ * counted, and the count is appended to the next message logged for the key
+ * or reported by flush. Debug messages on the success path can be sampled
+ * instead.
+ */
+public final class RateLimitedLogger {
+
+	// //////////////////////////////////////////////////////////////
+	// ATTRIBUTES
+
+	/**
+	 * Rate limiting state of one key
+	 */
+	private static final class Window {
+
+		/**
+		 * System.nanoTime() the last message of the key was logged at
+		 */
+		final AtomicLong lastLogNanos;
+
+		final AtomicLong suppressed = new AtomicLong();
+
+		Window(long lastLogNanos) {
+			this.lastLogNanos = new AtomicLong(lastLogNanos);
+		}
+	}
+
+	private final Logger log;
+
+	private final ConcurrentHashMap<String, Window> windows = new ConcurrentHashMap<String, Window>();
+
+	private volatile long intervalNanos;
+
+	private volatile int debugSampleRate;
+
+	// //////////////////////////////////////////////////////////////
+	// CONSTRUCTOR
+
+	/**
+	 * @param log
+	 * @param intervalInMillis
+	 *            minimum time between two messages of the same key
+	 * @param debugSampleRate
+	 *            one in debugSampleRate sampled debug messages is logged
+	 */
+	public RateLimitedLogger(Logger log, long intervalInMillis,
+			int debugSampleRate) {
+		this.log = log;
+		setIntervalInMillis(intervalInMillis);
+		setDebugSampleRate(debugSampleRate);
+	}
+
+	// //////////////////////////////////////////////////////////////
+	// METHODS
+
+	/**
+	 * Logs an error unless another error of key was logged within the
+	 * interval. A trailing Throwable argument is logged as the exception, as
+	 * with Logger.error.
+	 *
+	 * @param key
+	 * @param format
+	 * @param arguments
+	 */
+	public void error(String key, String format, Object... arguments) {
+		if (log.isErrorEnabled()) {
+			long suppressed = acquire(key);
+			if (suppressed >= 0) {
+				log.error(appendSuppressed(format, suppressed),
+						withSuppressed(arguments, suppressed));
+			}
+		}
+	}
+
+	/**
+	 * Logs a warning unless another message of key was logged within the
+	 * interval
+	 *
+	 * @param key
+	 * @param format
+	 * @param arguments
+	 * @see #error(String, String, Object...)
+	 */
+	public void warn(String key, String format, Object... arguments) {
+		if (log.isWarnEnabled()) {
+			long suppressed = acquire(key);
+			if (suppressed >= 0) {
+				log.warn(appendSuppressed(format, suppressed),
+						withSuppressed(arguments, suppressed));
+			}
+		}
+	}
+
+	/**
+	 * Samples debug messages on hot paths, such as the timing of successful
+	 * queries, so that enabling debug logging does not log every lookup
+	 *
+	 * @return true if debug is enabled and this message is one of the sample
+	 */
+	public boolean isDebugSampled() {
+		int rate = debugSampleRate;
+		return log.isDebugEnabled()
+				&& (rate <= 1 || ThreadLocalRandom.current().nextInt(rate) == 0);
+	}
+
+	/**
+	 * @param key
+	 * @return number of messages suppressed before this one if it is to be
+	 *         logged, -1 if it is suppressed
+	 */
+	private long acquire(String key) {
+		long now = System.nanoTime();
+		Window window = windows.get(key);
+		if (window == null) {
+			Window newWindow = new Window(now);
+			window = windows.putIfAbsent(key, newWindow);
+			if (window == null) {
+				return 0;
+			}
+		}
+		long last = window.lastLogNanos.get();
+		if (now - last >= intervalNanos
+				&& window.lastLogNanos.compareAndSet(last, now)) {
+			return window.suppressed.getAndSet(0);
+		}
+		window.suppressed.incrementAndGet();
+		return -1;
+	}
+
+	private static String appendSuppressed(String format, long suppressed) {
+		return suppressed == 0 ? format : format
+				+ " ({} similar messages suppressed)";
+	}
+
+	/**
+	 * Adds suppressed to the arguments of the format, before a trailing
+	 * Throwable so that it is still logged as the exception
+	 */
+	private static Object[] withSuppressed(Object[] arguments, long suppressed) {
+		if (suppressed == 0) {
+			return arguments;
+		}
+		Object[] result = new Object[arguments.length + 1];
+		int throwable = arguments.length > 0
+				&& arguments[arguments.length - 1] instanceof Throwable ? arguments.length - 1
+				: arguments.length;
+		System.arraycopy(arguments, 0, result, 0, throwable);
+		result[throwable] = suppressed;
+		System.arraycopy(arguments, throwable, result, throwable + 1,
+				arguments.length - throwable);
+		return result;
+	}
+
+	/**
+	 * Logs the number of messages suppressed since the last message of each
+	 * key, for instance before shutting down
+	 */
+	public void flush() {
+		for (Map.Entry<String, Window> entry : windows.entrySet()) {
+			long suppressed = entry.getValue().suppressed.getAndSet(0);
+			if (suppressed > 0) {
+				log.warn("{} messages for {} were suppressed", suppressed,
+						entry.getKey());
+			}
+		}
+	}
+
+	/**
+	 * @param intervalInMillis
+	 *            minimum time between two messages of the same key, 0 to log
+	 *            every message
+	 */
+	public void setIntervalInMillis(long intervalInMillis) {
+		this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(
+				intervalInMillis, 0));
+	}
+
+	/**
+	 * @param debugSampleRate
+	 *            one in debugSampleRate sampled debug messages is logged, 1
+	 *            to log them all
+	 */
+	public void setDebugSampleRate(int debugSampleRate) {
+		this.debugSampleRate = Math.max(debugSampleRate, 1);
+	}
+}
@@ -0,0 +1,97 @@
+package com.hotwire.sid;
+
+/**
+ * Table of the private and special-purpose address blocks of the IANA IPv4
+ * and IPv6 special-purpose address registries that are not globally
+ * reachable. No geo server can locate an address in these blocks, so lookups
+ * for them can be answered locally with an empty response.
+ */
+public final class ReservedIP_Ranges {
+
+	// //////////////////////////////////////////////////////////////
+	// ATTRIBUTES
+
+	/**
+	 * Reserved IPv4 networks, in network byte order, and their prefix
+	 * lengths
+	 */
+	private static final int[] IPV4_NETWORKS = {
+			0x00000000, // 0.0.0.0/8 this network
+			0x0A000000, // 10.0.0.0/8
+			0x64400000, // 100.64.0.0/10 shared address space
+			0x7F000000, // 127.0.0.0/8 loopback
+			0xA9FE0000, // 169.254.0.0/16 link local
+			0xAC100000, // 172.16.0.0/12
+			0xC0000000, // 192.0.0.0/24 IETF protocol assignments
+			0xC0000200, // 192.0.2.0/24 TEST-NET-1
+			0xC0A80000, // 192.168.0.0/16
+			0xC6120000, // 198.18.0.0/15 benchmarking
+			0xC6336400, // 198.51.100.0/24 TEST-NET-2
+			0xCB007100, // 203.0.113.0/24 TEST-NET-3
+			0xE0000000, // 224.0.0.0/4 multicast
+			0xF0000000, // 240.0.0.0/4 reserved, broadcast
+	};
+
+	private static final int[] IPV4_PREFIX_LENGTHS = { 8, 8, 10, 8, 16, 12,
+			24, 24, 16, 15, 24, 24, 4, 4 };
+
+	/**
+	 * Upper 64 bits of the reserved IPv6 networks and their prefix lengths,
+	 * all of which are at most 64. The unspecified and loopback addresses are
+	 * checked separately.
+	 */
+	private static final long[] IPV6_NETWORKS = {
+			0x0100000000000000L, // 100::/64 discard
+			0x0064FF9B00010000L, // 64:ff9b:1::/48 local-use translation
+			0x20010DB800000000L, // 2001:db8::/32 documentation
+			0xFC00000000000000L, // fc00::/7 unique local
+			0xFE80000000000000L, // fe80::/10 link local
+			0xFF00000000000000L, // ff00::/8 multicast
+	};
+
+	private static final int[] IPV6_PREFIX_LENGTHS = { 64, 48, 32, 7, 10, 8 };
+
+	// //////////////////////////////////////////////////////////////
+	// CONSTRUCTOR
+
+	private ReservedIP_Ranges() {
+	}
+
+	// //////////////////////////////////////////////////////////////
+	// METHODS
+
+	/**
+	 * @param address
+	 * @return true if address is in a private or reserved block
+	 */
+	public static boolean isReserved(IP_AddressKey address) {
+		if (address.isIPv4()) {
+			return isReservedIPv4(address.getIPv4());
+		}
+		long high = address.getHigh();
+		if (high == 0 && (address.getLow() >>> 1) == 0) {
+			// :: and ::1
+			return true;
+		}
+		for (int i = 0; i < IPV6_NETWORKS.length; i++) {
+			if (((high ^ IPV6_NETWORKS[i]) >>> (64 - IPV6_PREFIX_LENGTHS[i])) == 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param address
+	 *            IPv4 address as an int in network byte order
+	 * @return true if address is in a private or reserved block
+	 */
+	public static boolean isReservedIPv4(int address) {
+		for (int i = 0; i < IPV4_NETWORKS.length; i++) {
+			if (((address ^ IPV4_NETWORKS[i]) >>> (32 - IPV4_PREFIX_LENGTHS[i])) == 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,106 @@
+package com.hotwire.sid;
+
+/**
+ * LatencyHistogram over the current and previous windows of a fixed length,
+ * so that percentiles follow the recent latency instead of everything
+ * recorded since the start. Durations older than two windows are dropped,
+ * also when nothing is recorded in the meantime.
+ */
+final class RollingLatencyHistogram {
+
+	// //////////////////////////////////////////////////////////////
+	// ATTRIBUTES
+
+	private final long windowInNanos;
+
+	private volatile LatencyHistogram current = new LatencyHistogram();
+
+	private volatile LatencyHistogram previous = new LatencyHistogram();
+
+	private volatile long windowStartNanos;
+
+	// //////////////////////////////////////////////////////////////
+	// CONSTRUCTOR
+
+	/**
+	 * @param windowInNanos
+	 *            length of each window
+	 */
+	RollingLatencyHistogram(long windowInNanos) {
+		this(windowInNanos, System.nanoTime());
+	}
+
+	RollingLatencyHistogram(long windowInNanos, long nowNanos) {
+		this.windowInNanos = windowInNanos;
+		this.windowStartNanos = nowNanos;
+	}
+
+	// //////////////////////////////////////////////////////////////
+	// METHODS
+
+	void record(long durationInNanos) {
+		record(durationInNanos, System.nanoTime());
+	}
+
+	void record(long durationInNanos, long nowNanos) {
+		roll(nowNanos);
+		current.record(durationInNanos);
+	}
+
+	/**
+	 * Starts a new window if the current one has ended
+	 */
+	private void roll(long nowNanos) {
+		if (nowNanos - windowStartNanos < windowInNanos) {
+			return;
+		}
+		synchronized (this) {
+			long elapsedNanos = nowNanos - windowStartNanos;
+			if (elapsedNanos >= windowInNanos) {
+				// after a quiet window the current durations are too old to
+				// keep as the previous ones
+				previous = elapsedNanos < 2 * windowInNanos ? current
+						: new LatencyHistogram();
+				current = new LatencyHistogram();
+				windowStartNanos = nowNanos;
+			}
+		}
+	}
+
+	/**
+	 * @return number of durations in the current and previous windows
+	 */
+	long getCount() {
+		return getCount(System.nanoTime());
+	}
+
+	long getCount(long nowNanos) {
+		roll(nowNanos);
+		return previous.getCount() + current.getCount();
+	}
+
+	/**
+	 * @param percentile
+	 *            between 0 and 100
+	 * @return latency in nanoseconds over the current and previous windows, 0
+	 *         if nothing was recorded in them
+	 */
+	long getValueAtPercentile(double percentile) {
+		return getValueAtPercentile(percentile, System.nanoTime());
+	}
+
+	long getValueAtPercentile(double percentile, long nowNanos) {
+		roll(nowNanos);
+		return LatencyHistogram.getValueAtPercentile(percentile, previous,
+				current);
+	}
+
+	/**
+	 * Clears both windows
+	 */
+	synchronized void reset() {
+		previous = new LatencyHistogram();
+		current = new LatencyHistogram();
+		windowStartNanos = System.nanoTime();
+	}
+}
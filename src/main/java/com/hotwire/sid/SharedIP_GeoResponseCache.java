@@ -0,0 +1,465 @@
+package com.hotwire.sid;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache of IP_GeoResponses in a memory-mapped file shared by the JVMs of a
+ * host, so that a lookup one JVM sends to the geo server serves the others,
+ * and kept off the GC heap.
+ * <p/>
+ * The file holds an open-addressing hash table of fixed-width slots, probed
+ * linearly for at most MAX_PROBES slots. Slots are never emptied, a new entry
+ * takes an empty or expired slot of its probe sequence, or else replaces the
+ * entry in its home slot. Each slot is guarded by a sequence number: a writer
+ * moves it from even to odd with a compare-and-set, writes the record and
+ * moves it to the next even number, and a reader retries nothing but treats
+ * the slot as a miss if the sequence number was odd or changed while it read
+ * the record. Neither readers nor writers ever block, a writer that loses a
+ * race for a slot simply does not cache its response.
+ * <p/>
+ * The odd sequence number holds the time the slot was locked, so that a slot
+ * left odd by a JVM killed while writing it is taken over by the next writer
+ * once STALE_WRITE_IN_MILLIS have passed. A writer stalled for that long
+ * loses the slot and does not publish its record, though its remaining
+ * stores may still tear the record of the writer that took over.
+ * <p/>
+ * Slot layout, in native byte order:
+ *
+ * <pre>
+ *   0  long   sequence number, 0 for a slot never written
+ *   8  long   high and low halves of the IPv4-mapped IPv6 address
+ *  24  long   expiry, System.currentTimeMillis(), Long.MAX_VALUE for never
+ *  32  float  gmtOffset, int dma, float latitude, float longitude
+ *  48  int    IP_GeoField mask
+ *  52  char   geoInfoSource
+ *  54  byte   country, zip, city and state lengths, -1 for null
+ *  58  byte   1 if the geo server found the address, 0 if not
+ *  64  bytes  UTF-8 country (4), zip (12), city (24) and state (24)
+ * </pre>
+ *
+ * Responses whose strings do not fit their fields are not cached.
+ */
+public class SharedIP_GeoResponseCache {
+
+	// //////////////////////////////////////////////////////////////
+	// ATTRIBUTES
+
+	/**
+	 * "QGSC"
+	 */
+	static final int MAGIC = 0x51475343;
+
+	/**
+	 * 2 since odd sequence numbers hold the time the slot was locked, 3 since
+	 * slots hold whether the address was found
+	 */
+	static final int VERSION = 3;
+
+	static final int HEADER_SIZE = 64;
+
+	static final int SLOT_SIZE = 128;
+
+	/**
+	 * Slots probed for an address before giving up
+	 */
+	static final int MAX_PROBES = 8;
+
+	/**
+	 * Time after which a slot still being written is taken over, writing a
+	 * record takes microseconds
+	 */
+	static final long STALE_WRITE_IN_MILLIS = 60000;
+
+	/**
+	 * Largest table that fits a single mapping
+	 */
+	private static final int MAX_SLOTS = 1 << 23;
+
+	private static final int HIGH = 8;
+
+	private static final int LOW = 16;
+
+	private static final int EXPIRES_AT = 24;
+
+	private static final int GMT_OFFSET = 32;
+
+	private static final int NDMA_CODE = 36;
+
+	private static final int LATITUDE = 40;
+
+	private static final int LONGITUDE = 44;
+
+	private static final int FIELDS = 48;
+
+	private static final int GEO_INFO_SOURCE = 52;
+
+	private static final int LENGTHS = 54;
+
+	private static final int FOUND = 58;
+
+	private static final int[] STRING_OFFSETS = { 64, 68, 80, 104 };
+
+	private static final int[] STRING_WIDTHS = { 4, 12, 24, 24 };
+
+	private static final byte NULL_LENGTH = -1;
+
+	private static final VarHandle LONGS = MethodHandles
+			.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+	private final ByteBuffer buffer;
+
+	private final File file;
+
+	private final int slotCount;
+
+	private final int mask;
+
+	private final LongAdder hits = new LongAdder();
+
+	private final LongAdder misses = new LongAdder();
+
+	private final LongAdder puts = new LongAdder();
+
+	private final LongAdder rejectedPuts = new LongAdder();
+
+	// //////////////////////////////////////////////////////////////
+	// CONSTRUCTOR
+
+	private SharedIP_GeoResponseCache(File file, ByteBuffer buffer,
+			int slotCount) {
+		this.file = file;
+		this.buffer = buffer;
+		this.slotCount = slotCount;
+		this.mask = slotCount - 1;
+	}
+
+	// //////////////////////////////////////////////////////////////
+	// METHODS
+
+	/**
+	 * Maps the shared cache in file, creating it with room for maxEntries
+	 * (rounded up to a power of two) if it does not exist yet. If another
+	 * JVM created the file, its size is used whatever maxEntries is.
+	 *
+	 * @param file
+	 * @param maxEntries
+	 * @return SharedIP_GeoResponseCache
+	 * @throws IOException
+	 *             if the file cannot be mapped or is not a shared cache
+	 */
+	public static SharedIP_GeoResponseCache open(File file, int maxEntries)
+			throws IOException {
+		if (maxEntries <= 0) {
+			throw new IllegalArgumentException("maxEntries must be positive: "
+					+ maxEntries);
+		}
+		int slots = slots(maxEntries);
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+				FileChannel channel = raf.getChannel()) {
+			// the JVMs starting together agree on who creates the table
+			FileLock lock = channel.lock();
+			try {
+				if (channel.size() == 0) {
+					raf.setLength(HEADER_SIZE + (long) slots * SLOT_SIZE);
+					MappedByteBuffer header = channel.map(
+							FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+					header.order(ByteOrder.nativeOrder());
+					header.putInt(4, VERSION);
+					header.putInt(8, slots);
+					header.putInt(12, SLOT_SIZE);
+					// written last, a file without it is not used
+					header.putInt(0, MAGIC);
+					header.force();
+				}
+				MappedByteBuffer header = channel.map(
+						FileChannel.MapMode.READ_ONLY, 0,
+						Math.min(channel.size(), HEADER_SIZE));
+				header.order(ByteOrder.nativeOrder());
+				if (header.capacity() < HEADER_SIZE
+						|| header.getInt(0) != MAGIC) {
+					throw new IOException(file + " is not a shared lookup cache");
+				}
+				if (header.getInt(4) != VERSION
+						|| header.getInt(12) != SLOT_SIZE) {
+					throw new IOException("Unsupported shared lookup cache version "
+							+ header.getInt(4) + " in " + file);
+				}
+				slots = header.getInt(8);
+				if (slots <= 0 || Integer.bitCount(slots) != 1
+						|| slots > MAX_SLOTS
+						|| channel.size() < HEADER_SIZE + (long) slots
+								* SLOT_SIZE) {
+					throw new IOException("Truncated shared lookup cache "
+							+ file);
+				}
+			} finally {
+				lock.release();
+			}
+			// the mapping stays valid after the channel is closed
+			MappedByteBuffer buffer = channel.map(
+					FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE
+							+ (long) slots * SLOT_SIZE);
+			buffer.order(ByteOrder.nativeOrder());
+			return new SharedIP_GeoResponseCache(file, buffer, slots);
+		}
+	}
+
+	/**
+	 * Returns the shared response for ipAddress, null if there is none, it
+	 * has expired or another JVM is writing it
+	 *
+	 * @param ipAddress
+	 * @return IP_GeoResponse for ipAddress.toString()
+	 */
+	public IP_GeoResponse get(IP_AddressKey ipAddress) {
+		return get(ipAddress, System.currentTimeMillis());
+	}
+
+	IP_GeoResponse get(IP_AddressKey ipAddress, long nowMillis) {
+		long high = ipAddress.getHigh();
+		long low = ipAddress.getLow();
+		int home = IP_GeoResponseCache.hash(high, low) & mask;
+		for (int i = 0; i < MAX_PROBES; i++) {
+			int offset = offset((home + i) & mask);
+			long sequence = (long) LONGS.getAcquire(buffer, offset);
+			if (sequence == 0) {
+				break;
+			}
+			if ((sequence & 1) != 0 || buffer.getLong(offset + HIGH) != high
+					|| buffer.getLong(offset + LOW) != low) {
+				continue;
+			}
+			// copy the record and decode the copy once the sequence number
+			// shows it was not written meanwhile
+			ByteBuffer record = copy(offset);
+			VarHandle.acquireFence();
+			if ((long) LONGS.getAcquire(buffer, offset) != sequence
+					|| record.getLong(EXPIRES_AT) - nowMillis <= 0) {
+				break;
+			}
+			hits.increment();
+			return read(record, ipAddress.toString());
+		}
+		misses.increment();
+		return null;
+	}
+
+	private ByteBuffer copy(int offset) {
+		byte[] record = new byte[SLOT_SIZE];
+		ByteBuffer slot = buffer.duplicate();
+		slot.position(offset);
+		slot.get(record);
+		return ByteBuffer.wrap(record).order(ByteOrder.nativeOrder());
+	}
+
+	private static IP_GeoResponse read(ByteBuffer record, String ipAddress) {
+		IP_GeoResponse.Builder builder = new IP_GeoResponse.Builder(
+				ipAddress, record.getChar(GEO_INFO_SOURCE));
+		builder.setFields(record.getInt(FIELDS));
+		builder.setFound(record.get(FOUND) != 0);
+		builder.setCountryCode(readString(record, 0));
+		builder.setGmtOffset(record.getFloat(GMT_OFFSET));
+		builder.setNDMA_Code(record.getInt(NDMA_CODE));
+		builder.setZipCode(readString(record, 1));
+		builder.setCityName(readString(record, 2));
+		builder.setStateName(readString(record, 3));
+		builder.setLatitude(record.getFloat(LATITUDE));
+		builder.setLongitude(record.getFloat(LONGITUDE));
+		return builder.build();
+	}
+
+	private static String readString(ByteBuffer record, int field) {
+		int length = record.get(LENGTHS + field);
+		if (length < 0) {
+			return null;
+		}
+		return new String(record.array(), STRING_OFFSETS[field], Math.min(
+				length, STRING_WIDTHS[field]), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Shares response for ipAddress with the other JVMs for ttlInMillis
+	 *
+	 * @param ipAddress
+	 * @param response
+	 * @param ttlInMillis
+	 *            time after which the response expires, never if this is not
+	 *            positive
+	 * @return false if the response was not cached, because its strings do
+	 *         not fit or another JVM was writing the slot
+	 */
+	public boolean put(IP_AddressKey ipAddress, IP_GeoResponse response,
+			long ttlInMillis) {
+		long nowMillis = System.currentTimeMillis();
+		return put(ipAddress, response, ttlInMillis > 0 ? nowMillis
+				+ ttlInMillis : Long.MAX_VALUE, nowMillis);
+	}
+
+	boolean put(IP_AddressKey ipAddress, IP_GeoResponse response,
+			long expiresAtMillis, long nowMillis) {
+		byte[][] strings = encode(response);
+		if (strings == null) {
+			rejectedPuts.increment();
+			return false;
+		}
+		long high = ipAddress.getHigh();
+		long low = ipAddress.getLow();
+		int home = IP_GeoResponseCache.hash(high, low) & mask;
+		int target = -1;
+		for (int i = 0; i < MAX_PROBES; i++) {
+			int slot = (home + i) & mask;
+			int offset = offset(slot);
+			long sequence = (long) LONGS.getAcquire(buffer, offset);
+			if (sequence == 0
+					|| ((sequence & 1) == 0
+							&& buffer.getLong(offset + HIGH) == high && buffer
+							.getLong(offset + LOW) == low)) {
+				target = slot;
+				break;
+			}
+			boolean expired = (sequence & 1) == 0
+					&& buffer.getLong(offset + EXPIRES_AT) - nowMillis <= 0;
+			if (target < 0 && (expired || isStale(sequence, nowMillis))) {
+				// keep probing in case the address has a slot further on
+				target = slot;
+			}
+		}
+		if (target < 0) {
+			target = home;
+		}
+
+		int offset = offset(target);
+		long sequence = (long) LONGS.getAcquire(buffer, offset);
+		// greater than any sequence number the slot had, so a reader cannot
+		// mistake the new record for the one it started reading
+		long locked = Math.max(sequence + 1, nowMillis << 1 | 1);
+		if ((sequence & 1) != 0 && !isStale(sequence, nowMillis)
+				|| !LONGS.compareAndSet(buffer, offset, sequence, locked)) {
+			rejectedPuts.increment();
+			return false;
+		}
+		VarHandle.storeStoreFence();
+		buffer.putLong(offset + HIGH, high);
+		buffer.putLong(offset + LOW, low);
+		buffer.putLong(offset + EXPIRES_AT, expiresAtMillis);
+		buffer.putFloat(offset + GMT_OFFSET, response.getGmtOffset());
+		buffer.putInt(offset + NDMA_CODE, response.getNDMA_Code());
+		buffer.putFloat(offset + LATITUDE, response.getLatitude());
+		buffer.putFloat(offset + LONGITUDE, response.getLongitude());
+		buffer.putInt(offset + FIELDS, response.getFieldMask());
+		buffer.putChar(offset + GEO_INFO_SOURCE, response.getGeoInfoSource());
+		buffer.put(offset + FOUND, (byte) (response.isFound() ? 1 : 0));
+		for (int field = 0; field < strings.length; field++) {
+			byte[] bytes = strings[field];
+			buffer.put(offset + LENGTHS + field,
+					bytes == null ? NULL_LENGTH : (byte) bytes.length);
+			if (bytes != null) {
+				int start = offset + STRING_OFFSETS[field];
+				for (int i = 0; i < bytes.length; i++) {
+					buffer.put(start + i, bytes[i]);
+				}
+			}
+		}
+		if (!LONGS.compareAndSet(buffer, offset, locked, locked + 1)) {
+			// taken over by another writer, as this one was too slow
+			rejectedPuts.increment();
+			return false;
+		}
+		puts.increment();
+		return true;
+	}
+
+	/**
+	 * @return true if sequence is odd and was locked more than
+	 *         STALE_WRITE_IN_MILLIS before nowMillis
+	 */
+	private static boolean isStale(long sequence, long nowMillis) {
+		return (sequence & 1) != 0
+				&& nowMillis - (sequence >>> 1) > STALE_WRITE_IN_MILLIS;
+	}
+
+	/**
+	 * @return UTF-8 country, zip, city and state of response, null if one
+	 *         does not fit its field
+	 */
+	private static byte[][] encode(IP_GeoResponse response) {
+		String[] values = { response.getCountryCode(), response.getZipCode(),
+				response.getCityName(), response.getStateName() };
+		byte[][] strings = new byte[values.length][];
+		for (int field = 0; field < values.length; field++) {
+			if (values[field] != null) {
+				strings[field] = values[field].getBytes(StandardCharsets.UTF_8);
+				if (strings[field].length > STRING_WIDTHS[field]) {
+					return null;
+				}
+			}
+		}
+		return strings;
+	}
+
+	/**
+	 * @param maxEntries
+	 * @return maxEntries rounded up to a power of two, at most MAX_SLOTS
+	 */
+	static int slots(int maxEntries) {
+		// clamp before shifting, 2^31 would overflow to Integer.MIN_VALUE
+		if (maxEntries >= MAX_SLOTS) {
+			return MAX_SLOTS;
+		}
+		return Integer.highestOneBit(Math.max(maxEntries - 1, 1)) << 1;
+	}
+
+	private static int offset(int slot) {
+		return HEADER_SIZE + slot * SLOT_SIZE;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return number of slots of the table
+	 */
+	public int getCapacity() {
+		return slotCount;
+	}
+
+	/**
+	 * @return number of lookups this JVM answered from the shared cache
+	 */
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return number of lookups this JVM did not answer from the shared cache
+	 */
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return number of responses this JVM shared
+	 */
+	public long getPutCount() {
+		return puts.sum();
+	}
+
+	/**
+	 * @return number of responses this JVM could not share
+	 */
+	public long getRejectedPutCount() {
+		return rejectedPuts.sum();
+	}
+}
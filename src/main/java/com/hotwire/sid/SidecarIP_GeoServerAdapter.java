@@ -0,0 +1,334 @@
+package com.hotwire.sid;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Client of IP_GeoSidecarServer, for the application JVMs of a host that
+ * share the lookups of one sidecar instead of each holding its own Quova
+ * connection pool and caches. Single lookups are GET requests, which the
+ * sidecar merges with the lookups of the other clients; lookupAll sends
+ * every address in one POST request. The HTTP connections are kept alive
+ * and reused.
+ * <p>
+ * Failures are reported with the HotwireErrors code the sidecar's adapter
+ * raised, or with IPGEO_GEO_SERVER_NOT_AVAILABLE if the sidecar cannot be
+ * reached or has no room for the lookups, IPGEO_GEO_SERVER_TIMEOUT if it
+ * does not answer within timeoutInMillis, or batchTimeoutInMillis for
+ * lookupAll, and IPGEO_GEO_SERVER_INVALID_RESPONSE if its answer cannot be
+ * read.
+ */
+public class SidecarIP_GeoServerAdapter implements IP_GeoServerAdapter {
+
+	// //////////////////////////////////////////////////////////////
+	// ATTRIBUTES
+
+	private static final Logger log = LoggerFactory
+			.getLogger(SidecarIP_GeoServerAdapter.class);
+
+	private static final String PROPERTY_PREFIX = "hotwire.eis.geo.sidecar.";
+
+	public static final String DEFAULT_URL = "http://127.0.0.1:"
+			+ IP_GeoSidecarServer.DEFAULT_PORT;
+
+	public static final long DEFAULT_TIMEOUT_IN_MILLIS = 1000L;
+
+	public static final long DEFAULT_BATCH_TIMEOUT_IN_MILLIS = 10000L;
+
+	/**
+	 * Logs failed requests at most once every 10 seconds
+	 */
+	private final RateLimitedLogger lookupLog = new RateLimitedLogger(log,
+			10000, 1);
+
+	private final HttpClient client = HttpClient.newBuilder()
+			.version(HttpClient.Version.HTTP_1_1).build();
+
+	/**
+	 * Base URL of the sidecar, without a trailing slash
+	 */
+	private volatile String url = DEFAULT_URL;
+
+	private volatile Duration timeout = Duration
+			.ofMillis(DEFAULT_TIMEOUT_IN_MILLIS);
+
+	/**
+	 * Timeout of the requests of lookupAll, which carry many lookups
+	 */
+	private volatile Duration batchTimeout = Duration
+			.ofMillis(DEFAULT_BATCH_TIMEOUT_IN_MILLIS);
+
+	protected transient Properties hwProps;
+
+	// //////////////////////////////////////////////////////////////
+	// METHODS
+
+	/**
+	 * Method takes an ipAddress as input and retrieves its geographical
+	 * information from the sidecar
+	 *
+	 * @param ipAddress
+	 * @return an IP_GeoResponse object
+	 * @throws HwIP_GeoException
+	 */
+	public IP_GeoResponse lookup(String ipAddress) throws HwIP_GeoException {
+		IP_GeoLookupResult result = lookupResult(ipAddress);
+		if (!result.isSuccess()) {
+			throw HwIP_GeoException.stackless(result.getErrorCode());
+		}
+		return result.getResponse();
+	}
+
+	/**
+	 * @param ipAddress
+	 * @return an IP_GeoResponse object
+	 * @throws HwIP_GeoException
+	 * @see #lookup(String)
+	 */
+	public IP_GeoResponse lookup(IP_AddressKey ipAddress)
+			throws HwIP_GeoException {
+		return lookup(ipAddress.toString());
+	}
+
+	/**
+	 * @param ipAddress
+	 * @return an IP_GeoResponse object
+	 * @throws HwIP_GeoException
+	 * @see #lookup(String)
+	 */
+	public IP_GeoResponse lookup(InetAddress ipAddress)
+			throws HwIP_GeoException {
+		return lookup(IP_AddressKey.of(ipAddress));
+	}
+
+	/**
+	 * Retrieves the geographical information of ipAddress from the sidecar
+	 * without throwing. Malformed addresses are rejected without a request.
+	 *
+	 * @param ipAddress
+	 * @return IP_GeoLookupResult
+	 */
+	public IP_GeoLookupResult lookupResult(String ipAddress) {
+		if (IP_AddressParser.parse(ipAddress) == null) {
+			return IP_GeoLookupResult.failure(ipAddress,
+					IP_GeoLookupResult.Status.INVALID,
+					HotwireErrors.IPGEO_GEO_SERVER_INVALID_ARGUMENT);
+		}
+		HttpRequest request = HttpRequest
+				.newBuilder(
+						URI.create(url + "/lookup?ip="
+								+ URLEncoder.encode(ipAddress,
+										StandardCharsets.UTF_8)))
+				.timeout(timeout).GET().build();
+		try {
+			String body = send(request);
+			IP_GeoLookupResult result = IP_GeoSidecarProtocol.decode(body
+					.trim());
+			if (!ipAddress.equals(result.getIP_Address())) {
+				throw new IllegalArgumentException("Answer for "
+						+ result.getIP_Address());
+			}
+			return result;
+		} catch (HwIP_GeoException e) {
+			return IP_GeoLookupResult.failure(ipAddress, e);
+		} catch (IllegalArgumentException e) {
+			lookupLog.error("INVALID_RESPONSE",
+					"Invalid answer from the sidecar at {}", url, e);
+			return IP_GeoLookupResult.failure(ipAddress,
+					IP_GeoLookupResult.Status.ERROR,
+					HotwireErrors.IPGEO_GEO_SERVER_INVALID_RESPONSE);
+		}
+	}
+
+	/**
+	 * Looks up geographical information for many ipAddresses with one
+	 * request, reporting each failure in its own IP_GeoLookupResult
+	 *
+	 * @param ipAddresses
+	 * @return map from each distinct ipAddress, in iteration order, to the
+	 *         result of its lookup
+	 */
+	public Map<String, IP_GeoLookupResult> lookupAll(
+			Collection<String> ipAddresses) {
+		Map<String, IP_GeoLookupResult> results = new LinkedHashMap<String, IP_GeoLookupResult>();
+		List<String> pendingIPs = new ArrayList<String>();
+		StringBuilder body = new StringBuilder(ipAddresses.size() * 16);
+		for (String ipAddress : ipAddresses) {
+			if (results.containsKey(ipAddress)) {
+				continue;
+			}
+			if (IP_AddressParser.parse(ipAddress) == null) {
+				results.put(ipAddress, IP_GeoLookupResult.failure(ipAddress,
+						IP_GeoLookupResult.Status.INVALID,
+						HotwireErrors.IPGEO_GEO_SERVER_INVALID_ARGUMENT));
+				continue;
+			}
+			// reserve the position so that results keep the input order
+			results.put(ipAddress, null);
+			pendingIPs.add(ipAddress);
+			body.append(ipAddress).append('\n');
+		}
+		if (pendingIPs.isEmpty()) {
+			return results;
+		}
+
+		HttpRequest request = HttpRequest.newBuilder(URI.create(url + "/lookup"))
+				.timeout(batchTimeout)
+				.header("Content-Type", "text/plain; charset=UTF-8")
+				.POST(HttpRequest.BodyPublishers.ofString(body.toString(),
+						StandardCharsets.UTF_8)).build();
+		int errorCode = HotwireErrors.IPGEO_GEO_SERVER_INVALID_RESPONSE;
+		try {
+			for (String line : send(request).split("\n")) {
+				if (line.isEmpty()) {
+					continue;
+				}
+				IP_GeoLookupResult result = IP_GeoSidecarProtocol.decode(line);
+				if (results.containsKey(result.getIP_Address())) {
+					results.put(result.getIP_Address(), result);
+				}
+			}
+		} catch (HwIP_GeoException e) {
+			errorCode = e.getErrorCode();
+		} catch (IllegalArgumentException e) {
+			lookupLog.error("INVALID_RESPONSE",
+					"Invalid answer from the sidecar at {}", url, e);
+		}
+		// addresses the sidecar did not answer
+		for (String ipAddress : pendingIPs) {
+			if (results.get(ipAddress) == null) {
+				results.put(ipAddress, IP_GeoLookupResult.failure(ipAddress,
+						IP_GeoLookupResult.statusOf(errorCode), errorCode));
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Sends request to the sidecar
+	 *
+	 * @param request
+	 * @return the body of a 200 answer
+	 * @throws HwIP_GeoException
+	 *             IPGEO_GEO_SERVER_TIMEOUT, IPGEO_GEO_SERVER_NOT_AVAILABLE if
+	 *             the sidecar cannot be reached or is overloaded, or
+	 *             IPGEO_GEO_SERVER_INVALID_RESPONSE for other answers
+	 */
+	private String send(HttpRequest request) throws HwIP_GeoException {
+		HttpResponse<String> response;
+		try {
+			response = client.send(request, HttpResponse.BodyHandlers
+					.ofString(StandardCharsets.UTF_8));
+		} catch (HttpTimeoutException e) {
+			lookupLog.warn("TIMEOUT", "Sidecar at {} did not answer within {}",
+					url, request.timeout().orElse(timeout));
+			throw HwIP_GeoException
+					.stackless(HotwireErrors.IPGEO_GEO_SERVER_TIMEOUT);
+		} catch (IOException e) {
+			lookupLog.warn("NOT_AVAILABLE", "Could not reach the sidecar at {}",
+					url, e);
+			throw HwIP_GeoException
+					.stackless(HotwireErrors.IPGEO_GEO_SERVER_NOT_AVAILABLE);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw HwIP_GeoException
+					.stackless(HotwireErrors.IPGEO_GEO_SERVER_NOT_AVAILABLE);
+		}
+		if (response.statusCode() != 200) {
+			lookupLog.error("HTTP_" + response.statusCode(),
+					"Sidecar at {} answered {}: {}", url,
+					response.statusCode(), response.body());
+			throw HwIP_GeoException.stackless(response.statusCode() == 503 ? HotwireErrors.IPGEO_GEO_SERVER_NOT_AVAILABLE
+					: HotwireErrors.IPGEO_GEO_SERVER_INVALID_RESPONSE);
+		}
+		return response.body();
+	}
+
+	/**
+	 * Called to (re)configure the sidecar url, timeoutInMillis and
+	 * batchTimeoutInMillis from the hotwire.eis.geo.sidecar properties.
+	 * Invalid settings, such as a timeout that is not positive, are logged and
+	 * the current ones kept, as the requests could not be built with them.
+	 */
+	public void configurationChanged() {
+		Properties props = hwProps != null ? hwProps : new Properties();
+		String newUrl = StringUtils.defaultIfEmpty(
+				StringUtils.trimToEmpty(props.getProperty(PROPERTY_PREFIX
+						+ "url")), DEFAULT_URL);
+		try {
+			// throws on a url HttpRequest does not accept, such as one
+			// without an http or https scheme
+			HttpRequest.newBuilder(URI.create(newUrl));
+			Duration newTimeout = parseTimeout(props, "timeoutInMillis",
+					DEFAULT_TIMEOUT_IN_MILLIS);
+			Duration newBatchTimeout = parseTimeout(props,
+					"batchTimeoutInMillis", DEFAULT_BATCH_TIMEOUT_IN_MILLIS);
+			timeout = newTimeout;
+			batchTimeout = newBatchTimeout;
+			url = StringUtils.removeEnd(newUrl, "/");
+			log.info("Looking up IP geo information from the sidecar at {}",
+					url);
+		} catch (IllegalArgumentException e) {
+			// NumberFormatException or a malformed url
+			log.error("Invalid sidecar settings, keeping the current ones", e);
+		}
+	}
+
+	/**
+	 * @param props
+	 * @param name
+	 *            name of the property after the hotwire.eis.geo.sidecar prefix
+	 * @param defaultInMillis
+	 *            used if the property is not set
+	 * @return the timeout
+	 * @throws IllegalArgumentException
+	 *             if the property is not a positive number
+	 */
+	private static Duration parseTimeout(Properties props, String name,
+			long defaultInMillis) {
+		String value = props.getProperty(PROPERTY_PREFIX + name);
+		long timeoutInMillis = StringUtils.isBlank(value) ? defaultInMillis
+				: Long.parseLong(value.trim());
+		if (timeoutInMillis <= 0) {
+			throw new IllegalArgumentException(name + " must be positive: "
+					+ timeoutInMillis);
+		}
+		return Duration.ofMillis(timeoutInMillis);
+	}
+
+	/**
+	 * Logs the failures still held back by the rate limit
+	 */
+	public void shutdown() {
+		lookupLog.flush();
+	}
+
+	/**
+	 * @return base URL of the sidecar
+	 */
+	public String getUrl() {
+		return url;
+	}
+
+	public void setHwProps(Properties hwProps) {
+		this.hwProps = hwProps;
+	}
+}
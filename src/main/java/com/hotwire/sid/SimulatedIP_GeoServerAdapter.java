@@ -0,0 +1,436 @@
+package com.hotwire.sid;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-process stand-in for the Quova GeoDirectoryServer, used to load test and
+ * tune pool sizes, timeouts and failover without squova01.stg. Answers come
+ * from an IP range file in the format read by OfflineIP_GeoServerAdapter and
+ * are tagged with IP_GeoResponse.GEO_INFO_SOURCE_SIMULATOR. Every lookup
+ * borrows a simulated pooled connection, waits for a latency drawn from the
+ * configured distribution and may be failed with an injected POOL_FAILURE,
+ * timeout or unrecoverable error, which are reported with the same
+ * HotwireErrors codes QuovaIP_GeoServerAdapter uses.
+ */
+public class SimulatedIP_GeoServerAdapter implements IP_GeoServerAdapter {
+
+	// //////////////////////////////////////////////////////////////
+	// ATTRIBUTES
+
+	private static final Logger log = LoggerFactory
+			.getLogger(SimulatedIP_GeoServerAdapter.class);
+
+	/**
+	 * Logs the injected errors at most once every 10 seconds
+	 */
+	private final RateLimitedLogger lookupLog = new RateLimitedLogger(log,
+			10000, 1);
+
+	private static final String PROPERTY_PREFIX = "hotwire.eis.geo.simulator.";
+
+	/**
+	 * Distribution the latency of simulated server calls is drawn from
+	 */
+	public enum LatencyDistribution {
+		/**
+		 * Always latencyInMillis
+		 */
+		FIXED,
+		/**
+		 * Uniform between 0 and twice latencyInMillis
+		 */
+		UNIFORM,
+		/**
+		 * Exponential with mean latencyInMillis
+		 */
+		EXPONENTIAL,
+		/**
+		 * Log-normal with median latencyInMillis and shape latencySigma, which
+		 * gives the long tail of a real server
+		 */
+		LOGNORMAL
+	}
+
+	/**
+	 * Immutable snapshot of the simulation settings, replaced as a whole by
+	 * configurationChanged so that a lookup never sees half of a change
+	 */
+	private static final class Settings {
+
+		final Semaphore pool;
+
+		final int connectionPoolSize;
+
+		final long maxWaitBlockingInMillis;
+
+		final long clientTimeoutInMillis;
+
+		final LatencyDistribution latencyDistribution;
+
+		final double latencyInMillis;
+
+		final double latencySigma;
+
+		final double poolFailureRate;
+
+		final double timeoutRate;
+
+		final double unrecoverableErrorRate;
+
+		final long outageDurationInMillis;
+
+		Settings(int connectionPoolSize, long maxWaitBlockingInMillis,
+				long clientTimeoutInMillis,
+				LatencyDistribution latencyDistribution, double latencyInMillis,
+				double latencySigma, double poolFailureRate, double timeoutRate,
+				double unrecoverableErrorRate, long outageDurationInMillis) {
+			this.pool = new Semaphore(connectionPoolSize, true);
+			this.connectionPoolSize = connectionPoolSize;
+			this.maxWaitBlockingInMillis = maxWaitBlockingInMillis;
+			this.clientTimeoutInMillis = clientTimeoutInMillis;
+			this.latencyDistribution = latencyDistribution;
+			this.latencyInMillis = latencyInMillis;
+			this.latencySigma = latencySigma;
+			this.poolFailureRate = poolFailureRate;
+			this.timeoutRate = timeoutRate;
+			this.unrecoverableErrorRate = unrecoverableErrorRate;
+			this.outageDurationInMillis = outageDurationInMillis;
+		}
+	}
+
+	private volatile Settings settings = new Settings(6, 1, 1000,
+			LatencyDistribution.LOGNORMAL, 20, 0.5, 0, 0, 0, 5000);
+
+	/**
+	 * Holds the loaded range index, null if no dataFile is configured, in
+	 * which case every lookup is answered without geo information
+	 */
+	private volatile IP_RangeGeoIndex rangeIndex;
+
+	/**
+	 * System.nanoTime() until which the simulated server is down after an
+	 * injected unrecoverable error
+	 */
+	private volatile long outageEndNanos = System.nanoTime();
+
+	private final LongAdder calls = new LongAdder();
+
+	private final LongAdder poolFailures = new LongAdder();
+
+	private final LongAdder timeouts = new LongAdder();
+
+	private final LongAdder unrecoverableErrors = new LongAdder();
+
+	protected transient Properties hwProps;
+
+	// //////////////////////////////////////////////////////////////
+	// METHODS
+
+	/**
+	 * Method takes an ipAddress as input and retrieves its geographical
+	 * information from the simulated server
+	 *
+	 * @param ipAddress
+	 * @return an IP_GeoResponse object, with no geo information if no range
+	 *         contains ipAddress
+	 * @throws HwIP_GeoException
+	 *             if ipAddress is not an IP address or a fault was injected
+	 */
+	public IP_GeoResponse lookup(String ipAddress) throws HwIP_GeoException {
+		IP_AddressKey address = IP_AddressParser.parse(ipAddress);
+		if (address == null) {
+			throw HwIP_GeoException
+					.stackless(HotwireErrors.IPGEO_GEO_SERVER_INVALID_ARGUMENT);
+		}
+		return lookup(address, ipAddress);
+	}
+
+	/**
+	 * @param ipAddress
+	 * @return an IP_GeoResponse object
+	 * @throws HwIP_GeoException
+	 * @see #lookup(String)
+	 */
+	public IP_GeoResponse lookup(IP_AddressKey ipAddress)
+			throws HwIP_GeoException {
+		return lookup(ipAddress, ipAddress.toString());
+	}
+
+	/**
+	 * @param ipAddress
+	 * @return an IP_GeoResponse object
+	 * @throws HwIP_GeoException
+	 * @see #lookup(String)
+	 */
+	public IP_GeoResponse lookup(InetAddress ipAddress)
+			throws HwIP_GeoException {
+		return lookup(IP_AddressKey.of(ipAddress));
+	}
+
+	private IP_GeoResponse lookup(IP_AddressKey address, String ipAddress)
+			throws HwIP_GeoException {
+		Settings current = settings;
+		calls.increment();
+		if (System.nanoTime() - outageEndNanos < 0) {
+			// the client fails fast while the server is down
+			unrecoverableErrors.increment();
+			throw HwIP_GeoException
+					.stackless(HotwireErrors.IPGEO_GEO_SERVER_NOT_AVAILABLE);
+		}
+
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		if (random.nextDouble() < current.poolFailureRate
+				|| !acquire(current)) {
+			poolFailures.increment();
+			throw HwIP_GeoException
+					.stackless(HotwireErrors.IPGEO_GEO_SERVER_NOT_AVAILABLE);
+		}
+		try {
+			if (random.nextDouble() < current.unrecoverableErrorRate) {
+				unrecoverableErrors.increment();
+				outageEndNanos = System.nanoTime()
+						+ TimeUnit.MILLISECONDS
+								.toNanos(current.outageDurationInMillis);
+				lookupLog.warn("UNRECOVERABLE_ERROR",
+						"Injected unrecoverable error, simulated server is down for {} milliseconds",
+						current.outageDurationInMillis);
+				throw HwIP_GeoException
+						.stackless(HotwireErrors.IPGEO_GEO_SERVER_NOT_AVAILABLE);
+			}
+			long latencyNanos = sampleLatencyNanos(current, random);
+			long timeoutNanos = TimeUnit.MILLISECONDS
+					.toNanos(current.clientTimeoutInMillis);
+			if (latencyNanos >= timeoutNanos
+					|| random.nextDouble() < current.timeoutRate) {
+				sleep(timeoutNanos);
+				timeouts.increment();
+				throw HwIP_GeoException
+						.stackless(HotwireErrors.IPGEO_GEO_SERVER_TIMEOUT);
+			}
+			sleep(latencyNanos);
+		} finally {
+			current.pool.release();
+		}
+		return answer(address, ipAddress);
+	}
+
+	private static boolean acquire(Settings current) throws HwIP_GeoException {
+		try {
+			return current.pool.tryAcquire(current.maxWaitBlockingInMillis,
+					TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw HwIP_GeoException
+					.stackless(HotwireErrors.IPGEO_GEO_SERVER_NOT_AVAILABLE);
+		}
+	}
+
+	private static long sampleLatencyNanos(Settings current,
+			ThreadLocalRandom random) {
+		double millis;
+		switch (current.latencyDistribution) {
+		case UNIFORM:
+			millis = random.nextDouble() * 2 * current.latencyInMillis;
+			break;
+		case EXPONENTIAL:
+			millis = -current.latencyInMillis * Math.log(1 - random.nextDouble());
+			break;
+		case LOGNORMAL:
+			millis = current.latencyInMillis
+					* Math.exp(current.latencySigma * random.nextGaussian());
+			break;
+		default:
+			millis = current.latencyInMillis;
+		}
+		return (long) (millis * 1000000);
+	}
+
+	private static void sleep(long nanos) throws HwIP_GeoException {
+		if (nanos <= 0) {
+			return;
+		}
+		try {
+			TimeUnit.NANOSECONDS.sleep(nanos);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw HwIP_GeoException
+					.stackless(HotwireErrors.IPGEO_GEO_SERVER_NOT_AVAILABLE);
+		}
+	}
+
+	private IP_GeoResponse answer(IP_AddressKey address, String ipAddress) {
+		IP_RangeGeoIndex index = rangeIndex;
+		IP_GeoResponse found = null;
+		if (index != null) {
+			found = address.isIPv4() ? index.lookup(address.getIPv4(),
+					ipAddress) : index.lookupIPv6(address.getHigh(),
+					address.getLow(), ipAddress);
+		}
+		if (found == null) {
+			return new IP_GeoResponse(ipAddress,
+					IP_GeoResponse.GEO_INFO_SOURCE_SIMULATOR);
+		}
+		return new IP_GeoResponse(ipAddress,
+				IP_GeoResponse.GEO_INFO_SOURCE_SIMULATOR,
+				found.getCountryCode(), found.getGmtOffset(),
+				found.getNDMA_Code(), found.getZipCode(), found.getCityName(),
+				found.getStateName(), found.getLatitude(), found.getLongitude());
+	}
+
+	/**
+	 * Looks up geographical information for many ipAddresses, reporting each
+	 * failure in its own IP_GeoLookupResult
+	 *
+	 * @param ipAddresses
+	 * @return map from each distinct ipAddress, in iteration order, to the
+	 *         result of its lookup
+	 */
+	public Map<String, IP_GeoLookupResult> lookupAll(
+			Collection<String> ipAddresses) {
+		Map<String, IP_GeoLookupResult> results = new LinkedHashMap<String, IP_GeoLookupResult>();
+		for (String ipAddress : ipAddresses) {
+			if (results.containsKey(ipAddress)) {
+				continue;
+			}
+			try {
+				IP_GeoResponse ipGeoResponse = lookup(ipAddress);
+				results.put(ipAddress, IP_GeoLookupResult.success(ipAddress,
+						ipGeoResponse, ipGeoResponse.isFound()));
+			} catch (HwIP_GeoException e) {
+				results.put(ipAddress, IP_GeoLookupResult.failure(ipAddress, e));
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Called to (re)configure the simulation from the
+	 * hotwire.eis.geo.simulator properties and (re)load its dataFile. Invalid
+	 * settings are logged and the current ones kept.
+	 */
+	public void configurationChanged() {
+		Properties props = hwProps != null ? hwProps : new Properties();
+		try {
+			settings = new Settings(
+					Math.max(intProperty(props, "connectionPoolSize", 6), 1),
+					longProperty(props, "maxWaitBlockingInMillis", 1),
+					longProperty(props, "clientTimeoutInMillis", 1000),
+					LatencyDistribution.valueOf(StringUtils.trimToEmpty(
+							props.getProperty(PROPERTY_PREFIX
+									+ "latencyDistribution", "LOGNORMAL"))
+							.toUpperCase()),
+					doubleProperty(props, "latencyInMillis", 20),
+					doubleProperty(props, "latencySigma", 0.5),
+					doubleProperty(props, "poolFailureRate", 0),
+					doubleProperty(props, "timeoutRate", 0),
+					doubleProperty(props, "unrecoverableErrorRate", 0),
+					longProperty(props, "outageDurationInMillis", 5000));
+		} catch (IllegalArgumentException e) {
+			// NumberFormatException or an unknown latencyDistribution
+			log.error("Invalid simulator settings, keeping the current ones", e);
+		}
+
+		String dataFile = props.getProperty(PROPERTY_PREFIX + "dataFile");
+		if (StringUtils.isEmpty(dataFile)) {
+			log.info("{}dataFile is not set, simulated lookups will return no geo information",
+					PROPERTY_PREFIX);
+			rangeIndex = null;
+			return;
+		}
+		try {
+			File file = new File(dataFile);
+			IP_RangeGeoIndex index = MappedIP_RangeGeoIndex
+					.isDatabaseFile(file) ? MappedIP_RangeGeoIndex.open(file)
+					: InMemoryIP_RangeGeoIndex.load(file);
+			rangeIndex = index;
+			log.info("Simulating {} IP ranges from {}", index.size(), dataFile);
+		} catch (IOException e) {
+			log.error("Could not load simulator data from {}", dataFile, e);
+		}
+	}
+
+	private static int intProperty(Properties props, String name,
+			int defaultValue) {
+		String value = props.getProperty(PROPERTY_PREFIX + name);
+		return StringUtils.isBlank(value) ? defaultValue : Integer
+				.parseInt(value.trim());
+	}
+
+	private static long longProperty(Properties props, String name,
+			long defaultValue) {
+		String value = props.getProperty(PROPERTY_PREFIX + name);
+		return StringUtils.isBlank(value) ? defaultValue : Long
+				.parseLong(value.trim());
+	}
+
+	private static double doubleProperty(Properties props, String name,
+			double defaultValue) {
+		String value = props.getProperty(PROPERTY_PREFIX + name);
+		return StringUtils.isBlank(value) ? defaultValue : Double
+				.parseDouble(value.trim());
+	}
+
+	/**
+	 * Ends any simulated outage and logs the injected errors still held back
+	 * by the rate limit
+	 */
+	public void shutdown() {
+		outageEndNanos = System.nanoTime();
+		lookupLog.flush();
+	}
+
+	/**
+	 * @return number of lookups that reached the simulated server
+	 */
+	public long getCallCount() {
+		return calls.sum();
+	}
+
+	/**
+	 * @return number of lookups failed for want of a pooled connection,
+	 *         injected or not
+	 */
+	public long getPoolFailureCount() {
+		return poolFailures.sum();
+	}
+
+	/**
+	 * @return number of lookups that timed out
+	 */
+	public long getTimeoutCount() {
+		return timeouts.sum();
+	}
+
+	/**
+	 * @return number of lookups failed by an injected unrecoverable error or
+	 *         the outage following it
+	 */
+	public long getUnrecoverableErrorCount() {
+		return unrecoverableErrors.sum();
+	}
+
+	/**
+	 * @return number of simulated pooled connections
+	 */
+	public int getConnectionPoolSize() {
+		return settings.connectionPoolSize;
+	}
+
+	public void setHwProps(Properties hwProps) {
+		this.hwProps = hwProps;
+	}
+}
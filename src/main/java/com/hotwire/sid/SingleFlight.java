@@ -0,0 +1,119 @@
+package com.hotwire.sid;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent calls for the same key into one. The first caller for
+ * a key makes the call, callers that arrive while it is in flight wait for it
+ * and get its result or its exception instead of making a call of their own.
+ * Once the call completes the key is forgotten, so later callers make a fresh
+ * call; callers that want to reuse results keep them in a cache and check it
+ * before calling.
+ *
+ * @param <K>
+ *            key type
+ * @param <V>
+ *            result type
+ */
+public class SingleFlight<K, V> {
+
+	/**
+	 * A call to coalesce
+	 */
+	public interface Call<V> {
+
+		V call() throws HwIP_GeoException;
+	}
+
+	// //////////////////////////////////////////////////////////////
+	// ATTRIBUTES
+
+	private final ConcurrentHashMap<K, CompletableFuture<V>> inFlightCalls = new ConcurrentHashMap<K, CompletableFuture<V>>();
+
+	private final AtomicLong coalescedCalls = new AtomicLong();
+
+	// //////////////////////////////////////////////////////////////
+	// METHODS
+
+	/**
+	 * Makes call for key, unless a call for key is already in flight, in
+	 * which case its outcome is shared
+	 *
+	 * @param key
+	 * @param call
+	 * @return the result of the call
+	 * @throws HwIP_GeoException
+	 *             thrown by the call, or IPGEO_GEO_SERVER_NOT_AVAILABLE if
+	 *             the caller is interrupted while waiting for it
+	 */
+	public V execute(K key, Call<V> call) throws HwIP_GeoException {
+		CompletableFuture<V> flight = new CompletableFuture<V>();
+		CompletableFuture<V> leader = inFlightCalls.putIfAbsent(key, flight);
+		if (leader != null) {
+			coalescedCalls.incrementAndGet();
+			return await(leader);
+		}
+
+		try {
+			V result = call.call();
+			flight.complete(result);
+			return result;
+		} catch (HwIP_GeoException e) {
+			flight.completeExceptionally(e);
+			throw e;
+		} catch (RuntimeException e) {
+			flight.completeExceptionally(e);
+			throw e;
+		} catch (Error e) {
+			flight.completeExceptionally(e);
+			throw e;
+		} finally {
+			inFlightCalls.remove(key, flight);
+		}
+	}
+
+	private V await(CompletableFuture<V> leader) throws HwIP_GeoException {
+		try {
+			return leader.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw HwIP_GeoException
+					.stackless(HotwireErrors.IPGEO_GEO_SERVER_NOT_AVAILABLE);
+		} catch (CancellationException e) {
+			throw HwIP_GeoException
+					.stackless(HotwireErrors.IPGEO_GEO_SERVER_NOT_AVAILABLE);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof HwIP_GeoException) {
+				throw (HwIP_GeoException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new HwIP_GeoException(
+					HotwireErrors.IPGEO_GEO_SERVER_NOT_AVAILABLE, e);
+		}
+	}
+
+	/**
+	 * @return number of calls currently in flight
+	 */
+	public int getInFlightCallCount() {
+		return inFlightCalls.size();
+	}
+
+	/**
+	 * @return number of calls that shared the outcome of a call in flight
+	 *         instead of being made
+	 */
+	public long getCoalescedCallCount() {
+		return coalescedCalls.get();
+	}
+}
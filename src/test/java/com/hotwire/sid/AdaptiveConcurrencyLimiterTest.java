@@ -0,0 +1,119 @@
+package com.hotwire.sid;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class AdaptiveConcurrencyLimiterTest {
+
+	private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	/**
+	 * Runs a window of calls taking rttNanos, with inFlight calls at a time
+	 */
+	private static void runWindow(AdaptiveConcurrencyLimiter limiter,
+			int inFlight, long rttNanos) {
+		for (int samples = 0; samples < AdaptiveConcurrencyLimiter.WINDOW_SAMPLES; samples += inFlight) {
+			for (int i = 0; i < inFlight; i++) {
+				assertTrue(limiter.tryAcquire());
+			}
+			for (int i = 0; i < inFlight; i++) {
+				limiter.onSuccess(rttNanos, System.nanoTime());
+			}
+		}
+	}
+
+	@Test
+	public void testLimitFollowsRoundTripTime() {
+		AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(
+				"Test", 2);
+		limiter.setLimitRange(1, 20);
+		for (int i = 0; i < 100; i++) {
+			runWindow(limiter, limiter.getLimit(), MILLIS);
+		}
+		// the server keeps answering in 1 ms, up to the largest limit
+		assertEquals(20, limiter.getLimit());
+		assertEquals(1000, limiter.getRttInMicros());
+
+		// the server slows down, the limit follows
+		for (int i = 0; i < 5; i++) {
+			runWindow(limiter, limiter.getLimit(), 4 * MILLIS);
+		}
+		assertTrue(String.valueOf(limiter.getLimit()), limiter.getLimit() <= 5);
+		assertEquals(0, limiter.getInFlight());
+	}
+
+	@Test
+	public void testQuietWindowsKeepTheLimit() {
+		AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(
+				"Test", 4);
+		limiter.setLimitRange(1, 20);
+		for (int i = 0; i < 20; i++) {
+			runWindow(limiter, 1, MILLIS);
+		}
+		assertEquals(4, limiter.getLimit());
+	}
+
+	@Test
+	public void testDroppedCallsBackOffOncePerRoundTrip() {
+		AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(
+				"Test", 10);
+		limiter.setLimitRange(1, 10);
+		for (int i = 0; i < 3; i++) {
+			assertTrue(limiter.tryAcquire());
+		}
+		long now = System.nanoTime();
+		limiter.onDropped(MILLIS, now);
+		limiter.onDropped(MILLIS, now);
+		assertEquals(9, limiter.getLimit());
+		limiter.onDropped(MILLIS, now + MILLIS);
+		assertEquals(8, limiter.getLimit());
+		assertEquals(3, limiter.getDroppedCallCount());
+		assertEquals(0, limiter.getInFlight());
+	}
+
+	@Test
+	public void testExcessCallsWaitThenAreShed() throws Exception {
+		final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(
+				"Test", 1);
+		limiter.setLimitRange(1, 1);
+		limiter.setMaxQueueSize(1);
+		limiter.setMaxWaitInMillis(5000);
+		assertTrue(limiter.tryAcquire());
+
+		final AtomicBoolean acquired = new AtomicBoolean();
+		Thread waiter = new Thread() {
+			public void run() {
+				acquired.set(limiter.tryAcquire());
+			}
+		};
+		waiter.start();
+		// wait until the waiter is queued, however late it starts
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (waiter.getState() != Thread.State.TIMED_WAITING) {
+			assertTrue(System.nanoTime() < deadline);
+			Thread.sleep(1);
+		}
+		// the queue is full, so the next call is shed without waiting
+		long startNanos = System.nanoTime();
+		assertFalse(limiter.tryAcquire());
+		assertTrue(System.nanoTime() - startNanos < TimeUnit.SECONDS
+				.toNanos(1));
+
+		limiter.onIgnored();
+		waiter.join(5000);
+		assertTrue(acquired.get());
+		assertEquals(1, limiter.getInFlight());
+
+		limiter.setMaxWaitInMillis(0);
+		assertFalse(limiter.tryAcquire());
+		assertEquals(2, limiter.getRejectedCallCount());
+
+		limiter.setEnabled(false);
+		assertTrue(limiter.tryAcquire());
+		assertEquals(2, limiter.getInFlight());
+	}
+}
@@ -0,0 +1,194 @@
+package com.hotwire.sid;
+
+import static org.junit.Assert.*;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.quova.common.QuovaReturnCode;
+import com.quova.util.QuovaException;
+
+public class GeoDirectoryHedgerTest {
+
+	private static final String PRIMARY = "primary";
+
+	private static final String SECONDARY = "secondary";
+
+	private GeoDirectoryHedger hedger;
+
+	private GeoDirectoryConnection connection;
+
+	/**
+	 * Answers of each fake server, by name
+	 */
+	private final Map<String, Answer> answers = new ConcurrentHashMap<String, Answer>();
+
+	private final Map<String, AtomicInteger> queries = new ConcurrentHashMap<String, AtomicInteger>();
+
+	private final CountDownLatch release = new CountDownLatch(1);
+
+	private interface Answer {
+
+		String answer(String api) throws Exception;
+	}
+
+	@Before
+	public void setUp() {
+		hedger = new GeoDirectoryHedger();
+		hedger.setThreadPoolSize(4);
+		hedger.setDelayBoundsInMillis(20, 20);
+		// the clients are never closed, as the initial reference is kept
+		connection = new GeoDirectoryConnection(null, null);
+		queries.put(PRIMARY, new AtomicInteger());
+		queries.put(SECONDARY, new AtomicInteger());
+	}
+
+	@After
+	public void tearDown() {
+		release.countDown();
+		hedger.shutdown();
+	}
+
+	private String query() throws Exception {
+		return hedger.query(connection, PRIMARY, SECONDARY, api -> {
+			queries.get(api).incrementAndGet();
+			try {
+				return answers.get(api).answer(api);
+			} catch (QuovaException | RuntimeException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new IllegalStateException(e);
+			}
+		});
+	}
+
+	private String blocked(String api) throws InterruptedException {
+		release.await();
+		return api;
+	}
+
+	private static String failed(String api) throws QuovaException {
+		throw new QuovaException(QuovaReturnCode.SERVER_ERROR, api + " failed");
+	}
+
+	private void awaitReleased() throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (connection.getReferenceCount() != 1
+				&& System.nanoTime() < deadline) {
+			Thread.sleep(5);
+		}
+		assertEquals(1, connection.getReferenceCount());
+	}
+
+	@Test
+	public void testFastPrimaryIsNotHedged() throws Exception {
+		answers.put(PRIMARY, api -> api);
+		answers.put(SECONDARY, api -> api);
+
+		assertEquals(PRIMARY, query());
+		assertEquals(0, queries.get(SECONDARY).get());
+		assertEquals(0, hedger.getHedgedQueryCount());
+		assertEquals(0, hedger.getSecondaryWinCount());
+		awaitReleased();
+	}
+
+	@Test
+	public void testSlowPrimaryIsHedged() throws Exception {
+		answers.put(PRIMARY, this::blocked);
+		answers.put(SECONDARY, api -> api);
+
+		assertEquals(SECONDARY, query());
+		assertEquals(1, hedger.getHedgedQueryCount());
+		assertEquals(1, hedger.getSecondaryWinCount());
+
+		// the losing primary query still holds the connection
+		assertEquals(2, connection.getReferenceCount());
+		release.countDown();
+		awaitReleased();
+		assertEquals(1, hedger.getSecondaryWinCount());
+	}
+
+	@Test
+	public void testFirstResponseWins() throws Exception {
+		answers.put(PRIMARY, api -> {
+			Thread.sleep(100);
+			return api;
+		});
+		answers.put(SECONDARY, this::blocked);
+
+		assertEquals(PRIMARY, query());
+		assertEquals(1, hedger.getHedgedQueryCount());
+		assertEquals(1, queries.get(SECONDARY).get());
+		assertEquals(0, hedger.getSecondaryWinCount());
+
+		release.countDown();
+		awaitReleased();
+		// the late secondary answer is dropped
+		assertEquals(0, hedger.getSecondaryWinCount());
+	}
+
+	@Test
+	public void testFailedPrimaryFailsOver() throws Exception {
+		answers.put(PRIMARY, GeoDirectoryHedgerTest::failed);
+		answers.put(SECONDARY, api -> api);
+
+		assertEquals(SECONDARY, query());
+		assertEquals(0, hedger.getHedgedQueryCount());
+		assertEquals(1, hedger.getSecondaryWinCount());
+		awaitReleased();
+	}
+
+	@Test
+	public void testInvalidInputIsNotFailedOver() throws Exception {
+		answers.put(PRIMARY, api -> {
+			throw new QuovaException(QuovaReturnCode.INVALID_INPUT, "bad ip");
+		});
+		answers.put(SECONDARY, api -> api);
+
+		try {
+			query();
+			fail();
+		} catch (QuovaException e) {
+			assertEquals(QuovaReturnCode.INVALID_INPUT, e.getErrorCode());
+		}
+		assertEquals(0, queries.get(SECONDARY).get());
+		awaitReleased();
+	}
+
+	@Test
+	public void testPrimaryErrorIsReportedWhenBothFail() throws Exception {
+		answers.put(PRIMARY, api -> {
+			Thread.sleep(100);
+			return failed(api);
+		});
+		answers.put(SECONDARY, GeoDirectoryHedgerTest::failed);
+
+		try {
+			query();
+			fail();
+		} catch (QuovaException e) {
+			assertEquals("primary failed", e.getMessage());
+		}
+		assertEquals(1, hedger.getHedgedQueryCount());
+		assertEquals(0, hedger.getSecondaryWinCount());
+		awaitReleased();
+	}
+
+	@Test
+	public void testSaturatedExecutorQueriesOnCallerThread() throws Exception {
+		hedger.setThreadPoolSize(0);
+		answers.put(PRIMARY, api -> Thread.currentThread().getName());
+		answers.put(SECONDARY, api -> api);
+
+		assertEquals(Thread.currentThread().getName(), query());
+		assertEquals(0, queries.get(SECONDARY).get());
+		assertEquals(1, connection.getReferenceCount());
+	}
+}
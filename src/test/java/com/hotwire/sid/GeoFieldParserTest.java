@@ -0,0 +1,56 @@
+package com.hotwire.sid;
+
+import static org.junit.Assert.*;
+
+import java.util.EnumSet;
+
+import org.junit.Test;
+
+public class GeoFieldParserTest {
+
+	@Test
+	public void testParseFloat() {
+		assertEquals(-5.0f, GeoFieldParser.parseFloat("-5.0"), 0f);
+		assertEquals(5.5f, GeoFieldParser.parseFloat("+5.5"), 0f);
+		assertEquals(39.99558f, GeoFieldParser.parseFloat("39.99558"), 0f);
+		assertEquals(8f, GeoFieldParser.parseFloat("8"), 0f);
+		assertEquals(0.5f, GeoFieldParser.parseFloat(".5"), 0f);
+		assertTrue(Float.isNaN(GeoFieldParser.parseFloat("multizone")));
+		assertTrue(Float.isNaN(GeoFieldParser.parseFloat(null)));
+		assertTrue(Float.isNaN(GeoFieldParser.parseFloat("")));
+		assertTrue(Float.isNaN(GeoFieldParser.parseFloat("-")));
+		assertTrue(Float.isNaN(GeoFieldParser.parseFloat(".")));
+		assertTrue(Float.isNaN(GeoFieldParser.parseFloat("1.2.3")));
+		assertTrue(Float.isNaN(GeoFieldParser.parseFloat("1e5")));
+		assertTrue(Float.isNaN(GeoFieldParser.parseFloat("NaN")));
+	}
+
+	@Test
+	public void testParseInt() {
+		assertEquals(535, GeoFieldParser.parseInt("535", -1));
+		assertEquals(-7, GeoFieldParser.parseInt("-7", -1));
+		assertEquals(0, GeoFieldParser.parseInt("+0", -1));
+		assertEquals(999999999, GeoFieldParser.parseInt("999999999", -1));
+		assertEquals(-1, GeoFieldParser.parseInt("1234567890", -1));
+		assertEquals(-1, GeoFieldParser.parseInt("53a", -1));
+		assertEquals(-1, GeoFieldParser.parseInt("", -1));
+		assertEquals(-1, GeoFieldParser.parseInt("-", -1));
+		assertEquals(-1, GeoFieldParser.parseInt(null, -1));
+	}
+
+	@Test
+	public void testFieldMask() {
+		int mask = IP_GeoField.mask(EnumSet.of(IP_GeoField.COUNTRY,
+				IP_GeoField.DMA));
+		assertEquals(EnumSet.of(IP_GeoField.COUNTRY, IP_GeoField.DMA),
+				IP_GeoField.fields(mask));
+		assertEquals(IP_GeoField.ALL_MASK, IP_GeoField.mask(IP_GeoField.ALL));
+
+		IP_GeoResponse response = new IP_GeoResponse.Builder("1.2.3.4",
+				IP_GeoResponse.GEO_INFO_SOURCE_QUOVA).setFields(mask).build();
+		assertTrue(response.hasFields(IP_GeoField.COUNTRY.bit()));
+		assertFalse(response.hasFields(IP_GeoField.ALL_MASK));
+		assertEquals(IP_GeoField.ALL, new IP_GeoResponse("1.2.3.4",
+				IP_GeoResponse.GEO_INFO_SOURCE_QUOVA).getFields());
+	}
+}
@@ -0,0 +1,192 @@
+package com.hotwire.sid;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class GeoServerCircuitBreakerTest {
+
+	private final AtomicBoolean serverUp = new AtomicBoolean();
+
+	private GeoServerCircuitBreaker breaker;
+
+	@Before
+	public void init() {
+		breaker = new GeoServerCircuitBreaker("Test",
+				new GeoServerCircuitBreaker.Probe() {
+					public boolean probe() {
+						return serverUp.get();
+					}
+				});
+		breaker.setMinimumCalls(10);
+		breaker.setFailureRateThreshold(50);
+		breaker.setSlowCallRateThreshold(80);
+		breaker.setSlowCallDurationInMillis(100);
+		breaker.setOpenDurationInMillis(10);
+		breaker.setHalfOpenPermittedCalls(2);
+	}
+
+	@After
+	public void shutdown() {
+		breaker.shutdown();
+	}
+
+	private void awaitState(GeoServerCircuitBreaker.State state)
+			throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (breaker.getState() != state && System.nanoTime() < deadline) {
+			Thread.sleep(5);
+		}
+		assertEquals(state, breaker.getState());
+	}
+
+	@Test
+	public void testOpensOnFailureRate() {
+		for (int i = 0; i < 5; i++) {
+			assertTrue(breaker.tryAcquirePermission());
+			breaker.onSuccess(0);
+			assertTrue(breaker.tryAcquirePermission());
+			breaker.onFailure(0);
+		}
+		assertEquals(GeoServerCircuitBreaker.State.OPEN, breaker.getState());
+		assertFalse(breaker.tryAcquirePermission());
+		assertEquals(1, breaker.getRejectedCallCount());
+		assertEquals(1, breaker.getOpenCount());
+	}
+
+	@Test
+	public void testOpensOnSlowCallRate() {
+		long slow = TimeUnit.MILLISECONDS.toNanos(150);
+		for (int i = 0; i < 8; i++) {
+			breaker.onSuccess(slow);
+		}
+		assertEquals(GeoServerCircuitBreaker.State.CLOSED, breaker.getState());
+		breaker.onSuccess(0);
+		breaker.onSuccess(slow);
+		assertEquals(GeoServerCircuitBreaker.State.OPEN, breaker.getState());
+	}
+
+	@Test
+	public void testIgnoresTooFewCalls() {
+		for (int i = 0; i < 9; i++) {
+			breaker.onFailure(0);
+		}
+		assertEquals(GeoServerCircuitBreaker.State.CLOSED, breaker.getState());
+	}
+
+	@Test
+	public void testRecoversThroughHalfOpen() throws InterruptedException {
+		breaker.trip("test");
+		assertFalse(breaker.tryAcquirePermission());
+		serverUp.set(true);
+		awaitState(GeoServerCircuitBreaker.State.HALF_OPEN);
+
+		assertTrue(breaker.tryAcquirePermission());
+		assertTrue(breaker.tryAcquirePermission());
+		// only halfOpenPermittedCalls trial calls at a time
+		assertFalse(breaker.tryAcquirePermission());
+		breaker.onSuccess(0);
+		breaker.onSuccess(0);
+		assertEquals(GeoServerCircuitBreaker.State.CLOSED, breaker.getState());
+		assertTrue(breaker.tryAcquirePermission());
+	}
+
+	@Test
+	public void testFailedTrialCallReopens() throws InterruptedException {
+		serverUp.set(true);
+		breaker.trip("test");
+		awaitState(GeoServerCircuitBreaker.State.HALF_OPEN);
+		serverUp.set(false);
+		assertTrue(breaker.tryAcquirePermission());
+		breaker.onFailure(0);
+		assertEquals(GeoServerCircuitBreaker.State.OPEN, breaker.getState());
+		assertEquals(2, breaker.getOpenCount());
+	}
+
+	@Test
+	public void testWindowWithNegativeNanoTime() {
+		final AtomicLong now = new AtomicLong(-TimeUnit.SECONDS.toNanos(2));
+		GeoServerCircuitBreaker clocked = new GeoServerCircuitBreaker(
+				"Clocked", new GeoServerCircuitBreaker.Probe() {
+					public boolean probe() {
+						return serverUp.get();
+					}
+				}, now::get);
+		try {
+			clocked.setWindowInMillis(1000);
+			clocked.setMinimumCalls(10);
+			clocked.setFailureRateThreshold(50);
+			for (int i = 0; i < 9; i++) {
+				assertTrue(clocked.tryAcquirePermission());
+				clocked.onFailure(0);
+			}
+			// the failures have left the window
+			now.addAndGet(TimeUnit.MILLISECONDS.toNanos(1500));
+			assertTrue(clocked.tryAcquirePermission());
+			clocked.onSuccess(0);
+			assertEquals(GeoServerCircuitBreaker.State.CLOSED,
+					clocked.getState());
+
+			// a window spanning nanoTime 0
+			now.set(-TimeUnit.MILLISECONDS.toNanos(50));
+			for (int i = 0; i < 4; i++) {
+				assertTrue(clocked.tryAcquirePermission());
+				clocked.onFailure(0);
+			}
+			now.set(TimeUnit.MILLISECONDS.toNanos(50));
+			for (int i = 0; i < 4; i++) {
+				assertTrue(clocked.tryAcquirePermission());
+				clocked.onSuccess(0);
+			}
+			assertEquals(GeoServerCircuitBreaker.State.CLOSED,
+					clocked.getState());
+			assertTrue(clocked.tryAcquirePermission());
+			clocked.onFailure(0);
+			// 5 failures in 10 calls
+			assertEquals(GeoServerCircuitBreaker.State.OPEN,
+					clocked.getState());
+		} finally {
+			clocked.shutdown();
+		}
+	}
+
+	@Test
+	public void testShutdownWaitsForTheProbe() throws InterruptedException {
+		final CountDownLatch probing = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		GeoServerCircuitBreaker probed = new GeoServerCircuitBreaker("Probed",
+				new GeoServerCircuitBreaker.Probe() {
+					public boolean probe() {
+						probing.countDown();
+						// not interrupted by shutdown, like a Quova query
+						boolean interrupted = false;
+						while (release.getCount() > 0) {
+							try {
+								release.await();
+							} catch (InterruptedException e) {
+								interrupted = true;
+							}
+						}
+						if (interrupted) {
+							Thread.currentThread().interrupt();
+						}
+						return false;
+					}
+				});
+		probed.setOpenDurationInMillis(10);
+		probed.trip("test");
+		assertTrue(probing.await(5, TimeUnit.SECONDS));
+
+		probed.shutdown();
+		assertFalse(probed.awaitTermination(50));
+		release.countDown();
+		assertTrue(probed.awaitTermination(5000));
+	}
+}
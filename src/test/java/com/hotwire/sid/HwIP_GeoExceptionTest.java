@@ -0,0 +1,42 @@
+package com.hotwire.sid;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class HwIP_GeoExceptionTest {
+
+	@Test
+	public void testErrorCode() {
+		Exception cause = new Exception("connection refused");
+		HwIP_GeoException e = new HwIP_GeoException(
+				HotwireErrors.IPGEO_GEO_SERVER_NOT_AVAILABLE, cause);
+		assertEquals(HotwireErrors.IPGEO_GEO_SERVER_NOT_AVAILABLE,
+				e.getErrorCode());
+		assertSame(cause, e.getCause());
+		assertTrue(e.getStackTrace().length > 0);
+	}
+
+	@Test
+	public void testStackless() {
+		HwIP_GeoException e = HwIP_GeoException
+				.stackless(HotwireErrors.IPGEO_GEO_SERVER_TIMEOUT);
+		assertSame(e, HwIP_GeoException
+				.stackless(HotwireErrors.IPGEO_GEO_SERVER_TIMEOUT));
+		assertEquals(HotwireErrors.IPGEO_GEO_SERVER_TIMEOUT, e.getErrorCode());
+		assertEquals(0, e.getStackTrace().length);
+
+		// the shared instance cannot be changed by the code that catches it
+		e.addSuppressed(new Exception());
+		assertEquals(0, e.getSuppressed().length);
+		try {
+			e.initCause(new Exception());
+			fail();
+		} catch (IllegalStateException expected) {
+		}
+		e.fillInStackTrace();
+		assertEquals(0, e.getStackTrace().length);
+
+		assertEquals(12345, HwIP_GeoException.stackless(12345).getErrorCode());
+	}
+}
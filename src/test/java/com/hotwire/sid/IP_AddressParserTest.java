@@ -0,0 +1,95 @@
+package com.hotwire.sid;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class IP_AddressParserTest {
+
+	@Test
+	public void testParseIPv4() {
+		assertEquals(0x44B84DDCL, IP_AddressParser.parseIPv4("68.184.77.220"));
+		assertEquals(0L, IP_AddressParser.parseIPv4("0.0.0.0"));
+		assertEquals(0xFFFFFFFFL,
+				IP_AddressParser.parseIPv4("255.255.255.255"));
+		assertEquals(0x44B84DDCL,
+				IP_AddressParser.parseIPv4(" 68.184.077.220\t"));
+	}
+
+	@Test
+	public void testRejectsMalformedIPv4() {
+		String[] malformed = { null, "", "   ", "1.2.a.3", "1.2.3", "1.2.3.4.5",
+				"1.2.3.256", "1..2.3", ".1.2.3", "1.2.3.", "1.2.3.0004",
+				"1.2.3.4 5", "-1.2.3.4", "1,2,3,4", "::1" };
+		for (String address : malformed) {
+			assertEquals(String.valueOf(address), -1,
+					IP_AddressParser.parseIPv4(address));
+		}
+	}
+
+	@Test
+	public void testCanonicalIPv4() {
+		String canonical = "68.184.77.220";
+		assertSame(canonical, IP_AddressParser.canonicalIPv4(canonical,
+				(int) IP_AddressParser.parseIPv4(canonical)));
+
+		String padded = " 068.184.77.220 ";
+		assertEquals(canonical, IP_AddressParser.canonicalIPv4(padded,
+				(int) IP_AddressParser.parseIPv4(padded)));
+		assertEquals("255.0.10.1",
+				IP_AddressParser.toDottedQuad(0xFF000A01));
+	}
+
+	@Test
+	public void testParseIPv6() {
+		IP_AddressKey key = IP_AddressParser.parse("2001:DB8:0:0:8:800:200C:417A");
+		assertFalse(key.isIPv4());
+		assertEquals(0x20010DB800000000L, key.getHigh());
+		assertEquals(0x00080800200C417AL, key.getLow());
+		assertEquals(key, IP_AddressParser.parse("2001:db8::8:800:200c:417a"));
+		assertEquals(key, IP_AddressParser.parse(" [2001:db8::8:800:200c:417a] "));
+		assertEquals(key, IP_AddressParser.parse("2001:db8::8:800:200c:417a%eth0"));
+		assertEquals("2001:db8::8:800:200c:417a", key.toString());
+
+		assertEquals(IP_AddressKey.ofIPv6(0, 0), IP_AddressParser.parse("::"));
+		assertEquals(IP_AddressKey.ofIPv6(0, 1), IP_AddressParser.parse("::1"));
+		assertEquals(IP_AddressKey.ofIPv6(0xFE80000000000000L, 0),
+				IP_AddressParser.parse("fe80::"));
+		assertEquals("2001:db8:0:1:1:1:1:1",
+				IP_AddressParser.parse("2001:db8::1:1:1:1:1").toString());
+		assertEquals("2001:0:0:1::1",
+				IP_AddressParser.parse("2001:0:0:1:0:0:0:1").toString());
+	}
+
+	@Test
+	public void testIPv4InIPv6() {
+		IP_AddressKey ipv4 = IP_AddressParser.parse("68.184.77.220");
+		assertTrue(ipv4.isIPv4());
+		assertEquals(0x44B84DDC, ipv4.getIPv4());
+		assertEquals(ipv4, IP_AddressParser.parse("::ffff:68.184.77.220"));
+		assertEquals(ipv4, IP_AddressParser.parse("::FFFF:44b8:4ddc"));
+		assertEquals(ipv4, IP_AddressParser.parse("::68.184.77.220"));
+		assertEquals("68.184.77.220",
+				IP_AddressParser.canonicalize("::ffff:68.184.77.220", ipv4));
+		assertEquals("1.2.3.4", IP_AddressParser.parse("::ffff:1.2.3.4")
+				.toString());
+	}
+
+	@Test
+	public void testRejectsMalformedIPv6() {
+		String[] malformed = { ":", ":::", "1:2:3:4:5:6:7", "1:2:3:4:5:6:7:8:9",
+				"1::2::3", "12345::", "1:2:3:4:5:6:7:8::", ":1::", "1:",
+				"g::1", "::1.2.3", "::1.2.3.4:5", "1:2:3:4:5:6:7:1.2.3.4",
+				"[::1", "\uff12\uff10\uff10\uff11:db8::1",
+				"2001:\uff44b8::1", "\u0661::1" };
+		for (String address : malformed) {
+			assertNull(address, IP_AddressParser.parse(address));
+		}
+	}
+
+	@Test
+	public void testIPv6Candidate() {
+		assertTrue(IP_AddressParser.isIPv6Candidate("2001:db8::1"));
+		assertFalse(IP_AddressParser.isIPv6Candidate("1.2.a.3"));
+	}
+}
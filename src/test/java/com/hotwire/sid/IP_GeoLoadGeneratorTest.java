@@ -0,0 +1,60 @@
+package com.hotwire.sid;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class IP_GeoLoadGeneratorTest {
+
+	@Test
+	public void testReadIP_Addresses() throws IOException {
+		List<String> ipAddresses = IP_GeoLoadGenerator
+				.readIP_Addresses(new StringReader(
+						"# replay list\n"
+								+ "68.184.77.220\n"
+								+ "\n"
+								+ "192.172.150.56 - - [10/Oct/2015:13:55:36 -0700] \"GET / HTTP/1.1\" 200 2326\n"
+								+ "2001:db8::1,extra\n"
+								+ "not-an-ip GET /\n"));
+		assertEquals(Arrays.asList("68.184.77.220", "192.172.150.56",
+				"2001:db8::1"), ipAddresses);
+	}
+
+	@Test
+	public void testClosedLoop() throws InterruptedException {
+		IP_GeoLoadGenerator generator = new IP_GeoLoadGenerator(
+				SimulatorFixture.simulator(),
+				Arrays.asList("68.184.77.220", "not really sent"), 4, 0,
+				false, 60000, 200);
+		generator.run();
+		assertEquals(200, generator.getLatency().getCount());
+		// no data file, so every valid address is not found
+		assertEquals(100, generator.getNotFoundCount());
+		assertEquals(
+				Collections.singletonMap(
+						HotwireErrors.IPGEO_GEO_SERVER_INVALID_ARGUMENT, 100L),
+				generator.getErrorCounts());
+	}
+
+	@Test
+	public void testOpenLoop() throws InterruptedException {
+		IP_GeoLoadGenerator generator = new IP_GeoLoadGenerator(
+				SimulatorFixture.simulator("poolFailureRate", "1"),
+				Collections.singletonList("68.184.77.220"), 2, 1000, true,
+				60000, 50);
+		long startNanos = System.nanoTime();
+		generator.run();
+		// 50 lookups at 1000/s take at least 49 milliseconds
+		assertTrue(System.nanoTime() - startNanos >= 49000000L);
+		assertEquals(
+				Collections.singletonMap(
+						HotwireErrors.IPGEO_GEO_SERVER_NOT_AVAILABLE, 50L),
+				generator.getErrorCounts());
+	}
+}
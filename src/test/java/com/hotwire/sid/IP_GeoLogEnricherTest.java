@@ -0,0 +1,138 @@
+package com.hotwire.sid;
+
+import static org.junit.Assert.*;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class IP_GeoLogEnricherTest {
+
+	@Test
+	public void testExtractIP_Address() {
+		assertEquals("192.172.150.56", IP_GeoLogEnricher.extractIP_Address(
+				"192.172.150.56 - - [10/Oct/2015:13:55:36 -0700] \"GET / HTTP/1.1\" 200",
+				1, (char) 0));
+		assertEquals("2001:db8::1", IP_GeoLogEnricher.extractIP_Address(
+				"  GET   \"2001:db8::1\" 200", 2, (char) 0));
+		assertEquals("68.184.77.220", IP_GeoLogEnricher.extractIP_Address(
+				"2015-10-10,68.184.77.220,/index.html", 2, ','));
+		assertNull(IP_GeoLogEnricher.extractIP_Address("date,ip,path", 2, ','));
+		assertNull(IP_GeoLogEnricher.extractIP_Address("a,b", 3, ','));
+		assertNull(IP_GeoLogEnricher.extractIP_Address("", 1, (char) 0));
+	}
+
+	@Test
+	public void testEnrichCsv() throws Exception {
+		SimulatedIP_GeoServerAdapter adapter = SimulatorFixture.simulator();
+		IP_GeoLogEnricher enricher = new IP_GeoLogEnricher(adapter,
+				IP_GeoLogEnricher.Format.CSV, 1, (char) 0, 2, 2, 100);
+		StringWriter out = new StringWriter();
+		enricher.enrich(new StringReader("# header\n"
+				+ "68.184.77.220 GET /a\n" + "68.184.77.220 GET \"/b,c\"\n"
+				+ "192.172.150.56 GET /d\n" + "68.184.77.220 GET /e\n"), out);
+
+		String[] lines = out.toString().split("\n");
+		assertEquals(6, lines.length);
+		assertEquals(
+				"ip,countryCode,stateName,cityName,zipCode,dma,gmtOffset,latitude,longitude,status,line",
+				lines[0]);
+		assertEquals(",,,,,,,,,NO_IP,# header", lines[1]);
+		// no data file, so every address is not found
+		assertEquals("68.184.77.220,,,,,,,,,NOT_FOUND,68.184.77.220 GET /a",
+				lines[2]);
+		assertEquals(
+				"68.184.77.220,,,,,,,,,NOT_FOUND,\"68.184.77.220 GET \"\"/b,c\"\"\"",
+				lines[3]);
+		assertTrue(lines[4].startsWith("192.172.150.56,"));
+		assertTrue(lines[5].endsWith("GET /e"));
+
+		assertEquals(5, enricher.getLineCount());
+		assertEquals(2, enricher.getLookupCount());
+		assertEquals(2, enricher.getWindowHitCount());
+		assertEquals(0, enricher.getFailureCount());
+		assertEquals(2, adapter.getCallCount());
+	}
+
+	@Test
+	public void testFailedLookupIsRetried() throws Exception {
+		// fails the first lookup of every address
+		SimulatedIP_GeoServerAdapter adapter = new SimulatedIP_GeoServerAdapter() {
+			private final Set<String> failed = new HashSet<String>();
+
+			public synchronized Map<String, IP_GeoLookupResult> lookupAll(
+					Collection<String> ipAddresses) {
+				Map<String, IP_GeoLookupResult> results = super
+						.lookupAll(ipAddresses);
+				for (String ipAddress : ipAddresses) {
+					if (failed.add(ipAddress)) {
+						results.put(ipAddress, IP_GeoLookupResult.failure(
+								ipAddress, IP_GeoLookupResult.Status.TIMEOUT,
+								HotwireErrors.IPGEO_GEO_SERVER_TIMEOUT));
+					}
+				}
+				return results;
+			}
+		};
+		adapter.setHwProps(SimulatorFixture.properties());
+		adapter.configurationChanged();
+		// one line per batch and two batches in flight, so the first lookup
+		// has failed by the time the fourth line is read
+		IP_GeoLogEnricher enricher = new IP_GeoLogEnricher(adapter,
+				IP_GeoLogEnricher.Format.CSV, 1, (char) 0, 1, 1, 100);
+		StringWriter out = new StringWriter();
+		enricher.enrich(new StringReader("10.0.0.1 a\n10.0.0.2 b\n"
+				+ "10.0.0.3 c\n10.0.0.1 d\n"), out);
+
+		String[] lines = out.toString().split("\n");
+		assertEquals(5, lines.length);
+		assertTrue(lines[1], lines[1].endsWith(",IPGEO_GEO_SERVER_TIMEOUT,10.0.0.1 a"));
+		assertTrue(lines[4], lines[4].endsWith(",NOT_FOUND,10.0.0.1 d"));
+		assertEquals(4, enricher.getLookupCount());
+		assertEquals(0, enricher.getWindowHitCount());
+		assertEquals(3, enricher.getFailureCount());
+	}
+
+	@Test
+	public void testEnrichJsonKeepsOrder() throws Exception {
+		StringBuilder in = new StringBuilder();
+		for (int i = 0; i < 5000; i++) {
+			in.append("10.0.").append(i % 300 / 250).append('.')
+					.append(i % 250).append(" line ").append(i).append('\n');
+		}
+		IP_GeoLogEnricher enricher = new IP_GeoLogEnricher(
+				SimulatorFixture.simulator(),
+				IP_GeoLogEnricher.Format.JSON, 1, (char) 0, 64, 4, 100);
+		StringWriter out = new StringWriter();
+		enricher.enrich(new StringReader(in.toString()), out);
+
+		String[] lines = out.toString().split("\n");
+		assertEquals(5000, lines.length);
+		for (int i = 0; i < lines.length; i++) {
+			assertTrue(lines[i], lines[i].startsWith("{\"ip\":\"10.0."));
+			assertTrue(lines[i], lines[i].endsWith(" line " + i + "\"}"));
+		}
+		assertEquals(5000, enricher.getLookupCount()
+				+ enricher.getWindowHitCount());
+		// the window holds fewer IPs than the input cycles through
+		assertTrue(enricher.getLookupCount() > 300);
+	}
+
+	@Test
+	public void testWriteJson() throws Exception {
+		StringWriter out = new StringWriter();
+		IP_GeoLogEnricher.writeJson(out, IP_GeoLogEnricher.values(
+				"1.2.3.4 \"quoted\"\t", "1.2.3.4", IP_GeoLookupResult.success(
+						"1.2.3.4", new IP_GeoResponse.Builder("1.2.3.4", 'S')
+								.setCountryCode("us").setNDMA_Code(807)
+								.setLatitude(37.5f).build(), true)));
+		assertEquals(
+				"{\"ip\":\"1.2.3.4\",\"countryCode\":\"US\",\"dma\":807,\"latitude\":37.5,\"status\":\"FOUND\",\"line\":\"1.2.3.4 \\\"quoted\\\"\\u0009\"}\n",
+				out.toString());
+	}
+}
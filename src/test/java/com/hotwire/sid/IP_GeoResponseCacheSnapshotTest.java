@@ -0,0 +1,144 @@
+package com.hotwire.sid;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class IP_GeoResponseCacheSnapshotTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static IP_GeoResponse response(String ip) {
+		return new IP_GeoResponse.Builder(ip, 'Q').setCountryCode("us")
+				.setGmtOffset(-8f).setNDMA_Code(807).setZipCode("94105")
+				.setCityName("SAN FRANCISCO").setStateName("CA")
+				.setLatitude(37.79f).setLongitude(-122.39f).build();
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		IP_GeoResponseCache cache = new IP_GeoResponseCache(100, 0,
+				IP_GeoResponseCache.EvictionPolicy.LRU);
+		IP_GeoResponseCache notFoundCache = new IP_GeoResponseCache(100,
+				60000, IP_GeoResponseCache.EvictionPolicy.LRU);
+		cache.put(IP_AddressParser.parse("68.184.77.220"),
+				response("68.184.77.220"));
+		cache.put(IP_AddressParser.parse("2001:db8::1"),
+				new IP_GeoResponse.Builder("2001:db8::1", 'Q')
+						.setCountryCode("DE")
+						.setFields(IP_GeoField.mask(IP_GeoField.ALL)
+								& ~IP_GeoField.COORDINATES.bit()).build());
+		notFoundCache.put(IP_AddressParser.parse("10.0.0.1"),
+				new IP_GeoResponse("10.0.0.1", 'Q'));
+
+		File file = folder.newFile("lookups.snapshot");
+		assertEquals(3, IP_GeoResponseCacheSnapshot.write(file, cache,
+				notFoundCache));
+		assertFalse(new File(file.getPath() + ".tmp").exists());
+
+		IP_GeoResponseCache restoredCache = new IP_GeoResponseCache(100, 0,
+				IP_GeoResponseCache.EvictionPolicy.LRU);
+		IP_GeoResponseCache restoredNotFoundCache = new IP_GeoResponseCache(
+				100, 60000, IP_GeoResponseCache.EvictionPolicy.LRU);
+		assertEquals(3, IP_GeoResponseCacheSnapshot.load(file, restoredCache,
+				restoredNotFoundCache));
+
+		IP_GeoResponse restored = restoredCache.get(IP_AddressParser
+				.parse("68.184.77.220"));
+		assertEquals("68.184.77.220", restored.getIP_Address());
+		assertEquals('Q', restored.getGeoInfoSource());
+		assertEquals("US", restored.getCountryCode());
+		assertEquals(-8f, restored.getGmtOffset(), 0);
+		assertEquals(807, restored.getNDMA_Code());
+		assertEquals("94105", restored.getZipCode());
+		assertEquals("SAN FRANCISCO", restored.getCityName());
+		assertEquals("CA", restored.getStateName());
+		assertEquals(37.79f, restored.getLatitude(), 0);
+		assertEquals(-122.39f, restored.getLongitude(), 0);
+		assertEquals(IP_GeoField.ALL, restored.getFields());
+		assertTrue(restored.isFound());
+
+		IP_GeoResponse partial = restoredCache.get(IP_AddressParser
+				.parse("2001:db8::1"));
+		assertEquals("DE", partial.getCountryCode());
+		assertFalse(partial.getFields().contains(IP_GeoField.COORDINATES));
+
+		assertNull(restoredCache.get(IP_AddressParser.parse("10.0.0.1")));
+		assertFalse(restoredNotFoundCache.get(
+				IP_AddressParser.parse("10.0.0.1")).isFound());
+	}
+
+	@Test
+	public void testExpiryIsKept() throws IOException {
+		IP_GeoResponseCache cache = new IP_GeoResponseCache(100, 60000,
+				IP_GeoResponseCache.EvictionPolicy.LRU);
+		long now = System.nanoTime();
+		// written 59.5 of its 60 seconds ago, and already expired
+		cache.put(0, IP_AddressParser.parse("1.2.3.4").getLow(),
+				response("1.2.3.4"), now - 59500000000L);
+		cache.put(0, IP_AddressParser.parse("1.2.3.5").getLow(),
+				response("1.2.3.5"), now - 61000000000L);
+		cache.put(IP_AddressParser.parse("1.2.3.6"), response("1.2.3.6"));
+
+		File file = folder.newFile("lookups.snapshot");
+		assertEquals(2, IP_GeoResponseCacheSnapshot.write(file, cache));
+
+		IP_GeoResponseCache restoredCache = new IP_GeoResponseCache(100,
+				60000, IP_GeoResponseCache.EvictionPolicy.LRU);
+		// an entry the restored JVM looked up already is kept
+		IP_GeoResponse fresh = response("1.2.3.6");
+		restoredCache.put(IP_AddressParser.parse("1.2.3.6"), fresh);
+		assertEquals(1, IP_GeoResponseCacheSnapshot.load(file, restoredCache));
+		assertSame(fresh, restoredCache.get(IP_AddressParser.parse("1.2.3.6")));
+
+		long restoredAt = System.nanoTime();
+		IP_AddressKey key = IP_AddressParser.parse("1.2.3.4");
+		assertNotNull(restoredCache.get(key.getHigh(), key.getLow(),
+				restoredAt));
+		// the restored entry expires when it would have in the cache that
+		// wrote it, not a full TTL after being restored
+		assertNull(restoredCache.get(key.getHigh(), key.getLow(),
+				restoredAt + 1000000000L));
+	}
+
+	@Test
+	public void testRestoreKeepsEvictionOrder() throws IOException {
+		IP_GeoResponseCache cache = new IP_GeoResponseCache(3, 0,
+				IP_GeoResponseCache.EvictionPolicy.LRU);
+		cache.put(1, response("0.0.0.1"));
+		cache.put(2, response("0.0.0.2"));
+		cache.put(3, response("0.0.0.3"));
+		// 1 becomes the most recently used
+		cache.get(1);
+
+		File file = folder.newFile("lookups.snapshot");
+		IP_GeoResponseCacheSnapshot.write(file, cache);
+		IP_GeoResponseCache restoredCache = new IP_GeoResponseCache(3, 0,
+				IP_GeoResponseCache.EvictionPolicy.LRU);
+		IP_GeoResponseCacheSnapshot.load(file, restoredCache);
+		restoredCache.put(4, response("0.0.0.4"));
+		assertNotNull(restoredCache.get(1));
+		assertNull(restoredCache.get(2));
+	}
+
+	@Test
+	public void testInvalidFile() throws IOException {
+		File file = folder.newFile("lookups.snapshot");
+		try (FileOutputStream out = new FileOutputStream(file)) {
+			out.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+		}
+		try {
+			IP_GeoResponseCacheSnapshot.load(file, new IP_GeoResponseCache(
+					10, 0, IP_GeoResponseCache.EvictionPolicy.LRU));
+			fail();
+		} catch (IOException expected) {
+		}
+	}
+}
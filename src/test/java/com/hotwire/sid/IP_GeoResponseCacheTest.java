@@ -0,0 +1,142 @@
+package com.hotwire.sid;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class IP_GeoResponseCacheTest {
+
+	private static IP_GeoResponse response(String ip) {
+		return new IP_GeoResponse(ip, 'Q');
+	}
+
+	@Test
+	public void testHitAndMiss() {
+		IP_GeoResponseCache cache = new IP_GeoResponseCache(10, 0,
+				IP_GeoResponseCache.EvictionPolicy.LRU);
+		int key = (int) IP_AddressParser.parseIPv4("68.184.77.220");
+		assertNull(cache.get(key));
+		IP_GeoResponse r = response("68.184.77.220");
+		cache.put(key, r);
+		assertSame(r, cache.get(key));
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void testIPv6Keys() {
+		IP_GeoResponseCache cache = new IP_GeoResponseCache(10, 0,
+				IP_GeoResponseCache.EvictionPolicy.LRU);
+		IP_AddressKey ipv6 = IP_AddressParser.parse("2001:db8::1");
+		IP_AddressKey otherIPv6 = IP_AddressParser.parse("2001:db9::1");
+		IP_GeoResponse response = new IP_GeoResponse("2001:db8::1", 'Q');
+		cache.put(ipv6, response);
+		assertSame(response, cache.get(IP_AddressParser.parse("2001:DB8:0::1")));
+		assertNull(cache.get(otherIPv6));
+
+		// IPv4 and IPv4-mapped addresses share an entry
+		IP_GeoResponse ipv4Response = new IP_GeoResponse("1.2.3.4", 'Q');
+		cache.put(IP_AddressParser.parse("::ffff:1.2.3.4"), ipv4Response);
+		assertSame(ipv4Response, cache.get(0x01020304));
+		cache.invalidate(ipv6);
+		assertNull(cache.get(ipv6));
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void testExpiry() {
+		IP_GeoResponseCache cache = new IP_GeoResponseCache(10, 1000,
+				IP_GeoResponseCache.EvictionPolicy.LRU);
+		cache.put(1, response("0.0.0.1"), 0L);
+		assertNotNull(cache.get(1, 999000000L));
+		assertNull(cache.get(1, 1000000000L));
+		assertEquals(1, cache.getExpirationCount());
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testLruEviction() {
+		IP_GeoResponseCache cache = new IP_GeoResponseCache(3, 0,
+				IP_GeoResponseCache.EvictionPolicy.LRU);
+		cache.put(1, response("0.0.0.1"));
+		cache.put(2, response("0.0.0.2"));
+		cache.put(3, response("0.0.0.3"));
+		// touch 1 so that 2 becomes the least recently used entry
+		assertNotNull(cache.get(1));
+		cache.put(4, response("0.0.0.4"));
+		assertNotNull(cache.get(1));
+		assertNull(cache.get(2));
+		assertNotNull(cache.get(3));
+		assertNotNull(cache.get(4));
+		assertEquals(1, cache.getEvictionCount());
+	}
+
+	@Test
+	public void testFifoEviction() {
+		IP_GeoResponseCache cache = new IP_GeoResponseCache(3, 0,
+				IP_GeoResponseCache.EvictionPolicy.FIFO);
+		cache.put(1, response("0.0.0.1"));
+		cache.put(2, response("0.0.0.2"));
+		cache.put(3, response("0.0.0.3"));
+		assertNotNull(cache.get(1));
+		cache.put(4, response("0.0.0.4"));
+		assertNull(cache.get(1));
+		assertNotNull(cache.get(2));
+	}
+
+	@Test
+	public void testChurnKeepsAllLiveEntriesReachable() {
+		IP_GeoResponseCache cache = new IP_GeoResponseCache(1000, 0,
+				IP_GeoResponseCache.EvictionPolicy.FIFO);
+		for (int i = 0; i < 20000; i++) {
+			cache.put(i * 7919, response(String.valueOf(i)));
+			if (i % 3 == 0) {
+				cache.invalidate(i * 7919);
+			}
+		}
+		assertTrue(cache.size() <= 1000);
+		for (int i = 0; i < 20000; i++) {
+			IP_GeoResponse r = cache.get(i * 7919);
+			if (i % 3 == 0) {
+				assertNull(r);
+			} else if (i >= 19500) {
+				assertNotNull(r);
+				assertEquals(String.valueOf(i), r.getIP_Address());
+			}
+		}
+	}
+
+	@Test
+	public void testNeverExpiresWithNegativeNanoTime() {
+		// System.nanoTime() may be negative
+		IP_GeoResponseCache cache = new IP_GeoResponseCache(10, 0,
+				IP_GeoResponseCache.EvictionPolicy.LRU);
+		int key = (int) IP_AddressParser.parseIPv4("68.184.77.220");
+		cache.put(key, response("68.184.77.220"), -1000L);
+		assertNotNull(cache.get(key, -500L));
+
+		final int[] visited = new int[1];
+		cache.forEachEntry(new IP_GeoResponseCache.EntryVisitor() {
+			public void visit(long high, long low, IP_GeoResponse response,
+					long expiresAtNanos) {
+				assertEquals(Long.MAX_VALUE, expiresAtNanos);
+				visited[0]++;
+			}
+		}, -500L);
+		assertEquals(1, visited[0]);
+
+		IP_AddressKey restored = IP_AddressParser.parse("68.184.77.221");
+		assertTrue(cache.restore(restored.getHigh(), restored.getLow(),
+				response("68.184.77.221"), Long.MAX_VALUE, -500L));
+		assertNotNull(cache.get(restored.getHigh(), restored.getLow(), -100L));
+
+		// a cache with a TTL caps entries that never expire
+		IP_GeoResponseCache ttlCache = new IP_GeoResponseCache(10, 1,
+				IP_GeoResponseCache.EvictionPolicy.LRU);
+		assertTrue(ttlCache.restore(restored.getHigh(), restored.getLow(),
+				response("68.184.77.221"), Long.MAX_VALUE, -5000000L));
+		assertNull(ttlCache.get(restored.getHigh(), restored.getLow(),
+				-3000000L));
+	}
+}
@@ -0,0 +1,73 @@
+package com.hotwire.sid;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class IP_GeoResponseTest {
+
+	@Test
+	public void testBuilder() {
+		IP_GeoResponse response = new IP_GeoResponse.Builder("68.184.77.220",
+				IP_GeoResponse.GEO_INFO_SOURCE_QUOVA).setCountryCode("us")
+				.setStateName("al").setCityName("montgomery")
+				.setZipCode("36107").setNDMA_Code(698).setGmtOffset(-6.0f)
+				.setLatitude(32.38316f).setLongitude(-86.28197f).build();
+		assertEquals("68.184.77.220", response.getIP_Address());
+		assertEquals(IP_GeoResponse.GEO_INFO_SOURCE_QUOVA,
+				response.getGeoInfoSource());
+		assertEquals("US", response.getCountryCode());
+		assertEquals("al", response.getStateName());
+		assertEquals("montgomery", response.getCityName());
+		assertEquals("36107", response.getZipCode());
+		assertEquals(698, response.getNDMA_Code());
+		assertEquals(-6.0f, response.getGmtOffset(), 0f);
+		assertEquals(32.38316f, response.getLatitude(), 0f);
+		assertEquals(-86.28197f, response.getLongitude(), 0f);
+	}
+
+	@Test
+	public void testStringsAreShared() {
+		IP_GeoResponse first = new IP_GeoResponse.Builder("1.1.1.1", 'Q')
+				.setCountryCode(new String("us"))
+				.setCityName(new String("columbus")).build();
+		IP_GeoResponse second = new IP_GeoResponse.Builder("2.2.2.2", 'Q')
+				.setCountryCode(new String("US"))
+				.setCityName(new String("columbus")).build();
+		assertSame(first.getCountryCode(), second.getCountryCode());
+		assertSame(first.getCityName(), second.getCityName());
+	}
+
+	@Test
+	public void testEmptyResponse() {
+		IP_GeoResponse response = new IP_GeoResponse("1.1.1.1",
+				IP_GeoResponse.GEO_INFO_SOURCE_RANGE_INDEX);
+		assertNull(response.getCountryCode());
+		assertEquals(Float.MAX_VALUE, response.getGmtOffset(), 0f);
+		assertEquals(Float.MAX_VALUE, response.getLatitude(), 0f);
+		assertEquals(0, response.getNDMA_Code());
+	}
+
+	@Test
+	public void testCopyConstructor() {
+		IP_GeoResponse response = new IP_GeoResponse.Builder("68.184.77.220",
+				IP_GeoResponse.GEO_INFO_SOURCE_QUOVA).setCountryCode("us")
+				.setGmtOffset(-8f).setNDMA_Code(807).setZipCode("94105")
+				.setCityName("san francisco").setStateName("california")
+				.setLatitude(37.79f).setLongitude(-122.39f)
+				.setFields(IP_GeoField.COUNTRY.bit()).build();
+		IP_GeoResponse copy = new IP_GeoResponse(response);
+		assertEquals("68.184.77.220", copy.getIP_Address());
+		assertEquals(IP_GeoResponse.GEO_INFO_SOURCE_QUOVA,
+				copy.getGeoInfoSource());
+		assertEquals("US", copy.getCountryCode());
+		assertEquals(-8f, copy.getGmtOffset(), 0f);
+		assertEquals(807, copy.getNDMA_Code());
+		assertEquals("94105", copy.getZipCode());
+		assertSame(response.getCityName(), copy.getCityName());
+		assertSame(response.getStateName(), copy.getStateName());
+		assertEquals(37.79f, copy.getLatitude(), 0f);
+		assertEquals(-122.39f, copy.getLongitude(), 0f);
+		assertEquals(response.getFields(), copy.getFields());
+	}
+}
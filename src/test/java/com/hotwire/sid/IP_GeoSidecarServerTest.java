@@ -0,0 +1,323 @@
+package com.hotwire.sid;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class IP_GeoSidecarServerTest {
+
+	private SimulatedIP_GeoServerAdapter simulator;
+
+	private IP_GeoSidecarServer server;
+
+	private SidecarIP_GeoServerAdapter client;
+
+	@Before
+	public void setUp() throws Exception {
+		simulator = SimulatorFixture.simulator("latencyInMillis", "2",
+				"connectionPoolSize", "100");
+		server = new IP_GeoSidecarServer(simulator, new InetSocketAddress(
+				"127.0.0.1", 0), 64, 1000, 2, 1000);
+		server.start();
+		client = client("http://127.0.0.1:" + server.getAddress().getPort()
+				+ "/");
+	}
+
+	@After
+	public void tearDown() {
+		server.stop(0);
+		client.shutdown();
+	}
+
+	private static SidecarIP_GeoServerAdapter client(String url) {
+		Properties props = new Properties();
+		props.setProperty("hotwire.eis.geo.sidecar.url", url);
+		SidecarIP_GeoServerAdapter client = new SidecarIP_GeoServerAdapter();
+		client.setHwProps(props);
+		client.configurationChanged();
+		return client;
+	}
+
+	@Test
+	public void testProtocolRoundTrip() {
+		IP_GeoResponse response = new IP_GeoResponse.Builder("2001:db8::1",
+				'Q').setCountryCode("us").setGmtOffset(-8f).setNDMA_Code(807)
+				.setZipCode("94105").setCityName("SAN\tFRANCISCO")
+				.setLatitude(37.79f).build();
+		StringBuilder out = new StringBuilder();
+		IP_GeoSidecarProtocol.encode(out,
+				IP_GeoLookupResult.success("2001:db8::1", response, true));
+		IP_GeoSidecarProtocol.encode(out, IP_GeoLookupResult.failure(
+				"1.2.3.4", IP_GeoLookupResult.Status.TIMEOUT,
+				HotwireErrors.IPGEO_GEO_SERVER_TIMEOUT));
+		String[] lines = out.toString().split("\n");
+		assertEquals(2, lines.length);
+
+		IP_GeoLookupResult found = IP_GeoSidecarProtocol.decode(lines[0]);
+		assertEquals(IP_GeoLookupResult.Status.FOUND, found.getStatus());
+		IP_GeoResponse decoded = found.getResponse();
+		assertEquals("2001:db8::1", decoded.getIP_Address());
+		assertEquals('Q', decoded.getGeoInfoSource());
+		assertEquals("US", decoded.getCountryCode());
+		assertEquals(-8f, decoded.getGmtOffset(), 0);
+		assertEquals(807, decoded.getNDMA_Code());
+		assertEquals("94105", decoded.getZipCode());
+		assertEquals("SAN FRANCISCO", decoded.getCityName());
+		assertNull(decoded.getStateName());
+		assertEquals(37.79f, decoded.getLatitude(), 0);
+		assertEquals(Float.MAX_VALUE, decoded.getLongitude(), 0);
+		assertEquals(IP_GeoField.ALL, decoded.getFields());
+
+		IP_GeoLookupResult timeout = IP_GeoSidecarProtocol.decode(lines[1]);
+		assertEquals(IP_GeoLookupResult.Status.TIMEOUT, timeout.getStatus());
+		assertEquals(HotwireErrors.IPGEO_GEO_SERVER_TIMEOUT,
+				timeout.getErrorCode());
+	}
+
+	@Test
+	public void testLookups() throws Exception {
+		// no data file, every address is answered without geo information
+		IP_GeoResponse response = client.lookup("68.184.77.220");
+		assertEquals("68.184.77.220", response.getIP_Address());
+		assertEquals(IP_GeoResponse.GEO_INFO_SOURCE_SIMULATOR,
+				response.getGeoInfoSource());
+		assertNull(response.getCountryCode());
+		assertEquals(IP_GeoLookupResult.Status.NOT_FOUND, client
+				.lookupResult("2001:db8::1").getStatus());
+
+		try {
+			client.lookup("not.an.ip");
+			fail();
+		} catch (HwIP_GeoException e) {
+			assertEquals(HotwireErrors.IPGEO_GEO_SERVER_INVALID_ARGUMENT,
+					e.getErrorCode());
+		}
+		assertEquals(2, server.getBatcher().getLookupCount());
+
+		Map<String, IP_GeoLookupResult> results = client.lookupAll(Arrays
+				.asList("10.0.0.1", "bogus", "10.0.0.2", "10.0.0.1"));
+		Iterator<IP_GeoLookupResult> iterator = results.values().iterator();
+		assertEquals(3, results.size());
+		assertEquals(IP_GeoLookupResult.Status.NOT_FOUND, iterator.next()
+				.getStatus());
+		assertEquals(IP_GeoLookupResult.Status.INVALID, iterator.next()
+				.getStatus());
+		assertEquals("10.0.0.2", iterator.next().getIP_Address());
+	}
+
+	@Test
+	public void testConcurrentLookupsAreBatched() throws Exception {
+		final int threads = 16;
+		final int lookupsPerThread = 20;
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int thread = t;
+			workers[t] = new Thread() {
+				public void run() {
+					try {
+						start.await();
+						for (int i = 0; i < lookupsPerThread; i++) {
+							String ipAddress = "10.1." + thread + "." + i;
+							assertEquals(ipAddress, client.lookup(ipAddress)
+									.getIP_Address());
+						}
+					} catch (Throwable e) {
+						error.set(e);
+					}
+				}
+			};
+			workers[t].start();
+		}
+		start.countDown();
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		assertNull(error.get());
+		IP_GeoLookupBatcher batcher = server.getBatcher();
+		assertEquals(threads * lookupsPerThread, batcher.getLookupCount());
+		assertEquals(threads * lookupsPerThread, simulator.getCallCount());
+		// lookups that arrive while the lookup threads are busy share a batch
+		assertTrue(batcher.getBatchCount() < threads * lookupsPerThread);
+	}
+
+	private static void await(String what, BooleanSupplier condition)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!condition.getAsBoolean()) {
+			assertTrue(what, System.currentTimeMillis() < deadline);
+			Thread.sleep(5);
+		}
+	}
+
+	@Test
+	public void testOverloadedSidecarAnswersUnavailable() throws Exception {
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		SimulatedIP_GeoServerAdapter blocking = new SimulatedIP_GeoServerAdapter() {
+			public Map<String, IP_GeoLookupResult> lookupAll(
+					Collection<String> ipAddresses) {
+				entered.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return super.lookupAll(ipAddresses);
+			}
+		};
+		blocking.setHwProps(new Properties());
+		blocking.configurationChanged();
+		// one lookup thread, one lookup per batch, one lookup waiting
+		IP_GeoSidecarServer overloaded = new IP_GeoSidecarServer(blocking,
+				new InetSocketAddress("127.0.0.1", 0), 1, 0, 1, 1);
+		overloaded.start();
+		SidecarIP_GeoServerAdapter overloadedClient = client("http://127.0.0.1:"
+				+ overloaded.getAddress().getPort());
+		final IP_GeoLookupBatcher batcher = overloaded.getBatcher();
+		Thread[] waiting = new Thread[3];
+		try {
+			for (int i = 0; i < waiting.length; i++) {
+				final String ipAddress = "10.2.0." + i;
+				waiting[i] = new Thread() {
+					public void run() {
+						overloadedClient.lookupResult(ipAddress);
+					}
+				};
+			}
+			// the first lookup holds the lookup thread
+			waiting[0].start();
+			entered.await(5, TimeUnit.SECONDS);
+			// the second is taken by the dispatcher, waiting for the thread
+			waiting[1].start();
+			await("dispatched", () -> batcher.getLookupCount() == 2
+					&& batcher.getQueuedLookupCount() == 0);
+			// the third fills the queue
+			waiting[2].start();
+			await("queued", () -> batcher.getQueuedLookupCount() == 1);
+
+			IP_GeoLookupResult result = overloadedClient
+					.lookupResult("10.2.1.0");
+			assertEquals(IP_GeoLookupResult.Status.UNAVAILABLE,
+					result.getStatus());
+			assertEquals(HotwireErrors.IPGEO_GEO_SERVER_NOT_AVAILABLE,
+					result.getErrorCode());
+			assertEquals(1, batcher.getRejectedLookupCount());
+		} finally {
+			release.countDown();
+			for (Thread thread : waiting) {
+				thread.join(5000);
+			}
+			overloaded.stop(0);
+			overloadedClient.shutdown();
+		}
+	}
+
+	@Test
+	public void testSidecarNotRunning() throws Exception {
+		int port;
+		try (ServerSocket socket = new ServerSocket(0)) {
+			port = socket.getLocalPort();
+		}
+		SidecarIP_GeoServerAdapter unreachable = client("http://127.0.0.1:"
+				+ port);
+		try {
+			unreachable.lookup("68.184.77.220");
+			fail();
+		} catch (HwIP_GeoException e) {
+			assertEquals(HotwireErrors.IPGEO_GEO_SERVER_NOT_AVAILABLE,
+					e.getErrorCode());
+		}
+		IP_GeoLookupResult result = unreachable.lookupAll(
+				Arrays.asList("68.184.77.220")).get("68.184.77.220");
+		assertEquals(IP_GeoLookupResult.Status.UNAVAILABLE, result.getStatus());
+	}
+
+	@Test
+	public void testInvalidClientSettingsKeepTheCurrentOnes() {
+		String url = client.getUrl();
+		for (String[] setting : new String[][] { { "timeoutInMillis", "0" },
+				{ "batchTimeoutInMillis", "-1" }, { "url", "localhost:8080" } }) {
+			Properties props = new Properties();
+			props.setProperty("hotwire.eis.geo.sidecar.url", url);
+			props.setProperty("hotwire.eis.geo.sidecar." + setting[0],
+					setting[1]);
+			client.setHwProps(props);
+			client.configurationChanged();
+
+			assertEquals(url, client.getUrl());
+			assertEquals(IP_GeoLookupResult.Status.NOT_FOUND, client
+					.lookupResult("68.184.77.220").getStatus());
+			assertEquals(IP_GeoLookupResult.Status.NOT_FOUND, client
+					.lookupAll(Arrays.asList("68.184.77.220"))
+					.get("68.184.77.220").getStatus());
+		}
+	}
+
+	@Test
+	public void testMalformedEscapeIsABadRequest() throws Exception {
+		// sent by hand, as URI does not accept the escape either
+		try (Socket socket = new Socket("127.0.0.1", server.getAddress()
+				.getPort())) {
+			socket.setSoTimeout(5000);
+			OutputStream out = socket.getOutputStream();
+			out.write("GET /lookup?ip=%zz HTTP/1.1\r\nHost: localhost\r\n\r\n"
+					.getBytes(StandardCharsets.US_ASCII));
+			out.flush();
+			BufferedReader in = new BufferedReader(new InputStreamReader(
+					socket.getInputStream(), StandardCharsets.US_ASCII));
+			assertEquals("HTTP/1.1 400 Bad Request", in.readLine());
+		}
+	}
+
+	@Test
+	public void testFailingAdapterIsAnswered() throws Exception {
+		SimulatedIP_GeoServerAdapter failing = new SimulatedIP_GeoServerAdapter() {
+			public Map<String, IP_GeoLookupResult> lookupAll(
+					Collection<String> ipAddresses) {
+				throw new AssertionError("lookup failed");
+			}
+		};
+		IP_GeoSidecarServer failingServer = new IP_GeoSidecarServer(failing,
+				new InetSocketAddress("127.0.0.1", 0), 64, 1000, 2, 1000);
+		failingServer.start();
+		SidecarIP_GeoServerAdapter failingClient = client("http://127.0.0.1:"
+				+ failingServer.getAddress().getPort());
+		try {
+			IP_GeoLookupResult result = failingClient
+					.lookupResult("68.184.77.220");
+			assertEquals(IP_GeoLookupResult.Status.ERROR, result.getStatus());
+			assertEquals(HotwireErrors.IPGEO_GEO_SERVER_RUNTIME_ERROR,
+					result.getErrorCode());
+			// the whole request failed, so the client reports a bad answer
+			result = failingClient.lookupAll(Arrays.asList("68.184.77.220"))
+					.get("68.184.77.220");
+			assertEquals(IP_GeoLookupResult.Status.ERROR, result.getStatus());
+			assertEquals(HotwireErrors.IPGEO_GEO_SERVER_INVALID_RESPONSE,
+					result.getErrorCode());
+		} finally {
+			failingServer.stop(0);
+			failingClient.shutdown();
+		}
+	}
+}
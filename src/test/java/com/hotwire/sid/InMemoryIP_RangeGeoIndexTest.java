@@ -0,0 +1,109 @@
+package com.hotwire.sid;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class InMemoryIP_RangeGeoIndexTest {
+
+	private static final String CSV = "startIp,endIp,country,state,city,zip,dma,gmtOffset,lat,long\n"
+			+ "# ranges are deliberately out of order\n"
+			+ "192.172.150.0,192.172.150.255,us,oh,columbus,43218,535,-5.0,39.99558,-82.99946\n"
+			+ "68.184.77.0,68.184.77.255,us,al,montgomery,36107,698,-6.0,32.38316,-86.28197\n"
+			+ "3758096384,4294967295,,,,,,,,\n"
+			+ "200.1.1.0,200.1.1.9,br,\"sao paulo, sp\",sao paulo,,0,,,\n";
+
+	private static InMemoryIP_RangeGeoIndex index;
+
+	@BeforeClass
+	public static void init() throws IOException {
+		index = InMemoryIP_RangeGeoIndex.load(new StringReader(CSV));
+	}
+
+	private static int ip(String dottedQuad) {
+		return (int) IP_AddressParser.parseIPv4(dottedQuad);
+	}
+
+	@Test
+	public void testLookup() {
+		assertEquals(4, index.size());
+		IP_GeoResponse response = index.lookup(ip("68.184.77.220"),
+				"68.184.77.220");
+		assertEquals("montgomery", response.getCityName());
+		assertEquals("al", response.getStateName());
+		assertEquals("US", response.getCountryCode());
+		assertEquals("36107", response.getZipCode());
+		assertEquals(IP_GeoResponse.GEO_INFO_SOURCE_RANGE_INDEX,
+				response.getGeoInfoSource());
+		assertEquals(-6.0f, response.getGmtOffset(), 0f);
+		assertEquals("68.184.77.220", response.getIP_Address());
+		assertEquals(32.38316f, response.getLatitude(), 0f);
+		assertEquals(-86.28197f, response.getLongitude(), 0f);
+		assertEquals(698, response.getNDMA_Code());
+
+		assertEquals("columbus",
+				index.lookup(ip("192.172.150.0"), "192.172.150.0")
+						.getCityName());
+		assertEquals("sao paulo, sp",
+				index.lookup(ip("200.1.1.9"), "200.1.1.9").getStateName());
+	}
+
+	@Test
+	public void testRangeBoundsAndGaps() {
+		assertNull(index.lookup(ip("68.184.76.255"), "68.184.76.255"));
+		assertNotNull(index.lookup(ip("68.184.77.0"), "68.184.77.0"));
+		assertNotNull(index.lookup(ip("68.184.77.255"), "68.184.77.255"));
+		assertNull(index.lookup(ip("68.184.78.0"), "68.184.78.0"));
+		assertNull(index.lookup(ip("0.0.0.0"), "0.0.0.0"));
+		assertNull(index.lookup(ip("200.1.1.10"), "200.1.1.10"));
+	}
+
+	@Test
+	public void testEmptyColumnsAndUnsignedRanges() {
+		IP_GeoResponse response = index.lookup(ip("255.255.255.255"),
+				"255.255.255.255");
+		assertNotNull(response);
+		assertNull(response.getCountryCode());
+		assertEquals(Float.MAX_VALUE, response.getGmtOffset(), 0f);
+		assertEquals(Float.MAX_VALUE, response.getLatitude(), 0f);
+	}
+
+	@Test
+	public void testIPv6Ranges() throws IOException {
+		InMemoryIP_RangeGeoIndex ipv6Index = InMemoryIP_RangeGeoIndex
+				.load(new StringReader(
+						"2001:db8:1::,2001:db8:1:ffff:ffff:ffff:ffff:ffff,de,be,berlin,10115,0,1.0,,\n"
+								+ "2001:db8::,2001:db8::ffff,us,ca,\"san jose\",95113,807,-8.0,,\n"
+								+ "::ffff:68.184.77.0,::ffff:68.184.77.255,us,al,montgomery,36107,698,-6.0,,\n"));
+		assertEquals(3, ipv6Index.size());
+		IP_AddressKey berlin = IP_AddressParser.parse("2001:db8:1:2::1");
+		assertEquals("berlin", ipv6Index.lookupIPv6(berlin.getHigh(),
+				berlin.getLow(), "2001:db8:1:2::1").getCityName());
+		IP_AddressKey sanJose = IP_AddressParser.parse("2001:db8::ff");
+		assertEquals("san jose", ipv6Index.lookupIPv6(sanJose.getHigh(),
+				sanJose.getLow(), "2001:db8::ff").getCityName());
+		IP_AddressKey gap = IP_AddressParser.parse("2001:db8::1:0");
+		assertNull(ipv6Index.lookupIPv6(gap.getHigh(), gap.getLow(),
+				"2001:db8::1:0"));
+		// IPv4-mapped ranges are IPv4 ranges
+		assertEquals("montgomery",
+				ipv6Index.lookup(ip("68.184.77.220"), "68.184.77.220")
+						.getCityName());
+	}
+
+	@Test(expected = IOException.class)
+	public void testOverlappingRanges() throws IOException {
+		InMemoryIP_RangeGeoIndex.load(new StringReader(
+				"1.0.0.0,1.0.0.255,us,,,,,,,\n1.0.0.128,1.0.1.0,us,,,,,,,\n"));
+	}
+
+	@Test(expected = IOException.class)
+	public void testMalformedLine() throws IOException {
+		InMemoryIP_RangeGeoIndex.load(new StringReader(
+				"1.0.0.0,1.0.0.255,us\n"));
+	}
+}
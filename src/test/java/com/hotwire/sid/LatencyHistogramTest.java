@@ -0,0 +1,64 @@
+package com.hotwire.sid;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void testPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getValueAtPercentile(95));
+		for (int millis = 1; millis <= 100; millis++) {
+			histogram.record(TimeUnit.MILLISECONDS.toNanos(millis));
+		}
+		assertEquals(100, histogram.getCount());
+		assertWithin(TimeUnit.MILLISECONDS.toNanos(50),
+				histogram.getValueAtPercentile(50));
+		assertWithin(TimeUnit.MILLISECONDS.toNanos(95),
+				histogram.getValueAtPercentile(95));
+		assertWithin(TimeUnit.MILLISECONDS.toNanos(100),
+				histogram.getValueAtPercentile(100));
+		assertWithin(TimeUnit.MILLISECONDS.toNanos(1),
+				histogram.getValueAtPercentile(0));
+
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+	}
+
+	@Test
+	public void testSmallAndLargeDurations() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(-5);
+		histogram.record(7000);
+		histogram.record(Long.MAX_VALUE);
+		assertEquals(0, histogram.getValueAtPercentile(1));
+		assertEquals(7000, histogram.getValueAtPercentile(50));
+		assertTrue(histogram.getValueAtPercentile(100) > TimeUnit.HOURS
+				.toNanos(38));
+	}
+
+	@Test
+	public void testMergedPercentile() {
+		LatencyHistogram fast = new LatencyHistogram();
+		LatencyHistogram slow = new LatencyHistogram();
+		for (int i = 0; i < 90; i++) {
+			fast.record(TimeUnit.MILLISECONDS.toNanos(2));
+		}
+		for (int i = 0; i < 10; i++) {
+			slow.record(TimeUnit.MILLISECONDS.toNanos(300));
+		}
+		assertWithin(TimeUnit.MILLISECONDS.toNanos(2),
+				LatencyHistogram.getValueAtPercentile(90, fast, slow));
+		assertWithin(TimeUnit.MILLISECONDS.toNanos(300),
+				LatencyHistogram.getValueAtPercentile(95, fast, slow));
+	}
+
+	private static void assertWithin(long expected, long actual) {
+		assertTrue(actual + " is not within 12.5% of " + expected,
+				actual >= expected && actual <= expected + expected / 8);
+	}
+}
@@ -0,0 +1,124 @@
+package com.hotwire.sid;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MappedIP_RangeGeoIndexTest {
+
+	private static final String CSV = "startIp,endIp,country,state,city,zip,dma,gmtOffset,lat,long\n"
+			+ "68.184.77.0,68.184.77.255,us,al,montgomery,36107,698,-6.0,32.38316,-86.28197\n"
+			+ "68.184.78.0,68.184.78.255,us,al,montgomery,36107,698,-6.0,32.38316,-86.28197\n"
+			+ "192.172.150.0,192.172.150.255,us,oh,columbus,43218,535,-5.0,39.99558,-82.99946\n"
+			+ "200.1.1.0,200.1.1.9,br,,s\u00e3o paulo,,0,,,\n";
+
+	private static final String[] IPS = { "0.0.0.0", "68.184.76.255",
+			"68.184.77.0", "68.184.77.220", "68.184.78.255", "68.184.79.0",
+			"192.172.150.56", "200.1.1.9", "200.1.1.10", "255.255.255.255" };
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testMatchesInMemoryIndex() throws IOException {
+		InMemoryIP_RangeGeoIndex source = InMemoryIP_RangeGeoIndex
+				.load(new StringReader(CSV));
+		File databaseFile = folder.newFile("ranges.qgeo");
+		IP_RangeGeoDatabaseBuilder.write(source, databaseFile);
+
+		assertTrue(MappedIP_RangeGeoIndex.isDatabaseFile(databaseFile));
+		MappedIP_RangeGeoIndex index = MappedIP_RangeGeoIndex
+				.open(databaseFile);
+		// the two montgomery ranges share a location
+		assertEquals(3, index.getLocationCount());
+
+		for (String ip : IPS) {
+			int address = (int) IP_AddressParser.parseIPv4(ip);
+			IP_GeoResponse expected = source.lookup(address, ip);
+			IP_GeoResponse actual = index.lookup(address, ip);
+			if (expected == null) {
+				assertNull(ip, actual);
+				continue;
+			}
+			assertNotNull(ip, actual);
+			assertEquals(ip, expected.getCountryCode(),
+					actual.getCountryCode());
+			assertEquals(ip, expected.getStateName(), actual.getStateName());
+			assertEquals(ip, expected.getCityName(), actual.getCityName());
+			assertEquals(ip, expected.getZipCode(), actual.getZipCode());
+			assertEquals(ip, expected.getNDMA_Code(), actual.getNDMA_Code());
+			assertEquals(ip, expected.getGmtOffset(), actual.getGmtOffset(),
+					0f);
+			assertEquals(ip, expected.getLatitude(), actual.getLatitude(), 0f);
+			assertEquals(ip, expected.getLongitude(), actual.getLongitude(),
+					0f);
+			assertEquals(ip, actual.getIP_Address());
+		}
+	}
+
+	@Test
+	public void testIPv6Ranges() throws IOException {
+		InMemoryIP_RangeGeoIndex source = InMemoryIP_RangeGeoIndex
+				.load(new StringReader(CSV
+						+ "2001:db8::,2001:db8::ffff,us,ca,san jose,95113,807,-8.0,,\n"
+						+ "2001:db8:1::,2001:db8:1::ff,us,ca,san jose,95113,807,-8.0,,\n"
+						+ "ffff::,ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff,,,,,,,,\n"));
+		File databaseFile = folder.newFile("ranges.qgeo");
+		IP_RangeGeoDatabaseBuilder.write(source, databaseFile);
+		MappedIP_RangeGeoIndex index = MappedIP_RangeGeoIndex
+				.open(databaseFile);
+
+		String[] ips = { "::", "2001:db7:ffff:ffff:ffff:ffff:ffff:ffff",
+				"2001:db8::", "2001:db8::1:0", "2001:db8:1::ff",
+				"2001:db8:1::100", "ffff::1",
+				"ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff" };
+		for (String ip : ips) {
+			IP_AddressKey key = IP_AddressParser.parse(ip);
+			IP_GeoResponse expected = source.lookupIPv6(key.getHigh(),
+					key.getLow(), ip);
+			IP_GeoResponse actual = index.lookupIPv6(key.getHigh(),
+					key.getLow(), ip);
+			if (expected == null) {
+				assertNull(ip, actual);
+			} else {
+				assertNotNull(ip, actual);
+				assertEquals(ip, expected.getCityName(), actual.getCityName());
+				assertEquals(ip, expected.getNDMA_Code(),
+						actual.getNDMA_Code());
+			}
+		}
+		assertNull(index.lookupIPv6(0, 1, "::1"));
+		assertEquals("san jose",
+				index.lookupIPv6(0x20010DB800000000L, 0x10, "2001:db8::10")
+						.getCityName());
+	}
+
+	@Test
+	public void testStringsAreShared() throws IOException {
+		File databaseFile = folder.newFile("ranges.qgeo");
+		IP_RangeGeoDatabaseBuilder.write(
+				InMemoryIP_RangeGeoIndex.load(new StringReader(CSV)),
+				databaseFile);
+		MappedIP_RangeGeoIndex index = MappedIP_RangeGeoIndex
+				.open(databaseFile);
+		int first = (int) IP_AddressParser.parseIPv4("68.184.77.1");
+		int second = (int) IP_AddressParser.parseIPv4("192.172.150.1");
+		assertSame(index.lookup(first, "68.184.77.1").getCountryCode(), index
+				.lookup(second, "192.172.150.1").getCountryCode());
+	}
+
+	@Test(expected = IOException.class)
+	public void testRejectsCsv() throws IOException {
+		File csvFile = folder.newFile("ranges.csv");
+		Files.write(csvFile.toPath(), CSV.getBytes("UTF-8"));
+		assertFalse(MappedIP_RangeGeoIndex.isDatabaseFile(csvFile));
+		MappedIP_RangeGeoIndex.open(csvFile);
+	}
+}
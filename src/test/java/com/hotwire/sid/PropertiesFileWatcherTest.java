@@ -0,0 +1,52 @@
+package com.hotwire.sid;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PropertiesFileWatcherTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testRunsCallbackOnChange() throws Exception {
+		File file = folder.newFile("app.properties");
+		File otherFile = folder.newFile("other.properties");
+		final Semaphore changes = new Semaphore(0);
+		PropertiesFileWatcher watcher = new PropertiesFileWatcher(file, 50,
+				new Runnable() {
+					public void run() {
+						changes.release();
+					}
+				});
+		try {
+			write(otherFile, "a=1");
+			assertFalse(changes.tryAcquire(500, TimeUnit.MILLISECONDS));
+
+			write(file, "a=1");
+			// the watch service may poll, give it time to notice
+			assertTrue(changes.tryAcquire(15, TimeUnit.SECONDS));
+		} finally {
+			watcher.close();
+		}
+	}
+
+	private static void write(File file, String content) throws IOException {
+		Writer writer = new FileWriter(file);
+		try {
+			writer.write(content);
+		} finally {
+			writer.close();
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package com.hotwire.sid;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import org.junit.Test;
+
+import com.quova.common.QuovaReturnCode;
+
+public class QuovaIP_GeoMetricsTest {
+
+	@Test
+	public void testRecording() {
+		QuovaIP_GeoServerAdapter adapter = new QuovaIP_GeoServerAdapter();
+		QuovaIP_GeoMetrics metrics = adapter.getMetrics();
+
+		long startTimeNanos = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(20);
+		metrics.recordLookup(startTimeNanos, false);
+		metrics.recordLookup(System.nanoTime(), true);
+		long callStartNanos = metrics.quovaCallStarted();
+		assertEquals(1, metrics.getActiveQuovaCalls());
+		metrics.quovaCallEnded(callStartNanos);
+		metrics.recordReturnCode(QuovaReturnCode.SUCCESS);
+		metrics.recordReturnCode(QuovaReturnCode.POOL_FAILURE);
+		metrics.recordReturnCode(QuovaReturnCode.POOL_FAILURE);
+		metrics.recordError(HotwireErrors.IPGEO_GEO_SERVER_NOT_AVAILABLE);
+		metrics.recordError(-1);
+
+		assertEquals(2, metrics.getLookupCount());
+		assertEquals(1, metrics.getLocalLookupCount());
+		assertEquals(1, metrics.getQuovaCallCount());
+		assertEquals(0, metrics.getActiveQuovaCalls());
+		assertEquals(1, metrics.getPeakActiveQuovaCalls());
+		assertTrue(metrics.getLookupLatencyP99Millis() >= 20);
+		assertEquals(2, metrics.getPoolFailureCount());
+		assertEquals(Long.valueOf(1),
+				metrics.getReturnCodeCounts().get("SUCCESS"));
+		assertEquals(Long.valueOf(1),
+				metrics.getErrorCounts().get("IPGEO_GEO_SERVER_NOT_AVAILABLE"));
+		assertEquals(Long.valueOf(1), metrics.getErrorCounts().get("OTHER"));
+		assertEquals("NONE", metrics.getCircuitBreakerState());
+
+		metrics.reset();
+		assertEquals(0, metrics.getLookupCount());
+		assertEquals(0, metrics.getPoolFailureCount());
+		assertEquals(0.0, metrics.getLookupLatencyP99Millis(), 0.0);
+	}
+
+	@Test
+	public void testPublishedOverJMX() throws Exception {
+		QuovaIP_GeoServerAdapter adapter = new QuovaIP_GeoServerAdapter();
+		QuovaIP_GeoMetrics metrics = adapter.getMetrics();
+		metrics.register("metricsTest");
+		try {
+			metrics.recordError(HotwireErrors.IPGEO_GEO_SERVER_TIMEOUT);
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(
+					"com.hotwire.sid:type=QuovaIP_GeoServerAdapter,name=\"metricsTest\"");
+			assertEquals(0L, server.getAttribute(name, "LookupCount"));
+			TabularData errorCounts = (TabularData) server.getAttribute(name,
+					"ErrorCounts");
+			CompositeData timeouts = errorCounts
+					.get(new Object[] { "IPGEO_GEO_SERVER_TIMEOUT" });
+			assertEquals(1L, timeouts.get("value"));
+		} finally {
+			adapter.shutdown();
+		}
+		assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(
+				new ObjectName(
+						"com.hotwire.sid:type=QuovaIP_GeoServerAdapter,name=\"metricsTest\"")));
+	}
+}
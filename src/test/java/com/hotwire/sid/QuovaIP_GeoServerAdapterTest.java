@@ -0,0 +1,405 @@
+package com.hotwire.sid;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class QuovaIP_GeoServerAdapterTest {
+
+	/**
+	 * Answers the lookups without a Quova server: every address is found,
+	 * except REJECTED_IP, which Quova rejects as malformed. While release is
+	 * set the lookups wait for it.
+	 */
+	private static class FakeQuovaAdapter extends QuovaIP_GeoServerAdapter {
+
+		static final String REJECTED_IP = "68.184.9.9";
+
+		final List<List<String>> batches = Collections
+				.synchronizedList(new ArrayList<List<String>>());
+
+		final List<String> completedLookups = Collections
+				.synchronizedList(new ArrayList<String>());
+
+		volatile boolean interrupted;
+
+		volatile CountDownLatch release;
+
+		private void awaitRelease() {
+			CountDownLatch latch = release;
+			if (latch != null) {
+				try {
+					latch.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					interrupted = true;
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		public IP_GeoResponse lookup(String ipAddress) throws HwIP_GeoException {
+			awaitRelease();
+			completedLookups.add(ipAddress);
+			return new IP_GeoResponse.Builder(ipAddress,
+					IP_GeoResponse.GEO_INFO_SOURCE_QUOVA).setCountryCode("US")
+					.build();
+		}
+
+		IP_GeoLookupResult[] queryBatch(List<String> ipAddresses,
+				List<IP_AddressKey> keys, String[] queryAddresses)
+				throws HwIP_GeoException {
+			batches.add(new ArrayList<String>(ipAddresses));
+			awaitRelease();
+			if (ipAddresses.contains(REJECTED_IP)) {
+				throw HwIP_GeoException
+						.stackless(HotwireErrors.IPGEO_GEO_SERVER_INVALID_ARGUMENT);
+			}
+			IP_GeoLookupResult[] results = new IP_GeoLookupResult[ipAddresses
+					.size()];
+			for (int i = 0; i < results.length; i++) {
+				results[i] = IP_GeoLookupResult.success(ipAddresses.get(i),
+						new IP_GeoResponse.Builder(queryAddresses[i],
+								IP_GeoResponse.GEO_INFO_SOURCE_QUOVA)
+								.setCountryCode("US").build(), true);
+			}
+			return results;
+		}
+	}
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private FakeQuovaAdapter adapter;
+
+	/**
+	 * @param settings
+	 *            key=value pairs of hotwire.eis.geo.quova properties
+	 */
+	private FakeQuovaAdapter adapter(String... settings) {
+		return adapter(properties(settings));
+	}
+
+	private FakeQuovaAdapter adapter(Properties props) {
+		adapter = new FakeQuovaAdapter();
+		adapter.setHwProps(props);
+		adapter.configurationChanged();
+		return adapter;
+	}
+
+	/**
+	 * @param settings
+	 *            key=value pairs of hotwire.eis.geo.quova properties
+	 * @return the settings with those needed to configure the adapter
+	 */
+	private static Properties properties(String... settings) {
+		Properties props = new Properties();
+		String hegq = "hotwire.eis.geo.quova.";
+		props.setProperty(hegq + "geoDirectoryServerConnectionPoolSize", "4");
+		props.setProperty(hegq + "geoDirectoryServerClientTimeoutInMillis",
+				"1000");
+		props.setProperty(hegq + "geoDirectoryServerPrimaryServerIp",
+				"127.0.0.1");
+		props.setProperty(hegq + "geoDirectoryServerPrimaryServerPort", "7000");
+		for (String setting : settings) {
+			int separator = setting.indexOf('=');
+			props.setProperty(hegq + setting.substring(0, separator),
+					setting.substring(separator + 1));
+		}
+		return props;
+	}
+
+	@After
+	public void tearDown() {
+		if (adapter != null) {
+			adapter.shutdown();
+		}
+	}
+
+	@Test
+	public void testLookupAllChunksByBatchSizeAndKeepsOrder() {
+		FakeQuovaAdapter adapter = adapter("batchLookupSize=3");
+		List<String> ipAddresses = Arrays.asList("68.184.0.7", "68.184.0.1",
+				"1.2.a.3", "68.184.0.1", "68.184.0.5", "068.184.0.2",
+				"68.184.0.3", "68.184.0.4", "68.184.0.6");
+		Map<String, IP_GeoLookupResult> results = adapter
+				.lookupAll(ipAddresses);
+
+		assertEquals(Arrays.asList("68.184.0.7", "68.184.0.1", "1.2.a.3",
+				"68.184.0.5", "068.184.0.2", "68.184.0.3", "68.184.0.4",
+				"68.184.0.6"), new ArrayList<String>(results.keySet()));
+		// the malformed address is rejected without a query, the others are
+		// sent in canonical form
+		assertEquals(IP_GeoLookupResult.Status.INVALID, results.get("1.2.a.3")
+				.getStatus());
+		for (Map.Entry<String, IP_GeoLookupResult> entry : results.entrySet()) {
+			assertEquals(entry.getKey(), entry.getValue().getIP_Address());
+			if (!"1.2.a.3".equals(entry.getKey())) {
+				assertEquals(IP_GeoLookupResult.Status.FOUND, entry.getValue()
+						.getStatus());
+			}
+		}
+		assertEquals("68.184.0.2", results.get("068.184.0.2").getResponse()
+				.getIP_Address());
+
+		// 7 addresses in batches of 3, queried in parallel
+		List<Integer> batchSizes = new ArrayList<Integer>();
+		List<String> queried = new ArrayList<String>();
+		for (List<String> batch : adapter.batches) {
+			batchSizes.add(batch.size());
+			queried.addAll(batch);
+		}
+		Collections.sort(batchSizes);
+		assertEquals(Arrays.asList(1, 3, 3), batchSizes);
+		Collections.sort(queried);
+		assertEquals(Arrays.asList("068.184.0.2", "68.184.0.1", "68.184.0.3",
+				"68.184.0.4", "68.184.0.5", "68.184.0.6", "68.184.0.7"), queried);
+	}
+
+	@Test
+	public void testRejectedBatchIsQueriedAddressByAddress() {
+		FakeQuovaAdapter adapter = adapter("batchLookupSize=50");
+		Map<String, IP_GeoLookupResult> results = adapter.lookupAll(Arrays
+				.asList("68.184.0.1", FakeQuovaAdapter.REJECTED_IP,
+						"68.184.0.2"));
+
+		assertEquals(IP_GeoLookupResult.Status.FOUND, results.get("68.184.0.1")
+				.getStatus());
+		assertEquals(IP_GeoLookupResult.Status.INVALID,
+				results.get(FakeQuovaAdapter.REJECTED_IP).getStatus());
+		assertEquals(HotwireErrors.IPGEO_GEO_SERVER_INVALID_ARGUMENT, results
+				.get(FakeQuovaAdapter.REJECTED_IP).getErrorCode());
+		assertEquals(IP_GeoLookupResult.Status.FOUND, results.get("68.184.0.2")
+				.getStatus());
+		// the whole batch, then each address on its own
+		assertEquals(4, adapter.batches.size());
+		assertEquals(3, adapter.batches.get(0).size());
+	}
+
+	@Test
+	public void testInterruptedLookupAllFailsAsNotAvailable() {
+		FakeQuovaAdapter adapter = adapter("batchLookupSize=2");
+		adapter.release = new CountDownLatch(1);
+		Map<String, IP_GeoLookupResult> results;
+		Thread.currentThread().interrupt();
+		try {
+			results = adapter.lookupAll(Arrays.asList("68.184.0.1",
+					"68.184.0.2", "68.184.0.3"));
+		} finally {
+			assertTrue(Thread.interrupted());
+			adapter.release.countDown();
+		}
+		assertEquals(3, results.size());
+		for (IP_GeoLookupResult result : results.values()) {
+			assertEquals(IP_GeoLookupResult.Status.UNAVAILABLE,
+					result.getStatus());
+			assertEquals(HotwireErrors.IPGEO_GEO_SERVER_NOT_AVAILABLE,
+					result.getErrorCode());
+		}
+	}
+
+	@Test
+	public void testRejectedLookupAllFailsAsNotAvailable() {
+		FakeQuovaAdapter adapter = adapter("batchLookupSize=2");
+		adapter.getBatchExecutor().shutdown();
+		Map<String, IP_GeoLookupResult> results = adapter.lookupAll(Arrays
+				.asList("68.184.0.1", "68.184.0.2", "68.184.0.3",
+						"192.168.1.1"));
+
+		assertEquals(4, results.size());
+		for (String ipAddress : Arrays.asList("68.184.0.1", "68.184.0.2",
+				"68.184.0.3")) {
+			assertEquals(IP_GeoLookupResult.Status.UNAVAILABLE, results.get(
+					ipAddress).getStatus());
+		}
+		// reserved addresses are answered without a query
+		assertEquals(IP_GeoLookupResult.Status.NOT_FOUND,
+				results.get("192.168.1.1").getStatus());
+		assertTrue(adapter.batches.isEmpty());
+	}
+
+	private static void assertFailure(int errorCode,
+			CompletableFuture<IP_GeoResponse> future) throws Exception {
+		try {
+			future.get(5, TimeUnit.SECONDS);
+			fail();
+		} catch (ExecutionException e) {
+			assertEquals(errorCode,
+					((HwIP_GeoException) e.getCause()).getErrorCode());
+		}
+	}
+
+	@Test
+	public void testAsyncLookupTimesOutWithoutInterruptingTheQuery()
+			throws Exception {
+		FakeQuovaAdapter adapter = adapter("asyncLookupThreadPoolSize=1",
+				"asyncLookupQueueSize=1");
+		adapter.release = new CountDownLatch(1);
+		IP_GeoResponse fallback = new IP_GeoResponse("68.184.0.2",
+				IP_GeoResponse.GEO_INFO_SOURCE_QUOVA);
+
+		// the first lookup runs, the second waits in the queue
+		CompletableFuture<IP_GeoResponse> running = adapter.lookupAsync(
+				"68.184.0.1", 50, TimeUnit.MILLISECONDS);
+		CompletableFuture<IP_GeoResponse> queued = adapter.lookupAsync(
+				"68.184.0.2", 50, TimeUnit.MILLISECONDS, fallback);
+		assertFailure(HotwireErrors.IPGEO_GEO_SERVER_TIMEOUT, running);
+		assertSame(fallback, queued.get(5, TimeUnit.SECONDS));
+
+		// the timed out lookup left the queue, so there is room for another
+		CompletableFuture<IP_GeoResponse> next = adapter.lookupAsync(
+				"68.184.0.3", 0, TimeUnit.MILLISECONDS);
+		assertFalse(next.isDone());
+		adapter.release.countDown();
+		assertEquals("68.184.0.3", next.get(5, TimeUnit.SECONDS)
+				.getIP_Address());
+		// the running lookup was not interrupted and ran to the end
+		assertFalse(adapter.interrupted);
+		assertEquals(Arrays.asList("68.184.0.1", "68.184.0.3"),
+				adapter.completedLookups);
+	}
+
+	@Test
+	public void testAsyncLookupIsRejectedWhenTheQueueIsFull()
+			throws Exception {
+		FakeQuovaAdapter adapter = adapter("asyncLookupThreadPoolSize=1",
+				"asyncLookupQueueSize=1");
+		adapter.release = new CountDownLatch(1);
+		IP_GeoResponse fallback = new IP_GeoResponse("68.184.0.4",
+				IP_GeoResponse.GEO_INFO_SOURCE_QUOVA);
+
+		CompletableFuture<IP_GeoResponse> running = adapter.lookupAsync(
+				"68.184.0.1", 0, TimeUnit.MILLISECONDS);
+		CompletableFuture<IP_GeoResponse> queued = adapter.lookupAsync(
+				"68.184.0.2", 0, TimeUnit.MILLISECONDS);
+		// rejected at once, without waiting for the running lookup
+		CompletableFuture<IP_GeoResponse> rejected = adapter.lookupAsync(
+				"68.184.0.3", 0, TimeUnit.MILLISECONDS);
+		assertTrue(rejected.isCompletedExceptionally());
+		assertFailure(HotwireErrors.IPGEO_GEO_SERVER_NOT_AVAILABLE, rejected);
+		assertSame(fallback, adapter.lookupAsync("68.184.0.4", 0,
+				TimeUnit.MILLISECONDS, fallback).getNow(null));
+
+		adapter.release.countDown();
+		assertEquals("68.184.0.1", running.get(5, TimeUnit.SECONDS)
+				.getIP_Address());
+		assertEquals("68.184.0.2", queued.get(5, TimeUnit.SECONDS)
+				.getIP_Address());
+	}
+
+	private static void write(File file, String contents) throws IOException {
+		Files.write(file.toPath(), contents.getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	@Test
+	public void testReloadKeepsOverrides() throws Exception {
+		File file = folder.newFile("external.properties");
+		write(file, "hotwire.eis.geo.quova.batchLookupSize=10\n"
+				+ "hotwire.eis.geo.quova.asyncLookupQueueSize=20\n");
+		// the file read at startup, then a command line override
+		Properties props = properties("asyncLookupQueueSize=20",
+				"batchLookupSize=3");
+		props.setProperty(AppProperties.EXTERNAL_APP_PROPERTIES,
+				file.getPath());
+		FakeQuovaAdapter adapter = adapter(props);
+
+		write(file, "hotwire.eis.geo.quova.batchLookupSize=10\n"
+				+ "hotwire.eis.geo.quova.asyncLookupQueueSize=30\n"
+				+ "hotwire.eis.geo.quova.errorLogIntervalInMillis=1000\n");
+		adapter.reloadConfiguration();
+		assertEquals("3",
+				adapter.hwProps.getProperty("hotwire.eis.geo.quova.batchLookupSize"));
+		assertEquals("30", adapter.hwProps
+				.getProperty("hotwire.eis.geo.quova.asyncLookupQueueSize"));
+		assertEquals("1000", adapter.hwProps
+				.getProperty("hotwire.eis.geo.quova.errorLogIntervalInMillis"));
+		assertEquals("127.0.0.1", adapter.hwProps
+				.getProperty("hotwire.eis.geo.quova.geoDirectoryServerPrimaryServerIp"));
+
+		// a change to the overridden setting itself is applied
+		write(file, "hotwire.eis.geo.quova.batchLookupSize=12\n");
+		adapter.reloadConfiguration();
+		assertEquals("12",
+				adapter.hwProps.getProperty("hotwire.eis.geo.quova.batchLookupSize"));
+		assertEquals("30", adapter.hwProps
+				.getProperty("hotwire.eis.geo.quova.asyncLookupQueueSize"));
+	}
+
+	@Test
+	public void testChangedCacheSnapshotFileIsRestored() throws Exception {
+		IP_GeoResponseCache cache = new IP_GeoResponseCache(100, 0,
+				IP_GeoResponseCache.EvictionPolicy.LRU);
+		cache.put(IP_AddressParser.parse("68.184.0.1"),
+				new IP_GeoResponse.Builder("68.184.0.1",
+						IP_GeoResponse.GEO_INFO_SOURCE_QUOVA).setCountryCode("US")
+						.build());
+		File snapshot = folder.newFile("lookups.snapshot");
+		IP_GeoResponseCacheSnapshot.write(snapshot, cache);
+
+		File empty = new File(folder.getRoot(), "empty.snapshot");
+		FakeQuovaAdapter adapter = adapter("lookupCacheMaxEntries=100",
+				"cacheSnapshotIntervalInMillis=0",
+				"cacheSnapshotFile=" + empty.getPath());
+		adapter.setHwProps(properties("lookupCacheMaxEntries=100",
+				"cacheSnapshotIntervalInMillis=0",
+				"cacheSnapshotFile=" + snapshot.getPath()));
+		adapter.configurationChanged();
+
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (adapter.getLookupCache().size() == 0
+				&& System.nanoTime() < deadline) {
+			Thread.sleep(5);
+		}
+		assertEquals(IP_GeoLookupResult.Status.FOUND,
+				adapter.lookupAll(Arrays.asList("68.184.0.1")).get("68.184.0.1")
+						.getStatus());
+		assertTrue(adapter.batches.isEmpty());
+	}
+
+	@Test
+	public void testFoundAddressWithoutCountryIsFound() {
+		FakeQuovaAdapter adapter = adapter("lookupCacheMaxEntries=100");
+		// looked up with CITY alone, so no country was decoded
+		adapter.getLookupCache().put(IP_AddressParser.parse("68.184.0.1"),
+				new IP_GeoResponse.Builder("68.184.0.1",
+						IP_GeoResponse.GEO_INFO_SOURCE_QUOVA)
+						.setCityName("OAKLAND")
+						.setFields(IP_GeoField.CITY.bit()).build());
+		// Quova knows the address but has no country for it
+		adapter.getLookupCache().put(IP_AddressParser.parse("68.184.0.2"),
+				new IP_GeoResponse.Builder("68.184.0.2",
+						IP_GeoResponse.GEO_INFO_SOURCE_QUOVA).setNDMA_Code(807)
+						.build());
+
+		IP_GeoLookupResult result = adapter.lookupResult("68.184.0.1",
+				EnumSet.of(IP_GeoField.CITY));
+		assertEquals(IP_GeoLookupResult.Status.FOUND, result.getStatus());
+		assertEquals("OAKLAND", result.getResponse().getCityName());
+		assertNull(result.getResponse().getCountryCode());
+
+		assertEquals(IP_GeoLookupResult.Status.FOUND,
+				adapter.lookupResult("68.184.0.2").getStatus());
+		assertEquals(IP_GeoLookupResult.Status.FOUND,
+				adapter.lookupAll(Arrays.asList("68.184.0.2")).get("68.184.0.2")
+						.getStatus());
+		assertTrue(adapter.batches.isEmpty());
+	}
+}
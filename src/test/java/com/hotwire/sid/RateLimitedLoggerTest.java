@@ -0,0 +1,119 @@
+package com.hotwire.sid;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+public class RateLimitedLoggerTest {
+
+	private static final String LOGGER_NAME = "com.hotwire.sid.RateLimitedLoggerTest";
+
+	private final List<LoggingEvent> events = new ArrayList<LoggingEvent>();
+
+	private final AppenderSkeleton appender = new AppenderSkeleton() {
+		protected void append(LoggingEvent event) {
+			events.add(event);
+		}
+
+		public boolean requiresLayout() {
+			return false;
+		}
+
+		public void close() {
+		}
+	};
+
+	@Before
+	public void setUp() {
+		org.apache.log4j.Logger logger = org.apache.log4j.Logger
+				.getLogger(LOGGER_NAME);
+		logger.setLevel(Level.DEBUG);
+		logger.setAdditivity(false);
+		logger.addAppender(appender);
+	}
+
+	@After
+	public void tearDown() {
+		org.apache.log4j.Logger.getLogger(LOGGER_NAME).removeAppender(appender);
+	}
+
+	private RateLimitedLogger logger(long intervalInMillis, int debugSampleRate) {
+		return new RateLimitedLogger(LoggerFactory.getLogger(LOGGER_NAME),
+				intervalInMillis, debugSampleRate);
+	}
+
+	@Test
+	public void testSuppressesWithinInterval() throws Exception {
+		RateLimitedLogger log = logger(60000, 1);
+		Exception cause = new Exception("connection refused");
+		for (int i = 0; i < 5; i++) {
+			log.error("NOT_AVAILABLE", "Quova is not available: {}", i, cause);
+		}
+		log.warn("TIMEOUT", "Quova timed out");
+		assertEquals(2, events.size());
+		assertEquals("Quova is not available: 0", events.get(0)
+				.getRenderedMessage());
+		assertSame(cause, events.get(0).getThrowableInformation()
+				.getThrowable());
+		assertEquals(Level.WARN, events.get(1).getLevel());
+
+		log.flush();
+		assertEquals(3, events.size());
+		assertEquals("4 messages for NOT_AVAILABLE were suppressed", events
+				.get(2).getRenderedMessage());
+		// nothing left to report
+		log.flush();
+		assertEquals(3, events.size());
+	}
+
+	@Test
+	public void testReportsSuppressedCount() throws Exception {
+		RateLimitedLogger log = logger(20, 1);
+		Exception cause = new Exception("connection refused");
+		log.error("NOT_AVAILABLE", "Quova is not available: {}", 0, cause);
+		log.error("NOT_AVAILABLE", "Quova is not available: {}", 1, cause);
+		log.error("NOT_AVAILABLE", "Quova is not available: {}", 2, cause);
+		Thread.sleep(50);
+		log.error("NOT_AVAILABLE", "Quova is not available: {}", 3, cause);
+		assertEquals(2, events.size());
+		assertEquals("Quova is not available: 3 (2 similar messages suppressed)",
+				events.get(1).getRenderedMessage());
+		// the suppressed count goes before the exception, which is still
+		// logged as such
+		assertSame(cause, events.get(1).getThrowableInformation()
+				.getThrowable());
+
+		log.setIntervalInMillis(0);
+		log.warn("NOT_AVAILABLE", "Quova is not available");
+		log.warn("NOT_AVAILABLE", "Quova is not available");
+		assertEquals(4, events.size());
+	}
+
+	@Test
+	public void testDebugSampling() {
+		RateLimitedLogger log = logger(0, 1);
+		assertTrue(log.isDebugSampled());
+
+		log.setDebugSampleRate(4);
+		int sampled = 0;
+		for (int i = 0; i < 4000; i++) {
+			if (log.isDebugSampled()) {
+				sampled++;
+			}
+		}
+		assertTrue(sampled > 500 && sampled < 1500);
+
+		org.apache.log4j.Logger.getLogger(LOGGER_NAME).setLevel(Level.INFO);
+		log.setDebugSampleRate(1);
+		assertFalse(log.isDebugSampled());
+	}
+}
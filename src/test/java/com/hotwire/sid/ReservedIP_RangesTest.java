@@ -0,0 +1,49 @@
+package com.hotwire.sid;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class ReservedIP_RangesTest {
+
+	@Test
+	public void testReservedIPv4() {
+		String[] reserved = { "0.1.2.3", "10.0.0.1", "100.64.0.1",
+				"100.127.255.255", "127.0.0.1", "169.254.10.10", "172.16.0.0",
+				"172.17.29.112", "172.31.255.255", "192.0.2.1", "192.168.1.1",
+				"198.18.0.1", "198.19.255.255", "198.51.100.7", "203.0.113.9",
+				"224.0.0.1", "239.255.255.250", "255.255.255.255" };
+		for (String address : reserved) {
+			assertTrue(address,
+					ReservedIP_Ranges.isReserved(IP_AddressParser.parse(address)));
+		}
+	}
+
+	@Test
+	public void testPublicIPv4() {
+		String[] global = { "1.1.1.1", "68.184.77.220", "100.63.255.255",
+				"100.128.0.0", "172.15.255.255", "172.32.0.0", "192.0.3.1",
+				"192.169.0.1", "198.20.0.1", "223.255.255.255" };
+		for (String address : global) {
+			assertFalse(address,
+					ReservedIP_Ranges.isReserved(IP_AddressParser.parse(address)));
+		}
+	}
+
+	@Test
+	public void testIPv6() {
+		String[] reserved = { "::", "::1", "::ffff:10.1.2.3", "100::1",
+				"64:ff9b:1::1", "2001:db8::1", "fc00::1", "fdff:ffff::1",
+				"fe80::1", "febf::1", "ff02::1" };
+		for (String address : reserved) {
+			assertTrue(address,
+					ReservedIP_Ranges.isReserved(IP_AddressParser.parse(address)));
+		}
+		String[] global = { "2001:4860:4860::8888", "2a00:1450::1", "64:ff9b::1",
+				"fec0::1", "100:0:0:1::1", "2001:db9::1" };
+		for (String address : global) {
+			assertFalse(address,
+					ReservedIP_Ranges.isReserved(IP_AddressParser.parse(address)));
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package com.hotwire.sid;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class RollingLatencyHistogramTest {
+
+	private static final long WINDOW = TimeUnit.SECONDS.toNanos(10);
+
+	private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	@Test
+	public void testPercentilesFollowRecentLatency() {
+		// nanoTime may be negative
+		long now = -3 * WINDOW;
+		RollingLatencyHistogram histogram = new RollingLatencyHistogram(
+				WINDOW, now);
+		for (int i = 0; i < 100; i++) {
+			histogram.record(300 * MILLIS, now);
+		}
+		assertTrue(histogram.getValueAtPercentile(50, now) >= 300 * MILLIS);
+
+		// the slow window is kept as the previous one
+		now += WINDOW;
+		for (int i = 0; i < 100; i++) {
+			histogram.record(2 * MILLIS, now);
+		}
+		assertEquals(200, histogram.getCount(now));
+		assertTrue(histogram.getValueAtPercentile(99, now) >= 300 * MILLIS);
+
+		// then dropped
+		now += WINDOW;
+		histogram.record(2 * MILLIS, now);
+		assertEquals(101, histogram.getCount(now));
+		assertTrue(histogram.getValueAtPercentile(99, now) < 3 * MILLIS);
+	}
+
+	@Test
+	public void testQuietWindowsDropEverything() {
+		long now = System.nanoTime();
+		RollingLatencyHistogram histogram = new RollingLatencyHistogram(
+				WINDOW, now);
+		histogram.record(300 * MILLIS, now);
+		assertEquals(1, histogram.getCount(now + WINDOW));
+		assertEquals(0, histogram.getCount(now + 3 * WINDOW));
+		assertEquals(0, histogram.getValueAtPercentile(99, now + 3 * WINDOW));
+
+		histogram.record(300 * MILLIS);
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+	}
+}
@@ -0,0 +1,198 @@
+package com.hotwire.sid;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SharedIP_GeoResponseCacheTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static IP_GeoResponse response(String ip, String city) {
+		return new IP_GeoResponse.Builder(ip, 'Q').setCountryCode("US")
+				.setGmtOffset(-8f).setNDMA_Code(807).setZipCode("94105")
+				.setCityName(city).setStateName("CA").setLatitude(37.79f)
+				.setLongitude(-122.39f).build();
+	}
+
+	@Test
+	public void testSharedBetweenMappings() throws IOException {
+		File file = new File(folder.getRoot(), "lookups.cache");
+		SharedIP_GeoResponseCache cache = SharedIP_GeoResponseCache.open(
+				file, 1000);
+		assertEquals(1024, cache.getCapacity());
+		// another JVM maps the existing file whatever size it asks for
+		SharedIP_GeoResponseCache otherCache = SharedIP_GeoResponseCache
+				.open(file, 10);
+		assertEquals(1024, otherCache.getCapacity());
+
+		IP_AddressKey key = IP_AddressParser.parse("68.184.77.220");
+		assertNull(otherCache.get(key));
+		assertTrue(cache.put(key, response("68.184.77.220", "SAN FRANCISCO"),
+				0));
+
+		IP_GeoResponse shared = otherCache.get(key);
+		assertEquals("68.184.77.220", shared.getIP_Address());
+		assertEquals('Q', shared.getGeoInfoSource());
+		assertEquals("US", shared.getCountryCode());
+		assertEquals(-8f, shared.getGmtOffset(), 0);
+		assertEquals(807, shared.getNDMA_Code());
+		assertEquals("94105", shared.getZipCode());
+		assertEquals("SAN FRANCISCO", shared.getCityName());
+		assertEquals("CA", shared.getStateName());
+		assertEquals(37.79f, shared.getLatitude(), 0);
+		assertEquals(-122.39f, shared.getLongitude(), 0);
+		assertEquals(IP_GeoField.ALL, shared.getFields());
+		assertTrue(shared.isFound());
+		assertEquals(1, otherCache.getHitCount());
+		assertEquals(1, otherCache.getMissCount());
+
+		// a not found response keeps its null strings
+		IP_AddressKey ipv6 = IP_AddressParser.parse("2001:db8::1");
+		otherCache.put(ipv6, new IP_GeoResponse("2001:db8::1", 'Q'), 0);
+		IP_GeoResponse notFound = cache.get(ipv6);
+		assertFalse(notFound.isFound());
+		assertNull(notFound.getCountryCode());
+		assertNull(notFound.getCityName());
+		assertEquals(Float.MAX_VALUE, notFound.getLatitude(), 0);
+	}
+
+	@Test
+	public void testExpiryAndReplacement() throws IOException {
+		SharedIP_GeoResponseCache cache = SharedIP_GeoResponseCache.open(
+				new File(folder.getRoot(), "lookups.cache"), 16);
+		IP_AddressKey key = IP_AddressParser.parse("1.2.3.4");
+		assertTrue(cache.put(key, response("1.2.3.4", "OAKLAND"), 2000L, 1000L));
+		assertNotNull(cache.get(key, 1999L));
+		assertNull(cache.get(key, 2000L));
+
+		assertTrue(cache.put(key, response("1.2.3.4", "BERKELEY"), 5000L,
+				3000L));
+		assertEquals("BERKELEY", cache.get(key, 3000L).getCityName());
+
+		// strings too long for their field are not shared
+		assertFalse(cache.put(IP_AddressParser.parse("1.2.3.5"), response(
+				"1.2.3.5", "LLANFAIRPWLLGWYNGYLLGOGERYCHWYRNDROBWLL"), 0));
+		assertEquals(1, cache.getRejectedPutCount());
+	}
+
+	@Test
+	public void testFullProbeSequence() throws IOException {
+		SharedIP_GeoResponseCache cache = SharedIP_GeoResponseCache.open(
+				new File(folder.getRoot(), "lookups.cache"), 16);
+		// more addresses than slots, every put still finds a slot
+		for (int i = 0; i < 64; i++) {
+			IP_AddressKey key = IP_AddressKey.ofIPv4(i);
+			assertTrue(cache.put(key, response(key.toString(), "OAKLAND"), 0));
+			assertEquals(key.toString(), cache.get(key).getIP_Address());
+		}
+		int found = 0;
+		for (int i = 0; i < 64; i++) {
+			if (cache.get(IP_AddressKey.ofIPv4(i)) != null) {
+				found++;
+			}
+		}
+		assertTrue(found > 0 && found <= 16);
+	}
+
+	@Test
+	public void testSlots() {
+		assertEquals(2, SharedIP_GeoResponseCache.slots(1));
+		assertEquals(16, SharedIP_GeoResponseCache.slots(16));
+		assertEquals(32, SharedIP_GeoResponseCache.slots(17));
+		assertEquals(1 << 23, SharedIP_GeoResponseCache.slots(1 << 23));
+		assertEquals(1 << 23, SharedIP_GeoResponseCache.slots((1 << 30) + 1));
+		assertEquals(1 << 23,
+				SharedIP_GeoResponseCache.slots(Integer.MAX_VALUE));
+	}
+
+	@Test
+	public void testConcurrentReadersSeeWholeRecords() throws Exception {
+		final SharedIP_GeoResponseCache cache = SharedIP_GeoResponseCache
+				.open(new File(folder.getRoot(), "lookups.cache"), 16);
+		final IP_AddressKey key = IP_AddressParser.parse("1.2.3.4");
+		final String[] cities = { "OAKLAND", "SAN FRANCISCO" };
+		final AtomicReference<String> error = new AtomicReference<String>();
+		final long end = System.currentTimeMillis() + 300;
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			final boolean writer = t < 2;
+			threads[t] = new Thread() {
+				public void run() {
+					for (int i = 0; System.currentTimeMillis() < end; i++) {
+						if (writer) {
+							String city = cities[i & 1];
+							cache.put(key, new IP_GeoResponse.Builder(
+									"1.2.3.4", 'Q').setCityName(city)
+									.setNDMA_Code(city.length()).build(), 0);
+						} else {
+							IP_GeoResponse response = cache.get(key);
+							if (response != null
+									&& response.getCityName().length() != response
+											.getNDMA_Code()) {
+								error.set(response.getCityName() + " "
+										+ response.getNDMA_Code());
+							}
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertNull(error.get());
+		assertTrue(cache.getHitCount() > 0);
+	}
+
+	@Test
+	public void testSlotOfKilledWriterIsTakenOver() throws IOException {
+		File file = new File(folder.getRoot(), "lookups.cache");
+		SharedIP_GeoResponseCache cache = SharedIP_GeoResponseCache.open(file,
+				16);
+		IP_AddressKey key = IP_AddressParser.parse("1.2.3.4");
+		int home = IP_GeoResponseCache.hash(key.getHigh(), key.getLow())
+				& (cache.getCapacity() - 1);
+		// a JVM killed while writing every slot the address may take
+		long lockedAtMillis = 5000;
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+				FileChannel channel = raf.getChannel()) {
+			MappedByteBuffer buffer = channel.map(
+					FileChannel.MapMode.READ_WRITE, 0, channel.size());
+			buffer.order(ByteOrder.nativeOrder());
+			for (int i = 0; i < SharedIP_GeoResponseCache.MAX_PROBES; i++) {
+				int slot = (home + i) & (cache.getCapacity() - 1);
+				buffer.putLong(SharedIP_GeoResponseCache.HEADER_SIZE + slot
+						* SharedIP_GeoResponseCache.SLOT_SIZE,
+						lockedAtMillis << 1 | 1);
+			}
+		}
+
+		long nowMillis = lockedAtMillis
+				+ SharedIP_GeoResponseCache.STALE_WRITE_IN_MILLIS;
+		assertFalse(cache.put(key, response("1.2.3.4", "OAKLAND"),
+				Long.MAX_VALUE, nowMillis));
+		assertNull(cache.get(key, nowMillis));
+
+		nowMillis++;
+		assertTrue(cache.put(key, response("1.2.3.4", "OAKLAND"),
+				Long.MAX_VALUE, nowMillis));
+		assertEquals("OAKLAND", cache.get(key, nowMillis).getCityName());
+		// the slot is unlocked, so an earlier clock can write it again
+		assertTrue(cache.put(key, response("1.2.3.4", "BERKELEY"),
+				Long.MAX_VALUE, 1000L));
+		assertEquals("BERKELEY", cache.get(key, 1000L).getCityName());
+	}
+}
@@ -0,0 +1,127 @@
+package com.hotwire.sid;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Properties;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SimulatedIP_GeoServerAdapterTest {
+
+	private static final String CSV = "startIp,endIp,country,state,city,zip,dma,gmtOffset,lat,long\n"
+			+ "68.184.77.0,68.184.77.255,us,al,montgomery,36107,698,-6.0,32.38316,-86.28197\n";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static Properties simulator(String... settings) {
+		Properties props = SimulatorFixture.properties(settings);
+		props.setProperty(IP_GeoServerAdapterFactory.SERVER_ADAPTER_TYPE_PROPERTY,
+				IP_GeoServerAdapterFactory.SIMULATOR);
+		return props;
+	}
+
+	private static int lookupError(IP_GeoServerAdapter adapter) {
+		try {
+			adapter.lookup("68.184.77.220");
+		} catch (HwIP_GeoException e) {
+			return e.getErrorCode();
+		}
+		return 0;
+	}
+
+	@Test
+	public void testLookupFromDataFile() throws IOException, HwIP_GeoException {
+		File dataFile = folder.newFile("ranges.csv");
+		Files.write(dataFile.toPath(), CSV.getBytes(StandardCharsets.UTF_8));
+		IP_GeoServerAdapter adapter = IP_GeoServerAdapterFactory
+				.create(simulator("dataFile", dataFile.getPath()));
+		assertTrue(adapter instanceof SimulatedIP_GeoServerAdapter);
+
+		IP_GeoResponse response = adapter.lookup("68.184.77.220");
+		assertEquals(IP_GeoResponse.GEO_INFO_SOURCE_SIMULATOR,
+				response.getGeoInfoSource());
+		assertEquals("US", response.getCountryCode());
+		assertEquals("montgomery", response.getCityName());
+		assertEquals(698, response.getNDMA_Code());
+
+		response = adapter.lookup("8.8.8.8");
+		assertEquals(IP_GeoResponse.GEO_INFO_SOURCE_SIMULATOR,
+				response.getGeoInfoSource());
+		assertNull(response.getCountryCode());
+	}
+
+	@Test
+	public void testInjectedFaults() throws HwIP_GeoException {
+		SimulatedIP_GeoServerAdapter adapter = (SimulatedIP_GeoServerAdapter) IP_GeoServerAdapterFactory
+				.create(simulator("poolFailureRate", "1"));
+		assertEquals(HotwireErrors.IPGEO_GEO_SERVER_NOT_AVAILABLE,
+				lookupError(adapter));
+		assertEquals(1, adapter.getPoolFailureCount());
+
+		adapter.setHwProps(simulator("latencyInMillis", "50",
+				"clientTimeoutInMillis", "10"));
+		adapter.configurationChanged();
+		assertEquals(HotwireErrors.IPGEO_GEO_SERVER_TIMEOUT,
+				lookupError(adapter));
+		assertEquals(1, adapter.getTimeoutCount());
+
+		adapter.setHwProps(simulator("unrecoverableErrorRate", "1",
+				"outageDurationInMillis", "60000"));
+		adapter.configurationChanged();
+		assertEquals(HotwireErrors.IPGEO_GEO_SERVER_NOT_AVAILABLE,
+				lookupError(adapter));
+		// the outage fails lookups even once no more errors are injected
+		adapter.setHwProps(simulator());
+		adapter.configurationChanged();
+		assertEquals(HotwireErrors.IPGEO_GEO_SERVER_NOT_AVAILABLE,
+				lookupError(adapter));
+		assertEquals(2, adapter.getUnrecoverableErrorCount());
+
+		adapter.shutdown();
+		assertEquals(0, lookupError(adapter));
+		assertEquals(5, adapter.getCallCount());
+	}
+
+	@Test
+	public void testLookupResult() throws HwIP_GeoException {
+		IP_GeoServerAdapter adapter = IP_GeoServerAdapterFactory
+				.create(simulator());
+		IP_GeoLookupResult result = adapter.lookupResult("68.184.77.220");
+		assertEquals(IP_GeoLookupResult.Status.NOT_FOUND, result.getStatus());
+		assertEquals(IP_GeoResponse.GEO_INFO_SOURCE_SIMULATOR, result
+				.getResponse().getGeoInfoSource());
+
+		result = adapter.lookupResult("68.184.77");
+		assertEquals(IP_GeoLookupResult.Status.INVALID, result.getStatus());
+		assertEquals(HotwireErrors.IPGEO_GEO_SERVER_INVALID_ARGUMENT,
+				result.getErrorCode());
+
+		adapter.setHwProps(simulator("timeoutRate", "1",
+				"clientTimeoutInMillis", "1"));
+		adapter.configurationChanged();
+		result = adapter.lookupResult("68.184.77.220");
+		assertEquals(IP_GeoLookupResult.Status.TIMEOUT, result.getStatus());
+		assertNull(result.getResponse());
+	}
+
+	@Test
+	public void testUnknownAdapterType() {
+		Properties props = new Properties();
+		props.setProperty(IP_GeoServerAdapterFactory.SERVER_ADAPTER_TYPE_PROPERTY,
+				"nosuchserver");
+		try {
+			IP_GeoServerAdapterFactory.create(props);
+			fail();
+		} catch (HwIP_GeoException e) {
+			assertEquals(HotwireErrors.IPGEO_INVALID_SERVER_ADAPTER_TYPE,
+					e.getErrorCode());
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package com.hotwire.sid;
+
+import java.util.Properties;
+
+/**
+ * Builds SimulatedIP_GeoServerAdapters for tests, answering without latency
+ * unless the settings say otherwise
+ */
+final class SimulatorFixture {
+
+	private SimulatorFixture() {
+	}
+
+	/**
+	 * @param settings
+	 *            pairs of simulator property names, without their
+	 *            hotwire.eis.geo.simulator. prefix, and values
+	 * @return the simulator properties
+	 */
+	static Properties properties(String... settings) {
+		Properties props = new Properties();
+		props.setProperty("hotwire.eis.geo.simulator.latencyDistribution",
+				"FIXED");
+		props.setProperty("hotwire.eis.geo.simulator.latencyInMillis", "0");
+		for (int i = 0; i < settings.length; i += 2) {
+			props.setProperty("hotwire.eis.geo.simulator." + settings[i],
+					settings[i + 1]);
+		}
+		return props;
+	}
+
+	/**
+	 * @param settings
+	 *            pairs of simulator property names and values, as for
+	 *            properties
+	 * @return a configured simulator
+	 */
+	static SimulatedIP_GeoServerAdapter simulator(String... settings) {
+		SimulatedIP_GeoServerAdapter adapter = new SimulatedIP_GeoServerAdapter();
+		adapter.setHwProps(properties(settings));
+		adapter.configurationChanged();
+		return adapter;
+	}
+}
@@ -0,0 +1,100 @@
+package com.hotwire.sid;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class SingleFlightTest {
+
+	private final ExecutorService executor = Executors.newFixedThreadPool(8);
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testConcurrentCallsShareOneCall() throws Exception {
+		final SingleFlight<String, String> singleFlight = new SingleFlight<String, String>();
+		final AtomicInteger calls = new AtomicInteger();
+		final CountDownLatch release = new CountDownLatch(1);
+		final SingleFlight.Call<String> call = () -> {
+			calls.incrementAndGet();
+			try {
+				release.await(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return "result";
+		};
+
+		List<Future<String>> futures = new ArrayList<Future<String>>();
+		for (int i = 0; i < 8; i++) {
+			futures.add(executor.submit(() -> singleFlight.execute("1.2.3.4",
+					call)));
+		}
+		long deadline = System.currentTimeMillis() + 5000;
+		while (singleFlight.getCoalescedCallCount() < 7
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		release.countDown();
+		for (Future<String> future : futures) {
+			assertEquals("result", future.get(5, TimeUnit.SECONDS));
+		}
+		assertEquals(1, calls.get());
+		assertEquals(7, singleFlight.getCoalescedCallCount());
+		assertEquals(0, singleFlight.getInFlightCallCount());
+
+		// completed calls are not reused
+		assertEquals("result", singleFlight.execute("1.2.3.4", call));
+		assertEquals(2, calls.get());
+	}
+
+	@Test
+	public void testErrorIsShared() throws Exception {
+		final SingleFlight<String, String> singleFlight = new SingleFlight<String, String>();
+		final CountDownLatch release = new CountDownLatch(1);
+		final SingleFlight.Call<String> call = () -> {
+			try {
+				release.await(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			throw new HwIP_GeoException(HotwireErrors.IPGEO_GEO_SERVER_TIMEOUT);
+		};
+
+		List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+		for (int i = 0; i < 4; i++) {
+			futures.add(executor.submit(() -> {
+				try {
+					singleFlight.execute("1.2.3.4", call);
+					return 0;
+				} catch (HwIP_GeoException e) {
+					return e.getErrorCode();
+				}
+			}));
+		}
+		long deadline = System.currentTimeMillis() + 5000;
+		while (singleFlight.getCoalescedCallCount() < 3
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		release.countDown();
+		for (Future<Integer> future : futures) {
+			assertEquals(HotwireErrors.IPGEO_GEO_SERVER_TIMEOUT, future.get(5,
+					TimeUnit.SECONDS).intValue());
+		}
+		assertEquals(0, singleFlight.getInFlightCallCount());
+	}
+}